@@ -735,9 +735,6 @@ JNIEXPORT jbyteArray Java_com_b44t_messenger_MediaController_getWaveform2(JNIEnv
     return result;
 }
 
-int16_t *sampleBuffer = NULL;
-
-
 JNIEXPORT jbyteArray Java_com_b44t_messenger_MediaController_getWaveform(JNIEnv *env, jclass class, jstring path) {
     const char *pathStr = (*env)->GetStringUTFChars(env, path, 0);
     jbyteArray result = 0;
@@ -751,9 +748,15 @@ JNIEXPORT jbyteArray Java_com_b44t_messenger_MediaController_getWaveform(JNIEnv
         
         uint16_t *samples = malloc(100 * 2);
         
+        // allocated per call, the function may run on several threads at the same time
         int bufferSize = 1024 * 128;
-        if (sampleBuffer == NULL) {
-            sampleBuffer = malloc(bufferSize);
+        int16_t *sampleBuffer = malloc(bufferSize);
+        if (samples == NULL || sampleBuffer == NULL) {
+            free(samples);
+            free(sampleBuffer);
+            op_free(opusFile);
+            (*env)->ReleaseStringUTFChars(env, path, pathStr);
+            return 0;
         }
         uint64_t sampleIndex = 0;
         uint16_t peakSample = 0;
@@ -795,7 +798,7 @@ JNIEXPORT jbyteArray Java_com_b44t_messenger_MediaController_getWaveform(JNIEnv
             }
         }
         
-        //free(sampleBuffer);
+        free(sampleBuffer);
         op_free(opusFile);
         
         int bitstreamLength = (resultSamples * 5) / 8 + (((resultSamples * 5) % 8) == 0 ? 0 : 1);
@@ -169,19 +169,6 @@ static uint32_t* jintArray2uint32Pointer(JNIEnv* env, jintArray ja, int* ret_icn
  ******************************************************************************/
 
 
-static mrmailbox_t* get_mrmailbox_t(JNIEnv *env, jclass cls)
-{
-	static jfieldID fid = 0;
-	if( fid == 0 ) {
-		fid = (*env)->GetStaticFieldID(env, cls, "m_hMailbox", "J" /*Signature, J=long*/);
-	}
-	if( fid ) {
-		return (mrmailbox_t*)(*env)->GetStaticLongField(env, cls, fid);
-	}
-	return NULL;
-}
- 
-
 /* MrMailbox - new/delete */
 
 static uintptr_t s_mailbox_callback_(mrmailbox_t* mailbox, int event, uintptr_t data1, uintptr_t data2)
@@ -214,24 +201,24 @@ JNIEXPORT jlong Java_com_b44t_messenger_MrMailbox_MrMailboxNew(JNIEnv *env, jcla
 
 /* MrMailbox - open/configure/connect/fetch */
 
-JNIEXPORT jint Java_com_b44t_messenger_MrMailbox_open(JNIEnv *env, jclass cls, jstring dbfile)
+JNIEXPORT jint Java_com_b44t_messenger_MrMailbox_MrMailboxOpen(JNIEnv *env, jclass c, jlong hMailbox, jstring dbfile)
 {
 	CHAR_REF(dbfile);
-		jint ret = mrmailbox_open(get_mrmailbox_t(env, cls), dbfilePtr, NULL);
+		jint ret = mrmailbox_open((mrmailbox_t*)hMailbox, dbfilePtr, NULL);
 	CHAR_UNREF(dbfile)
 	return ret;
 }
 
 
-JNIEXPORT void Java_com_b44t_messenger_MrMailbox_close(JNIEnv *env, jclass cls)
+JNIEXPORT void Java_com_b44t_messenger_MrMailbox_MrMailboxClose(JNIEnv *env, jclass c, jlong hMailbox)
 {
-	mrmailbox_close(get_mrmailbox_t(env, cls));
+	mrmailbox_close((mrmailbox_t*)hMailbox);
 }
 
 
-JNIEXPORT jstring Java_com_b44t_messenger_MrMailbox_getBlobdir(JNIEnv *env, jclass cls)
+JNIEXPORT jstring Java_com_b44t_messenger_MrMailbox_MrMailboxGetBlobdir(JNIEnv *env, jclass c, jlong hMailbox)
 {
-	mrmailbox_t* ths = get_mrmailbox_t(env, cls);
+	mrmailbox_t* ths = (mrmailbox_t*)hMailbox;
 	return JSTRING_NEW((ths&&ths->m_blobdir)? ths->m_blobdir : NULL);
 }
 
@@ -266,35 +253,35 @@ JNIEXPORT jint Java_com_b44t_messenger_MrMailbox_MrMailboxFetch(JNIEnv *env, jcl
 }
 
 
-JNIEXPORT jstring Java_com_b44t_messenger_MrMailbox_getErrorDescr(JNIEnv *env, jclass cls)
+JNIEXPORT jstring Java_com_b44t_messenger_MrMailbox_MrMailboxGetErrorDescr(JNIEnv *env, jclass c, jlong hMailbox)
 {
-	char* c = mrmailbox_get_error_descr(get_mrmailbox_t(env, cls));
-		jstring ret = JSTRING_NEW(c);
-	free(c);
+	char* temp = mrmailbox_get_error_descr((mrmailbox_t*)hMailbox);
+		jstring ret = JSTRING_NEW(temp);
+	free(temp);
 	return ret;
 }
 
 
 /* MrMailbox - handle contacts */
 
-JNIEXPORT jintArray Java_com_b44t_messenger_MrMailbox_getKnownContacts(JNIEnv *env, jclass cls, jstring query)
+JNIEXPORT jintArray Java_com_b44t_messenger_MrMailbox_MrMailboxGetKnownContacts(JNIEnv *env, jclass c, jlong hMailbox, jstring query)
 {
 	CHAR_REF(query);
-	    carray* ca = mrmailbox_get_known_contacts(get_mrmailbox_t(env, cls), queryPtr);
+	    carray* ca = mrmailbox_get_known_contacts((mrmailbox_t*)hMailbox, queryPtr);
 	CHAR_UNREF(query);
 	return carray2jintArray_n_carray_free(env, ca);
 }
 
 
-JNIEXPORT jint Java_com_b44t_messenger_MrMailbox_getBlockedCount(JNIEnv *env, jclass cls)
+JNIEXPORT jint Java_com_b44t_messenger_MrMailbox_MrMailboxGetBlockedCount(JNIEnv *env, jclass c, jlong hMailbox)
 {
-	return mrmailbox_get_blocked_count(get_mrmailbox_t(env, cls));
+	return mrmailbox_get_blocked_count((mrmailbox_t*)hMailbox);
 }
 
 
-JNIEXPORT jintArray Java_com_b44t_messenger_MrMailbox_getBlockedContacts(JNIEnv *env, jclass cls)
+JNIEXPORT jintArray Java_com_b44t_messenger_MrMailbox_MrMailboxGetBlockedContacts(JNIEnv *env, jclass c, jlong hMailbox)
 {
-	carray* ca = mrmailbox_get_blocked_contacts(get_mrmailbox_t(env, cls));
+	carray* ca = mrmailbox_get_blocked_contacts((mrmailbox_t*)hMailbox);
 	return carray2jintArray_n_carray_free(env, ca);
 }
 
@@ -357,15 +344,15 @@ JNIEXPORT jint Java_com_b44t_messenger_MrMailbox_MrMailboxGetChatIdByContactId(J
 }
 
 
-JNIEXPORT jint Java_com_b44t_messenger_MrMailbox_markseenMsg(JNIEnv *env, jclass cls, jint msg_id)
+JNIEXPORT jint Java_com_b44t_messenger_MrMailbox_MrMailboxMarkseenMsg(JNIEnv *env, jclass c, jlong hMailbox, jint msg_id)
 {
-	return (jint)mrmailbox_markseen_msg(get_mrmailbox_t(env, cls), msg_id);
+	return (jint)mrmailbox_markseen_msg((mrmailbox_t*)hMailbox, msg_id);
 }
 
 
-JNIEXPORT jint Java_com_b44t_messenger_MrMailbox_markseenChat(JNIEnv *env, jclass cls, jint chat_id)
+JNIEXPORT jint Java_com_b44t_messenger_MrMailbox_MrMailboxMarkseenChat(JNIEnv *env, jclass c, jlong hMailbox, jint chat_id)
 {
-	return (jlong)mrmailbox_markseen_chat(get_mrmailbox_t(env, cls), chat_id);
+	return (jlong)mrmailbox_markseen_chat((mrmailbox_t*)hMailbox, chat_id);
 }
 
 
@@ -375,45 +362,45 @@ JNIEXPORT jint Java_com_b44t_messenger_MrMailbox_MrMailboxCreateChatByContactId(
 }
 
 
-JNIEXPORT jint Java_com_b44t_messenger_MrMailbox_createGroupChat(JNIEnv *env, jclass cls, jstring name)
+JNIEXPORT jint Java_com_b44t_messenger_MrMailbox_MrMailboxCreateGroupChat(JNIEnv *env, jclass c, jlong hMailbox, jstring name)
 {
 	CHAR_REF(name);
-		jint ret = (jint)mrmailbox_create_group_chat(get_mrmailbox_t(env, cls), namePtr);
+		jint ret = (jint)mrmailbox_create_group_chat((mrmailbox_t*)hMailbox, namePtr);
 	CHAR_UNREF(name);
 	return ret;
 }
 
 
-JNIEXPORT jint Java_com_b44t_messenger_MrMailbox_isContactInChat(JNIEnv *env, jclass cls, jint chat_id, jint contact_id)
+JNIEXPORT jint Java_com_b44t_messenger_MrMailbox_MrMailboxIsContactInChat(JNIEnv *env, jclass c, jlong hMailbox, jint chat_id, jint contact_id)
 {
-	return (jint)mrmailbox_is_contact_in_chat(get_mrmailbox_t(env, cls), chat_id, contact_id);
+	return (jint)mrmailbox_is_contact_in_chat((mrmailbox_t*)hMailbox, chat_id, contact_id);
 }
 
 
-JNIEXPORT jint Java_com_b44t_messenger_MrMailbox_addContactToChat(JNIEnv *env, jclass cls, jint chat_id, jint contact_id)
+JNIEXPORT jint Java_com_b44t_messenger_MrMailbox_MrMailboxAddContactToChat(JNIEnv *env, jclass c, jlong hMailbox, jint chat_id, jint contact_id)
 {
-	return (jint)mrmailbox_add_contact_to_chat(get_mrmailbox_t(env, cls), chat_id, contact_id);
+	return (jint)mrmailbox_add_contact_to_chat((mrmailbox_t*)hMailbox, chat_id, contact_id);
 }
 
 
-JNIEXPORT jint Java_com_b44t_messenger_MrMailbox_removeContactFromChat(JNIEnv *env, jclass cls, jint chat_id, jint contact_id)
+JNIEXPORT jint Java_com_b44t_messenger_MrMailbox_MrMailboxRemoveContactFromChat(JNIEnv *env, jclass c, jlong hMailbox, jint chat_id, jint contact_id)
 {
-	return (jint)mrmailbox_remove_contact_from_chat(get_mrmailbox_t(env, cls), chat_id, contact_id);
+	return (jint)mrmailbox_remove_contact_from_chat((mrmailbox_t*)hMailbox, chat_id, contact_id);
 }
 
 
-JNIEXPORT jint Java_com_b44t_messenger_MrMailbox_setChatName(JNIEnv *env, jclass cls, jint chat_id, jstring name)
+JNIEXPORT jint Java_com_b44t_messenger_MrMailbox_MrMailboxSetChatName(JNIEnv *env, jclass c, jlong hMailbox, jint chat_id, jstring name)
 {
 	CHAR_REF(name);
-		jint ret = (jint)mrmailbox_set_chat_name(get_mrmailbox_t(env, cls), chat_id, namePtr);
+		jint ret = (jint)mrmailbox_set_chat_name((mrmailbox_t*)hMailbox, chat_id, namePtr);
 	CHAR_UNREF(name);
 	return ret;
 }
 
 
-JNIEXPORT void Java_com_b44t_messenger_MrMailbox_deleteChat(JNIEnv *env, jclass cls, jint chat_id)
+JNIEXPORT void Java_com_b44t_messenger_MrMailbox_MrMailboxDeleteChat(JNIEnv *env, jclass c, jlong hMailbox, jint chat_id)
 {
-	mrmailbox_delete_chat(get_mrmailbox_t(env, cls), chat_id);
+	mrmailbox_delete_chat((mrmailbox_t*)hMailbox, chat_id);
 }
 
 
@@ -434,20 +421,127 @@ JNIEXPORT jstring Java_com_b44t_messenger_MrMailbox_MrMailboxGetMsgInfo(JNIEnv *
 }
 
 
-JNIEXPORT void Java_com_b44t_messenger_MrMailbox_deleteMsgs(JNIEnv *env, jclass cls, jintArray msg_ids)
+static void set_string_element__(JNIEnv* env, jobjectArray array, int index, const char* str)
+{
+	jstring jstr = JSTRING_NEW(str);
+	(*env)->SetObjectArrayElement(env, array, index, jstr);
+	(*env)->DeleteLocalRef(env, jstr); /* do not exceed the local reference table on large batches */
+}
+
+
+#define BATCH_INT_COLS 8 /* id, chat id, type, state, from id, to id, bytes, summary title meaning */
+JNIEXPORT void Java_com_b44t_messenger_MrMailbox_MrMailboxGetMsgsBatch(JNIEnv *env, jclass c, jlong hMailbox, jintArray msg_ids, jint offset, jint cnt,
+	jintArray ret_ids, jintArray ret_chat_ids, jlongArray ret_timestamps, jintArray ret_types, jintArray ret_states, jintArray ret_from_ids,
+	jintArray ret_to_ids, jintArray ret_bytes, jobjectArray ret_texts, jobjectArray ret_fwd_names,
+	jobjectArray ret_summary_titles, jintArray ret_summary_title_meanings, jobjectArray ret_summary_texts)
+{
+	/* fill the column arrays of MrMsgBatch; all arrays are allocated by the caller and have at least `cnt` elements,
+	the summary arrays may be NULL if no summaries are needed */
+	int       i;
+	jint*     in_ids;
+	jint*     cols;
+	jlong*    timestamps;
+	char*     fwd_name;
+	mrpoortext_t* summary;
+	mrchat_t* chat = NULL; /* the chat of the last summary, search results are often from the same chat */
+
+	if( msg_ids==NULL || cnt <= 0 ) {
+		return;
+	}
+
+	in_ids     = calloc(cnt, sizeof(jint));
+	cols       = calloc(cnt*BATCH_INT_COLS, sizeof(jint));
+	timestamps = calloc(cnt, sizeof(jlong));
+	if( in_ids==NULL || cols==NULL || timestamps==NULL ) {
+		goto cleanup;
+	}
+
+	(*env)->GetIntArrayRegion(env, msg_ids, offset, cnt, in_ids);
+
+	for( i = 0; i < cnt; i++ ) {
+		mrmsg_t* msg = mrmailbox_get_msg((mrmailbox_t*)hMailbox, in_ids[i]);
+		if( msg ) {
+			if( msg->m_id ) {
+				cols[i]       = msg->m_id;
+				cols[cnt+i]   = msg->m_chat_id;
+				cols[cnt*2+i] = msg->m_type;
+				cols[cnt*3+i] = msg->m_state;
+				cols[cnt*4+i] = msg->m_from_id;
+				cols[cnt*5+i] = msg->m_to_id;
+				cols[cnt*6+i] = msg->m_bytes;
+				timestamps[i] = msg->m_timestamp;
+				set_string_element__(env, ret_texts, i, msg->m_text);
+
+				fwd_name = mrparam_get(msg->m_param, 'a', NULL); /* forwarded from this address, the name is preferred */
+				if( fwd_name && fwd_name[0] ) {
+					char* name = mrparam_get(msg->m_param, 'A', NULL);
+					if( name && name[0] ) {
+						free(fwd_name);
+						fwd_name = name;
+					}
+					else {
+						free(name);
+					}
+				}
+				set_string_element__(env, ret_fwd_names, i, fwd_name);
+				free(fwd_name);
+
+				if( ret_summary_titles && ret_summary_title_meanings && ret_summary_texts ) {
+					if( chat==NULL || chat->m_id != msg->m_chat_id ) {
+						if( chat ) { mrchat_unref(chat); }
+						chat = mrmailbox_get_chat((mrmailbox_t*)hMailbox, msg->m_chat_id);
+					}
+					summary = mrmsg_get_summary(msg, chat);
+					if( summary ) {
+						set_string_element__(env, ret_summary_titles, i, summary->m_title);
+						set_string_element__(env, ret_summary_texts, i, summary->m_text);
+						cols[cnt*7+i] = summary->m_title_meaning;
+						mrpoortext_unref(summary);
+					}
+					else {
+						set_string_element__(env, ret_summary_titles, i, NULL);
+						set_string_element__(env, ret_summary_texts, i, NULL);
+					}
+				}
+			}
+			mrmsg_unref(msg);
+		}
+	}
+
+	(*env)->SetIntArrayRegion(env, ret_ids,      0, cnt, cols);
+	(*env)->SetIntArrayRegion(env, ret_chat_ids, 0, cnt, cols+cnt);
+	(*env)->SetIntArrayRegion(env, ret_types,    0, cnt, cols+cnt*2);
+	(*env)->SetIntArrayRegion(env, ret_states,   0, cnt, cols+cnt*3);
+	(*env)->SetIntArrayRegion(env, ret_from_ids, 0, cnt, cols+cnt*4);
+	(*env)->SetIntArrayRegion(env, ret_to_ids,   0, cnt, cols+cnt*5);
+	(*env)->SetIntArrayRegion(env, ret_bytes,    0, cnt, cols+cnt*6);
+	if( ret_summary_title_meanings ) {
+		(*env)->SetIntArrayRegion(env, ret_summary_title_meanings, 0, cnt, cols+cnt*7);
+	}
+	(*env)->SetLongArrayRegion(env, ret_timestamps, 0, cnt, timestamps);
+
+cleanup:
+	if( chat ) { mrchat_unref(chat); }
+	free(in_ids);
+	free(cols);
+	free(timestamps);
+}
+
+
+JNIEXPORT void Java_com_b44t_messenger_MrMailbox_MrMailboxDeleteMsgs(JNIEnv *env, jclass c, jlong hMailbox, jintArray msg_ids)
 {
 	int msg_ids_cnt;
 	const uint32_t* msg_ids_ptr = jintArray2uint32Pointer(env, msg_ids, &msg_ids_cnt);
-		mrmailbox_delete_msgs(get_mrmailbox_t(env, cls), msg_ids_ptr, msg_ids_cnt);
+		mrmailbox_delete_msgs((mrmailbox_t*)hMailbox, msg_ids_ptr, msg_ids_cnt);
 	free(msg_ids_ptr);
 }
 
 
-JNIEXPORT void Java_com_b44t_messenger_MrMailbox_forwardMsgs(JNIEnv *env, jclass cls, jintArray msg_ids, jint chat_id)
+JNIEXPORT void Java_com_b44t_messenger_MrMailbox_MrMailboxForwardMsgs(JNIEnv *env, jclass c, jlong hMailbox, jintArray msg_ids, jint chat_id)
 {
 	int msg_ids_cnt;
 	const uint32_t* msg_ids_ptr = jintArray2uint32Pointer(env, msg_ids, &msg_ids_cnt);
-		mrmailbox_forward_msgs(get_mrmailbox_t(env, cls), msg_ids_ptr, msg_ids_cnt, chat_id); 
+		mrmailbox_forward_msgs((mrmailbox_t*)hMailbox, msg_ids_ptr, msg_ids_cnt, chat_id); 
 	free(msg_ids_ptr);
 }
 
@@ -489,19 +583,19 @@ JNIEXPORT jint Java_com_b44t_messenger_MrMailbox_MrMailboxGetConfigInt(JNIEnv *e
 
 /* MrMailbox - misc. */
 
-JNIEXPORT jstring Java_com_b44t_messenger_MrMailbox_getInfo(JNIEnv *env, jclass cls)
+JNIEXPORT jstring Java_com_b44t_messenger_MrMailbox_MrMailboxGetInfo(JNIEnv *env, jclass c, jlong hMailbox)
 {
-	char* temp = mrmailbox_get_info(get_mrmailbox_t(env, cls));
+	char* temp = mrmailbox_get_info((mrmailbox_t*)hMailbox);
 		jstring ret = JSTRING_NEW(temp);
 	free(temp);
 	return ret;
 }
 
 
-JNIEXPORT jstring Java_com_b44t_messenger_MrMailbox_cmdline(JNIEnv *env, jclass cls, jstring cmd)
+JNIEXPORT jstring Java_com_b44t_messenger_MrMailbox_MrMailboxCmdline(JNIEnv *env, jclass c, jlong hMailbox, jstring cmd)
 {
 	CHAR_REF(cmd);
-		char* temp = mrmailbox_cmdline(get_mrmailbox_t(env, cls), cmdPtr);
+		char* temp = mrmailbox_cmdline((mrmailbox_t*)hMailbox, cmdPtr);
 			jstring ret = JSTRING_NEW(temp);
 		free(temp);
 	CHAR_UNREF(cmd);
@@ -698,32 +792,32 @@ JNIEXPORT jintArray Java_com_b44t_messenger_MrMailbox_MrMailboxGetChatMedia(JNIE
 }
 
 
-JNIEXPORT jintArray Java_com_b44t_messenger_MrMailbox_getChatMsgs(JNIEnv *env, jclass cls, jint chat_id, jint flags, jint marker1before)
+JNIEXPORT jintArray Java_com_b44t_messenger_MrMailbox_MrMailboxGetChatMsgs(JNIEnv *env, jclass c, jlong hMailbox, jint chat_id, jint flags, jint marker1before)
 {
-	carray* ca = mrmailbox_get_chat_msgs(get_mrmailbox_t(env, cls), chat_id, flags, marker1before);
+	carray* ca = mrmailbox_get_chat_msgs((mrmailbox_t*)hMailbox, chat_id, flags, marker1before);
 	return carray2jintArray_n_carray_free(env, ca);
 }
 
 
-JNIEXPORT jintArray Java_com_b44t_messenger_MrMailbox_searchMsgs(JNIEnv *env, jclass cls, jint chat_id, jstring query)
+JNIEXPORT jintArray Java_com_b44t_messenger_MrMailbox_MrMailboxSearchMsgs(JNIEnv *env, jclass c, jlong hMailbox, jint chat_id, jstring query)
 {
 	CHAR_REF(query);
-		carray* ca = mrmailbox_search_msgs(get_mrmailbox_t(env, cls), chat_id, queryPtr);
+		carray* ca = mrmailbox_search_msgs((mrmailbox_t*)hMailbox, chat_id, queryPtr);
 	CHAR_UNREF(query);
 	return carray2jintArray_n_carray_free(env, ca);
 }
 
 
-JNIEXPORT jintArray Java_com_b44t_messenger_MrMailbox_getUnseenMsgs(JNIEnv *env, jclass cls)
+JNIEXPORT jintArray Java_com_b44t_messenger_MrMailbox_MrMailboxGetUnseenMsgs(JNIEnv *env, jclass c, jlong hMailbox)
 {
-	carray* ca = mrmailbox_get_unseen_msgs(get_mrmailbox_t(env, cls));
+	carray* ca = mrmailbox_get_unseen_msgs((mrmailbox_t*)hMailbox);
 	return carray2jintArray_n_carray_free(env, ca);
 }
 
 
-JNIEXPORT jintArray Java_com_b44t_messenger_MrMailbox_getChatContacts(JNIEnv *env, jclass cls, jint chat_id)
+JNIEXPORT jintArray Java_com_b44t_messenger_MrMailbox_MrMailboxGetChatContacts(JNIEnv *env, jclass c, jlong hMailbox, jint chat_id)
 {
-	carray* ca = mrmailbox_get_chat_contacts(get_mrmailbox_t(env, cls), chat_id);
+	carray* ca = mrmailbox_get_chat_contacts((mrmailbox_t*)hMailbox, chat_id);
 	return carray2jintArray_n_carray_free(env, ca);
 }
 
@@ -959,7 +1053,7 @@ JNIEXPORT jlong Java_com_b44t_messenger_MrMailbox_String2CPtr(JNIEnv *env, jclas
 }
 
 
-JNIEXPORT jstring Java_com_b44t_messenger_MrMailbox_MrGetVersionStr(JNIEnv *env, jclass c)
+JNIEXPORT jstring Java_com_b44t_messenger_MrMailbox_MrMailboxGetVersionStr(JNIEnv *env, jclass c)
 {
 	s_init_globals(env, c);
 	const char* temp = mrmailbox_get_version_str();
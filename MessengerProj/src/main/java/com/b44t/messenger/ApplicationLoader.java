@@ -39,11 +39,15 @@ import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.os.PowerManager;
+import android.os.SystemClock;
 
 import com.b44t.ui.Components.ForegroundDetector;
 
 import java.io.File;
+import java.util.concurrent.CountDownLatch;
 
 public class ApplicationLoader extends Application {
     private static PendingIntent pendingIntent;
@@ -60,6 +64,18 @@ public class ApplicationLoader extends Application {
     public static volatile boolean isScreenOn = false;
     public static volatile boolean mainInterfacePaused = true;
 
+    // startup stages: the mailbox is opened on a background thread started in onCreate(),
+    // postInitApplicationAsync() waits only for the chatlist saved on the last run, which is shown
+    // until the mailbox is opened; postInitApplication() also waits for the mailbox.
+    // Connecting and the creation of the non-critical singletons follow when the mailbox is
+    // opened and the UI thread gets idle.
+    private static long s_startupTime;
+    private static final CountDownLatch s_cachedChatlistLoaded = new CountDownLatch(1);
+    private static final CountDownLatch s_mailboxOpened = new CountDownLatch(1);
+    private static volatile MrChatlistSnapshot s_cachedChatlist = MrChatlistSnapshot.EMPTY;
+    private static final Object s_deferredInitSync = new Object();
+    private static boolean s_deferredInitPending; // guarded by s_deferredInitSync
+
     public static boolean isCustomTheme() {
         return isCustomTheme;
     }
@@ -144,11 +160,21 @@ public class ApplicationLoader extends Application {
     }
 
     public static void postInitApplication() {
+        postInitApplicationAsync();
+
+        // most callers need the database at once, so wait for the open-stage started in onCreate()
+        long stageStart = SystemClock.elapsedRealtime();
+        awaitMailboxOpened();
+        logStartupStage("waitForMailbox", stageStart);
+    }
+
+    public static void postInitApplicationAsync() {
         if (applicationInited) {
             return;
         }
 
         applicationInited = true;
+        long stageStart = SystemClock.elapsedRealtime();
         //convertConfig();
 
         try {
@@ -175,6 +201,51 @@ public class ApplicationLoader extends Application {
         }
 
         UserConfig.loadConfig();
+
+        SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("Notifications", Activity.MODE_PRIVATE);
+        if( preferences.getInt("notify2_"+MrChat.MR_CHAT_ID_DEADDROP, 666)==666 ) {
+            // make sure, the notifications for the "deaddrop" dialog are muted by default
+            SharedPreferences.Editor editor = preferences.edit();
+            editor.putInt("notify2_"+MrChat.MR_CHAT_ID_DEADDROP, 2);
+            editor.apply();
+        }
+        logStartupStage("postInit", stageStart);
+
+        // show the chatlist of the last run; the chatlist queue and the search index wait for the mailbox themselves
+        stageStart = SystemClock.elapsedRealtime();
+        awaitLatch(s_cachedChatlistLoaded);
+        MrMailbox.initMainChatlist(s_cachedChatlist);
+        MrSearchIndex.getInstance().init();
+        logStartupStage("waitForCachedChatlist", stageStart);
+
+        // create other default objects as soon as the first frame is drawn and the mailbox is opened,
+        // they're created lazily if needed before
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+            @Override
+            public boolean queueIdle() {
+                synchronized (s_deferredInitSync) {
+                    if (s_mailboxOpened.getCount() > 0) {
+                        s_deferredInitPending = true; // done by the open-stage
+                        return false;
+                    }
+                }
+                initDeferred();
+                return false;
+            }
+        });
+    }
+
+    /* true if the mailbox is configured; if the chatlist of the last run is shown, this does not wait for the database */
+    public static boolean isMailboxConfigured() {
+        if (s_mailboxOpened.getCount() > 0 && s_cachedChatlist.getCnt() > 0) {
+            return true; // the chatlist is saved for configured mailboxes only
+        }
+        awaitMailboxOpened();
+        return MrMailbox.isConfigured() != 0;
+    }
+
+    private static void initDeferred() {
+        long stageStart = SystemClock.elapsedRealtime();
         String deviceModel;
         String langCode;
         String appVersion;
@@ -209,31 +280,81 @@ public class ApplicationLoader extends Application {
         SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("Notifications", Activity.MODE_PRIVATE);
         boolean enablePushConnection = preferences.getBoolean("pushConnection", true);
 
-        if( preferences.getInt("notify2_"+MrChat.MR_CHAT_ID_DEADDROP, 666)==666 ) {
-            // make sure, the notifications for the "deaddrop" dialog are muted by default
-            SharedPreferences.Editor editor = preferences.edit();
-            editor.putInt("notify2_"+MrChat.MR_CHAT_ID_DEADDROP, 2);
-            editor.apply();
-        }
-
-        // open() sqlite file (you can inspect the file eg. with "Tools / Android Device Monitor / File Explorer")
-        // open() should be called before MessagesController.getInstance() as this also initilizes directories based upon getBlobdir().
-        File dbfile = new File(getFilesDirFixed(), "messenger.db");
-        MrMailbox.open(dbfile.getAbsolutePath());
-        MrMailbox.connect();
-
-        // create other default objects
         MessagesController.getInstance();
         ConnectionsManager.getInstance().init(deviceModel, systemVersion, appVersion, langCode, configPath, FileLog.getNetworkLogPath(), UserConfig.getClientUserId(), enablePushConnection);
         if (UserConfig.getCurrentUser() != null) {
             SendMessagesHelper.getInstance().checkUnsentMessages();
         }
         MediaController.getInstance();
+        logStartupStage("deferredInit", stageStart);
+    }
+
+    private static void startMailboxOpenStage() {
+        new Thread("startupMailbox") {
+            @Override
+            public void run() {
+                // load the first screen of the chatlist saved on the last run
+                long stageStart = SystemClock.elapsedRealtime();
+                try {
+                    s_cachedChatlist = MrChatlistSnapshot.loadFirstScreen(MrMailbox.getFirstScreenFile());
+                } finally {
+                    s_cachedChatlistLoaded.countDown();
+                }
+                logStartupStage("loadCachedChatlist", stageStart);
+
+                // open() sqlite file (you can inspect the file eg. with "Tools / Android Device Monitor / File Explorer")
+                // open() should be called before MessagesController.getInstance() as this also initilizes directories based upon getBlobdir().
+                stageStart = SystemClock.elapsedRealtime();
+                try {
+                    File dbfile = new File(getFilesDirFixed(), "messenger.db");
+                    MrMailbox.open(dbfile.getAbsolutePath());
+                } finally {
+                    synchronized (s_deferredInitSync) {
+                        s_mailboxOpened.countDown();
+                        if (s_deferredInitPending) {
+                            s_deferredInitPending = false;
+                            AndroidUtilities.runOnUIThread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    initDeferred();
+                                }
+                            });
+                        }
+                    }
+                }
+                logStartupStage("openMailbox", stageStart);
+
+                stageStart = SystemClock.elapsedRealtime();
+                MrMailbox.connect();
+                logStartupStage("connect", stageStart);
+            }
+        }.start();
+    }
+
+    public static void awaitMailboxOpened() {
+        awaitLatch(s_mailboxOpened);
+    }
+
+    private static void awaitLatch(CountDownLatch latch) {
+        while (true) {
+            try {
+                latch.await();
+                return;
+            } catch (InterruptedException e) {
+                // wait on, the data is needed
+            }
+        }
+    }
+
+    private static void logStartupStage(String stage, long stageStart) {
+        long now = SystemClock.elapsedRealtime();
+        FileLog.d("messenger", "startup: " + stage + " took " + (now - stageStart) + " ms, " + (now - s_startupTime) + " ms since start");
     }
 
     @Override
     public void onCreate() {
         super.onCreate();
+        s_startupTime = SystemClock.elapsedRealtime();
 
         applicationContext = getApplicationContext();
         NativeLoader.initNativeLibs(ApplicationLoader.applicationContext);
@@ -246,6 +367,9 @@ public class ApplicationLoader extends Application {
         MrMailbox.init();
 
         applicationHandler = new Handler(applicationContext.getMainLooper());
+        logStartupStage("applicationCreate", s_startupTime);
+
+        startMailboxOpenStage();
 
         startPushService();
     }
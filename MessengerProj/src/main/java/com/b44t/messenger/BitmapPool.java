@@ -0,0 +1,212 @@
+/*******************************************************************************
+ *
+ *                          Messenger Android Frontend
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    BitmapPool.java
+ * Purpose: Bitmaps no longer used, bucketed by size, to be reused for decoding
+ *          and creating new bitmaps instead of allocating fresh ones
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+
+public class BitmapPool {
+
+    private static volatile BitmapPool Instance = null;
+
+    public static BitmapPool getInstance() {
+        BitmapPool localInstance = Instance;
+        if (localInstance == null) {
+            synchronized (BitmapPool.class) {
+                localInstance = Instance;
+                if (localInstance == null) {
+                    Instance = localInstance = new BitmapPool();
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    // the pool is disabled until ImageLoader assigns a part of its memory budget by setMaxSize()
+    private int m_maxSize;
+    private int m_size;
+
+    // bucket = number of bits needed for the allocation size; a bitmap from bucket n can hold any
+    // bitmap needing up to 2^n bytes. m_order holds all pooled bitmaps, the eldest first.
+    private final SparseArray<ArrayList<Bitmap>> m_buckets = new SparseArray<>();
+    private final ArrayList<Bitmap>              m_order = new ArrayList<>();
+
+    private long m_hits;
+    private long m_misses;
+    private long m_puts;
+    private long m_evictions;
+
+    /* before Android 5, decoded bitmaps are purgeable and pinned in native memory and the
+    allocation size of a reused bitmap must match exactly; we do not pool on these versions */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= 21;
+    }
+
+    public synchronized void setMaxSize(int maxSize) {
+        m_maxSize = isSupported() ? maxSize : 0;
+        trimToSize(m_maxSize);
+    }
+
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    /* returns a bitmap of the given size and configuration or null if there is none in the pool;
+    the content of the bitmap is undefined */
+    public Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = getForBytes(width * height * getBytesPerPixel(config));
+        if (bitmap != null) {
+            try {
+                bitmap.reconfigure(width, height, config);
+            } catch (Exception e) {
+                put(bitmap);
+                bitmap = null;
+            }
+        }
+        return bitmap;
+    }
+
+    /* returns a bitmap with at least the given allocation size, for BitmapFactory.Options.inBitmap */
+    public synchronized Bitmap getForBytes(int bytes) {
+        if (m_maxSize == 0 || bytes <= 0) {
+            return null;
+        }
+        int bucket = getBucket(bytes);
+        for (int b = bucket; b <= bucket + 1; b++) { // a bitmap from the next bucket wastes up to 3/4 of its size, larger ones are not used
+            ArrayList<Bitmap> list = m_buckets.get(b);
+            if (list == null) {
+                continue;
+            }
+            for (int i = list.size() - 1; i >= 0; i--) {
+                Bitmap bitmap = list.get(i);
+                if (bitmap.getAllocationByteCount() >= bytes) {
+                    list.remove(i);
+                    m_order.remove(bitmap);
+                    m_size -= bitmap.getAllocationByteCount();
+                    m_hits++;
+                    return bitmap;
+                }
+            }
+        }
+        m_misses++;
+        return null;
+    }
+
+    /* give a bitmap no longer referenced to the pool; if it cannot be pooled, it is recycled.
+    The caller must not use the bitmap afterwards. */
+    public void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        synchronized (this) {
+            if (m_maxSize == 0) { // also for !isSupported(), getAllocationByteCount() needs API 19
+                bitmap.recycle();
+                return;
+            }
+            int bytes = bitmap.getAllocationByteCount();
+            if (bitmap.isMutable() && bytes <= m_maxSize / 4
+             && (bitmap.getConfig() == Bitmap.Config.ARGB_8888 || bitmap.getConfig() == Bitmap.Config.RGB_565)) {
+                int bucket = getBucket(bytes);
+                ArrayList<Bitmap> list = m_buckets.get(bucket);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    m_buckets.put(bucket, list);
+                }
+                list.add(bitmap);
+                m_order.add(bitmap);
+                m_size += bytes;
+                m_puts++;
+                trimToSize(m_maxSize);
+                return;
+            }
+        }
+        bitmap.recycle();
+    }
+
+    /* set the options to decode into a pooled bitmap; outWidth and outHeight must be set by a
+    decode with inJustDecodeBounds before. Returns the bitmap used, null if there is none. */
+    public Bitmap prepareDecode(BitmapFactory.Options opts) {
+        opts.inMutable = true; // only mutable bitmaps can be given back to the pool later
+        if (m_maxSize == 0 || opts.outWidth <= 0 || opts.outHeight <= 0) {
+            return null;
+        }
+        // decoders round inSampleSize down to a power of two, so calculate with the largest size possible
+        int sample = Integer.highestOneBit(Math.max(1, opts.inSampleSize));
+        int width = (opts.outWidth + sample - 1) / sample;
+        int height = (opts.outHeight + sample - 1) / sample;
+        if (opts.inScaled && opts.inDensity > 0 && opts.inTargetDensity > 0 && opts.inTargetDensity < opts.inDensity) {
+            width = (width * opts.inTargetDensity + opts.inDensity - 1) / opts.inDensity;
+            height = (height * opts.inTargetDensity + opts.inDensity - 1) / opts.inDensity;
+        }
+        Bitmap.Config config = opts.inPreferredConfig != null ? opts.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        opts.inBitmap = getForBytes(width * height * getBytesPerPixel(config));
+        return opts.inBitmap;
+    }
+
+    public synchronized int getSize() {
+        return m_size;
+    }
+
+    public synchronized String getInfo() {
+        long requests = m_hits + m_misses;
+        return "Bitmap pool: " + m_order.size() + " bitmaps, " + (m_size/1024) + "/" + (m_maxSize/1024) + " KB"
+            + "\nBitmap pool hits: " + (requests > 0 ? m_hits*100/requests : 0) + "% of " + requests + ", " + m_puts + " returned, " + m_evictions + " evicted";
+    }
+
+    private void trimToSize(int maxSize) {
+        while (m_size > maxSize && !m_order.isEmpty()) {
+            Bitmap bitmap = m_order.remove(0);
+            int bytes = bitmap.getAllocationByteCount();
+            ArrayList<Bitmap> list = m_buckets.get(getBucket(bytes));
+            if (list != null) {
+                list.remove(bitmap);
+            }
+            m_size -= bytes;
+            m_evictions++;
+            bitmap.recycle();
+        }
+    }
+
+    private static int getBucket(int bytes) {
+        return 32 - Integer.numberOfLeadingZeros(bytes - 1);
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        } else if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        return 4;
+    }
+}
@@ -142,6 +142,12 @@ public class Bitmaps {
             bitmap.setHasAlpha(true);
             bitmap.eraseColor(0);
         } else {
+            bitmap = BitmapPool.getInstance().get(width, height, config);
+            if (bitmap != null) {
+                bitmap.setHasAlpha(config != Bitmap.Config.RGB_565);
+                bitmap.eraseColor(config == Bitmap.Config.RGB_565 ? Color.BLACK : Color.TRANSPARENT); // a pooled bitmap still holds the old image
+                return bitmap;
+            }
             bitmap = Bitmap.createBitmap(width, height, config);
         }
         if (config == Bitmap.Config.ARGB_8888 || config == Bitmap.Config.ARGB_4444) {
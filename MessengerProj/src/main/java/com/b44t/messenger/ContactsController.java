@@ -47,8 +47,16 @@ import android.view.View;
 
 import com.b44t.ui.Components.AvatarDrawable;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class ContactsController {
 
@@ -159,25 +167,72 @@ public class ContactsController {
     /* Handle contact images
      **********************************************************************************************/
 
+    private final static int  AVT_ENTRY_OVERHEAD   = 64;    // rough size of an entry without bitmap
+    private final static long AVT_MAX_CACHE_BYTES  = Math.min(Runtime.getRuntime().maxMemory() / 32, 4*1024*1024);
+    private final static int  AVT_MAX_DISK_FILES   = 300;
+    private final static int  AVT_BATCH_DELAY_MS   = 16;    // collect the requests of one layout pass
+    private final static int  AVT_MAX_QUERY_ARGS   = 100;
+
     static class AvtCacheEntry {
         public Bitmap  m_avatarBitmap;
         public String  m_fallbackName;
         public boolean m_needsReload;
+        public int     m_bytes;
         AvtCacheEntry(Bitmap avatarBitmap, String fallbackName) {
             m_avatarBitmap = avatarBitmap;
             m_fallbackName = fallbackName;
             m_needsReload  = false;
+            m_bytes        = (avatarBitmap != null ? avatarBitmap.getByteCount() : 0) + AVT_ENTRY_OVERHEAD;
+        }
+    }
+
+    /* an avatar not in the memory cache or to be reloaded, resolved by the next batch */
+    private static class AvtRequest {
+        final View           m_view;
+        final ImageReceiver  m_imageReceiver;
+        final AvatarDrawable m_drawable;
+        final String         m_email; // null if there is nothing to search the address book for
+        final String         m_fallbackName;
+        final String         m_key;
+        final boolean        m_reload; // the avatar is shown from the memory cache already, only the address book is asked
+        AvtRequest(View view, ImageReceiver imageReceiver, AvatarDrawable drawable, String email, String fallbackName, String key, boolean reload) {
+            m_view          = view;
+            m_imageReceiver = imageReceiver;
+            m_drawable      = drawable;
+            m_email         = email;
+            m_fallbackName  = fallbackName;
+            m_key           = key;
+            m_reload        = reload;
         }
     }
 
     private final static String[] s_projectionAvatars = new String[]{
-        ContactsContract.Contacts._ID,
+        ContactsContract.CommonDataKinds.Email.CONTACT_ID,
         ContactsContract.Contacts.PHOTO_ID,
         ContactsContract.CommonDataKinds.Email.ADDRESS
-        //ContactsContract.CommonDataKinds.Email.DISPLAY_NAME,
     };
     private static final Object s_sync = new Object();
-    private static HashMap<String, AvtCacheEntry> s_avtCache = new HashMap<>();
+    private static final LinkedHashMap<String, AvtCacheEntry> s_avtCache = new LinkedHashMap<>(64, 0.75f, true); // access order, the eldest entry is the least recently used
+    private static long s_avtCacheBytes;
+    private static ArrayList<AvtRequest> s_avtPending = new ArrayList<>();
+
+    // statistics, guarded by s_sync
+    private static long s_avtMemHits;
+    private static long s_avtMemMisses;
+    private static long s_avtDiskHits;
+    private static long s_avtQueries;
+
+    private final static Runnable s_avtBatchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            ArrayList<AvtRequest> requests;
+            synchronized (s_sync) {
+                requests = s_avtPending;
+                s_avtPending = new ArrayList<>();
+            }
+            loadAvatars(requests);
+        }
+    };
 
     public static void cleanupAvatarCache() {
         // to detect changes of the avatar images eg. in the Contacts App,
@@ -190,6 +245,16 @@ public class ContactsController {
         }
     }
 
+    public static String getAvatarCacheInfo() {
+        synchronized (s_sync) {
+            long requests = s_avtMemHits + s_avtMemMisses;
+            return "Avatar cache: " + s_avtCache.size() + " avatars, " + (s_avtCacheBytes/1024) + "/" + (AVT_MAX_CACHE_BYTES/1024) + " KB"
+                + "\nAvatar memory hits: " + (requests > 0 ? s_avtMemHits*100/requests : 0) + "% of " + requests
+                + "\nAvatar disk hits: " + (s_avtMemMisses > 0 ? s_avtDiskHits*100/s_avtMemMisses : 0) + "% of " + s_avtMemMisses
+                + "\nAvatar address book queries: " + s_avtQueries;
+        }
+    }
+
     public static void setupAvatar(final View avtView,
                                    final ImageReceiver avtImageReceiver,
                                    final AvatarDrawable avtDrawable,
@@ -210,6 +275,7 @@ public class ContactsController {
                     MrContact mrc = MrMailbox.getContact(contact_ids[0]);
                     tempEmail = mrc.getAddr();
                     tempName = mrc.getDisplayName();
+                    mrc.close();
                 }
             }
         }
@@ -217,25 +283,44 @@ public class ContactsController {
         setupAvatarByStrings(avtView, avtImageReceiver, avtDrawable, tempEmail, tempName);
     }
 
+    public static String getAvatarKey(String email, String name)
+    {
+        return (email == null ? "fallback:" + name : email) + name;
+    }
+
     public static void setupAvatarByStrings(final View avtView,
                                    final ImageReceiver avtImageReceiver,
                                    final AvatarDrawable avtDrawable,
                                    String tempEmail,
                                    String tempName)
     {
-        if( tempEmail == null ) {
-            tempEmail = "fallback:" + tempName;
-        }
-
-        final String email = tempEmail;
-        final String fallbackName = tempName;
+        setupAvatarByStrings(avtView, avtImageReceiver, avtDrawable, tempEmail, tempName, getAvatarKey(tempEmail, tempName));
+    }
 
+    /* same as above, for callers that have the key from getAvatarKey() already; if the avatar
+    is in the cache, this does not allocate anything */
+    public static void setupAvatarByStrings(final View avtView,
+                                   final ImageReceiver avtImageReceiver,
+                                   final AvatarDrawable avtDrawable,
+                                   final String tempEmail,
+                                   final String fallbackName,
+                                   final String key)
+    {
         // bind e-mail+name address to view object to detect overwrites and discard loading old images (may happen on fast scrolling)
         // moreover, check if the avatar is in cache
         AvtCacheEntry cacheEntry;
+        boolean reload;
         synchronized (s_sync) {
-            avtImageReceiver.m_userDataUnique = email+fallbackName;
-            cacheEntry = s_avtCache.get(email+fallbackName);
+            avtImageReceiver.m_userDataUnique = key;
+            cacheEntry = s_avtCache.get(key);
+            if (cacheEntry != null) {
+                s_avtMemHits++;
+                reload = cacheEntry.m_needsReload;
+                cacheEntry.m_needsReload = false; // one reload is enough, the result replaces the entry
+            } else {
+                s_avtMemMisses++;
+                reload = false;
+            }
         }
 
         if( cacheEntry != null )
@@ -254,78 +339,248 @@ public class ContactsController {
             avtImageReceiver.setImage(null, "50_50", null, null, false);
         }
 
-        if( cacheEntry==null || cacheEntry.m_needsReload )
+        if( cacheEntry==null || reload )
         {
             // avatar is not in cache or needs reloading:
-            // load avatar in a working thread (when loaded, we'll add it to cache and invalidate back in the GUI thread)
-            Utilities.searchQueue.postRunnable(new Runnable() {
-                @Override
-                public void run() {
-                    // is the avatar still desired?
+            // queue the avatar for the next batch, all avatars requested while laying out one screen
+            // are loaded together (when loaded, we'll add them to cache and invalidate back in the GUI thread)
+            AvtRequest request = new AvtRequest(avtView, avtImageReceiver, avtDrawable, tempEmail, fallbackName, key, reload);
+            boolean schedule;
+            synchronized (s_sync) {
+                schedule = s_avtPending.isEmpty();
+                s_avtPending.add(request);
+            }
+            if (schedule) {
+                Utilities.searchQueue.postRunnable(s_avtBatchRunnable, AVT_BATCH_DELAY_MS);
+            }
+        }
+    }
+
+    /* called on Utilities.searchQueue: avatars not in memory are taken from the disk cache;
+    for the others, the address book is asked in one query for all e-mail addresses */
+    private static void loadAvatars(ArrayList<AvtRequest> requests) {
+        HashMap<String, Bitmap> resolved = new HashMap<>(); // key -> avatar, null values are avatars known to have no image
+        ArrayList<AvtRequest> lookups = new ArrayList<>();
+
+        for (AvtRequest request : requests) {
+            synchronized (s_sync) {
+                if (!request.m_imageReceiver.m_userDataUnique.equals(request.m_key)) {
+                    continue; // no longer desired
+                }
+            }
+            if (resolved.containsKey(request.m_key)) {
+                deliverAvatar(request, resolved.get(request.m_key));
+            } else if (request.m_email == null) {
+                resolved.put(request.m_key, null);
+                deliverAvatar(request, null);
+            } else {
+                Bitmap diskBitmap = request.m_reload ? null : loadAvatarFromDisk(request.m_key);
+                if (diskBitmap != null) {
                     synchronized (s_sync) {
-                        if (!avtImageReceiver.m_userDataUnique.equals(email+fallbackName)) {
-                            return;
-                        }
+                        s_avtDiskHits++;
                     }
+                    resolved.put(request.m_key, diskBitmap);
+                    deliverAvatar(request, diskBitmap);
+                } else {
+                    lookups.add(request);
+                }
+            }
+        }
 
-                    // try to get avatar image from the address book
-                    Bitmap tempBitmap = null;
-                    if (!email.startsWith("fallback:")) {
-                        try {
-                            if (s_cr == null) {
-                                s_cr = ApplicationLoader.applicationContext.getContentResolver();
-                            }
-                            Uri uri = Uri.withAppendedPath(ContactsContract.CommonDataKinds.Email.CONTENT_LOOKUP_URI, Uri.encode(email));
-                            Cursor pCur = s_cr.query(uri, s_projectionAvatars, null, null, null);
-                            if (pCur != null) {
-                                if (pCur.getCount() > 0) {
-                                    while (pCur.moveToNext()) {
-                                        int contact_id = pCur.getInt(0);
-                                        int photo_id = pCur.getInt(1);
-                                        String addr = pCur.getString(2);
-                                        if (addr.equalsIgnoreCase(email) && contact_id > 0 && photo_id > 0) {
-                                            Bitmap tempBitmap2 = loadContactPhoto(s_cr, contact_id, photo_id);
-                                            if (tempBitmap2 != null) {
-                                                tempBitmap = createRoundBitmap(tempBitmap2);
-                                            }
-                                            break;
-                                        }
-                                    }
-                                }
-                                pCur.close();
-                            }
-                        } catch (Exception e) {
-                            ;
+        if (lookups.isEmpty()) {
+            return;
+        }
+
+        HashMap<String, long[]> photoIds = queryPhotoIds(lookups); // lower-case e-mail -> contact id, photo id
+        boolean diskChanged = false;
+        for (AvtRequest request : lookups) {
+            if (!resolved.containsKey(request.m_key)) {
+                Bitmap bitmap = null;
+                long[] ids = photoIds.get(request.m_email.toLowerCase());
+                if (ids != null) {
+                    try {
+                        Bitmap photo = loadContactPhoto(s_cr, ids[0], ids[1]);
+                        if (photo != null) {
+                            bitmap = createRoundBitmap(photo);
                         }
+                    } catch (Exception e) {
+                        ;
                     }
+                }
+                resolved.put(request.m_key, bitmap);
+                saveAvatarToDisk(request.m_key, bitmap);
+                diskChanged = true;
+            }
+            deliverAvatar(request, resolved.get(request.m_key));
+        }
 
-                    final Bitmap photoBitmap = tempBitmap;
-
-                    AndroidUtilities.runOnUIThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            // is the avatar still desired?
-                            synchronized (s_sync) {
-                                if (!avtImageReceiver.m_userDataUnique.equals(email+fallbackName)) {
-                                    return;
-                                }
-                            }
-
-                            if (photoBitmap != null) {
-                                avtImageReceiver.setImageBitmap(photoBitmap);
-                            } else {
-                                avtDrawable.setInfoByName(fallbackName);
-                                avtImageReceiver.setImage(null, "50_50", avtDrawable, null, false);
-                            }
-                            avtView.invalidate();
-
-                            synchronized (s_sync) {
-                                s_avtCache.put(email+fallbackName, new AvtCacheEntry(photoBitmap, fallbackName));
-                            }
+        if (diskChanged) {
+            trimAvatarDiskCache();
+        }
+    }
+
+    private static HashMap<String, long[]> queryPhotoIds(ArrayList<AvtRequest> requests) {
+        HashMap<String, long[]> ret = new HashMap<>();
+        ArrayList<String> emails = new ArrayList<>();
+        for (AvtRequest request : requests) {
+            String email = request.m_email.toLowerCase();
+            if (!emails.contains(email)) {
+                emails.add(email);
+            }
+        }
+
+        try {
+            if (s_cr == null) {
+                s_cr = ApplicationLoader.applicationContext.getContentResolver();
+            }
+            for (int start = 0; start < emails.size(); start += AVT_MAX_QUERY_ARGS) {
+                int end = Math.min(emails.size(), start + AVT_MAX_QUERY_ARGS);
+                StringBuilder selection = new StringBuilder("lower(" + ContactsContract.CommonDataKinds.Email.ADDRESS + ") IN (");
+                for (int i = start; i < end; i++) {
+                    selection.append(i == start ? "?" : ",?");
+                }
+                selection.append(")");
+                String[] args = emails.subList(start, end).toArray(new String[end - start]);
+
+                synchronized (s_sync) {
+                    s_avtQueries++;
+                }
+                Cursor pCur = s_cr.query(ContactsContract.CommonDataKinds.Email.CONTENT_URI, s_projectionAvatars, selection.toString(), args, null);
+                if (pCur != null) {
+                    while (pCur.moveToNext()) {
+                        long contact_id = pCur.getLong(0);
+                        long photo_id = pCur.getLong(1);
+                        String addr = pCur.getString(2);
+                        if (addr != null && contact_id > 0 && photo_id > 0) {
+                            ret.put(addr.toLowerCase(), new long[]{contact_id, photo_id});
                         }
-                    });
+                    }
+                    pCur.close();
+                }
+            }
+        } catch (Exception e) {
+            ;
+        }
+        return ret;
+    }
+
+    private static void deliverAvatar(final AvtRequest request, final Bitmap photoBitmap) {
+        AndroidUtilities.runOnUIThread(new Runnable() {
+            @Override
+            public void run() {
+                putAvatarToCache(request.m_key, new AvtCacheEntry(photoBitmap, request.m_fallbackName));
+
+                // is the avatar still desired?
+                synchronized (s_sync) {
+                    if (!request.m_imageReceiver.m_userDataUnique.equals(request.m_key)) {
+                        return;
+                    }
+                }
+
+                if (photoBitmap != null) {
+                    request.m_imageReceiver.setImageBitmap(photoBitmap);
+                } else {
+                    request.m_drawable.setInfoByName(request.m_fallbackName);
+                    request.m_imageReceiver.setImage(null, "50_50", request.m_drawable, null, false);
+                }
+                request.m_view.invalidate();
+            }
+        });
+    }
+
+    private static void putAvatarToCache(String key, AvtCacheEntry entry) {
+        synchronized (s_sync) {
+            AvtCacheEntry old = s_avtCache.put(key, entry);
+            if (old != null) {
+                s_avtCacheBytes -= old.m_bytes;
+            }
+            s_avtCacheBytes += entry.m_bytes;
+
+            // drop the least recently used avatars; the bitmaps are not recycled as they may still be shown
+            Iterator<Map.Entry<String, AvtCacheEntry>> it = s_avtCache.entrySet().iterator();
+            while (s_avtCacheBytes > AVT_MAX_CACHE_BYTES && s_avtCache.size() > 1 && it.hasNext()) {
+                Map.Entry<String, AvtCacheEntry> eldest = it.next();
+                if (eldest.getValue() != entry) {
+                    s_avtCacheBytes -= eldest.getValue().m_bytes;
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /* the disk cache holds the rounded avatars found in the address book as PNG files named by the
+    hash of the cache key; the files are touched on use and the least recently used are deleted */
+    private static File getAvatarFile(String key) {
+        File dir = new File(ApplicationLoader.applicationContext.getCacheDir(), "avatars");
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        return new File(dir, Utilities.MD5(key) + ".png");
+    }
+
+    private static Bitmap loadAvatarFromDisk(String key) {
+        try {
+            File file = getAvatarFile(key);
+            if (file.exists()) {
+                Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath());
+                if (bitmap != null) {
+                    file.setLastModified(System.currentTimeMillis());
+                }
+                return bitmap;
+            }
+        } catch (Throwable e) {
+            FileLog.e("messenger", e);
+        }
+        return null;
+    }
+
+    private static void saveAvatarToDisk(String key, Bitmap bitmap) {
+        FileOutputStream out = null;
+        try {
+            File file = getAvatarFile(key);
+            if (bitmap == null) {
+                file.delete(); // the image was removed from the address book
+                return;
+            }
+            File tempFile = new File(file.getAbsolutePath() + ".tmp");
+            out = new FileOutputStream(tempFile);
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+            out.close();
+            out = null;
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+            }
+        } catch (Exception e) {
+            FileLog.e("messenger", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (Exception e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static void trimAvatarDiskCache() {
+        try {
+            File[] files = new File(ApplicationLoader.applicationContext.getCacheDir(), "avatars").listFiles();
+            if (files == null || files.length <= AVT_MAX_DISK_FILES) {
+                return;
+            }
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File f1, File f2) {
+                    long m1 = f1.lastModified(), m2 = f2.lastModified();
+                    return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
                 }
             });
+            for (int i = 0; i < files.length - AVT_MAX_DISK_FILES; i++) {
+                files[i].delete();
+            }
+        } catch (Exception e) {
+            FileLog.e("messenger", e);
         }
     }
 
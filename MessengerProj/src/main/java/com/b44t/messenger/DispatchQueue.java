@@ -21,80 +21,298 @@
  ******************************************************************************/
 
 
+
 package com.b44t.messenger;
 
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 
-import java.util.concurrent.CountDownLatch;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.PriorityQueue;
 
+/**
+ * A thread running the posted runnables one after another, the ones with the highest
+ * priority first, runnables of the same priority in the order they are due.
+ * The thread has a Looper, so runnables may create Handlers or wait for callbacks.
+ */
 public class DispatchQueue extends Thread {
 
-    private volatile Handler handler = null;
-    private CountDownLatch syncLatch = new CountDownLatch(1);
+    public final static int PRIORITY_LOW    = -1;
+    public final static int PRIORITY_NORMAL = 0;
+    public final static int PRIORITY_HIGH   = 1;
+
+    private final static long SLOW_TASK_MS = 500;
+
+    public static class Task {
+        private final DispatchQueue queue;
+        private final Runnable      runnable;
+        private final String        coalesceKey;
+        private final int           priority;
+        private final long          seq;
+        private final long          postTime;
+        private final long          dueTime;
+
+        private Task(DispatchQueue queue, Runnable runnable, String coalesceKey, int priority, long seq, long postTime, long dueTime) {
+            this.queue       = queue;
+            this.runnable    = runnable;
+            this.coalesceKey = coalesceKey;
+            this.priority    = priority;
+            this.seq         = seq;
+            this.postTime    = postTime;
+            this.dueTime     = dueTime;
+        }
+
+        /* returns true if the task was still queued and will not run */
+        public boolean cancel() {
+            return queue.removeTask(this);
+        }
+    }
+
+    private final static Comparator<Task> s_byDueTime = new Comparator<Task>() {
+        @Override
+        public int compare(Task a, Task b) {
+            if (a.dueTime != b.dueTime) {
+                return a.dueTime < b.dueTime ? -1 : 1;
+            }
+            return a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1);
+        }
+    };
+
+    private final static Comparator<Task> s_byPriority = new Comparator<Task>() {
+        @Override
+        public int compare(Task a, Task b) {
+            if (a.priority != b.priority) {
+                return a.priority > b.priority ? -1 : 1;
+            }
+            return s_byDueTime.compare(a, b);
+        }
+    };
+
+    private final static ArrayList<DispatchQueue> s_allQueues = new ArrayList<>();
+
+    private volatile Handler              handler = null;
+    private final Object                  pending = new Object();           // guards all below
+    private final PriorityQueue<Task>     due = new PriorityQueue<>(11, s_byPriority);     // tasks to run now, the highest priority first
+    private final PriorityQueue<Task>     delayed = new PriorityQueue<>(11, s_byDueTime);  // tasks not yet due, the next due first
+    private final HashMap<String, Task>   pendingByKey = new HashMap<>();
+    private long                          nextSeq;
+
+    private long executedCount;
+    private long cancelledCount;
+    private long coalescedCount;
+    private long slowCount;
+    private long totalWaitMs;
+    private long totalRunMs;
+    private long maxRunMs;
+    private int  maxDepth;
+
+    private final Runnable drainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            runNextTask();
+        }
+    };
 
     public DispatchQueue(final String threadName) {
         setName(threadName);
+        synchronized (s_allQueues) {
+            s_allQueues.add(this);
+        }
         start();
     }
 
-    /*
-    private void sendMessage(Message msg, int delay) {
-        try {
-            syncLatch.await();
-            if (delay <= 0) {
-                handler.sendMessage(msg);
-            } else {
-                handler.sendMessageDelayed(msg, delay);
+    public void cancelRunnable(Runnable runnable) {
+        synchronized (pending) {
+            cancelRunnable(due, runnable);
+            cancelRunnable(delayed, runnable);
+        }
+    }
+
+    private void cancelRunnable(PriorityQueue<Task> tasks, Runnable runnable) { // called with pending locked
+        Iterator<Task> it = tasks.iterator();
+        while (it.hasNext()) {
+            Task task = it.next();
+            if (task.runnable == runnable) {
+                it.remove();
+                taskRemoved(task);
             }
-        } catch (Exception e) {
-            FileLog.e("messenger", e);
         }
     }
-    */
 
-    public void cancelRunnable(Runnable runnable) {
-        try {
-            syncLatch.await();
-            handler.removeCallbacks(runnable);
-        } catch (Exception e) {
-            FileLog.e("messenger", e);
+    /* cancel the queued task posted with the given coalescing key, if any */
+    public void cancelKey(String coalesceKey) {
+        synchronized (pending) {
+            Task task = pendingByKey.get(coalesceKey);
+            if (task != null) {
+                removeTask(task);
+            }
         }
     }
 
-    public void postRunnable(Runnable runnable) {
-        postRunnable(runnable, 0);
+    public Task postRunnable(Runnable runnable) {
+        return postRunnable(runnable, 0, PRIORITY_NORMAL, null);
     }
 
-    public void postRunnable(Runnable runnable, long delay) {
-        try {
-            syncLatch.await();
+    public Task postRunnable(Runnable runnable, long delay) {
+        return postRunnable(runnable, delay, PRIORITY_NORMAL, null);
+    }
+
+    public Task postRunnable(Runnable runnable, long delay, int priority) {
+        return postRunnable(runnable, delay, priority, null);
+    }
+
+    /**
+     * @param coalesceKey if not null, a task still queued with the same key is replaced by the new one,
+     *     eg. to reload a list only once if several changes are posted in a row
+     * @return a handle to cancel the task
+     */
+    public Task postRunnable(Runnable runnable, long delay, int priority, String coalesceKey) {
+        long now = SystemClock.uptimeMillis();
+        Task task;
+        synchronized (pending) {
+            if (coalesceKey != null) {
+                Task old = pendingByKey.remove(coalesceKey);
+                if (old != null) {
+                    if (!due.remove(old)) {
+                        delayed.remove(old);
+                    }
+                    coalescedCount++;
+                }
+            }
+            task = new Task(this, runnable, coalesceKey, priority, nextSeq++, now, now + Math.max(0, delay));
             if (delay <= 0) {
-                handler.post(runnable);
+                due.add(task);
             } else {
-                handler.postDelayed(runnable, delay);
+                delayed.add(task);
+            }
+            if (coalesceKey != null) {
+                pendingByKey.put(coalesceKey, task);
             }
-        } catch (Exception e) {
-            FileLog.e("messenger", e);
+            maxDepth = Math.max(maxDepth, due.size() + delayed.size());
+        }
+
+        Handler h = handler;
+        if (h != null) { // otherwise, the queue is drained as soon as the thread is started
+            if (delay <= 0) {
+                h.post(drainRunnable);
+            } else {
+                h.postAtTime(drainRunnable, task.dueTime);
+            }
+        }
+        return task;
+    }
+
+    public int getDepth() {
+        synchronized (pending) {
+            return due.size() + delayed.size();
+        }
+    }
+
+    public String getInfo() {
+        synchronized (pending) {
+            return getName() + ": " + executedCount + " run, " + (due.size() + delayed.size()) + " queued (max " + maxDepth + "), "
+                + cancelledCount + " cancelled, " + coalescedCount + " coalesced"
+                + "\n" + getName() + " avg. wait/run: " + (executedCount > 0 ? totalWaitMs/executedCount : 0) + "/" + (executedCount > 0 ? totalRunMs/executedCount : 0)
+                + " ms, max run " + maxRunMs + " ms, " + slowCount + " slow";
+        }
+    }
+
+    /* the statistics of all queues, eg. for the about dialog */
+    public static String getAllInfo() {
+        StringBuilder info = new StringBuilder();
+        synchronized (s_allQueues) {
+            for (DispatchQueue queue : s_allQueues) {
+                if (info.length() > 0) {
+                    info.append("\n");
+                }
+                info.append(queue.getInfo());
+            }
+        }
+        return info.toString();
+    }
+
+    private boolean removeTask(Task task) {
+        synchronized (pending) {
+            if (!due.remove(task) && !delayed.remove(task)) {
+                return false; // already run or cancelled
+            }
+            taskRemoved(task);
+            return true;
         }
     }
 
-    /*
-    public void cleanupQueue() {
+    private void taskRemoved(Task task) { // called with pending locked
+        if (task.coalesceKey != null && pendingByKey.get(task.coalesceKey) == task) {
+            pendingByKey.remove(task.coalesceKey);
+        }
+        cancelledCount++;
+    }
+
+    /* run the task due with the highest priority; each task is run from a message of its own,
+    so that other messages of the Looper are not delayed by a long queue */
+    private void runNextTask() {
+        long now = SystemClock.uptimeMillis();
+        Task task;
+        boolean moreDue;
+        synchronized (pending) {
+            while (!delayed.isEmpty() && delayed.peek().dueTime <= now) {
+                due.add(delayed.poll());
+            }
+            task = due.poll();
+            if (task != null && task.coalesceKey != null && pendingByKey.get(task.coalesceKey) == task) {
+                pendingByKey.remove(task.coalesceKey);
+            }
+            moreDue = !due.isEmpty();
+        }
+
+        if (task == null) {
+            return; // cancelled or not yet due; a delayed task has its own message
+        }
+        if (moreDue) {
+            handler.post(drainRunnable);
+        }
+
+        long startTime = SystemClock.uptimeMillis();
         try {
-            syncLatch.await();
-            handler.removeCallbacksAndMessages(null);
-        } catch (Exception e) {
-            FileLog.e("messenger", e);
+            task.runnable.run();
+        } catch (Throwable e) {
+            // the exception is logged with the name of the queue, but not swallowed
+            FileLog.e("messenger", getName() + ": task " + task.runnable.getClass().getName() + " failed", e);
+            throw e;
+        }
+        long runMs = SystemClock.uptimeMillis() - startTime;
+
+        synchronized (pending) {
+            executedCount++;
+            totalWaitMs += startTime - task.dueTime;
+            totalRunMs += runMs;
+            maxRunMs = Math.max(maxRunMs, runMs);
+            if (runMs > SLOW_TASK_MS) {
+                slowCount++;
+            }
+        }
+        if (runMs > SLOW_TASK_MS) {
+            FileLog.w("messenger", getName() + ": slow task " + task.runnable.getClass().getName() + " took " + runMs + " ms");
         }
     }
-    */
 
     @Override
     public void run() {
         Looper.prepare();
-        handler = new Handler();
-        syncLatch.countDown();
+        Handler h = new Handler();
+        synchronized (pending) {
+            handler = h;
+            for (Task task : due) {
+                h.post(drainRunnable);
+            }
+            for (Task task : delayed) {
+                h.postAtTime(drainRunnable, task.dueTime);
+            }
+        }
         Looper.loop();
     }
 }
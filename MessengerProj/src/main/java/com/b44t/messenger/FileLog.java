@@ -29,15 +29,53 @@ import com.b44t.messenger.time.FastDateFormat;
 
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Locale;
 
 public class FileLog {
-    private OutputStreamWriter streamWriter = null;
+
+    private final static int  RING_SIZE      = 1024;            // records waiting to be written; further records are dropped
+    private final static long MAX_FILE_BYTES = 4 * 1024 * 1024; // a new file is started when the current one gets larger
+    private final static int  MAX_FILES      = 8;               // the oldest files are deleted on rotation
+
+    // the records are allocated once and reused; only the references to the strings are stored
+    private static class Record {
+        long      time;
+        char      level;
+        String    tag;
+        String    message;
+        Throwable exception;
+    }
+
+    private final Record[] ring = new Record[RING_SIZE]; // all guarded by ring
+    private int            ringHead;
+    private int            ringCount;
+    private long           droppedSinceWrite;
+    private volatile boolean enabled;
+
     private FastDateFormat dateFormat = null;
-    private DispatchQueue logQueue = null;
     private File currentFile = null;
     private File networkFile = null;
+    private FileOutputStream stream = null;
+    private FileChannel channel = null;
+    private long currentFileBytes;
+
+    // used by the writer thread only
+    private final Record[] batchRecords = new Record[RING_SIZE];
+    private final StringBuilder batch = new StringBuilder(16 * 1024);
+    private final CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder();
+    private final ByteBuffer byteBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    private long prefixSecond = -1;
+    private String prefix = "";
+
+    private final static MrMetrics.Counter s_written = MrMetrics.counter("log records written");
+    private final static MrMetrics.Counter s_dropped = MrMetrics.counter("log records dropped");
 
     private static volatile FileLog Instance = null;
     public static FileLog getInstance() {
@@ -59,26 +97,29 @@ public class FileLog {
         }
         dateFormat = FastDateFormat.getInstance("dd_MM_yyyy_HH_mm_ss", Locale.US);
         try {
-            File sdCard = ApplicationLoader.applicationContext.getExternalFilesDir(null);
-            if (sdCard == null) {
-                return;
-            }
-            File dir = new File(sdCard.getAbsolutePath() + "/logs");
-            dir.mkdirs();
-            currentFile = new File(dir, dateFormat.format(System.currentTimeMillis()) + ".txt");
+            openNewFile();
+            write("-----start log " + dateFormat.format(System.currentTimeMillis()) + "-----\n");
         } catch (Exception e) {
             e.printStackTrace();
         }
-        try {
-            logQueue = new DispatchQueue("logQueue");
-            currentFile.createNewFile();
-            FileOutputStream stream = new FileOutputStream(currentFile);
-            streamWriter = new OutputStreamWriter(stream);
-            streamWriter.write("-----start log " + dateFormat.format(System.currentTimeMillis()) + "-----\n");
-            streamWriter.flush();
-        } catch (Exception e) {
-            e.printStackTrace();
+        if (channel == null) {
+            return;
         }
+
+        for (int i = 0; i < RING_SIZE; i++) {
+            ring[i] = new Record();
+            batchRecords[i] = new Record();
+        }
+        enabled = true;
+        Thread writer = new Thread("logWriter") {
+            @Override
+            public void run() {
+                writerLoop();
+            }
+        };
+        writer.setDaemon(true);
+        writer.setPriority(Thread.MIN_PRIORITY);
+        writer.start();
     }
 
     public static String getNetworkLogPath() {
@@ -86,12 +127,10 @@ public class FileLog {
             return "";
         }
         try {
-            File sdCard = ApplicationLoader.applicationContext.getExternalFilesDir(null);
-            if (sdCard == null) {
+            File dir = getLogDir();
+            if (dir == null) {
                 return "";
             }
-            File dir = new File(sdCard.getAbsolutePath() + "/logs");
-            dir.mkdirs();
             getInstance().networkFile = new File(dir, getInstance().dateFormat.format(System.currentTimeMillis()) + "_net.txt");
             return getInstance().networkFile.getAbsolutePath();
         } catch (Throwable e) {
@@ -105,20 +144,7 @@ public class FileLog {
             return;
         }
         Log.e(tag, message, exception);
-        if (getInstance().streamWriter != null) {
-            getInstance().logQueue.postRunnable(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        getInstance().streamWriter.write(getInstance().dateFormat.format(System.currentTimeMillis()) + " E/" + tag + "﹕ " + message + "\n");
-                        getInstance().streamWriter.write(exception.toString());
-                        getInstance().streamWriter.flush();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
-            });
-        }
+        getInstance().add('E', tag, message, exception);
     }
 
     public static void e(final String tag, final String message) {
@@ -126,19 +152,7 @@ public class FileLog {
             return;
         }
         Log.e(tag, message);
-        if (getInstance().streamWriter != null) {
-            getInstance().logQueue.postRunnable(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        getInstance().streamWriter.write(getInstance().dateFormat.format(System.currentTimeMillis()) + " E/" + tag + "﹕ " + message + "\n");
-                        getInstance().streamWriter.flush();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
-            });
-        }
+        getInstance().add('E', tag, message, null);
     }
 
     public static void e(final String tag, final Throwable e) {
@@ -146,25 +160,7 @@ public class FileLog {
             return;
         }
         e.printStackTrace();
-        if (getInstance().streamWriter != null) {
-            getInstance().logQueue.postRunnable(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        getInstance().streamWriter.write(getInstance().dateFormat.format(System.currentTimeMillis()) + " E/" + tag + "﹕ " + e + "\n");
-                        StackTraceElement[] stack = e.getStackTrace();
-                        for (int a = 0; a < stack.length; a++) {
-                            getInstance().streamWriter.write(getInstance().dateFormat.format(System.currentTimeMillis()) + " E/" + tag + "﹕ " + stack[a] + "\n");
-                        }
-                        getInstance().streamWriter.flush();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
-            });
-        } else {
-            e.printStackTrace();
-        }
+        getInstance().add('E', tag, null, e);
     }
 
     public static void d(final String tag, final String message) {
@@ -172,19 +168,7 @@ public class FileLog {
             return;
         }
         Log.d(tag, message);
-        if (getInstance().streamWriter != null) {
-            getInstance().logQueue.postRunnable(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        getInstance().streamWriter.write(getInstance().dateFormat.format(System.currentTimeMillis()) + " D/" + tag + "﹕ " + message + "\n");
-                        getInstance().streamWriter.flush();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
-            });
-        }
+        getInstance().add('D', tag, message, null);
     }
 
     public static void w(final String tag, final String message) {
@@ -192,27 +176,14 @@ public class FileLog {
             return;
         }
         Log.w(tag, message);
-        if (getInstance().streamWriter != null) {
-            getInstance().logQueue.postRunnable(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        getInstance().streamWriter.write(getInstance().dateFormat.format(System.currentTimeMillis()) + " W/" + tag + ": " + message + "\n");
-                        getInstance().streamWriter.flush();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
-            });
-        }
+        getInstance().add('W', tag, message, null);
     }
 
     public static void cleanupLogs() {
-        File sdCard = ApplicationLoader.applicationContext.getExternalFilesDir(null);
-        if (sdCard == null) {
+        File dir = getLogDir();
+        if (dir == null) {
             return;
         }
-        File dir = new File (sdCard.getAbsolutePath() + "/logs");
         File[] files = dir.listFiles();
         if (files != null) {
             for (int a = 0; a < files.length; a++) {
@@ -227,4 +198,173 @@ public class FileLog {
             }
         }
     }
+
+    private static File getLogDir() {
+        File sdCard = ApplicationLoader.applicationContext.getExternalFilesDir(null);
+        if (sdCard == null) {
+            return null;
+        }
+        File dir = new File(sdCard.getAbsolutePath() + "/logs");
+        dir.mkdirs();
+        return dir;
+    }
+
+    /* called from any thread; does not allocate and never blocks on the file */
+    private void add(char level, String tag, String message, Throwable exception) {
+        if (!enabled) {
+            return;
+        }
+        synchronized (ring) {
+            if (ringCount == RING_SIZE) {
+                droppedSinceWrite++;
+                s_dropped.add(1);
+                return;
+            }
+            Record record = ring[(ringHead + ringCount) % RING_SIZE];
+            record.time = System.currentTimeMillis();
+            record.level = level;
+            record.tag = tag;
+            record.message = message;
+            record.exception = exception;
+            ringCount++;
+            if (ringCount == 1) {
+                ring.notify();
+            }
+        }
+    }
+
+    private void writerLoop() {
+        while (true) {
+            try {
+                int cnt;
+                long dropped;
+                synchronized (ring) {
+                    while (ringCount == 0) {
+                        ring.wait();
+                    }
+                    // take all waiting records at once; the ring is locked only while copying the references
+                    cnt = ringCount;
+                    for (int i = 0; i < cnt; i++) {
+                        Record src = ring[(ringHead + i) % RING_SIZE], dst = batchRecords[i];
+                        dst.time = src.time;
+                        dst.level = src.level;
+                        dst.tag = src.tag;
+                        dst.message = src.message;
+                        dst.exception = src.exception;
+                        src.tag = null;
+                        src.message = null;
+                        src.exception = null;
+                    }
+                    ringHead = (ringHead + cnt) % RING_SIZE;
+                    ringCount = 0;
+                    dropped = droppedSinceWrite;
+                    droppedSinceWrite = 0;
+                }
+
+                batch.setLength(0);
+                for (int i = 0; i < cnt; i++) {
+                    Record record = batchRecords[i];
+                    formatRecord(record);
+                    record.tag = null;
+                    record.message = null;
+                    record.exception = null;
+                }
+                s_written.add(cnt);
+                if (dropped > 0) {
+                    batch.append(prefix).append(" W/messenger: ").append(dropped).append(" log records dropped\n");
+                }
+                write(batch);
+                if (currentFileBytes > MAX_FILE_BYTES) {
+                    openNewFile();
+                    if (channel == null) {
+                        enabled = false;
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                // keep on writing
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void formatRecord(Record record) {
+        long second = record.time / 1000;
+        if (second != prefixSecond) {
+            prefix = dateFormat.format(record.time); // formatted once per second only
+            prefixSecond = second;
+        }
+        if (record.message != null) {
+            batch.append(prefix).append(' ').append(record.level).append('/').append(record.tag).append("﹕ ").append(record.message).append('\n');
+        }
+        if (record.exception != null) {
+            if (record.message != null) {
+                batch.append(record.exception).append('\n');
+            } else {
+                batch.append(prefix).append(' ').append(record.level).append('/').append(record.tag).append("﹕ ").append(record.exception).append('\n');
+                StackTraceElement[] stack = record.exception.getStackTrace();
+                for (int a = 0; a < stack.length; a++) {
+                    batch.append(prefix).append(' ').append(record.level).append('/').append(record.tag).append("﹕ ").append(stack[a]).append('\n');
+                }
+            }
+        }
+    }
+
+    private void write(CharSequence text) throws Exception {
+        CharBuffer chars = CharBuffer.wrap(text);
+        encoder.reset();
+        while (true) {
+            byteBuffer.clear();
+            boolean done = !encoder.encode(chars, byteBuffer, true).isOverflow();
+            if (done) {
+                encoder.flush(byteBuffer);
+            }
+            byteBuffer.flip();
+            while (byteBuffer.hasRemaining()) {
+                currentFileBytes += channel.write(byteBuffer);
+            }
+            if (done) {
+                break;
+            }
+        }
+    }
+
+    /* start a new log file and delete the oldest ones; called from the constructor and the writer only */
+    private void openNewFile() throws Exception {
+        if (stream != null) {
+            stream.close();
+            stream = null;
+            channel = null;
+        }
+        File dir = getLogDir();
+        if (dir == null) {
+            return;
+        }
+
+        File file = new File(dir, dateFormat.format(System.currentTimeMillis()) + ".txt");
+        for (int n = 2; file.exists(); n++) {
+            file = new File(dir, dateFormat.format(System.currentTimeMillis()) + "_" + n + ".txt");
+        }
+        stream = new FileOutputStream(file);
+        channel = stream.getChannel();
+        currentFile = file;
+        currentFileBytes = 0;
+
+        File[] files = dir.listFiles();
+        if (files != null && files.length > MAX_FILES) {
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File lhs, File rhs) {
+                    long l = lhs.lastModified(), r = rhs.lastModified();
+                    return l < r ? -1 : (l == r ? 0 : 1);
+                }
+            });
+            for (int a = 0; a < files.length - MAX_FILES; a++) {
+                if (!files[a].equals(currentFile) && !files[a].equals(networkFile)) {
+                    files[a].delete();
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,179 @@
+/*******************************************************************************
+ *
+ *                          Messenger Android Frontend
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    ImageDecodeScheduler.java
+ * Purpose: Small pool of worker threads decoding images, the images shown on
+ *          screen first; queued decodes can be re-prioritized and cancelled
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger;
+
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+public class ImageDecodeScheduler {
+
+    // lower values are decoded first
+    public final static int PRIORITY_VISIBLE_THUMB   = 0;
+    public final static int PRIORITY_VISIBLE         = 1;
+    public final static int PRIORITY_OFFSCREEN_THUMB = 2;
+    public final static int PRIORITY_OFFSCREEN       = 3; // prefetched or scrolled out, decoded when nothing else is to do
+
+    private static class Task {
+        final Runnable runnable;
+        final long     seq;
+        final long     queuedTime;
+        int            priority;
+
+        Task(Runnable runnable, int priority, long seq) {
+            this.runnable   = runnable;
+            this.priority   = priority;
+            this.seq        = seq;
+            this.queuedTime = System.currentTimeMillis();
+        }
+    }
+
+    private final String                          m_name;
+    private final ArrayList<Task>                 m_pending = new ArrayList<>();
+    private final IdentityHashMap<Runnable, Task> m_pendingByRunnable = new IdentityHashMap<>();
+    private long                                  m_seq;
+
+    // statistics, guarded by m_pending
+    private long m_decoded;
+    private long m_cancelled;
+    private long m_totalWaitMs;
+    private long m_totalRunMs;
+    private int  m_maxPending;
+
+    public static int getDefaultThreadCount() {
+        // leave one core to the UI thread, but use at least two workers so that a slow decode
+        // does not block all others
+        int cores = Runtime.getRuntime().availableProcessors();
+        return Math.max(2, Math.min(4, cores - 1));
+    }
+
+    public ImageDecodeScheduler(String name, int threadCount) {
+        m_name = name;
+        for (int i = 0; i < threadCount; i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    workerLoop();
+                }
+            }, name + i);
+            worker.start();
+        }
+    }
+
+    public void post(Runnable runnable, int priority) {
+        synchronized (m_pending) {
+            Task queued = m_pendingByRunnable.get(runnable);
+            if (queued != null) {
+                queued.priority = priority;
+                return;
+            }
+            Task task = new Task(runnable, priority, m_seq++);
+            m_pending.add(task);
+            m_pendingByRunnable.put(runnable, task);
+            m_maxPending = Math.max(m_maxPending, m_pending.size());
+            m_pending.notify();
+        }
+    }
+
+    /* returns true if the runnable was still queued; a runnable already running is not affected */
+    public boolean cancel(Runnable runnable) {
+        synchronized (m_pending) {
+            Task task = m_pendingByRunnable.remove(runnable);
+            if (task == null) {
+                return false;
+            }
+            m_pending.remove(task);
+            m_cancelled++;
+            return true;
+        }
+    }
+
+    /* change the priority of a queued runnable, eg. when its view becomes visible */
+    public void setPriority(Runnable runnable, int priority) {
+        synchronized (m_pending) {
+            Task task = m_pendingByRunnable.get(runnable);
+            if (task != null) {
+                task.priority = priority;
+            }
+        }
+    }
+
+    public String getInfo() {
+        synchronized (m_pending) {
+            return m_name + ": " + m_decoded + " decoded, " + m_cancelled + " cancelled, " + m_pending.size() + " queued (max " + m_maxPending + ")"
+                + "\n" + m_name + " avg. wait/decode: " + (m_decoded > 0 ? m_totalWaitMs/m_decoded : 0) + "/" + (m_decoded > 0 ? m_totalRunMs/m_decoded : 0) + " ms";
+        }
+    }
+
+    private Task takeNext() throws InterruptedException {
+        synchronized (m_pending) {
+            while (m_pending.isEmpty()) {
+                m_pending.wait();
+            }
+            // the queue is short, a linear scan is cheaper than keeping a heap in order on priority changes
+            int best = 0;
+            for (int i = 1; i < m_pending.size(); i++) {
+                Task t = m_pending.get(i), b = m_pending.get(best);
+                if (t.priority < b.priority || (t.priority == b.priority && t.seq < b.seq)) {
+                    best = i;
+                }
+            }
+            Task task = m_pending.remove(best);
+            m_pendingByRunnable.remove(task.runnable);
+            return task;
+        }
+    }
+
+    private void workerLoop() {
+        while (true) {
+            Task task;
+            try {
+                task = takeNext();
+            } catch (InterruptedException e) {
+                continue;
+            }
+
+            long startTime = System.currentTimeMillis();
+            try {
+                task.runnable.run();
+            } catch (Throwable e) {
+                FileLog.e("messenger", e);
+            }
+            long endTime = System.currentTimeMillis();
+
+            synchronized (m_pending) {
+                m_decoded++;
+                m_totalWaitMs += startTime - task.queuedTime;
+                m_totalRunMs += endTime - startTime;
+            }
+        }
+    }
+}
@@ -45,6 +45,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
@@ -65,23 +66,20 @@ import java.util.concurrent.ConcurrentHashMap;
 public class ImageLoader {
 
     private HashMap<String, Integer> bitmapUseCounts = new HashMap<>();
-    private LruCache memCache;
+    private ImageMemoryCache memCache;
     private HashMap<String, CacheImage> imageLoadingByUrl = new HashMap<>();
     private HashMap<String, CacheImage> imageLoadingByKeys = new HashMap<>();
     private HashMap<Integer, CacheImage> imageLoadingByTag = new HashMap<>();
     private HashMap<String, ThumbGenerateInfo> waitingForQualityThumb = new HashMap<>();
     private HashMap<Integer, String> waitingForQualityThumbByTag = new HashMap<>();
     private LinkedList<HttpImageTask> httpTasks = new LinkedList<>();
-    private DispatchQueue cacheOutQueue = new DispatchQueue("cacheOutQueue");
-    private DispatchQueue cacheThumbOutQueue = new DispatchQueue("cacheThumbOutQueue");
+    private ImageDecodeScheduler decodeScheduler = new ImageDecodeScheduler("imageDecode", ImageDecodeScheduler.getDefaultThreadCount());
     private DispatchQueue thumbGeneratingQueue = new DispatchQueue("thumbGeneratingQueue");
     private DispatchQueue imageLoadQueue = new DispatchQueue("imageLoadQueue");
     private ConcurrentHashMap<String, Float> fileProgresses = new ConcurrentHashMap<>();
     private HashMap<String, ThumbGenerateTask> thumbGenerateTasks = new HashMap<>();
-    private static byte[] bytes;
-    private static byte[] bytesThumb;
-    private static byte[] header = new byte[12];
-    private static byte[] headerThumb = new byte[12];
+    private final static int THUMB_DISK_MIN_SOURCE_BYTES = 100 * 1024;
+    private static ThreadLocal<byte[]> decodeBuffer = new ThreadLocal<>(); // the images are decoded on several threads
     private int currentHttpTasksCount = 0;
 
     private LinkedList<HttpFileTask> httpFileLoadTasks = new LinkedList<>();
@@ -506,7 +504,7 @@ public class ImageLoader {
                 float scaleFactor = Math.min((float) w / size, (float) h / size);
                 Bitmap scaledBitmap = Bitmaps.createScaledBitmap(originalBitmap, (int) (w / scaleFactor), (int) (h / scaleFactor), true);
                 if (scaledBitmap != originalBitmap) {
-                    originalBitmap.recycle();
+                    BitmapPool.getInstance().put(originalBitmap);
                 }
                 originalBitmap = scaledBitmap;
                 FileOutputStream stream = new FileOutputStream(thumbFile);
@@ -527,7 +525,7 @@ public class ImageLoader {
                             kf += "@" + filter;
                         }
                         NotificationCenter.getInstance().postNotificationName(NotificationCenter.messageThumbGenerated, bitmapDrawable, kf);
-                        memCache.put(kf, bitmapDrawable);
+                        memCache.put(kf, filter, bitmapDrawable);
                     }
                 });
             } catch (Throwable e) {
@@ -579,12 +577,7 @@ public class ImageLoader {
                     RandomAccessFile randomAccessFile = null;
                     try {
                         randomAccessFile = new RandomAccessFile(cacheFileFinal, "r");
-                        byte[] bytes;
-                        if (cacheImage.thumb) {
-                            bytes = headerThumb;
-                        } else {
-                            bytes = header;
-                        }
+                        byte[] bytes = new byte[12];
                         randomAccessFile.readFully(bytes, 0, bytes.length);
                         String str = new String(bytes).toLowerCase();
                         str = str.toLowerCase();
@@ -647,16 +640,11 @@ public class ImageLoader {
                             if (opts.inPurgeable) {
                                 RandomAccessFile f = new RandomAccessFile(cacheFileFinal, "r");
                                 int len = (int) f.length();
-                                byte[] data = bytesThumb != null && bytesThumb.length >= len ? bytesThumb : null;
-                                if (data == null) {
-                                    bytesThumb = data = new byte[len];
-                                }
+                                byte[] data = getDecodeBuffer(len);
                                 f.readFully(data, 0, len);
                                 image = BitmapFactory.decodeByteArray(data, 0, len, opts);
                             } else {
-                                FileInputStream is = new FileInputStream(cacheFileFinal);
-                                image = BitmapFactory.decodeStream(is, null, opts);
-                                is.close();
+                                image = decodeFileReusing(cacheFileFinal, opts);
                             }
                         }
 
@@ -722,6 +710,28 @@ public class ImageLoader {
                             }
                         }
 
+                        // downscaled thumbnails of gallery images, videos and large files are kept on disk
+                        String thumbDiskKey = getThumbDiskKey(cacheImage, mediaId, mediaIsVideo, cacheFileFinal);
+                        if (thumbDiskKey != null) {
+                            // decoded with the same config as a fresh thumb, a hit must not use more memory
+                            BitmapFactory.Options diskOpts = new BitmapFactory.Options();
+                            diskOpts.inPreferredConfig = getThumbConfig();
+                            if (Build.VERSION.SDK_INT < 21) {
+                                diskOpts.inPurgeable = true;
+                            } else {
+                                diskOpts.inMutable = true;
+                            }
+                            image = ThumbDiskCache.getInstance().get(thumbDiskKey, diskOpts);
+                            if (image != null) {
+                                if (diskOpts.inPurgeable) {
+                                    Utilities.pinBitmap(image);
+                                }
+                                Thread.interrupted();
+                                onPostExecute(new BitmapDrawable(image));
+                                return;
+                            }
+                        }
+
                         BitmapFactory.Options opts = new BitmapFactory.Options();
                         opts.inSampleSize = 1;
 
@@ -759,7 +769,15 @@ public class ImageLoader {
                                     scaleFactor = 1;
                                 }
                                 opts.inJustDecodeBounds = false;
-                                opts.inSampleSize = (int) scaleFactor;
+                                // decoders sample by powers of two only; the rest is scaled while decoding so that no
+                                // bitmap larger than the size drawn is allocated and copied
+                                opts.inSampleSize = Integer.highestOneBit((int) scaleFactor);
+                                float sampledW = photoW / opts.inSampleSize;
+                                if (mediaId == null && Build.VERSION.SDK_INT >= 21 && sampledW > w_filter + 20) {
+                                    opts.inScaled = true;
+                                    opts.inDensity = Math.round(sampledW);
+                                    opts.inTargetDensity = Math.round(w_filter);
+                                }
                             }
                         }
                         synchronized (sync) {
@@ -768,11 +786,7 @@ public class ImageLoader {
                             }
                         }
 
-                        if (cacheImage.filter == null || blur || cacheImage.httpUrl != null) {
-                            opts.inPreferredConfig = Bitmap.Config.ARGB_8888;
-                        } else {
-                            opts.inPreferredConfig = Bitmap.Config.RGB_565;
-                        }
+                        opts.inPreferredConfig = getThumbConfig();
                         if (Build.VERSION.SDK_INT < 21) {
                             opts.inPurgeable = true;
                         }
@@ -801,16 +815,11 @@ public class ImageLoader {
                                 if (opts.inPurgeable) {
                                     RandomAccessFile f = new RandomAccessFile(cacheFileFinal, "r");
                                     int len = (int) f.length();
-                                    byte[] data = bytes != null && bytes.length >= len ? bytes : null;
-                                    if (data == null) {
-                                        bytes = data = new byte[len];
-                                    }
+                                    byte[] data = getDecodeBuffer(len);
                                     f.readFully(data, 0, len);
                                     image = BitmapFactory.decodeByteArray(data, 0, len, opts);
                                 } else {
-                                    FileInputStream is = new FileInputStream(cacheFileFinal);
-                                    image = BitmapFactory.decodeStream(is, null, opts);
-                                    is.close();
+                                    image = decodeFileReusing(cacheFileFinal, opts);
                                 }
                             }
                         }
@@ -827,7 +836,7 @@ public class ImageLoader {
                                     float scaleFactor = bitmapW / w_filter;
                                     Bitmap scaledBitmap = Bitmaps.createScaledBitmap(image, (int) w_filter, (int) (bitmapH / scaleFactor), true);
                                     if (image != scaledBitmap) {
-                                        image.recycle();
+                                        BitmapPool.getInstance().put(image);
                                         image = scaledBitmap;
                                     }
                                 }
@@ -842,6 +851,9 @@ public class ImageLoader {
                                 Utilities.pinBitmap(image);
                             }
                         }
+                        if (image != null && thumbDiskKey != null) {
+                            ThumbDiskCache.getInstance().put(thumbDiskKey, image);
+                        }
                     } catch (Throwable e) {
                         //don't promt
                     }
@@ -851,6 +863,14 @@ public class ImageLoader {
             }
         }
 
+        /* filtered, unblurred thumbs of local files are decoded with 16 bit; for fresh decodes and thumb disk cache hits */
+        private Bitmap.Config getThumbConfig() {
+            if (cacheImage.filter == null || cacheImage.filter.contains("b") || cacheImage.httpUrl != null) {
+                return Bitmap.Config.ARGB_8888;
+            }
+            return Bitmap.Config.RGB_565;
+        }
+
         private void onPostExecute(final BitmapDrawable bitmapDrawable) {
             AndroidUtilities.runOnUIThread(new Runnable() {
                 @Override
@@ -861,11 +881,10 @@ public class ImageLoader {
                     } else if (bitmapDrawable != null) {
                         toSet = memCache.get(cacheImage.key);
                         if (toSet == null) {
-                            memCache.put(cacheImage.key, bitmapDrawable);
+                            memCache.put(cacheImage.key, cacheImage.filter, bitmapDrawable);
                             toSet = bitmapDrawable;
                         } else {
-                            Bitmap image = bitmapDrawable.getBitmap();
-                            image.recycle();
+                            BitmapPool.getInstance().put(bitmapDrawable.getBitmap());
                         }
                     }
                     final BitmapDrawable toSetFinal = toSet;
@@ -998,11 +1017,7 @@ public class ImageLoader {
                     }
                 }
                 if (cacheTask != null) {
-                    if (thumb) {
-                        cacheThumbOutQueue.cancelRunnable(cacheTask);
-                    } else {
-                        cacheOutQueue.cancelRunnable(cacheTask);
-                    }
+                    decodeScheduler.cancel(cacheTask);
                     cacheTask.cancel();
                     cacheTask = null;
                 }
@@ -1078,17 +1093,23 @@ public class ImageLoader {
 
     public ImageLoader() {
 
-        cacheOutQueue.setPriority(Thread.MIN_PRIORITY);
-        cacheThumbOutQueue.setPriority(Thread.MIN_PRIORITY);
         thumbGeneratingQueue.setPriority(Thread.MIN_PRIORITY);
         imageLoadQueue.setPriority(Thread.MIN_PRIORITY);
 
-        int cacheSize = Math.min(15, ((ActivityManager) ApplicationLoader.applicationContext.getSystemService(Context.ACTIVITY_SERVICE)).getMemoryClass() / 7) * 1024 * 1024;
+        // a seventh of the heap, so devices with more memory keep more images
+        int memoryClass = ((ActivityManager) ApplicationLoader.applicationContext.getSystemService(Context.ACTIVITY_SERVICE)).getMemoryClass();
+        int cacheSize = Math.max(2, memoryClass / 7) * 1024 * 1024;
 
-        memCache = new LruCache(cacheSize) {
+        // bitmaps evicted from the cache go to the pool to be decoded into again; both share the budget
+        int poolSize = BitmapPool.isSupported() ? cacheSize / 6 : 0;
+        BitmapPool.getInstance().setMaxSize(poolSize);
+        cacheSize -= poolSize;
+
+        memCache = new ImageMemoryCache(cacheSize) {
             @Override
             protected int sizeOf(String key, BitmapDrawable value) {
-                return value.getBitmap().getByteCount();
+                Bitmap b = value.getBitmap();
+                return Build.VERSION.SDK_INT >= 19 ? b.getAllocationByteCount() : b.getByteCount(); // a reused bitmap may be larger than needed
             }
 
             @Override
@@ -1098,10 +1119,7 @@ public class ImageLoader {
                 }
                 final Integer count = bitmapUseCounts.get(key);
                 if (count == null || count == 0) {
-                    Bitmap b = oldValue.getBitmap();
-                    if (!b.isRecycled()) {
-                        b.recycle();
-                    }
+                    BitmapPool.getInstance().put(oldValue.getBitmap());
                 }
             }
         };
@@ -1234,6 +1252,7 @@ public class ImageLoader {
     }
 
     public void checkMediaPaths() {
+        ApplicationLoader.awaitMailboxOpened(); // getBlobdir() is empty before open(), the first avatar of the cached chatlist may get here earlier
         HashMap<Integer, File> mediaDirs = new HashMap<>();
         File cachePath = new File(MrMailbox.getBlobdir());
         try {
@@ -1281,11 +1300,12 @@ public class ImageLoader {
     }
 
     public boolean isInCache(String key) {
-        return memCache.get(key) != null;
+        return memCache.contains(key);
     }
 
     public void clearMemory() {
         memCache.evictAll();
+        BitmapPool.getInstance().clear();
     }
 
     private void removeFromWaitingForThumb(Integer TAG) {
@@ -1302,6 +1322,107 @@ public class ImageLoader {
         }
     }
 
+    /* decode into a bitmap from the pool if there is one large enough; the bounds are read first
+    as the pooled bitmap must be able to hold the result */
+    private static Bitmap decodeFileReusing(File file, BitmapFactory.Options opts) throws IOException {
+        BitmapPool pool = BitmapPool.getInstance();
+        if (BitmapPool.isSupported()) {
+            opts.inJustDecodeBounds = true;
+            FileInputStream is = new FileInputStream(file);
+            BitmapFactory.decodeStream(is, null, opts);
+            is.close();
+            opts.inJustDecodeBounds = false;
+            pool.prepareDecode(opts);
+        }
+
+        Bitmap image = null;
+        FileInputStream is = new FileInputStream(file);
+        try {
+            image = BitmapFactory.decodeStream(is, null, opts);
+        } catch (IllegalArgumentException e) {
+            // the pooled bitmap cannot be used for this image, eg. as the decoder ignored inSampleSize; decode without
+        } finally {
+            is.close();
+        }
+
+        if (opts.inBitmap != null && image != opts.inBitmap) {
+            pool.put(opts.inBitmap);
+            opts.inBitmap = null;
+            if (image == null) {
+                is = new FileInputStream(file);
+                image = BitmapFactory.decodeStream(is, null, opts);
+                is.close();
+            }
+        }
+        opts.inBitmap = null;
+        if (image != null && opts.inTargetDensity != 0) {
+            image.setDensity(AndroidUtilities.displayMetrics.densityDpi); // scaled while decoding, but drawn as any other bitmap
+        }
+        return image;
+    }
+
+    /* key for ThumbDiskCache or null if the image is not worth caching: it must be downscaled
+    to the filter size from a MediaStore thumbnail or a file considerably larger */
+    private static String getThumbDiskKey(CacheImage cacheImage, Long mediaId, boolean mediaIsVideo, File sourceFile) {
+        if (cacheImage.filter == null || cacheImage.filter.indexOf('_') <= 0) {
+            return null;
+        }
+        if (mediaId != null) {
+            return (mediaIsVideo ? "vthumb:" : "thumb:") + mediaId + "@" + cacheImage.filter;
+        }
+        if (sourceFile == null || sourceFile.length() < THUMB_DISK_MIN_SOURCE_BYTES) {
+            return null;
+        }
+        return sourceFile.getAbsolutePath() + ":" + sourceFile.length() + ":" + sourceFile.lastModified() + "@" + cacheImage.filter;
+    }
+
+    private static byte[] getDecodeBuffer(int len) {
+        byte[] data = decodeBuffer.get();
+        if (data == null || data.length < len) {
+            data = new byte[len];
+            decodeBuffer.set(data);
+        }
+        return data;
+    }
+
+    /* images of views on screen are decoded first, thumbs before full images; called on imageLoadQueue */
+    private int getDecodePriority(CacheImage img) {
+        boolean visible = false;
+        for (int a = 0; a < img.imageReceiverArray.size(); a++) {
+            if (img.imageReceiverArray.get(a).isAttachedToParentWindow()) {
+                visible = true;
+                break;
+            }
+        }
+        if (img.thumb) {
+            return visible ? ImageDecodeScheduler.PRIORITY_VISIBLE_THUMB : ImageDecodeScheduler.PRIORITY_OFFSCREEN_THUMB;
+        }
+        return visible ? ImageDecodeScheduler.PRIORITY_VISIBLE : ImageDecodeScheduler.PRIORITY_OFFSCREEN;
+    }
+
+    /* called when the view of an ImageReceiver is attached to the window; decodes queued while the
+    view was bound but not yet shown (eg. prefetched by a RecyclerView) are moved up */
+    public void onImageReceiverAttached(final ImageReceiver imageReceiver) {
+        imageLoadQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                for (int a = 0; a < 2; a++) {
+                    Integer TAG = imageReceiver.getTag(a == 0);
+                    if (TAG != null) {
+                        CacheImage ei = imageLoadingByTag.get(TAG);
+                        if (ei != null && ei.cacheTask != null) {
+                            decodeScheduler.setPriority(ei.cacheTask, getDecodePriority(ei));
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    public String getDecodeInfo() {
+        return decodeScheduler.getInfo() + "\n" + memCache.getInfo() + "\n" + BitmapPool.getInstance().getInfo() + "\n" + ThumbDiskCache.getInstance().getInfo();
+    }
+
     public void cancelLoadingForImageReceiver(final ImageReceiver imageReceiver, final int type) {
         if (imageReceiver == null) {
             return;
@@ -1476,11 +1597,7 @@ public class ImageLoader {
                             img.finalFilePath = cacheFile;
                             img.cacheTask = new CacheOutTask(img);
                             imageLoadingByKeys.put(key, img);
-                            if (thumb != 0) {
-                                cacheThumbOutQueue.postRunnable(img.cacheTask);
-                            } else {
-                                cacheOutQueue.postRunnable(img.cacheTask);
-                            }
+                            decodeScheduler.post(img.cacheTask, getDecodePriority(img));
                         } else {
                             img.url = url;
                             img.location = imageLocation;
@@ -1600,9 +1717,19 @@ public class ImageLoader {
 
         String filter = imageReceiver.getFilter();
         String thumbFilter = imageReceiver.getThumbFilter();
+        String locationKey = key;
         if (key != null && filter != null) {
             key += "@" + filter;
         }
+
+        // until the image is decoded for the requested size, show a version decoded for another
+        // size, eg. the one from the chat when the photo is opened
+        if (!thumbSet && key != null && !memCache.contains(key)) {
+            String variantKey = getLargestCachedVariant(locationKey, key);
+            if (variantKey != null && imageReceiver.setPlaceholderByKey(memCache.get(variantKey), variantKey)) {
+                thumbSet = true;
+            }
+        }
         if (thumbKey != null && thumbFilter != null) {
             thumbKey += "@" + thumbFilter;
         }
@@ -1616,6 +1743,36 @@ public class ImageLoader {
         }
     }
 
+    /* returns the key of the largest image cached for the location, other than the given key */
+    private String getLargestCachedVariant(String locationKey, String exceptKey) {
+        ArrayList<String> keys = new ArrayList<>();
+        keys.add(locationKey);
+        ArrayList<String> filters = memCache.getFilterKeys(locationKey);
+        if (filters != null) {
+            for (String variantFilter : filters) {
+                keys.add(locationKey + "@" + variantFilter);
+            }
+        }
+
+        String bestKey = null;
+        int bestPixels = 0;
+        for (String variantKey : keys) {
+            if (variantKey.equals(exceptKey) || !memCache.contains(variantKey)) {
+                continue;
+            }
+            BitmapDrawable drawable = memCache.get(variantKey);
+            if (drawable == null || drawable instanceof AnimatedFileDrawable) {
+                continue;
+            }
+            int pixels = drawable.getBitmap().getWidth() * drawable.getBitmap().getHeight();
+            if (pixels > bestPixels) {
+                bestKey = variantKey;
+                bestPixels = pixels;
+            }
+        }
+        return bestKey;
+    }
+
     private void httpFileLoadError(final String location) {
         imageLoadQueue.postRunnable(new Runnable() {
             @Override
@@ -1646,7 +1803,7 @@ public class ImageLoader {
                     return;
                 }
                 imageLoadingByUrl.remove(location);
-                CacheOutTask task = null;
+                CacheImage taskImage = null;
                 for (int a = 0; a < img.imageReceiverArray.size(); a++) {
                     ImageReceiver imageReceiver = img.imageReceiverArray.get(a);
                     CacheImage cacheImage = imageLoadingByKeys.get(img.key);
@@ -1657,19 +1814,16 @@ public class ImageLoader {
                         cacheImage.httpUrl = img.httpUrl;
                         cacheImage.thumb = img.thumb;
                         cacheImage.ext = img.ext;
-                        cacheImage.cacheTask = task = new CacheOutTask(cacheImage);
+                        cacheImage.cacheTask = new CacheOutTask(cacheImage);
+                        taskImage = cacheImage;
                         cacheImage.filter = img.filter;
                         cacheImage.animatedFile = img.animatedFile;
                         imageLoadingByKeys.put(cacheImage.key, cacheImage);
                     }
                     cacheImage.addImageReceiver(imageReceiver);
                 }
-                if (task != null) {
-                    if (img.thumb) {
-                        cacheThumbOutQueue.postRunnable(task);
-                    } else {
-                        cacheOutQueue.postRunnable(task);
-                    }
+                if (taskImage != null) {
+                    decodeScheduler.post(taskImage.cacheTask, getDecodePriority(taskImage));
                 }
             }
         });
@@ -0,0 +1,340 @@
+/*******************************************************************************
+ *
+ *                          Messenger Android Frontend
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    ImageMemoryCache.java
+ * Purpose: Memory cache for decoded images, split into segments with a lock
+ *          each; a frequency sketch keeps rarely used large images from
+ *          flushing often used thumbnails
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger;
+
+import android.graphics.drawable.BitmapDrawable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ImageMemoryCache {
+
+    private final static int SEGMENT_CNT = 8; // must be a power of two
+
+    private static class Entry {
+        final String         key;
+        final String         location;
+        final String         filter;
+        final BitmapDrawable value;
+        final int            size;
+
+        Entry(String key, String filter, BitmapDrawable value, int size) {
+            this.key      = key;
+            this.filter   = filter;
+            this.location = (filter != null && key.endsWith("@" + filter)) ? key.substring(0, key.length() - filter.length() - 1) : key;
+            this.value    = value;
+            this.size     = size;
+        }
+    }
+
+    private static class Segment {
+        final LinkedHashMap<String, Entry> map = new LinkedHashMap<>(16, 0.75f, true); // the eldest entry is the least recently used
+    }
+
+    /* count-min sketch with 4-bit counters, halved after a number of accesses so that old
+    popularity fades; estimates how often a key was requested recently */
+    private static class FrequencySketch {
+        private final static int WIDTH_BITS = 10;
+        private final static int[] SEEDS = { 0x97cb3127, 0xb0f5ac7b, 0xd6e8feb5, 0xc2b2ae35 };
+
+        private final byte[][] m_counters = new byte[SEEDS.length][1 << WIDTH_BITS];
+        private int            m_additions;
+
+        synchronized void increment(int hash) {
+            for (int i = 0; i < SEEDS.length; i++) {
+                int index = (hash * SEEDS[i]) >>> (32 - WIDTH_BITS);
+                if (m_counters[i][index] < 15) {
+                    m_counters[i][index]++;
+                }
+            }
+            if (++m_additions >= 10 << WIDTH_BITS) {
+                for (byte[] row : m_counters) {
+                    for (int j = 0; j < row.length; j++) {
+                        row[j] >>= 1;
+                    }
+                }
+                m_additions = 0;
+            }
+        }
+
+        synchronized int frequency(int hash) {
+            int frequency = 15;
+            for (int i = 0; i < SEEDS.length; i++) {
+                frequency = Math.min(frequency, m_counters[i][(hash * SEEDS[i]) >>> (32 - WIDTH_BITS)]);
+            }
+            return frequency;
+        }
+    }
+
+    private final Segment[]                          m_segments = new Segment[SEGMENT_CNT];
+    private final FrequencySketch                    m_sketch = new FrequencySketch();
+    private final HashMap<String, ArrayList<String>> m_filters = new HashMap<>(); // location -> filters cached, guarded by itself
+    private final AtomicInteger                      m_size = new AtomicInteger();
+    private final AtomicInteger                      m_nextVictimSegment = new AtomicInteger();
+    private final int                                m_maxSize;
+
+    private final AtomicLong m_hits = new AtomicLong();
+    private final AtomicLong m_misses = new AtomicLong();
+    private final AtomicLong m_evictions = new AtomicLong();
+    private final AtomicLong m_rejections = new AtomicLong();
+
+    public ImageMemoryCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        m_maxSize = maxSize;
+        for (int i = 0; i < SEGMENT_CNT; i++) {
+            m_segments[i] = new Segment();
+        }
+    }
+
+    public BitmapDrawable get(String key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        int hash = spread(key.hashCode());
+        m_sketch.increment(hash);
+
+        Segment segment = m_segments[hash & (SEGMENT_CNT - 1)];
+        Entry entry;
+        synchronized (segment) {
+            entry = segment.map.get(key);
+        }
+        if (entry == null) {
+            m_misses.incrementAndGet();
+            return null;
+        }
+        m_hits.incrementAndGet();
+        return entry.value;
+    }
+
+    public boolean contains(String key) {
+        Segment segment = m_segments[spread(key.hashCode()) & (SEGMENT_CNT - 1)];
+        synchronized (segment) {
+            return segment.map.containsKey(key);
+        }
+    }
+
+    /* returns the filters cached for the given location, the key without "@" and the filter */
+    public ArrayList<String> getFilterKeys(String location) {
+        synchronized (m_filters) {
+            ArrayList<String> arr = m_filters.get(location);
+            if (arr != null) {
+                return new ArrayList<>(arr);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Caches the value for the key, which is the location followed by "@" and the filter, if any.
+     * If the cache is full and the value is larger than the least recently used entry, it is only
+     * added if it was requested more often recently; a value not added is not passed to
+     * entryRemoved() and stays with the caller.
+     *
+     * @return the previous value mapped by the key
+     */
+    public BitmapDrawable put(String key, String filter, BitmapDrawable value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+        int hash = spread(key.hashCode());
+        Entry entry = new Entry(key, filter, value, safeSizeOf(key, value));
+        Segment segment = m_segments[hash & (SEGMENT_CNT - 1)];
+
+        Entry previous;
+        synchronized (segment) {
+            previous = segment.map.get(key);
+            if (previous == null && m_size.get() + entry.size > m_maxSize) {
+                Entry victim = findVictim(segment);
+                if (victim != null && entry.size > victim.size
+                 && m_sketch.frequency(hash) <= m_sketch.frequency(spread(victim.key.hashCode()))) {
+                    m_rejections.incrementAndGet();
+                    return null;
+                }
+            }
+            segment.map.put(key, entry);
+            m_size.addAndGet(entry.size - (previous != null ? previous.size : 0));
+        }
+
+        if (previous != null) {
+            entryRemoved(false, key, previous.value, value);
+        } else {
+            addFilter(entry);
+        }
+
+        trimToSize(m_maxSize, key, hash & (SEGMENT_CNT - 1));
+        return previous != null ? previous.value : null;
+    }
+
+    public BitmapDrawable remove(String key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        Segment segment = m_segments[spread(key.hashCode()) & (SEGMENT_CNT - 1)];
+        Entry previous;
+        synchronized (segment) {
+            previous = segment.map.remove(key);
+            if (previous != null) {
+                m_size.addAndGet(-previous.size);
+            }
+        }
+        if (previous == null) {
+            return null;
+        }
+        removeFilter(previous);
+        entryRemoved(false, key, previous.value, null);
+        return previous.value;
+    }
+
+    public void evictAll() {
+        trimToSize(-1, null, -1);
+    }
+
+    public int size() {
+        return m_size.get();
+    }
+
+    public int maxSize() {
+        return m_maxSize;
+    }
+
+    public String getInfo() {
+        long hits = m_hits.get(), requests = hits + m_misses.get();
+        return "Image cache: " + (size()/1024) + "/" + (m_maxSize/1024) + " KB"
+            + "\nImage cache hits: " + (requests > 0 ? hits*100/requests : 0) + "% of " + requests + ", " + m_evictions.get() + " evicted, " + m_rejections.get() + " not admitted";
+    }
+
+    /**
+     * Called for entries that have been evicted or removed, without any lock held.
+     *
+     * @param evicted true if the entry is removed to make space, false if the removal was caused by put() or remove()
+     */
+    protected void entryRemoved(boolean evicted, String key, BitmapDrawable oldValue, BitmapDrawable newValue) {
+    }
+
+    /* the size of an entry must not change while it is in the cache */
+    protected int sizeOf(String key, BitmapDrawable value) {
+        return 1;
+    }
+
+    /* evict the least recently used entries of the given segment, then of the others in turn,
+    until the size is below maxSize; the entry just added is kept */
+    private void trimToSize(int maxSize, String justAdded, int startSegment) {
+        int emptySegments = 0;
+        while (m_size.get() > maxSize && emptySegments < SEGMENT_CNT) {
+            int index = startSegment >= 0 ? startSegment : m_nextVictimSegment.getAndIncrement() & (SEGMENT_CNT - 1);
+            Segment segment = m_segments[index];
+            Entry victim = null;
+            synchronized (segment) {
+                Iterator<Entry> iterator = segment.map.values().iterator();
+                while (iterator.hasNext()) {
+                    Entry entry = iterator.next();
+                    if (justAdded == null || !justAdded.equals(entry.key)) {
+                        iterator.remove();
+                        m_size.addAndGet(-entry.size);
+                        victim = entry;
+                        break;
+                    }
+                }
+            }
+
+            if (victim == null) {
+                if (startSegment >= 0) {
+                    startSegment = -1;
+                } else {
+                    emptySegments++;
+                }
+                continue;
+            }
+            emptySegments = 0;
+            m_evictions.incrementAndGet();
+            removeFilter(victim);
+            entryRemoved(true, victim.key, victim.value, null);
+        }
+    }
+
+    /* the entry evicted next if a value is added to the given segment; called with the segment locked */
+    private Entry findVictim(Segment segment) {
+        Iterator<Entry> iterator = segment.map.values().iterator();
+        if (iterator.hasNext()) {
+            return iterator.next();
+        }
+        // peeking into other segments would need their locks; without a victim at hand the value is admitted
+        return null;
+    }
+
+    private void addFilter(Entry entry) {
+        if (entry.filter == null) {
+            return;
+        }
+        synchronized (m_filters) {
+            ArrayList<String> arr = m_filters.get(entry.location);
+            if (arr == null) {
+                arr = new ArrayList<>();
+                m_filters.put(entry.location, arr);
+            }
+            if (!arr.contains(entry.filter)) {
+                arr.add(entry.filter);
+            }
+        }
+    }
+
+    private void removeFilter(Entry entry) {
+        if (entry.filter == null) {
+            return;
+        }
+        synchronized (m_filters) {
+            ArrayList<String> arr = m_filters.get(entry.location);
+            if (arr != null) {
+                arr.remove(entry.filter);
+                if (arr.isEmpty()) {
+                    m_filters.remove(entry.location);
+                }
+            }
+        }
+    }
+
+    private int safeSizeOf(String key, BitmapDrawable value) {
+        int result = sizeOf(key, value);
+        if (result < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        return result;
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+}
@@ -377,6 +377,7 @@ public class ImageReceiver implements NotificationCenter.NotificationCenterDeleg
 
     public boolean onAttachedToWindow() {
         NotificationCenter.getInstance().addObserver(this, NotificationCenter.didReplacedPhotoInMemCache);
+        ImageLoader.getInstance().onImageReceiverAttached(this);
         if (setImageBackup != null && (setImageBackup.fileLocation != null || setImageBackup.httpUrl != null || setImageBackup.thumbLocation != null || setImageBackup.thumb != null)) {
             setImage(setImageBackup.fileLocation, setImageBackup.httpUrl, setImageBackup.filter, setImageBackup.thumb, setImageBackup.thumbLocation, setImageBackup.thumbFilter, setImageBackup.size, setImageBackup.ext, setImageBackup.cacheOnly);
             return true;
@@ -384,6 +385,13 @@ public class ImageReceiver implements NotificationCenter.NotificationCenterDeleg
         return false;
     }
 
+    /* used to decode the images on screen first; views bound by a RecyclerView before they are shown
+    are not attached yet. May be called from other threads, the result is only a hint. */
+    public boolean isAttachedToParentWindow() {
+        View view = parentView;
+        return view == null || view.getWindowToken() != null;
+    }
+
     private void drawDrawable(Canvas canvas, Drawable drawable, int alpha, BitmapShader shader) {
         if (drawable instanceof BitmapDrawable) {
             BitmapDrawable bitmapDrawable = (BitmapDrawable) drawable;
@@ -910,6 +918,16 @@ public class ImageReceiver implements NotificationCenter.NotificationCenterDeleg
         }
     }
 
+    /* show a cached version of the image decoded for another size as thumb until the image is loaded;
+    the thumb is not loaded then */
+    protected boolean setPlaceholderByKey(BitmapDrawable bitmap, String key) {
+        if (bitmap == null || key == null || currentThumb != null || currentImage != null) {
+            return false;
+        }
+        currentThumbKey = key;
+        return setImageBitmapByKey(bitmap, key, true, true);
+    }
+
     protected boolean setImageBitmapByKey(BitmapDrawable bitmap, String key, boolean thumb, boolean memCache) {
         if (bitmap == null || key == null) {
             return false;
@@ -64,10 +64,12 @@ import android.telephony.PhoneStateListener;
 import android.telephony.TelephonyManager;
 
 import com.b44t.messenger.audioinfo.AudioInfo;
+import com.b44t.messenger.video.ConvertCheckpoint;
 import com.b44t.messenger.video.InputSurface;
 import com.b44t.messenger.video.MP4Builder;
 import com.b44t.messenger.video.Mp4Movie;
 import com.b44t.messenger.video.OutputSurface;
+import com.b44t.messenger.video.Track;
 import com.b44t.ui.ChatActivity;
 import com.b44t.ui.PhotoViewer;
 
@@ -85,6 +87,7 @@ import java.util.Locale;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class MediaController implements AudioManager.OnAudioFocusChangeListener, NotificationCenter.NotificationCenterDelegate, SensorEventListener {
 
@@ -110,17 +113,59 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
         int getObserverTag();
     }
 
-    private class AudioBuffer {
+    /* buffers on their way from one thread to another, eg. from recordQueue to fileEncodingQueue;
+    a ring of preallocated buffers with one thread putting and one thread taking, so that no locks
+    and no allocations are needed per buffer */
+    private static class AudioRing {
+        private final AudioBuffer[] buffers;
+        private volatile long       head; // the next buffer to put, written by the producer only
+        private volatile long       tail; // the next buffer to take, written by the consumer only
+
+        AudioRing(int cnt, int capacity) {
+            buffers = new AudioBuffer[cnt];
+            for (int a = 0; a < cnt; a++) {
+                buffers[a] = new AudioBuffer(capacity);
+            }
+        }
+
+        /* producer: the buffer to fill next or null if all buffers wait for the consumer */
+        AudioBuffer acquire() {
+            if (head - tail >= buffers.length) {
+                return null;
+            }
+            AudioBuffer buffer = buffers[(int) (head % buffers.length)];
+            buffer.buffer.clear();
+            return buffer;
+        }
+
+        /* producer: hand the buffer acquired to the consumer */
+        void publish() {
+            head = head + 1; // the volatile write makes the buffer content visible to the consumer
+        }
+
+        /* consumer: the next buffer filled or null if there is none */
+        AudioBuffer peek() {
+            return tail != head ? buffers[(int) (tail % buffers.length)] : null;
+        }
+
+        /* consumer: give the buffer peeked back to the producer */
+        void release() {
+            tail = tail + 1;
+        }
+    }
+
+    private static class AudioBuffer {
         public AudioBuffer(int capacity) {
             buffer = ByteBuffer.allocateDirect(capacity);
-            bufferBytes = new byte[capacity];
+            buffer.order(ByteOrder.nativeOrder());
         }
 
         ByteBuffer buffer;
-        byte[] bufferBytes;
+        byte[] bufferBytes; // for AudioTrack.write() before Android 5, allocated on first use
         int size;
         int finished;
         long pcmOffset;
+        int generation;     // the seek the buffer was decoded for
     }
 
     private static final String[] projectionPhotos = {
@@ -215,7 +260,9 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
     private final static int PROCESSOR_TYPE_MTK = 3;
     private final static int PROCESSOR_TYPE_SEC = 4;
     private final static int PROCESSOR_TYPE_TI = 5;
-    private final Object videoConvertSync = new Object();
+    private final static int MAX_VIDEO_CONVERSIONS = 3;
+    private final static int MAX_VIDEO_CONVERT_ATTEMPTS = 3;
+    private final static long VIDEO_CHECKPOINT_INTERVAL_US = 5000000L;
 
     private HashMap<Long, Long> typingTimes = new HashMap<>();
 
@@ -258,10 +305,11 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
     private static final int AUDIO_NO_FOCUS_CAN_DUCK = 1;
     private static final int AUDIO_FOCUSED  = 2;
 
-    private ArrayList<MessageObject> videoConvertQueue = new ArrayList<>();
+    private ArrayList<VideoConvertJob> videoConvertQueue = new ArrayList<>(); // waiting and running conversions, UI thread only
+    private int videoConvertRunning;
+    private int maxVideoConversions;
+    private static final MrMetrics.Counter s_videoConversionsResumed = MrMetrics.counter("Video conversions resumed");
     private final Object videoQueueSync = new Object();
-    private boolean cancelCurrentVideoConversion = false;
-    private boolean videoConvertFirstWrite = true;
     private HashMap<String, MessageObject> generatingWaveform = new HashMap<>();
 
     private boolean voiceMessagesPlaylistUnread;
@@ -309,13 +357,13 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
     private int lastProgress = 0;
     private MessageObject playingMessageObject;
     private int playerBufferSize = 0;
-    private boolean decodingFinished = false;
+    private volatile boolean decodingFinished = false;
     private long currentTotalPcmDuration;
-    private long lastPlayPcm;
+    private volatile long lastPlayPcm;
     private int ignoreFirstProgress = 0;
     private Timer progressTimer = null;
     private final Object progressTimerSync = new Object();
-    private int buffersWrited;
+    private volatile int buffersWrited;
     private ArrayList<MessageObject> playlist = new ArrayList<>();
     private ArrayList<MessageObject> shuffledPlaylist = new ArrayList<>();
     private int currentPlaylistNum;
@@ -333,16 +381,28 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
     private MessageObject recordReplyingMessageObject;
     private DispatchQueue fileDecodingQueue;
     private DispatchQueue playerQueue;
-    private ArrayList<AudioBuffer> usedPlayerBuffers = new ArrayList<>();
-    private ArrayList<AudioBuffer> freePlayerBuffers = new ArrayList<>();
-    private final Object playerSync = new Object();
+    private AudioRing playerRing;
+    private final AtomicBoolean playerDecodeScheduled = new AtomicBoolean();
+    private final AtomicBoolean playerWriteScheduled = new AtomicBoolean();
+    private volatile int playerGeneration; // incremented on the UI thread by each seek; buffers of older seeks are dropped
+    private int decoderGeneration;         // the seek the decoder is at, accessed on fileDecodingQueue only
+    private static final MrMetrics.Counter s_playerUnderruns = MrMetrics.counter("Voice playback underruns (Android 7+)");
     private final Object playerObjectSync = new Object();
-    private short[] recordSamples = new short[1024];
-    private long samplesCount;
+    private short[] recordSamples = new short[1024]; // peaks for the waveform, all written on recordQueue
+    private int recordSamplesCnt;
+    private int recordSamplesPerBucket;
+    private int recordBucketFill;
+    private int recordBucketPeak;
 
     private final Object sync = new Object();
 
-    private ArrayList<ByteBuffer> recordBuffers = new ArrayList<>();
+    private AudioRing recordRing;
+    private AudioBuffer recordOverflowBuffer;
+    private final AtomicBoolean recordDrainScheduled = new AtomicBoolean();
+    private final AtomicBoolean recordProgressPending = new AtomicBoolean();
+    private volatile double recordAmplitude;
+    private long recordProgressPostTime;
+    private static final MrMetrics.Counter s_recordFramesDropped = MrMetrics.counter("Voice frames dropped");
     private ByteBuffer fileBuffer;
     private int recordBufferSize;
     private int sendAfterDone;
@@ -350,103 +410,120 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
     private Runnable recordStartRunnable;
     private DispatchQueue recordQueue;
     private DispatchQueue fileEncodingQueue;
+    private volatile int recordLoopGeneration; // changed by stopRecording(), makes recordRunnable return so that the stop can run on recordQueue
     private Runnable recordRunnable = new Runnable() {
         @Override
         public void run() {
-            if (audioRecorder != null) {
-                ByteBuffer buffer;
-                if (!recordBuffers.isEmpty()) {
-                    buffer = recordBuffers.get(0);
-                    recordBuffers.remove(0);
-                } else {
-                    buffer = ByteBuffer.allocateDirect(recordBufferSize);
-                    buffer.order(ByteOrder.nativeOrder());
-                }
-                buffer.rewind();
-                int len = audioRecorder.read(buffer, buffer.capacity());
-                if (len > 0) {
-                    buffer.limit(len);
-                    double sum = 0;
-                    try {
-                        long newSamplesCount = samplesCount + len / 2;
-                        int currentPart = (int) (((double) samplesCount / (double) newSamplesCount) * recordSamples.length);
-                        int newPart = recordSamples.length - currentPart;
-                        float sampleStep;
-                        if (currentPart != 0) {
-                            sampleStep = (float) recordSamples.length / (float) currentPart;
-                            float currentNum = 0;
-                            for (int a = 0; a < currentPart; a++) {
-                                recordSamples[a] = recordSamples[(int) currentNum];
-                                currentNum += sampleStep;
-                            }
-                        }
-                        int currentNum = currentPart;
-                        float nextNum = 0;
-                        sampleStep = (float) len / 2 / (float) newPart;
-                        for (int i = 0; i < len / 2; i++) {
-                            short peak = buffer.getShort();
-                            if (peak > 2500) {
-                                sum += peak * peak;
-                            }
-                            if (i == (int) nextNum && currentNum < recordSamples.length) {
-                                recordSamples[currentNum] = peak;
-                                nextNum += sampleStep;
-                                currentNum++;
-                            }
-                        }
-                        samplesCount = newSamplesCount;
-                    } catch (Exception e) {
-                        FileLog.e("messenger", e);
-                    }
-                    buffer.position(0);
-                    final double amplitude = Math.sqrt(sum / len / 2);
-                    final ByteBuffer finalBuffer = buffer;
-                    final boolean flush = len != buffer.capacity();
-                    if (len != 0) {
-                        fileEncodingQueue.postRunnable(new Runnable() {
-                            @Override
-                            public void run() {
-                                while (finalBuffer.hasRemaining()) {
-                                    int oldLimit = -1;
-                                    if (finalBuffer.remaining() > fileBuffer.remaining()) {
-                                        oldLimit = finalBuffer.limit();
-                                        finalBuffer.limit(fileBuffer.remaining() + finalBuffer.position());
-                                    }
-                                    fileBuffer.put(finalBuffer);
-                                    if (fileBuffer.position() == fileBuffer.limit() || flush) {
-                                        if (writeFrame(fileBuffer, !flush ? fileBuffer.limit() : finalBuffer.position()) != 0) {
-                                            fileBuffer.rewind();
-                                            recordTimeCount += fileBuffer.limit() / 2 / 16;
-                                        }
-                                    }
-                                    if (oldLimit != -1) {
-                                        finalBuffer.limit(oldLimit);
-                                    }
-                                }
-                                recordQueue.postRunnable(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        recordBuffers.add(finalBuffer);
-                                    }
-                                });
-                            }
-                        });
-                    }
-                    recordQueue.postRunnable(recordRunnable);
-                    AndroidUtilities.runOnUIThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            NotificationCenter.getInstance().postNotificationName(NotificationCenter.recordProgressChanged, System.currentTimeMillis() - recordStartTime, amplitude);
-                        }
-                    });
-                } else {
-                    recordBuffers.add(buffer);
+            // read in a loop instead of posting the runnable again for every buffer
+            final int generation = recordLoopGeneration;
+            while (audioRecorder != null && generation == recordLoopGeneration) {
+                AudioBuffer buffer = recordRing.acquire();
+                if (buffer == null) {
+                    // the encoder is seconds behind; read on to keep the recorder running, the audio is lost
+                    buffer = recordOverflowBuffer;
+                    s_recordFramesDropped.add(1);
+                }
+                int len = audioRecorder.read(buffer.buffer, buffer.buffer.capacity());
+                if (len <= 0) {
                     stopRecordingInternal(sendAfterDone);
+                    return;
+                }
+
+                double amplitude = analyzeRecordBuffer(buffer.buffer, len);
+                if (buffer != recordOverflowBuffer) {
+                    buffer.size = len;
+                    recordRing.publish();
+                    if (recordDrainScheduled.compareAndSet(false, true)) {
+                        fileEncodingQueue.postRunnable(recordDrainRunnable);
+                    }
+                }
+
+                // the progress is shown at most once per frame, a progress not shown yet is updated in place
+                recordAmplitude = amplitude;
+                long now = System.currentTimeMillis();
+                if (now - recordProgressPostTime >= 16 && recordProgressPending.compareAndSet(false, true)) {
+                    recordProgressPostTime = now;
+                    AndroidUtilities.runOnUIThread(recordProgressRunnable);
                 }
             }
         }
     };
 
+    /* the amplitude of the recorded samples and their peaks for the waveform, in one pass;
+    called on recordQueue */
+    private double analyzeRecordBuffer(ByteBuffer buffer, int len) {
+        double sum = 0;
+        int samples = len / 2;
+        for (int i = 0; i < samples; i++) {
+            short sample = buffer.getShort(i * 2);
+            if (sample > 2500) {
+                sum += sample * sample;
+            }
+            int peak = sample < 0 ? -sample : sample;
+            if (peak > recordBucketPeak) {
+                recordBucketPeak = Math.min(peak, Short.MAX_VALUE);
+            }
+            if (++recordBucketFill == recordSamplesPerBucket) {
+                if (recordSamplesCnt == recordSamples.length) {
+                    // full: merge pairs of buckets and take twice the samples per bucket from now on
+                    for (int b = 0; b < recordSamplesCnt / 2; b++) {
+                        recordSamples[b] = (short) Math.max(recordSamples[b * 2], recordSamples[b * 2 + 1]);
+                    }
+                    recordSamplesCnt /= 2;
+                    recordSamplesPerBucket *= 2;
+                }
+                recordSamples[recordSamplesCnt++] = (short) recordBucketPeak;
+                recordBucketFill = 0;
+                recordBucketPeak = 0;
+            }
+        }
+        return Math.sqrt(sum / len / 2);
+    }
+
+    /* copy the recorded samples to the encoder in frames of fileBuffer's size; called on fileEncodingQueue */
+    private void encodeRecordBuffer(ByteBuffer buffer, int len) {
+        buffer.position(0);
+        buffer.limit(len);
+        boolean flush = len != buffer.capacity();
+        while (buffer.hasRemaining()) {
+            int oldLimit = -1;
+            if (buffer.remaining() > fileBuffer.remaining()) {
+                oldLimit = buffer.limit();
+                buffer.limit(fileBuffer.remaining() + buffer.position());
+            }
+            fileBuffer.put(buffer);
+            if (fileBuffer.position() == fileBuffer.limit() || flush) {
+                if (writeFrame(fileBuffer, !flush ? fileBuffer.limit() : buffer.position()) != 0) {
+                    fileBuffer.rewind();
+                    recordTimeCount += fileBuffer.limit() / 2 / 16;
+                }
+            }
+            if (oldLimit != -1) {
+                buffer.limit(oldLimit);
+            }
+        }
+    }
+
+    private final Runnable recordDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            recordDrainScheduled.set(false); // cleared first, a buffer published from now on schedules another drain
+            AudioBuffer buffer;
+            while ((buffer = recordRing.peek()) != null) {
+                encodeRecordBuffer(buffer.buffer, buffer.size);
+                recordRing.release();
+            }
+        }
+    };
+
+    private final Runnable recordProgressRunnable = new Runnable() {
+        @Override
+        public void run() {
+            recordProgressPending.set(false);
+            NotificationCenter.getInstance().postNotificationName(NotificationCenter.recordProgressChanged, System.currentTimeMillis() - recordStartTime, recordAmplitude);
+        }
+    };
+
     private class InternalObserver extends ContentObserver {
         public InternalObserver() {
             super(null);
@@ -571,14 +648,9 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
             if (playerBufferSize <= 0) {
                 playerBufferSize = 3840;
             }
-            for (int a = 0; a < 5; a++) {
-                ByteBuffer buffer = ByteBuffer.allocateDirect(4096);
-                buffer.order(ByteOrder.nativeOrder());
-                recordBuffers.add(buffer);
-            }
-            for (int a = 0; a < 3; a++) {
-                freePlayerBuffers.add(new AudioBuffer(playerBufferSize));
-            }
+            recordRing = new AudioRing(32, 4096);
+            recordOverflowBuffer = new AudioBuffer(4096);
+            playerRing = new AudioRing(4, playerBufferSize);
         } catch (Exception e) {
             FileLog.e("messenger", e);
         }
@@ -825,7 +897,6 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
         musicDownloadQueue.clear();
         gifDownloadQueue.clear();
         downloadQueueKeys.clear();
-        videoConvertQueue.clear();
         playlist.clear();
         shuffledPlaylist.clear();
         generatingWaveform.clear();
@@ -1393,119 +1464,129 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
         }
     }
 
-    private void checkDecoderQueue() {
-        fileDecodingQueue.postRunnable(new Runnable() {
-            @Override
-            public void run() {
-                if (decodingFinished) {
-                    checkPlayerQueue();
-                    return;
-                }
-                boolean was = false;
-                while (true) {
-                    AudioBuffer buffer = null;
-                    synchronized (playerSync) {
-                        if (!freePlayerBuffers.isEmpty()) {
-                            buffer = freePlayerBuffers.get(0);
-                            freePlayerBuffers.remove(0);
-                        }
-                        if (!usedPlayerBuffers.isEmpty()) {
-                            was = true;
-                        }
-                    }
-                    if (buffer != null) {
-                        readOpusFile(buffer.buffer, playerBufferSize, readArgs);
-                        buffer.size = readArgs[0];
-                        buffer.pcmOffset = readArgs[1];
-                        buffer.finished = readArgs[2];
-                        if (buffer.finished == 1) {
-                            decodingFinished = true;
-                        }
-                        if (buffer.size != 0) {
-                            buffer.buffer.rewind();
-                            buffer.buffer.get(buffer.bufferBytes);
-                            synchronized (playerSync) {
-                                usedPlayerBuffers.add(buffer);
-                            }
-                        } else {
-                            synchronized (playerSync) {
-                                freePlayerBuffers.add(buffer);
-                                break;
-                            }
-                        }
-                        was = true;
-                    } else {
-                        break;
-                    }
+    /* the Opus playback: fileDecodingQueue decodes into playerRing, playerQueue writes the buffers
+    to the AudioTrack; each side wakes up the other by a reused runnable when it has put or taken
+    a buffer */
+    private void schedulePlayerDecode() {
+        if (playerDecodeScheduled.compareAndSet(false, true)) {
+            fileDecodingQueue.postRunnable(playerDecodeRunnable);
+        }
+    }
+
+    private void schedulePlayerWrite() {
+        if (playerWriteScheduled.compareAndSet(false, true)) {
+            playerQueue.postRunnable(playerWriteRunnable);
+        }
+    }
+
+    private final Runnable playerDecodeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            playerDecodeScheduled.set(false);
+            boolean decoded = false;
+            AudioBuffer buffer;
+            while (!decodingFinished && (buffer = playerRing.acquire()) != null) {
+                readOpusFile(buffer.buffer, playerBufferSize, readArgs);
+                buffer.size = readArgs[0];
+                buffer.pcmOffset = readArgs[1];
+                buffer.finished = readArgs[2];
+                buffer.generation = decoderGeneration;
+                if (buffer.finished == 1) {
+                    decodingFinished = true;
                 }
-                if (was) {
-                    checkPlayerQueue();
+                if (buffer.size == 0) {
+                    break;
                 }
+                playerRing.publish();
+                decoded = true;
             }
-        });
-    }
+            if (decoded) {
+                schedulePlayerWrite();
+            }
+        }
+    };
 
-    private void checkPlayerQueue() {
-        playerQueue.postRunnable(new Runnable() {
-            @Override
-            public void run() {
+    private final Runnable playerWriteRunnable = new Runnable() {
+        @Override
+        public void run() {
+            playerWriteScheduled.set(false);
+            while (true) {
                 synchronized (playerObjectSync) {
                     if (audioTrackPlayer == null || audioTrackPlayer.getPlayState() != AudioTrack.PLAYSTATE_PLAYING) {
                         return;
                     }
                 }
-                AudioBuffer buffer = null;
-                synchronized (playerSync) {
-                    if (!usedPlayerBuffers.isEmpty()) {
-                        buffer = usedPlayerBuffers.get(0);
-                        usedPlayerBuffers.remove(0);
-                    }
+                AudioBuffer buffer = playerRing.peek();
+                if (buffer == null) {
+                    return;
+                }
+                if (buffer.generation != playerGeneration) {
+                    playerRing.release(); // decoded before the last seek
+                    schedulePlayerDecode();
+                    continue;
                 }
 
-                if (buffer != null) {
-                    int count = 0;
-                    try {
-                        count = audioTrackPlayer.write(buffer.bufferBytes, 0, buffer.size);
-                    } catch (Exception e) {
-                        FileLog.e("messenger", e);
-                    }
-                    buffersWrited++;
+                int count = 0;
+                try {
+                    count = writeToTrack(buffer);
+                } catch (Exception e) {
+                    FileLog.e("messenger", e);
+                }
+                buffersWrited++;
+                final boolean finished = buffer.finished == 1;
+                long pcm = buffer.pcmOffset;
+                playerRing.release();
 
-                    if (count > 0) {
-                        final long pcm = buffer.pcmOffset;
-                        final int marker = buffer.finished == 1 ? count : -1;
+                if (count > 0) {
+                    lastPlayPcm = pcm;
+                    if (finished) {
                         final int finalBuffersWrited = buffersWrited;
                         AndroidUtilities.runOnUIThread(new Runnable() {
                             @Override
                             public void run() {
-                                lastPlayPcm = pcm;
-                                if (marker != -1) {
-                                    if (audioTrackPlayer != null) {
-                                        audioTrackPlayer.setNotificationMarkerPosition(1);
-                                    }
-                                    if (finalBuffersWrited == 1) {
-                                        cleanupPlayer(true, true, true);
-                                    }
+                                if (audioTrackPlayer != null) {
+                                    audioTrackPlayer.setNotificationMarkerPosition(1);
+                                }
+                                if (finalBuffersWrited == 1) {
+                                    cleanupPlayer(true, true, true);
                                 }
                             }
                         });
                     }
-
-                    if (buffer.finished != 1) {
-                        checkPlayerQueue();
-                    }
                 }
-                if (buffer == null || buffer != null && buffer.finished != 1) {
-                    checkDecoderQueue();
+                if (finished) {
+                    return;
                 }
+                schedulePlayerDecode();
+            }
+        }
+    };
 
-                if (buffer != null) {
-                    synchronized (playerSync) {
-                        freePlayerBuffers.add(buffer);
-                    }
-                }
+    /* the underruns of a track are counted when it is released; an empty ring does not mean an
+    underrun as the track still plays the data written before. Older systems do not tell the number. */
+    @SuppressLint("NewApi")
+    private static void countPlayerUnderruns(AudioTrack track) {
+        if (Build.VERSION.SDK_INT >= 24) {
+            try {
+                s_playerUnderruns.add(track.getUnderrunCount());
+            } catch (Exception e) {
+                FileLog.e("messenger", e);
             }
-        });
+        }
+    }
+
+    /* called on playerQueue; Android 5 and later take the direct buffer as is */
+    @SuppressLint("NewApi")
+    private int writeToTrack(AudioBuffer buffer) {
+        buffer.buffer.position(0);
+        if (Build.VERSION.SDK_INT >= 21) {
+            return audioTrackPlayer.write(buffer.buffer, buffer.size, AudioTrack.WRITE_BLOCKING);
+        }
+        if (buffer.bufferBytes == null) {
+            buffer.bufferBytes = new byte[buffer.buffer.capacity()];
+        }
+        buffer.buffer.get(buffer.bufferBytes, 0, buffer.size);
+        return audioTrackPlayer.write(buffer.bufferBytes, 0, buffer.size);
     }
 
     protected boolean isRecordingAudio() {
@@ -1824,6 +1905,7 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
                     FileLog.e("messenger", e);
                 }
                 try {
+                    countPlayerUnderruns(audioTrackPlayer);
                     audioTrackPlayer.release();
                     audioTrackPlayer = null;
                 } catch (Exception e) {
@@ -1892,14 +1974,13 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
             audioTrackPlayer.pause();
         }
         audioTrackPlayer.flush();
+        final int generation = ++playerGeneration; // from now on, the buffers decoded before are dropped
         fileDecodingQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
                 seekOpusFile(progress);
-                synchronized (playerSync) {
-                    freePlayerBuffers.addAll(usedPlayerBuffers);
-                    usedPlayerBuffers.clear();
-                }
+                decoderGeneration = generation;
+                decodingFinished = false;
                 AndroidUtilities.runOnUIThread(new Runnable() {
                     @Override
                     public void run() {
@@ -1910,7 +1991,8 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
                                 audioTrackPlayer.play();
                             }
                             lastProgress = (int) (currentTotalPcmDuration / 48.0f * progress);
-                            checkPlayerQueue();
+                            schedulePlayerWrite();
+                            schedulePlayerDecode();
                         }
                     }
                 });
@@ -2052,6 +2134,7 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
                                 FileLog.e("messenger", e);
                             }
                             try {
+                                countPlayerUnderruns(audioTrackPlayer);
                                 audioTrackPlayer.release();
                                 audioTrackPlayer = null;
                             } catch (Exception e) {
@@ -2249,6 +2332,7 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
                 } catch (Exception e) {
                     FileLog.e("messenger", e);
                     if (audioTrackPlayer != null) {
+                        countPlayerUnderruns(audioTrackPlayer);
                         audioTrackPlayer.release();
                         audioTrackPlayer = null;
                         isPaused = false;
@@ -2328,6 +2412,7 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
             if (playingMessageObject.audioProgress == 1) {
                 playingMessageObject.audioProgress = 0;
             }
+            final int generation = ++playerGeneration; // buffers left from the file played before are dropped
             fileDecodingQueue.postRunnable(new Runnable() {
                 @Override
                 public void run() {
@@ -2339,12 +2424,10 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
                     } catch (Exception e) {
                         FileLog.e("messenger", e);
                     }
-                    synchronized (playerSync) {
-                        freePlayerBuffers.addAll(usedPlayerBuffers);
-                        usedPlayerBuffers.clear();
-                    }
+                    decoderGeneration = generation;
                     decodingFinished = false;
-                    checkPlayerQueue();
+                    schedulePlayerDecode();
+                    schedulePlayerWrite();
                 }
             });
         }
@@ -2385,6 +2468,7 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
                 audioPlayer = null;
             } else if (audioTrackPlayer != null) {
                 synchronized (playerObjectSync) {
+                    countPlayerUnderruns(audioTrackPlayer);
                     audioTrackPlayer.release();
                     audioTrackPlayer = null;
                 }
@@ -2477,7 +2561,8 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
                 audioPlayer.start();
             } else if (audioTrackPlayer != null) {
                 audioTrackPlayer.play();
-                checkPlayerQueue();
+                schedulePlayerWrite();
+                schedulePlayerDecode();
             }
             checkAudioFocus(messageObject);
             isPaused = false;
@@ -2557,7 +2642,10 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
                     audioRecorder = new AudioRecord(MediaRecorder.AudioSource.MIC, 16000, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, recordBufferSize * 10);
                     recordStartTime = System.currentTimeMillis();
                     recordTimeCount = 0;
-                    samplesCount = 0;
+                    recordSamplesCnt = 0;
+                    recordSamplesPerBucket = 160; // 10 ms, 1024 buckets hold 10 seconds before they're merged
+                    recordBucketFill = 0;
+                    recordBucketPeak = 0;
                     recordDialogId = dialog_id;
                     recordReplyingMessageObject = reply_to_msg;
                     fileBuffer.rewind();
@@ -2605,35 +2693,27 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
             return;
         }
         generatingWaveform.put(id, messageObject);
-        Utilities.globalQueue.postRunnable(new Runnable() {
+        // the waveform is kept by the store, it is computed only once per file, not every time the chat is opened
+        WaveformStore.getInstance().request(path, new WaveformStore.WaveformStoreDelegate() {
             @Override
-            public void run() {
-                final byte[] waveform = MediaController.getInstance().getWaveform(path);
-                AndroidUtilities.runOnUIThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        MessageObject messageObject = generatingWaveform.remove(id);
-                        if (messageObject == null) {
-                            return;
-                        }
-                        if (waveform != null) {
-                            for (int a = 0; a < messageObject.getDocument().attributes.size(); a++) {
-                                TLRPC.DocumentAttribute attribute = messageObject.getDocument().attributes.get(a);
-                                if (attribute instanceof TLRPC.TL_documentAttributeAudio) {
-                                    attribute.waveform = waveform;
-                                    attribute.flags |= 4;
-                                    break;
-                                }
-                            }
-                            TLRPC.TL_messages_messages messagesRes = new TLRPC.TL_messages_messages();
-                            messagesRes.messages.add(messageObject.messageOwner);
-                            //MessagesStorage.getInstance().putMessages(messagesRes, messageObject.getDialogId(), -1, 0, false);
-                            ArrayList<MessageObject> arrayList = new ArrayList<>();
-                            arrayList.add(messageObject);
-                            NotificationCenter.getInstance().postNotificationName(NotificationCenter.replaceMessagesObjects, messageObject.getDialogId(), arrayList);
+            public void didLoadWaveform(byte[] waveform) {
+                MessageObject messageObject = generatingWaveform.remove(id);
+                if (messageObject == null) {
+                    return;
+                }
+                if (waveform != null) {
+                    for (int a = 0; a < messageObject.getDocument().attributes.size(); a++) {
+                        TLRPC.DocumentAttribute attribute = messageObject.getDocument().attributes.get(a);
+                        if (attribute instanceof TLRPC.TL_documentAttributeAudio) {
+                            attribute.waveform = waveform;
+                            attribute.flags |= 4;
+                            break;
                         }
                     }
-                });
+                    ArrayList<MessageObject> arrayList = new ArrayList<>();
+                    arrayList.add(messageObject);
+                    NotificationCenter.getInstance().postNotificationName(NotificationCenter.replaceMessagesObjects, messageObject.getDialogId(), arrayList);
+                }
             }
         });
     }
@@ -2653,7 +2733,7 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
                             audioToSend.size = (int) recordingAudioFileToSend.length();
                             TLRPC.TL_documentAttributeAudio attributeAudio = new TLRPC.TL_documentAttributeAudio();
                             attributeAudio.voice = true;
-                            attributeAudio.waveform = getWaveform2(recordSamples, recordSamples.length); //getWaveform(recordingAudioFileToSend.getAbsolutePath());
+                            attributeAudio.waveform = getWaveform2(recordSamples, recordSamplesCnt); //getWaveform(recordingAudioFileToSend.getAbsolutePath());
                             if (attributeAudio.waveform != null) {
                                 attributeAudio.flags |= 4;
                             }
@@ -2692,6 +2772,7 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
             recordQueue.cancelRunnable(recordStartRunnable);
             recordStartRunnable = null;
         }
+        recordLoopGeneration++; // the reading loop returns after the current buffer
         recordQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
@@ -2709,6 +2790,8 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
                 }
                 if (send == 0) {
                     stopRecordingInternal(0);
+                } else {
+                    recordQueue.postRunnable(recordRunnable); // read the rest, it finishes the recording when the recorder is empty
                 }
                 try {
                     Vibrator v = (Vibrator) ApplicationLoader.applicationContext.getSystemService(Context.VIBRATOR_SERVICE);
@@ -3037,43 +3120,84 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
         thread.start();
     }
 
-    public void scheduleVideoConvert(MessageObject messageObject) {
-        videoConvertQueue.add(messageObject);
-        if (videoConvertQueue.size() == 1) {
-            startVideoConvertFromQueue();
+    /* a conversion in the queue; except for canceled, the fields are used by the converting thread only */
+    private static class VideoConvertJob {
+        final MessageObject messageObject;
+        volatile boolean    canceled;
+        boolean             started; // UI thread only
+        boolean             firstWrite = true;
+        ConvertCheckpoint   checkpoint;
+
+        VideoConvertJob(MessageObject messageObject) {
+            this.messageObject = messageObject;
         }
     }
 
+    public void scheduleVideoConvert(MessageObject messageObject) {
+        videoConvertQueue.add(new VideoConvertJob(messageObject));
+        startVideoConvertFromQueue();
+    }
+
+    /* cancel the conversion of the given message, null cancels all; a running conversion stops at
+    the next frame and reports FilePreparingFailed */
     public void cancelVideoConvert(MessageObject messageObject) {
-        if (messageObject == null) {
-            synchronized (videoConvertSync) {
-                cancelCurrentVideoConversion = true;
-            }
-        } else {
-            if (!videoConvertQueue.isEmpty()) {
-                if (videoConvertQueue.get(0) == messageObject) {
-                    synchronized (videoConvertSync) {
-                        cancelCurrentVideoConversion = true;
-                    }
+        for (int a = videoConvertQueue.size() - 1; a >= 0; a--) {
+            VideoConvertJob job = videoConvertQueue.get(a);
+            if (messageObject == null || job.messageObject == messageObject) {
+                job.canceled = true;
+                if (!job.started) {
+                    videoConvertQueue.remove(a);
                 }
-                videoConvertQueue.remove(messageObject);
             }
         }
     }
 
+    public boolean isConvertingVideo(String path) {
+        for (int a = 0; a < videoConvertQueue.size(); a++) {
+            if (videoConvertQueue.get(a).messageObject.messageOwner.attachPath.equals(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private void startVideoConvertFromQueue() {
-        if (!videoConvertQueue.isEmpty()) {
-            synchronized (videoConvertSync) {
-                cancelCurrentVideoConversion = false;
+        if (maxVideoConversions == 0) {
+            maxVideoConversions = getMaxVideoConversions();
+        }
+        for (int a = 0; a < videoConvertQueue.size() && videoConvertRunning < maxVideoConversions; a++) {
+            VideoConvertJob job = videoConvertQueue.get(a);
+            if (job.started) {
+                continue;
             }
-            MessageObject messageObject = videoConvertQueue.get(0);
+            job.started = true;
+            videoConvertRunning++;
             Intent intent = new Intent(ApplicationLoader.applicationContext, VideoEncodingService.class);
-            intent.putExtra("path", messageObject.messageOwner.attachPath);
+            intent.putExtra("path", job.messageObject.messageOwner.attachPath);
             ApplicationLoader.applicationContext.startService(intent);
-            VideoConvertRunnable.runConversion(messageObject);
+            VideoConvertRunnable.runConversion(job);
         }
     }
 
+    /* each conversion holds a decoder and an encoder and hardware codecs allow only a few instances
+    at a time; older systems do not tell the number, there, we convert one video after another */
+    @SuppressLint("NewApi")
+    private static int getMaxVideoConversions() {
+        int max = 1;
+        if (Build.VERSION.SDK_INT >= 23) {
+            try {
+                MediaCodecInfo codecInfo = selectCodec(MIME_TYPE);
+                if (codecInfo != null) {
+                    max = codecInfo.getCapabilitiesForType(MIME_TYPE).getMaxSupportedInstances();
+                }
+            } catch (Exception e) {
+                FileLog.e("messenger", e);
+            }
+        }
+        max = Math.min(max, Math.min(MAX_VIDEO_CONVERSIONS, Runtime.getRuntime().availableProcessors() / 2));
+        return Math.max(1, max);
+    }
+
     @SuppressLint("NewApi")
     public static MediaCodecInfo selectCodec(String mimeType) {
         int numCodecs = MediaCodecList.getCodecCount();
@@ -3146,39 +3270,59 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
         return -5;
     }
 
-    private void didWriteData(final MessageObject messageObject, final File file, final boolean last, final boolean error) {
-        final boolean firstWrite = videoConvertFirstWrite;
+    /* finalSize is the number of bytes at the beginning of the file that are not changed any
+    longer; they can be read, eg. for uploading, while the conversion continues */
+    private void didWriteData(final VideoConvertJob job, final File file, final boolean last, final boolean error, final long finalSize) {
+        final boolean firstWrite = job.firstWrite;
         if (firstWrite) {
-            videoConvertFirstWrite = false;
+            job.firstWrite = false;
         }
         AndroidUtilities.runOnUIThread(new Runnable() {
             @Override
             public void run() {
+                MessageObject messageObject = job.messageObject;
                 if (error) {
                     NotificationCenter.getInstance().postNotificationName(NotificationCenter.FilePreparingFailed, messageObject, file.toString());
                 } else {
                     if (firstWrite) {
                         NotificationCenter.getInstance().postNotificationName(NotificationCenter.FilePreparingStarted, messageObject, file.toString());
                     }
-                    NotificationCenter.getInstance().postNotificationName(NotificationCenter.FileNewChunkAvailable, messageObject, file.toString(), last ? file.length() : 0);
+                    NotificationCenter.getInstance().postNotificationName(NotificationCenter.FileNewChunkAvailable, messageObject, file.toString(), last ? file.length() : 0, finalSize);
                 }
                 if (error || last) {
-                    synchronized (videoConvertSync) {
-                        cancelCurrentVideoConversion = false;
+                    if (videoConvertQueue.remove(job)) {
+                        videoConvertRunning--;
                     }
-                    videoConvertQueue.remove(messageObject);
+                    NotificationCenter.getInstance().postNotificationName(NotificationCenter.stopEncodingService, messageObject.messageOwner.attachPath);
                     startVideoConvertFromQueue();
                 }
             }
         });
     }
 
+    /* called before a key frame of the video track is written; the file is final up to there and
+    a killed conversion continues with this frame */
+    private void saveConvertCheckpoint(ConvertCheckpoint checkpoint, MP4Builder mediaMuxer, Mp4Movie movie, int trackIndex, long frameTimeUs, long videoTimeUs) throws Exception {
+        Track track = movie.getTracks().get(trackIndex);
+        if (track.getSampleCount() == 0
+         || (checkpoint.fileOffset > 0 && frameTimeUs - checkpoint.resumeTimeUs < VIDEO_CHECKPOINT_INTERVAL_US)) {
+            return; // some encoders write key frames more often than asked for
+        }
+        checkpoint.fileOffset = mediaMuxer.checkpoint();
+        checkpoint.resumeTimeUs = frameTimeUs;
+        checkpoint.videoTimeUs = videoTimeUs;
+        checkpoint.save(movie.getCacheFile(), track);
+    }
+
     @TargetApi(16)
-    private long readAndWriteTrack(final MessageObject messageObject, MediaExtractor extractor, MP4Builder mediaMuxer, MediaCodec.BufferInfo info, long start, long end, File file, boolean isAudio) throws Exception {
+    private long readAndWriteTrack(final VideoConvertJob job, MediaExtractor extractor, MP4Builder mediaMuxer, MediaCodec.BufferInfo info, long start, long end, File file, boolean isAudio) throws Exception {
         int trackIndex = selectTrack(extractor, isAudio);
         if (trackIndex >= 0) {
             extractor.selectTrack(trackIndex);
             MediaFormat trackFormat = extractor.getTrackFormat(trackIndex);
+            if (!isAudio) {
+                job.checkpoint.setVideoFormat(trackFormat);
+            }
             int muxerTrackIndex = mediaMuxer.addTrack(trackFormat, isAudio);
             int maxBufferSize = trackFormat.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE);
             boolean inputDone = false;
@@ -3190,11 +3334,11 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
             ByteBuffer buffer = ByteBuffer.allocateDirect(maxBufferSize);
             long startTime = -1;
 
-            checkConversionCanceled();
+            checkConversionCanceled(job);
             long lastTimestamp = -100;
 
             while (!inputDone) {
-                checkConversionCanceled();
+                checkConversionCanceled(job);
 
                 boolean eof = false;
                 int index = extractor.getSampleTrackIndex();
@@ -3216,7 +3360,7 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
                                 info.offset = 0;
                                 info.flags = extractor.getSampleFlags();
                                 if (mediaMuxer.writeSampleData(muxerTrackIndex, buffer, info, isAudio)) {
-                                    didWriteData(messageObject, file, false, false);
+                                    didWriteData(job, file, false, false, mediaMuxer.getFinalSize());
                                 }
                             }
                             lastTimestamp = info.presentationTimeUs;
@@ -3245,18 +3389,18 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
 
     private static class VideoConvertRunnable implements Runnable {
 
-        private MessageObject messageObject;
+        private VideoConvertJob job;
 
-        private VideoConvertRunnable(MessageObject message) {
-            messageObject = message;
+        private VideoConvertRunnable(VideoConvertJob job) {
+            this.job = job;
         }
 
         @Override
         public void run() {
-            MediaController.getInstance().convertVideo(messageObject);
+            MediaController.getInstance().convertVideo(job);
         }
 
-        public static void runConversion(final MessageObject obj) {
+        public static void runConversion(final VideoConvertJob obj) {
             new Thread(new Runnable() {
                 @Override
                 public void run() {
@@ -3273,18 +3417,15 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
         }
     }
 
-    private void checkConversionCanceled() throws Exception {
-        boolean cancelConversion;
-        synchronized (videoConvertSync) {
-            cancelConversion = cancelCurrentVideoConversion;
-        }
-        if (cancelConversion) {
+    private static void checkConversionCanceled(VideoConvertJob job) throws Exception {
+        if (job.canceled) {
             throw new RuntimeException("canceled conversion");
         }
     }
 
     @TargetApi(16)
-    private boolean convertVideo(final MessageObject messageObject) {
+    private boolean convertVideo(final VideoConvertJob job) {
+        final MessageObject messageObject = job.messageObject;
         String videoPath = messageObject.videoEditedInfo.originalPath;
         long startTime = messageObject.videoEditedInfo.startTime;
         long endTime = messageObject.videoEditedInfo.endTime;
@@ -3322,19 +3463,29 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
             }
         }
 
-        SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("videoconvert", Activity.MODE_PRIVATE);
-        boolean isPreviousOk = preferences.getBoolean("isPreviousOk", true);
-        preferences.edit().putBoolean("isPreviousOk", false).apply();
-
+        // a killed conversion continues from the last checkpoint of the same source and parameters;
+        // one that was killed several times, probably by crashing the codec, is not tried again
         File inputFile = new File(videoPath);
-        if (!inputFile.canRead() || !isPreviousOk) {
-            didWriteData(messageObject, cacheFile, true, true);
-            preferences.edit().putBoolean("isPreviousOk", true).apply();
+        String checkpointKey = messageObject.videoEditedInfo.getString() + "_" + inputFile.length() + "_" + inputFile.lastModified();
+        ConvertCheckpoint checkpoint = ConvertCheckpoint.load(cacheFile, checkpointKey);
+        if (checkpoint == null) {
+            checkpoint = new ConvertCheckpoint(checkpointKey);
+        }
+        if (!inputFile.canRead() || checkpoint.attempts >= MAX_VIDEO_CONVERT_ATTEMPTS) {
+            ConvertCheckpoint.delete(cacheFile);
+            didWriteData(job, cacheFile, true, true, 0);
             return false;
         }
+        checkpoint.attempts++;
+        checkpoint.save(cacheFile, null);
+        job.checkpoint = checkpoint;
+        final long resumeTimeUs = checkpoint.fileOffset > 0 ? checkpoint.resumeTimeUs : -1;
+        if (checkpoint.fileOffset > 0) {
+            s_videoConversionsResumed.add(1);
+        }
 
-        videoConvertFirstWrite = true;
         boolean error = false;
+        boolean restart = false; // the encoder does not match the resumed video track
         long videoStartTime = startTime;
 
         long time = System.currentTimeMillis();
@@ -3349,13 +3500,23 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
                 movie.setCacheFile(cacheFile);
                 movie.setRotation(rotationValue);
                 movie.setSize(resultWidth, resultHeight);
-                mediaMuxer = new MP4Builder().createMovie(movie);
+                int restoredTrackIndex = -5;
+                if (checkpoint.fileOffset > 0) {
+                    restoredTrackIndex = checkpoint.restoreVideoTrack(movie);
+                    mediaMuxer = new MP4Builder().resumeMovie(movie, checkpoint.fileOffset);
+                } else {
+                    mediaMuxer = new MP4Builder().createMovie(movie);
+                }
                 extractor = new MediaExtractor();
                 extractor.setDataSource(inputFile.toString());
 
-                checkConversionCanceled();
+                checkConversionCanceled(job);
 
-                if (resultWidth != originalWidth || resultHeight != originalHeight) {
+                if (checkpoint.videoDone) {
+                    if (checkpoint.videoTimeUs != -1) {
+                        videoStartTime = checkpoint.videoTimeUs;
+                    }
+                } else if (resultWidth != originalWidth || resultHeight != originalHeight) {
                     int videoIndex;
                     videoIndex = selectTrack(extractor, false);
                     if (videoIndex >= 0) {
@@ -3365,12 +3526,12 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
                         OutputSurface outputSurface = null;
 
                         try {
-                            long videoTime = -1;
+                            long videoTime = checkpoint.videoTimeUs;
                             boolean outputDone = false;
                             boolean inputDone = false;
                             boolean decoderDone = false;
                             int swapUV = 0;
-                            int videoTrackIndex = -5;
+                            int videoTrackIndex = restoredTrackIndex;
 
                             int colorFormat;
                             int processorType = PROCESSOR_TYPE_OTHER;
@@ -3435,7 +3596,9 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
                             }
 
                             extractor.selectTrack(videoIndex);
-                            if (startTime > 0) {
+                            if (resumeTimeUs > 0) {
+                                extractor.seekTo(resumeTimeUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                            } else if (startTime > 0) {
                                 extractor.seekTo(startTime, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
                             } else {
                                 extractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
@@ -3481,10 +3644,10 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
                                 }
                             }
 
-                            checkConversionCanceled();
+                            checkConversionCanceled(job);
 
                             while (!outputDone) {
-                                checkConversionCanceled();
+                                checkConversionCanceled(job);
                                 if (!inputDone) {
                                     boolean eof = false;
                                     int index = extractor.getSampleTrackIndex();
@@ -3521,7 +3684,7 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
                                 boolean decoderOutputAvailable = !decoderDone;
                                 boolean encoderOutputAvailable = true;
                                 while (decoderOutputAvailable || encoderOutputAvailable) {
-                                    checkConversionCanceled();
+                                    checkConversionCanceled(job);
                                     int encoderStatus = encoder.dequeueOutputBuffer(info, TIMEOUT_USEC);
                                     if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
                                         encoderOutputAvailable = false;
@@ -3532,7 +3695,11 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
                                     } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
                                         MediaFormat newFormat = encoder.getOutputFormat();
                                         if (videoTrackIndex == -5) {
+                                            checkpoint.setVideoFormat(newFormat);
                                             videoTrackIndex = mediaMuxer.addTrack(newFormat, false);
+                                        } else if (videoTrackIndex == restoredTrackIndex && !checkpoint.matchesVideoFormat(newFormat)) {
+                                            restart = true;
+                                            throw new RuntimeException("encoder parameter sets differ from the resumed video track");
                                         }
                                     } else if (encoderStatus < 0) {
                                         throw new RuntimeException("unexpected result from encoder.dequeueOutputBuffer: " + encoderStatus);
@@ -3548,10 +3715,13 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
                                         }
                                         if (info.size > 1) {
                                             if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                                                if ((info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0 && videoTrackIndex != -5) {
+                                                    saveConvertCheckpoint(checkpoint, mediaMuxer, movie, videoTrackIndex, info.presentationTimeUs, videoTime);
+                                                }
                                                 if (mediaMuxer.writeSampleData(videoTrackIndex, encodedData, info, false)) {
-                                                    didWriteData(messageObject, cacheFile, false, false);
+                                                    didWriteData(job, cacheFile, false, false, mediaMuxer.getFinalSize());
                                                 }
-                                            } else if (videoTrackIndex == -5) {
+                                            } else if (videoTrackIndex == -5 || videoTrackIndex == restoredTrackIndex) {
                                                 byte[] csd = new byte[info.size];
                                                 encodedData.limit(info.offset + info.size);
                                                 encodedData.position(info.offset);
@@ -3577,7 +3747,13 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
                                                     newFormat.setByteBuffer("csd-0", sps);
                                                     newFormat.setByteBuffer("csd-1", pps);
                                                 }
-                                                videoTrackIndex = mediaMuxer.addTrack(newFormat, false);
+                                                if (videoTrackIndex == -5) {
+                                                    checkpoint.setVideoFormat(newFormat);
+                                                    videoTrackIndex = mediaMuxer.addTrack(newFormat, false);
+                                                } else if (!checkpoint.matchesVideoFormat(newFormat)) {
+                                                    restart = true;
+                                                    throw new RuntimeException("encoder parameter sets differ from the resumed video track");
+                                                }
                                             }
                                         }
                                         outputDone = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
@@ -3619,6 +3795,9 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
                                                     videoTime = info.presentationTimeUs;
                                                 }
                                             }
+                                            if (info.presentationTimeUs < resumeTimeUs) {
+                                                doRender = false; // written by the killed conversion already
+                                            }
                                             decoder.releaseOutputBuffer(decoderStatus, doRender);
                                             if (doRender) {
                                                 boolean errorWait = false;
@@ -3689,16 +3868,23 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
                             encoder.release();
                         }
 
-                        checkConversionCanceled();
+                        checkConversionCanceled(job);
                     }
                 } else {
-                    long videoTime = readAndWriteTrack(messageObject, extractor, mediaMuxer, info, startTime, endTime, cacheFile, false);
+                    long videoTime = readAndWriteTrack(job, extractor, mediaMuxer, info, startTime, endTime, cacheFile, false);
                     if (videoTime != -1) {
                         videoStartTime = videoTime;
                     }
                 }
+                if (!error && !checkpoint.videoDone) {
+                    // the audio track is copied quickly, a killed conversion only has to redo this part
+                    checkpoint.fileOffset = mediaMuxer.checkpoint();
+                    checkpoint.videoDone = true;
+                    checkpoint.videoTimeUs = videoStartTime;
+                    checkpoint.save(cacheFile, movie.getTracks().isEmpty() ? null : movie.getTracks().get(0));
+                }
                 if (!error) {
-                    readAndWriteTrack(messageObject, extractor, mediaMuxer, info, videoStartTime, endTime, cacheFile, true);
+                    readAndWriteTrack(job, extractor, mediaMuxer, info, videoStartTime, endTime, cacheFile, true);
                 }
             } catch (Exception e) {
                 error = true;
@@ -3717,12 +3903,18 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
                 FileLog.e("messenger", "time = " + (System.currentTimeMillis() - time));
             }
         } else {
-            preferences.edit().putBoolean("isPreviousOk", true).apply();
-            didWriteData(messageObject, cacheFile, true, true);
+            ConvertCheckpoint.delete(cacheFile);
+            didWriteData(job, cacheFile, true, true, 0);
             return false;
         }
-        preferences.edit().putBoolean("isPreviousOk", true).apply();
-        didWriteData(messageObject, cacheFile, true, error);
+        if (restart) {
+            // the frames of the new encoder would not decode with the saved parameter sets, convert from the start
+            FileLog.e("messenger", "resumed video conversion restarted from the start");
+            ConvertCheckpoint.delete(cacheFile);
+            return convertVideo(job);
+        }
+        ConvertCheckpoint.delete(cacheFile);
+        didWriteData(job, cacheFile, true, error, cacheFile.length());
         return true;
     }
 }
@@ -25,7 +25,7 @@ package com.b44t.messenger;
 
 import android.content.Context;
 import android.graphics.Paint;
-import android.text.Layout;
+import android.os.Looper;
 import android.text.Spannable;
 import android.text.StaticLayout;
 import android.text.TextPaint;
@@ -71,7 +71,13 @@ public class MessageObject {
 
     public boolean forceUpdate;
 
-    private static TextPaint textPaint;
+    private static TextPaint textPaint; // drawing paint, UI thread only
+    private static final ThreadLocal<TextPaint> s_measurePaint = new ThreadLocal<TextPaint>() {
+        @Override
+        protected TextPaint initialValue() {
+            return new TextPaint(Paint.ANTI_ALIAS_FLAG);
+        }
+    };
     public int lastLineWidth;
     public int textWidth;
     public int textHeight;
@@ -84,19 +90,11 @@ public class MessageObject {
         public int height;
     }
 
-    private static final int LINES_PER_BLOCK = 10;
-
     public ArrayList<TextLayoutBlock> textLayoutBlocks;
+    private boolean textLayoutPending;
+    private Runnable onTextLayoutReady;
 
     public MessageObject(TLRPC.Message message, boolean generateLayout) {
-        if (textPaint == null) {
-            textPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
-            textPaint.setColor(Theme.MSG_TEXT_COLOR);
-            textPaint.linkColor = Theme.MSG_LINK_TEXT_COLOR;
-        }
-
-        textPaint.setTextSize(AndroidUtilities.dp(MessagesController.getInstance().fontSize));
-
         messageOwner = message;
 
         messageText = message.message;
@@ -115,7 +113,7 @@ public class MessageObject {
 
         generateCaption();
         if (generateLayout) {
-            messageText = Emoji.replaceEmoji(messageText, textPaint.getFontMetricsInt(), AndroidUtilities.dp(20), false);
+            messageText = Emoji.replaceEmoji(messageText, getMeasurePaint().getFontMetricsInt(), AndroidUtilities.dp(20), false);
             generateLayout();
         }
         generateThumbs(false);
@@ -127,11 +125,22 @@ public class MessageObject {
             textPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
             textPaint.setColor(Theme.MSG_TEXT_COLOR);
             textPaint.linkColor = Theme.MSG_LINK_TEXT_COLOR;
-            textPaint.setTextSize(AndroidUtilities.dp(MessagesController.getInstance().fontSize));
         }
+        textPaint.setTextSize(AndroidUtilities.dp(MessagesController.getInstance().fontSize));
         return textPaint;
     }
 
+    /* the paint to measure with while a MessageObject is built; objects may be built on any thread,
+    threads other than the UI thread use a paint of their own */
+    private static TextPaint getMeasurePaint() {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            return getTextPaint();
+        }
+        TextPaint paint = s_measurePaint.get();
+        paint.setTextSize(AndroidUtilities.dp(MessagesController.getInstance().fontSize));
+        return paint;
+    }
+
     private void setType() {
         int oldType = type;
         if (messageOwner instanceof TLRPC.TL_message /*|| messageOwner instanceof TLRPC.TL_messageForwarded_old2*/) {
@@ -311,7 +320,7 @@ public class MessageObject {
             return;
         }
         if (messageOwner.media != null && messageOwner.media.caption != null && messageOwner.media.caption.length() > 0) {
-            caption = Emoji.replaceEmoji(messageOwner.media.caption, textPaint.getFontMetricsInt(), AndroidUtilities.dp(20), false);
+            caption = Emoji.replaceEmoji(messageOwner.media.caption, getMeasurePaint().getFontMetricsInt(), AndroidUtilities.dp(20), false);
             if (containsUrls(caption)) {
                 try {
                     Linkify.addLinks((Spannable) caption, Linkify.WEB_URLS | Linkify.PHONE_NUMBERS | Linkify.EMAIL_ADDRESSES);
@@ -337,12 +346,12 @@ public class MessageObject {
             return;
         }
 
-        textLayoutBlocks = new ArrayList<>();
-
         addLinks(messageText);
 
         int maxWidth;
-        boolean substractAvatar = !isOut() && MrMailbox.getChat((int)messageOwner.dialog_id).getType()==MrChat.MR_CHAT_GROUP;
+        MrChat mrChat = MrMailbox.getChat((int)messageOwner.dialog_id);
+        boolean substractAvatar = !isOut() && mrChat.getType()==MrChat.MR_CHAT_GROUP;
+        mrChat.close();
         if (AndroidUtilities.isTablet()) {
             if (substractAvatar) {
                 maxWidth = AndroidUtilities.getMinTabletSide() - AndroidUtilities.dp(122);
@@ -357,141 +366,49 @@ public class MessageObject {
             }
         }
 
-        StaticLayout textLayout;
-
-        try {
-            textLayout = new StaticLayout(messageText, textPaint, maxWidth, Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, false);
-        } catch (Exception e) {
-            FileLog.e("messenger", e);
-            return;
-        }
-
-        textHeight = textLayout.getHeight();
-        int linesCount = textLayout.getLineCount();
-
-        int blocksCount = (int) Math.ceil((float) linesCount / LINES_PER_BLOCK);
-        int linesOffset = 0;
-        float prevOffset = 0;
-
-        for (int a = 0; a < blocksCount; a++) {
-            int currentBlockLinesCount = Math.min(LINES_PER_BLOCK, linesCount - linesOffset);
-            TextLayoutBlock block = new TextLayoutBlock();
-
-            if (blocksCount == 1) {
-                block.textLayout = textLayout;
-                block.textYOffset = 0;
-                block.charactersOffset = 0;
-                block.height = textHeight;
-            } else {
-                int startCharacter = textLayout.getLineStart(linesOffset);
-                int endCharacter = textLayout.getLineEnd(linesOffset + currentBlockLinesCount - 1);
-                if (endCharacter < startCharacter) {
-                    continue;
-                }
-                block.charactersOffset = startCharacter;
-                try {
-                    CharSequence str = messageText.subSequence(startCharacter, endCharacter);
-                    block.textLayout = new StaticLayout(str, textPaint, maxWidth, Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, false);
-                    block.textYOffset = textLayout.getLineTop(linesOffset);
-                    if (a != 0) {
-                        block.height = (int) (block.textYOffset - prevOffset);
-                    }
-                    block.height = Math.max(block.height, block.textLayout.getLineBottom(block.textLayout.getLineCount() - 1));
-                    prevOffset = block.textYOffset;
-                } catch (Exception e) {
-                    FileLog.e("messenger", e);
-                    continue;
-                }
-                if (a == blocksCount - 1) {
-                    currentBlockLinesCount = Math.max(currentBlockLinesCount, block.textLayout.getLineCount());
-                    try {
-                        textHeight = Math.max(textHeight, (int) (block.textYOffset + block.textLayout.getHeight()));
-                    } catch (Exception e) {
-                        FileLog.e("messenger", e);
+        // on the UI thread, the layout is built in the background; until it is ready,
+        // textLayoutBlocks is null and textHeight is an estimation
+        int fontSize = MessagesController.getInstance().fontSize;
+        TextLayoutEngine.Result result = TextLayoutEngine.getCached(messageText, maxWidth, fontSize);
+        if (result == null) {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                textLayoutPending = true;
+                textHeight = TextLayoutEngine.estimateHeight(messageText, maxWidth, fontSize);
+                textWidth = lastLineWidth = maxWidth;
+                TextLayoutEngine.layoutAsync(messageText, maxWidth, fontSize, new TextLayoutEngine.Callback() {
+                    @Override
+                    public void onTextLayoutReady(TextLayoutEngine.Result result) {
+                        applyTextLayout(result);
+                        forceUpdate = true;
+                        if (onTextLayoutReady != null) {
+                            Runnable runnable = onTextLayoutReady;
+                            onTextLayoutReady = null;
+                            runnable.run();
+                        }
                     }
-                }
-            }
-
-            textLayoutBlocks.add(block);
-
-            float lastLeft = block.textXOffset = 0;
-            try {
-                lastLeft = block.textXOffset = block.textLayout.getLineLeft(currentBlockLinesCount - 1);
-            } catch (Exception e) {
-                FileLog.e("messenger", e);
-            }
-
-            float lastLine = 0;
-            try {
-                lastLine = block.textLayout.getLineWidth(currentBlockLinesCount - 1);
-            } catch (Exception e) {
-                FileLog.e("messenger", e);
+                });
+                return;
             }
+            result = TextLayoutEngine.layout(messageText, maxWidth, fontSize);
+        }
+        applyTextLayout(result);
+    }
 
-            int linesMaxWidth = (int) Math.ceil(lastLine);
-            int lastLineWidthWithLeft;
-            int linesMaxWidthWithLeft;
-            boolean hasNonRTL = false;
-
-            if (a == blocksCount - 1) {
-                lastLineWidth = linesMaxWidth;
-            }
-
-            linesMaxWidthWithLeft = lastLineWidthWithLeft = (int) Math.ceil(lastLine + lastLeft);
-            if (lastLeft == 0) {
-                hasNonRTL = true;
-            }
-
-            if (currentBlockLinesCount > 1) {
-                float textRealMaxWidth = 0, textRealMaxWidthWithLeft = 0, lineWidth, lineLeft;
-                for (int n = 0; n < currentBlockLinesCount; n++) {
-                    try {
-                        lineWidth = block.textLayout.getLineWidth(n);
-                    } catch (Exception e) {
-                        FileLog.e("messenger", e);
-                        lineWidth = 0;
-                    }
-
-                    if (lineWidth > maxWidth + 100) {
-                        lineWidth = maxWidth;
-                    }
-
-                    try {
-                        lineLeft = block.textLayout.getLineLeft(n);
-                    } catch (Exception e) {
-                        FileLog.e("messenger", e);
-                        lineLeft = 0;
-                    }
-
-                    block.textXOffset = Math.min(block.textXOffset, lineLeft);
-
-                    if (lineLeft == 0) {
-                        hasNonRTL = true;
-                    }
-                    textRealMaxWidth = Math.max(textRealMaxWidth, lineWidth);
-                    textRealMaxWidthWithLeft = Math.max(textRealMaxWidthWithLeft, lineWidth + lineLeft);
-                    linesMaxWidth = Math.max(linesMaxWidth, (int) Math.ceil(lineWidth));
-                    linesMaxWidthWithLeft = Math.max(linesMaxWidthWithLeft, (int) Math.ceil(lineWidth + lineLeft));
-                }
-                if (hasNonRTL) {
-                    textRealMaxWidth = textRealMaxWidthWithLeft;
-                    if (a == blocksCount - 1) {
-                        lastLineWidth = lastLineWidthWithLeft;
-                    }
-                } else if (a == blocksCount - 1) {
-                    lastLineWidth = linesMaxWidth;
-                }
-                textWidth = Math.max(textWidth, (int) Math.ceil(textRealMaxWidth));
-            } else {
-                textWidth = Math.max(textWidth, Math.min(maxWidth, linesMaxWidth));
-            }
+    private void applyTextLayout(TextLayoutEngine.Result result) {
+        textLayoutBlocks = result.blocks;
+        textWidth = result.textWidth;
+        textHeight = result.textHeight;
+        lastLineWidth = result.lastLineWidth;
+        textLayoutPending = false;
+    }
 
-            if (hasNonRTL) {
-                block.textXOffset = 0;
-            }
+    public boolean isTextLayoutPending() {
+        return textLayoutPending;
+    }
 
-            linesOffset += currentBlockLinesCount;
-        }
+    /* the runnable is called on the UI thread when a text layout built in the background is ready */
+    public void setOnTextLayoutReady(Runnable runnable) {
+        onTextLayoutReady = runnable;
     }
 
     public boolean isOut() {
@@ -0,0 +1,221 @@
+/*******************************************************************************
+ *
+ *                          Messenger Android Frontend
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    MessageObjectCache.java
+ * Purpose: Bounded cache of ready-to-draw MessageObjects for the chat view,
+ *          filled on a background queue for the rows around the viewport
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class MessageObjectCache {
+
+    public final static int DEFAULT_MAX_ENTRIES = 160;
+    public final static int PREFETCH_ROWS       = 12;
+    private final static int PREFETCH_BATCH     = 16; // messages loaded with a single JNI call by the render queue
+
+    private static final DispatchQueue s_renderQueue = new DispatchQueue("renderQueue");
+
+    private static class Entry {
+        int           fontSize;
+        int           layoutWidth;
+        MessageObject obj;
+    }
+
+    private final int                          m_maxEntries;
+    private final LinkedHashMap<Integer, Entry> m_entries;
+    private int                                m_generation;
+    private int[]                              m_pendingIds = new int[0];
+    private int                                m_pendingIndex;
+    private boolean                            m_prefetchScheduled;
+
+    public MessageObjectCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public MessageObjectCache(final int maxEntries) {
+        m_maxEntries = maxEntries;
+        m_entries = new LinkedHashMap<Integer, Entry>(maxEntries, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+                return size() > m_maxEntries;
+            }
+        };
+    }
+
+    /* the layout of a MessageObject depends on the font size and on the available width,
+    these two values are part of the cache key; changed messages are removed by invalidateMsg() */
+    public static int getLayoutWidth() {
+        if (AndroidUtilities.isTablet()) {
+            return AndroidUtilities.getMinTabletSide();
+        }
+        return Math.min(AndroidUtilities.displaySize.x, AndroidUtilities.displaySize.y);
+    }
+
+    public synchronized MessageObject get(int msgId) {
+        Entry entry = m_entries.get(msgId);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.fontSize != MessagesController.getInstance().fontSize || entry.layoutWidth != getLayoutWidth()) {
+            m_entries.remove(msgId);
+            return null;
+        }
+        return entry.obj;
+    }
+
+    public MessageObject getOrCreate(int msgId) {
+        return getOrCreate(msgId, null, 0);
+    }
+
+    /* the page, if any, must be loaded after the last invalidation; text messages are built from it */
+    public MessageObject getOrCreate(int msgId, MrMsgBatch page, int index) {
+        MessageObject obj = get(msgId);
+        if (obj == null) {
+            int generation;
+            synchronized (this) {
+                generation = m_generation;
+            }
+            obj = buildMessageObject(msgId, page != null && page.contains(index) ? page : null, index);
+            put(msgId, obj, generation);
+        }
+        return obj;
+    }
+
+    /* queue the messages around the visible rows for rendering on the background queue;
+    a new call replaces the rows queued before, so fast scrolling does not pile up work */
+    public void prefetch(int[] msgIds, int firstVisible, int lastVisible) {
+        if (msgIds == null || msgIds.length == 0 || firstVisible < 0 || lastVisible < firstVisible) {
+            return;
+        }
+
+        int first = Math.max(0, firstVisible - PREFETCH_ROWS);
+        int last = Math.min(msgIds.length - 1, lastVisible + PREFETCH_ROWS);
+        int[] ids = new int[last - first + 1];
+        int cnt = 0;
+
+        // visible rows first, then the rows below and above
+        synchronized (this) {
+            for (int i = firstVisible; i <= Math.min(lastVisible, last); i++) {
+                cnt = addPending(ids, cnt, msgIds[i]);
+            }
+            for (int i = lastVisible + 1; i <= last; i++) {
+                cnt = addPending(ids, cnt, msgIds[i]);
+            }
+            for (int i = firstVisible - 1; i >= first; i--) {
+                cnt = addPending(ids, cnt, msgIds[i]);
+            }
+            if (cnt == 0) {
+                return;
+            }
+
+            m_pendingIds = ids;
+            m_pendingIndex = 0;
+            if (m_prefetchScheduled) {
+                return;
+            }
+            m_prefetchScheduled = true;
+        }
+
+        s_renderQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                runPrefetch();
+            }
+        });
+    }
+
+    public synchronized void invalidateMsg(int msgId) {
+        m_entries.remove(msgId);
+        m_generation++;
+    }
+
+    public synchronized void invalidateAll() {
+        m_entries.clear();
+        m_pendingIds = new int[0];
+        m_pendingIndex = 0;
+        m_generation++;
+    }
+
+    private int addPending(int[] ids, int cnt, int msgId) {
+        if (msgId > MrMsg.MR_MSG_ID_LAST_SPECIAL && !m_entries.containsKey(msgId)) {
+            ids[cnt++] = msgId;
+        }
+        return cnt;
+    }
+
+    private void runPrefetch() {
+        int[] msgIds = new int[PREFETCH_BATCH];
+        while (true) {
+            int cnt = 0, generation;
+            synchronized (this) {
+                while (cnt < PREFETCH_BATCH && m_pendingIndex < m_pendingIds.length && m_pendingIds[m_pendingIndex] != 0) {
+                    int msgId = m_pendingIds[m_pendingIndex++];
+                    if (!m_entries.containsKey(msgId)) {
+                        msgIds[cnt++] = msgId;
+                    }
+                }
+                if (cnt == 0) {
+                    m_prefetchScheduled = false;
+                    return;
+                }
+                generation = m_generation;
+            }
+
+            try {
+                MrMsgBatch batch = MrMailbox.getMsgsBatch(msgIds, 0, cnt, false);
+                for (int i = 0; i < cnt; i++) {
+                    put(msgIds[i], buildMessageObject(msgIds[i], batch, i), generation);
+                }
+            } catch (Exception e) {
+                FileLog.e("messenger", e);
+            }
+        }
+    }
+
+    private synchronized void put(int msgId, MessageObject obj, int generation) {
+        if (generation != m_generation) {
+            return; // invalidated while building, the result may be outdated
+        }
+        Entry entry = new Entry();
+        entry.fontSize = MessagesController.getInstance().fontSize;
+        entry.layoutWidth = getLayoutWidth();
+        entry.obj = obj;
+        m_entries.put(msgId, entry);
+    }
+
+    /* no lock needed, the UI thread and the render queue measure with paints of their own;
+    text messages are built from the batch, if any, the others need the message handle */
+    private static MessageObject buildMessageObject(int msgId, MrMsgBatch batch, int index) {
+        TLRPC.Message message = batch != null ? batch.get_TLRPC_Message(index) : null;
+        if (message == null) {
+            MrMsg mrMsg = MrMailbox.getMsg(msgId);
+            message = mrMsg.get_TLRPC_Message();
+            mrMsg.close();
+        }
+        return new MessageObject(message, true);
+    }
+}
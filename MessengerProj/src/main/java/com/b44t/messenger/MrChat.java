@@ -28,21 +28,26 @@ package com.b44t.messenger;
 
 import android.text.TextUtils;
 
-public class MrChat {
+import java.io.Closeable;
+
+public class MrChat implements Closeable {
 
     public final static int      MR_CHAT_UNDEFINED          =   0;
     public final static int      MR_CHAT_NORMAL             = 100;
     public final static int      MR_CHAT_GROUP              = 120;
 
     public final static int      MR_CHAT_ID_DEADDROP        = 1;
+    public final static int      MR_CHAT_ID_LAST_SPECIAL    = 9;
 
     public MrChat(long hChat) {
         m_hChat = hChat;
+        m_ref = new MrReclaimer.Ref(this, MrReclaimer.TYPE_CHAT, hChat);
     }
 
-    @Override protected void finalize() throws Throwable {
-        super.finalize();
-        MrChatUnref(m_hChat);
+    @Override public void close() {
+        // release the C-handle now instead of waiting for the garbage collector
+        m_hChat = 0;
+        m_ref.release();
     }
 
     public native int    getId();
@@ -85,7 +90,8 @@ public class MrChat {
     }
 
     private long                  m_hChat;  // must not be renamed as referenced by JNI under the name "m_hChat"
-    private native static void    MrChatUnref                (long hChat);
+    private final MrReclaimer.Ref m_ref;
+    native static void            MrChatUnref                (long hChat);
     private native static String  MrChatGetDraft             (long hChat); // returns null for "no draft"
     private native static long    MrChatGetDraftTimestamp    (long hChat); // returns 0 for "no draft"
     private native static int     MrChatGetDraftReplyToMsgId (long hChat); // returns 0 for "no draft"
@@ -159,7 +165,9 @@ public class MrChat {
         else {
             int contacts[] = MrMailbox.getChatContacts(getId());
             if( contacts.length==1 ) {
-                name = MrMailbox.getContact(contacts[0]).getNameNAddr();
+                MrContact contact = MrMailbox.getContact(contacts[0]);
+                name = contact.getNameNAddr();
+                contact.close();
             }
         }
         return name;
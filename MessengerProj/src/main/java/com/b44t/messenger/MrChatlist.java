@@ -27,15 +27,18 @@
 
 package com.b44t.messenger;
 
+import java.io.Closeable;
 
-public class MrChatlist {
+public class MrChatlist implements Closeable {
     public MrChatlist(long hChatlist) {
         m_hChatlist = hChatlist;
+        m_ref = new MrReclaimer.Ref(this, MrReclaimer.TYPE_CHATLIST, hChatlist);
     }
 
-    @Override protected void finalize() throws Throwable {
-        super.finalize();
-        MrChatlistUnref(m_hChatlist);
+    @Override public void close() {
+        // release the C-handle now instead of waiting for the garbage collector
+        m_hChatlist = 0;
+        m_ref.release();
     }
 
     public int getCnt() {
@@ -51,7 +54,8 @@ public class MrChatlist {
     }
 
     private long                  m_hChatlist;
-    private native static void    MrChatlistUnref            (long hChatlist);
+    private final MrReclaimer.Ref m_ref;
+    native static void            MrChatlistUnref            (long hChatlist);
     private native static int     MrChatlistGetCnt           (long hChatlist);
     private native static long    MrChatlistGetChatByIndex   (long hChatlist, int index); // returns hChat which must be unref'd after usage
     private native static long    MrChatlistGetSummaryByIndex(long hChatlist, int index, long hChat);
@@ -64,6 +68,7 @@ public class MrChatlist {
     {
         MrChat chat = getChatByIndex(index);
         TLRPC.TL_dialog dlg = chat.get_TLRPC_TL_dialog();
+        chat.close();
         return dlg;
     }
 }
@@ -0,0 +1,373 @@
+/*******************************************************************************
+ *
+ *                          Messenger Android Frontend
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    MrChatlistSnapshot.java
+ * Purpose: Immutable, materialized copy of a MrChatlist that can be shown
+ *          without any further JNI call, plus the diff between two snapshots
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger;
+
+import android.util.SparseArray;
+
+import com.b44t.messenger.support.widget.RecyclerView;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+
+public class MrChatlistSnapshot {
+
+    public static class Item {
+        public final int    chatId;
+        public final int    chatType;
+        public final String name;
+        public final String summaryTitle;
+        public final int    summaryTitleMeaning;
+        public final String summaryText;
+        public final long   summaryTimestamp;
+        public final int    summaryState;
+        public final int    unreadCount;
+        public final boolean encrypted;
+        public final boolean muted;
+        public final String avatarEmail; // null for groups, the avatar is searched by avatarName then
+        public final String avatarName;
+        public final String avatarKey;   // key of the avatar cache, see ContactsController.getAvatarKey()
+
+        private Item(MrChat chat, MrPoortext summary) {
+            this(chat, summary.getTitle(), summary.getTitleMeaning(), summary.getText(), summary.getTimestamp(), summary.getState());
+        }
+
+        private Item(MrChat chat, String summaryTitle, int summaryTitleMeaning, String summaryText, long summaryTimestamp, int summaryState) {
+            chatId              = chat.getId();
+            chatType            = chat.getType();
+            name                = chat.getName();
+            encrypted           = chat.isEncrypted()!=0;
+            unreadCount         = chat.getUnseenCount();
+            muted               = MessagesController.getInstance().isDialogMuted(chatId);
+
+            this.summaryTitle        = summaryTitle;
+            this.summaryTitleMeaning = summaryTitleMeaning;
+            this.summaryText         = summaryText.length() > 150 ? summaryText.substring(0, 150) : summaryText; // more is never shown
+            this.summaryTimestamp    = summaryTimestamp;
+            this.summaryState        = summaryState;
+
+            String email = null, avtName = name;
+            if (chatType == MrChat.MR_CHAT_NORMAL) {
+                int[] contact_ids = MrMailbox.getChatContacts(chatId);
+                if (contact_ids.length == 1) {
+                    MrContact contact = MrMailbox.getContact(contact_ids[0]);
+                    email = contact.getAddr();
+                    avtName = contact.getDisplayName();
+                    contact.close();
+                }
+            }
+            avatarEmail = email;
+            avatarName  = avtName;
+            avatarKey   = ContactsController.getAvatarKey(avatarEmail, avatarName);
+        }
+
+        private Item(DataInputStream in) throws Exception {
+            chatId              = in.readInt();
+            chatType            = in.readInt();
+            name                = in.readUTF();
+            encrypted           = in.readBoolean();
+            unreadCount         = in.readInt();
+            muted               = in.readBoolean();
+            summaryTitle        = in.readUTF();
+            summaryTitleMeaning = in.readInt();
+            summaryText         = in.readUTF();
+            summaryTimestamp    = in.readLong();
+            summaryState        = in.readInt();
+            avatarEmail         = in.readBoolean() ? in.readUTF() : null;
+            avatarName          = in.readUTF();
+            avatarKey           = ContactsController.getAvatarKey(avatarEmail, avatarName);
+        }
+
+        private void write(DataOutputStream out) throws Exception {
+            out.writeInt(chatId);
+            out.writeInt(chatType);
+            out.writeUTF(name);
+            out.writeBoolean(encrypted);
+            out.writeInt(unreadCount);
+            out.writeBoolean(muted);
+            out.writeUTF(summaryTitle);
+            out.writeInt(summaryTitleMeaning);
+            out.writeUTF(summaryText);
+            out.writeLong(summaryTimestamp);
+            out.writeInt(summaryState);
+            out.writeBoolean(avatarEmail != null);
+            if (avatarEmail != null) {
+                out.writeUTF(avatarEmail);
+            }
+            out.writeUTF(avatarName);
+        }
+
+        public static Item create(MrChat chat, MrPoortext summary) {
+            return new Item(chat, summary);
+        }
+
+        /* the summary is taken from a batch loaded with summaries; messages that cannot be loaded get an empty one */
+        public static Item create(MrChat chat, MrMsgBatch batch, int index) {
+            int i = index - batch.offset;
+            if (batch.ids[i] == 0) {
+                return new Item(chat, "", MrPoortext.MR_TITLE_NORMAL, "", 0, MrMsg.MR_STATE_UNDEFINED);
+            }
+            return new Item(chat, batch.summaryTitles[i], batch.summaryTitleMeanings[i], batch.summaryTexts[i],
+                batch.timestamps[i], batch.states[i]);
+        }
+
+        public boolean sameContent(Item o) {
+            return chatId == o.chatId && chatType == o.chatType && unreadCount == o.unreadCount
+                && summaryTimestamp == o.summaryTimestamp && summaryState == o.summaryState
+                && summaryTitleMeaning == o.summaryTitleMeaning && encrypted == o.encrypted && muted == o.muted
+                && name.equals(o.name) && summaryTitle.equals(o.summaryTitle) && summaryText.equals(o.summaryText)
+                && (avatarEmail == null ? o.avatarEmail == null : avatarEmail.equals(o.avatarEmail))
+                && avatarName.equals(o.avatarName);
+        }
+    }
+
+    public static final MrChatlistSnapshot EMPTY = new MrChatlistSnapshot(new Item[0]);
+
+    private final Item[] m_items;
+
+    private MrChatlistSnapshot(Item[] items) {
+        m_items = items;
+    }
+
+    /* build a snapshot; this does many JNI calls and should not be called from the UI thread */
+    public static MrChatlistSnapshot create(MrChatlist chatlist) {
+        int cnt = chatlist.getCnt();
+        Item[] items = new Item[cnt];
+        for (int i = 0; i < cnt; i++) {
+            MrChat chat = chatlist.getChatByIndex(i);
+            MrPoortext summary = chatlist.getSummaryByIndex(i, chat);
+            items[i] = new Item(chat, summary);
+            summary.close();
+            chat.close();
+        }
+        return new MrChatlistSnapshot(items);
+    }
+
+    public int getCnt() {
+        return m_items.length;
+    }
+
+    public Item getItem(int index) {
+        return m_items[index];
+    }
+
+    public int getChatIdByIndex(int index) {
+        return (index >= 0 && index < m_items.length) ? m_items[index].chatId : 0;
+    }
+
+
+    /* the first screen of the chatlist is saved to disk, so that it can be shown on startup
+    before the mailbox is opened and the first real snapshot is built
+    **********************************************************************************************/
+
+    public final static int FIRST_SCREEN_CNT = 20;
+    private final static int FILE_VERSION = 2;
+
+    public void saveFirstScreen(File file) {
+        DataOutputStream out = null;
+        try {
+            int cnt = Math.min(m_items.length, FIRST_SCREEN_CNT);
+            File tempFile = new File(file.getAbsolutePath() + ".tmp");
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(FILE_VERSION);
+            out.writeInt(cnt);
+            for (int i = 0; i < cnt; i++) {
+                m_items[i].write(out);
+            }
+            out.close();
+            out = null;
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+            }
+        } catch (Exception e) {
+            FileLog.e("messenger", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (Exception e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    public static MrChatlistSnapshot loadFirstScreen(File file) {
+        if (!file.exists()) {
+            return EMPTY;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FILE_VERSION) {
+                return EMPTY;
+            }
+            int cnt = Math.min(in.readInt(), FIRST_SCREEN_CNT);
+            Item[] items = new Item[cnt];
+            for (int i = 0; i < cnt; i++) {
+                items[i] = new Item(in);
+            }
+            return new MrChatlistSnapshot(items);
+        } catch (Exception e) {
+            FileLog.e("messenger", e);
+            return EMPTY;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (Exception e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+
+    /* diff between two snapshots, dispatched to an adapter as a sequence of
+    targeted notifications; the positions are valid in the order the operations are sent
+    **********************************************************************************************/
+
+    public static class Diff {
+
+        private final static int OP_REMOVE = 1;
+        private final static int OP_INSERT = 2;
+        private final static int OP_MOVE   = 3;
+        private final static int OP_CHANGE = 4;
+
+        private final static int MAX_OPS = 64; // on more changes, notifyDataSetChanged() is probably faster
+
+        private int[]   m_ops = new int[3*16];
+        private int     m_opsCnt;
+        private boolean m_tooMany;
+
+        public boolean isEmpty() {
+            return m_opsCnt == 0 && !m_tooMany;
+        }
+
+        private void add(int op, int a, int b) {
+            if (m_tooMany) {
+                return;
+            }
+            if (m_opsCnt/3 >= MAX_OPS) {
+                m_tooMany = true;
+                return;
+            }
+            if (m_opsCnt + 3 > m_ops.length) {
+                int[] newOps = new int[m_ops.length*2];
+                System.arraycopy(m_ops, 0, newOps, 0, m_opsCnt);
+                m_ops = newOps;
+            }
+            m_ops[m_opsCnt++] = op;
+            m_ops[m_opsCnt++] = a;
+            m_ops[m_opsCnt++] = b;
+        }
+
+        public void dispatchTo(RecyclerView.Adapter adapter) {
+            if (m_tooMany) {
+                adapter.notifyDataSetChanged();
+                return;
+            }
+            for (int i = 0; i < m_opsCnt; i += 3) {
+                switch (m_ops[i]) {
+                    case OP_REMOVE: adapter.notifyItemRemoved(m_ops[i+1]);              break;
+                    case OP_INSERT: adapter.notifyItemInserted(m_ops[i+1]);             break;
+                    case OP_MOVE:   adapter.notifyItemMoved(m_ops[i+1], m_ops[i+2]);    break;
+                    case OP_CHANGE: adapter.notifyItemChanged(m_ops[i+1]);              break;
+                }
+            }
+        }
+    }
+
+    public static Diff calcDiff(MrChatlistSnapshot oldSnapshot, MrChatlistSnapshot newSnapshot) {
+        Diff diff = new Diff();
+        Item[] oldItems = oldSnapshot.m_items, newItems = newSnapshot.m_items;
+
+        SparseArray<Item> oldById = new SparseArray<>(oldItems.length);
+        for (Item item : oldItems) {
+            oldById.put(item.chatId, item);
+        }
+        SparseArray<Item> newById = new SparseArray<>(newItems.length);
+        for (Item item : newItems) {
+            newById.put(item.chatId, item);
+        }
+
+        // remove the chats that are gone, from the end so that the positions stay valid
+        int[] work = new int[oldItems.length + newItems.length];
+        int workCnt = 0;
+        for (int i = oldItems.length - 1; i >= 0; i--) {
+            if (newById.get(oldItems[i].chatId) == null) {
+                diff.add(Diff.OP_REMOVE, i, 0);
+            }
+        }
+        for (Item item : oldItems) {
+            if (newById.get(item.chatId) != null) {
+                work[workCnt++] = item.chatId;
+            }
+        }
+
+        // walk through the new list and move or insert what is not at its place
+        for (int i = 0; i < newItems.length; i++) {
+            Item newItem = newItems[i];
+            if (i < workCnt && work[i] == newItem.chatId) {
+                if (!oldById.get(newItem.chatId).sameContent(newItem)) {
+                    diff.add(Diff.OP_CHANGE, i, 0);
+                }
+                continue;
+            }
+
+            int j = -1;
+            for (int k = i + 1; k < workCnt; k++) {
+                if (work[k] == newItem.chatId) {
+                    j = k;
+                    break;
+                }
+            }
+
+            if (j != -1) {
+                System.arraycopy(work, i, work, i + 1, j - i);
+                work[i] = newItem.chatId;
+                diff.add(Diff.OP_MOVE, j, i);
+                if (!oldById.get(newItem.chatId).sameContent(newItem)) {
+                    diff.add(Diff.OP_CHANGE, i, 0);
+                }
+            } else {
+                System.arraycopy(work, i, work, i + 1, workCnt - i);
+                work[i] = newItem.chatId;
+                workCnt++;
+                diff.add(Diff.OP_INSERT, i, 0);
+            }
+        }
+
+        return diff;
+    }
+}
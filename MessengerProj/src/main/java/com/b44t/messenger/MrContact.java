@@ -27,19 +27,22 @@
 
 package com.b44t.messenger;
 
+import java.io.Closeable;
 
-public class MrContact {
+public class MrContact implements Closeable {
 
     public final static int MR_CONTACT_ID_SELF = 1;
     public final static int MR_CONTACT_ID_LAST_SPECIAL = 9;
 
     public MrContact(long hContact) {
         m_hContact = hContact;
+        m_ref = new MrReclaimer.Ref(this, MrReclaimer.TYPE_CONTACT, hContact);
     }
 
-    @Override protected void finalize() throws Throwable {
-        super.finalize();
-        MrContactUnref(m_hContact);
+    @Override public void close() {
+        // release the C-handle now instead of waiting for the garbage collector
+        m_hContact = 0;
+        m_ref.release();
     }
 
     public String getName() {
@@ -55,7 +58,8 @@ public class MrContact {
     }
 
     private long                  m_hContact;
-    private native static void    MrContactUnref             (long hContact);
+    private final MrReclaimer.Ref m_ref;
+    native static void            MrContactUnref             (long hContact);
     private native static String  MrContactGetName           (long hContact);
     private native static String  MrContactGetAddr           (long hContact);
     private native static int     MrContactIsBlocked         (long hContact);
@@ -0,0 +1,227 @@
+/*******************************************************************************
+ *
+ *                          Messenger Android Frontend
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    MrEventCoalescer.java
+ * Purpose: Collect the events from the core for one frame and deliver them
+ *          to the UI as one batch, merged per event type and chat
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class MrEventCoalescer {
+
+    public final static int DEFAULT_FRAME_WINDOW_MS = 16;
+
+    private static int s_frameWindowMs = DEFAULT_FRAME_WINDOW_MS;
+
+    private final static AtomicLong s_eventsReceived  = new AtomicLong();
+    private final static AtomicLong s_eventsDelivered = new AtomicLong(); // notifications posted to the NotificationCenter
+
+    /* all messages of one event type in one chat */
+    private static class ChatBatch {
+        final int event;
+        final int chatId;
+        int[]     msgIds = new int[4];
+        int       msgCnt;
+        boolean   all; // an event without message id was merged, the whole chat may have changed
+
+        ChatBatch(int event, int chatId) {
+            this.event  = event;
+            this.chatId = chatId;
+        }
+
+        void add(int msgId) {
+            if (msgId <= 0) {
+                all = true;
+                return;
+            }
+            for (int i = 0; i < msgCnt; i++) {
+                if (msgIds[i] == msgId) {
+                    return;
+                }
+            }
+            if (msgCnt == msgIds.length) {
+                int[] newIds = new int[msgIds.length*2];
+                System.arraycopy(msgIds, 0, newIds, 0, msgCnt);
+                msgIds = newIds;
+            }
+            msgIds[msgCnt++] = msgId;
+        }
+
+        int[] getMsgIds() {
+            int[] ret = new int[msgCnt];
+            System.arraycopy(msgIds, 0, ret, 0, msgCnt);
+            return ret;
+        }
+
+        int getSingleMsgId() {
+            return (!all && msgCnt == 1) ? msgIds[0] : 0;
+        }
+    }
+
+    /* the events collected for the next frame; guarded by s_sync */
+    private static class Frame {
+        final ArrayList<ChatBatch>     batches  = new ArrayList<>();
+        final HashMap<Long, ChatBatch> batchMap = new HashMap<>();
+        int[]   incoming    = new int[8]; // chat id, message id pairs in the order received
+        int     incomingCnt;
+        boolean contactsChanged;
+        boolean chatModified;
+
+        ChatBatch getBatch(int event, int chatId) {
+            Long key = ((long)event << 32) | (chatId & 0xFFFFFFFFL);
+            ChatBatch batch = batchMap.get(key);
+            if (batch == null) {
+                batch = new ChatBatch(event, chatId);
+                batchMap.put(key, batch);
+                batches.add(batch);
+            }
+            return batch;
+        }
+
+        void addIncoming(int chatId, int msgId) {
+            if (incomingCnt + 2 > incoming.length) {
+                int[] newIncoming = new int[incoming.length*2];
+                System.arraycopy(incoming, 0, newIncoming, 0, incomingCnt);
+                incoming = newIncoming;
+            }
+            incoming[incomingCnt++] = chatId;
+            incoming[incomingCnt++] = msgId;
+        }
+    }
+
+    private final static Object s_sync = new Object();
+    private static Frame s_frame = null;
+
+    private final static Runnable s_flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Frame frame;
+            synchronized (s_sync) {
+                frame = s_frame;
+                s_frame = null;
+            }
+            if (frame != null) {
+                deliver(frame);
+            }
+        }
+    };
+
+    public static void setFrameWindow(int ms) {
+        s_frameWindowMs = Math.max(0, ms);
+    }
+
+    public static long getEventsReceived() {
+        return s_eventsReceived.get();
+    }
+
+    public static long getEventsDelivered() {
+        return s_eventsDelivered.get();
+    }
+
+    public static String getInfo() {
+        return "Events received/delivered: " + s_eventsReceived.get() + "/" + s_eventsDelivered.get();
+    }
+
+    /* called from MrMailbox.MrCallback(), may be called from any thread */
+    public static void add(int event, int data1, int data2) {
+        s_eventsReceived.incrementAndGet();
+        synchronized (s_sync) {
+            boolean schedule = (s_frame == null);
+            if (schedule) {
+                s_frame = new Frame();
+            }
+
+            switch (event) {
+                case MrMailbox.MR_EVENT_MSGS_CHANGED:
+                case MrMailbox.MR_EVENT_INCOMING_MSG:
+                case MrMailbox.MR_EVENT_MSG_DELIVERED:
+                case MrMailbox.MR_EVENT_MSG_READ:
+                    s_frame.getBatch(event, data1).add(data2);
+                    if (event == MrMailbox.MR_EVENT_INCOMING_MSG) {
+                        s_frame.addIncoming(data1, data2);
+                    }
+                    break;
+
+                case MrMailbox.MR_EVENT_CONTACTS_CHANGED:
+                    s_frame.contactsChanged = true;
+                    break;
+
+                case MrMailbox.MR_EVENT_CHAT_MODIFIED:
+                    s_frame.chatModified = true;
+                    break;
+            }
+
+            if (schedule) {
+                AndroidUtilities.runOnUIThread(s_flushRunnable, s_frameWindowMs);
+            }
+        }
+    }
+
+    private static void deliver(Frame frame) {
+        NotificationCenter nc = NotificationCenter.getInstance();
+        boolean dialogsChanged = frame.contactsChanged;
+
+        MrMailbox.reloadMainChatlist(); // once for the whole frame
+
+        for (ChatBatch batch : frame.batches) {
+            // args: event, chat id, message id if there is exactly one (0 otherwise), all message ids
+            if (batch.event == MrMailbox.MR_EVENT_MSGS_CHANGED || batch.event == MrMailbox.MR_EVENT_INCOMING_MSG) {
+                MrSearchIndex.getInstance().onMsgsChanged(batch.chatId, batch.all ? new int[0] : batch.getMsgIds());
+                post(nc, NotificationCenter.dialogsNeedReload, batch.event, batch.chatId, batch.getSingleMsgId(), batch.getMsgIds());
+            } else {
+                post(nc, NotificationCenter.messagesSentOrRead, batch.event, batch.chatId, batch.getSingleMsgId(), batch.getMsgIds());
+                dialogsChanged = true;
+            }
+        }
+
+        for (int i = 0; i < frame.incomingCnt; i += 2) {
+            NotificationsController.getInstance().processNewMessages(frame.incoming[i], frame.incoming[i+1]);
+        }
+
+        if (frame.contactsChanged) {
+            MrSearchIndex.getInstance().onContactsChanged();
+            post(nc, NotificationCenter.contactsDidLoaded);
+            post(nc, NotificationCenter.blockedUsersDidLoaded);
+        }
+
+        if (dialogsChanged) {
+            post(nc, NotificationCenter.dialogsNeedReload);
+        }
+
+        if (frame.chatModified) {
+            post(nc, NotificationCenter.updateInterfaces,
+                    MessagesController.UPDATE_MASK_NAME|MessagesController.UPDATE_MASK_CHAT_NAME|
+                    MessagesController.UPDATE_MASK_CHAT_MEMBERS|MessagesController.UPDATE_MASK_AVATAR);
+        }
+    }
+
+    private static void post(NotificationCenter nc, int id, Object... args) {
+        s_eventsDelivered.incrementAndGet();
+        nc.postNotificationName(id, args);
+    }
+}
@@ -28,54 +28,159 @@
 package com.b44t.messenger;
 
 
+import java.io.File;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 public class MrMailbox {
 
+    // latencies of the calls to the backend; every native function is called through one of the wrappers below, only the getters of MrMsg/MrChat/MrContact are called directly
+    private final static MrMetrics.Histogram s_jniOpen = MrMetrics.histogram("jni open");
+    private final static MrMetrics.Histogram s_jniClose = MrMetrics.histogram("jni close");
+    private final static MrMetrics.Histogram s_jniGetBlobdir = MrMetrics.histogram("jni getBlobdir");
+    private final static MrMetrics.Histogram s_jniConfigure = MrMetrics.histogram("jni configure");
+    private final static MrMetrics.Histogram s_jniIsConfigured = MrMetrics.histogram("jni isConfigured");
+    private final static MrMetrics.Histogram s_jniConnect = MrMetrics.histogram("jni connect");
+    private final static MrMetrics.Histogram s_jniDisconnect = MrMetrics.histogram("jni disconnect");
+    private final static MrMetrics.Histogram s_jniFetch = MrMetrics.histogram("jni fetch");
+    private final static MrMetrics.Histogram s_jniGetErrorDescr = MrMetrics.histogram("jni getErrorDescr");
+    private final static MrMetrics.Histogram s_jniSetConfig = MrMetrics.histogram("jni setConfig");
+    private final static MrMetrics.Histogram s_jniGetConfig = MrMetrics.histogram("jni getConfig");
+    private final static MrMetrics.Histogram s_jniGetConfigInt = MrMetrics.histogram("jni getConfigInt");
+    private final static MrMetrics.Histogram s_jniGetInfo = MrMetrics.histogram("jni getInfo");
+    private final static MrMetrics.Histogram s_jniCmdline = MrMetrics.histogram("jni cmdline");
+    private final static MrMetrics.Histogram s_jniGetKnownContacts = MrMetrics.histogram("jni getKnownContacts");
+    private final static MrMetrics.Histogram s_jniGetBlockedCount = MrMetrics.histogram("jni getBlockedCount");
+    private final static MrMetrics.Histogram s_jniGetBlockedContacts = MrMetrics.histogram("jni getBlockedContacts");
+    private final static MrMetrics.Histogram s_jniGetContact = MrMetrics.histogram("jni getContact");
+    private final static MrMetrics.Histogram s_jniCreateContact = MrMetrics.histogram("jni createContact");
+    private final static MrMetrics.Histogram s_jniBlockContact = MrMetrics.histogram("jni blockContact");
+    private final static MrMetrics.Histogram s_jniDeleteContact = MrMetrics.histogram("jni deleteContact");
+    private final static MrMetrics.Histogram s_jniAddAddressBook = MrMetrics.histogram("jni addAddressBook");
+    private final static MrMetrics.Histogram s_jniGetChatlist = MrMetrics.histogram("jni getChatlist");
+    private final static MrMetrics.Histogram s_jniGetChat = MrMetrics.histogram("jni getChat");
+    private final static MrMetrics.Histogram s_jniMarkseenMsg = MrMetrics.histogram("jni markseenMsg");
+    private final static MrMetrics.Histogram s_jniMarkseenChat = MrMetrics.histogram("jni markseenChat");
+    private final static MrMetrics.Histogram s_jniGetChatIdByContactId = MrMetrics.histogram("jni getChatIdByContactId");
+    private final static MrMetrics.Histogram s_jniCreateChatByContactId = MrMetrics.histogram("jni createChatByContactId");
+    private final static MrMetrics.Histogram s_jniCreateGroupChat = MrMetrics.histogram("jni createGroupChat");
+    private final static MrMetrics.Histogram s_jniIsContactInChat = MrMetrics.histogram("jni isContactInChat");
+    private final static MrMetrics.Histogram s_jniAddContactToChat = MrMetrics.histogram("jni addContactToChat");
+    private final static MrMetrics.Histogram s_jniRemoveContactFromChat = MrMetrics.histogram("jni removeContactFromChat");
+    private final static MrMetrics.Histogram s_jniSetChatName = MrMetrics.histogram("jni setChatName");
+    private final static MrMetrics.Histogram s_jniGetChatMsgs = MrMetrics.histogram("jni getChatMsgs");
+    private final static MrMetrics.Histogram s_jniSearchMsgs = MrMetrics.histogram("jni searchMsgs");
+    private final static MrMetrics.Histogram s_jniGetUnseenMsgs = MrMetrics.histogram("jni getUnseenMsgs");
+    private final static MrMetrics.Histogram s_jniGetChatMedia = MrMetrics.histogram("jni getChatMedia");
+    private final static MrMetrics.Histogram s_jniGetChatContacts = MrMetrics.histogram("jni getChatContacts");
+    private final static MrMetrics.Histogram s_jniDeleteChat = MrMetrics.histogram("jni deleteChat");
+    private final static MrMetrics.Histogram s_jniGetMsg = MrMetrics.histogram("jni getMsg");
+    private final static MrMetrics.Histogram s_jniGetMsgsBatch = MrMetrics.histogram("jni getMsgsBatch");
+    private final static MrMetrics.Histogram s_jniGetMsgInfo = MrMetrics.histogram("jni getMsgInfo");
+    private final static MrMetrics.Histogram s_jniDeleteMsgs = MrMetrics.histogram("jni deleteMsgs");
+    private final static MrMetrics.Histogram s_jniForwardMsgs = MrMetrics.histogram("jni forwardMsgs");
+    private final static MrMetrics.Histogram s_jniGetVersionStr = MrMetrics.histogram("jni getVersionStr");
+
     public static void init () {
         m_hMailbox = MrMailboxNew();
     }
 
-    public native static int    open(String dbfile);
-    public native static void   close();
-    public native static String getBlobdir();
+    public static int open(String dbfile) {
+        long start = System.nanoTime();
+        int ret = MrMailboxOpen(m_hMailbox, dbfile);
+        s_jniOpen.recordSince(start);
+        return ret;
+    }
+
+    public static void close() {
+        long start = System.nanoTime();
+        MrMailboxClose(m_hMailbox);
+        s_jniClose.recordSince(start);
+    }
+
+    public static String getBlobdir() {
+        long start = System.nanoTime();
+        String ret = MrMailboxGetBlobdir(m_hMailbox);
+        s_jniGetBlobdir.recordSince(start);
+        return ret;
+    }
 
     public static int configure() {
-        return MrMailboxConfigure(m_hMailbox);
+        long start = System.nanoTime();
+        int ret = MrMailboxConfigure(m_hMailbox);
+        s_jniConfigure.recordSince(start);
+        return ret;
     }
 
     public static int isConfigured() {
-        return MrMailboxIsConfigured(m_hMailbox);
+        long start = System.nanoTime();
+        int ret = MrMailboxIsConfigured(m_hMailbox);
+        s_jniIsConfigured.recordSince(start);
+        return ret;
     }
 
     public static int connect() {
-        return MrMailboxConnect(m_hMailbox);
+        long start = System.nanoTime();
+        int ret = MrMailboxConnect(m_hMailbox);
+        s_jniConnect.recordSince(start);
+        return ret;
     }
 
     public static void disconnect() {
+        long start = System.nanoTime();
         MrMailboxDisconnect(m_hMailbox);
+        s_jniDisconnect.recordSince(start);
     }
 
     public static int fetch() {
-        return MrMailboxFetch(m_hMailbox);
+        long start = System.nanoTime();
+        int ret = MrMailboxFetch(m_hMailbox);
+        s_jniFetch.recordSince(start);
+        return ret;
     }
 
-    public native static String getErrorDescr();
+    public static String getErrorDescr() {
+        long start = System.nanoTime();
+        String ret = MrMailboxGetErrorDescr(m_hMailbox);
+        s_jniGetErrorDescr.recordSince(start);
+        return ret;
+    }
 
     public static int setConfig(String key, String value) {
-        return MrMailboxSetConfig(m_hMailbox, key, value);
+        long start = System.nanoTime();
+        int ret = MrMailboxSetConfig(m_hMailbox, key, value);
+        s_jniSetConfig.recordSince(start);
+        return ret;
     }
 
     public static String getConfig(String key, String def) {
-        return MrMailboxGetConfig(m_hMailbox, key, def);
+        long start = System.nanoTime();
+        String ret = MrMailboxGetConfig(m_hMailbox, key, def);
+        s_jniGetConfig.recordSince(start);
+        return ret;
     }
 
     public static int getConfigInt(String key, int def) {
-        return MrMailboxGetConfigInt(m_hMailbox, key, def);
+        long start = System.nanoTime();
+        int ret = MrMailboxGetConfigInt(m_hMailbox, key, def);
+        s_jniGetConfigInt.recordSince(start);
+        return ret;
+    }
+
+    public static String getInfo() {
+        long start = System.nanoTime();
+        String ret = MrMailboxGetInfo(m_hMailbox);
+        s_jniGetInfo.recordSince(start);
+        return ret;
     }
 
-    public native static String getInfo();
-    public native static String cmdline(String cmd);
+    public static String cmdline(String cmd) {
+        long start = System.nanoTime();
+        String ret = MrMailboxCmdline(m_hMailbox, cmd);
+        s_jniCmdline.recordSince(start);
+        return ret;
+    }
 
-    private static long           m_hMailbox = 0; // do not rename this, is used in C-part
+    private static long           m_hMailbox = 0;
     private native static long    MrMailboxNew               (); // returns hMailbox which must be unref'd after usage (Names as mrmailbox_new don't work due to the additional underscore)
     private native static int     MrMailboxConfigure         (long hMailbox);
     private native static int     MrMailboxIsConfigured      (long hMailbox);
@@ -85,30 +190,68 @@ public class MrMailbox {
     private native static int     MrMailboxSetConfig         (long hMailbox, String key, String value); // value may be NULL
     private native static String  MrMailboxGetConfig         (long hMailbox, String key, String def); // def may be NULL, returns empty string as NULL
     private native static int     MrMailboxGetConfigInt      (long hMailbox, String key, int def); // def may be NULL, returns empty string as NULL
+    private native static int     MrMailboxOpen              (long hMailbox, String dbfile);
+    private native static void    MrMailboxClose             (long hMailbox);
+    private native static String  MrMailboxGetBlobdir        (long hMailbox);
+    private native static String  MrMailboxGetErrorDescr     (long hMailbox);
+    private native static String  MrMailboxGetInfo           (long hMailbox);
+    private native static String  MrMailboxCmdline           (long hMailbox, String cmd);
 
     // contacts
-    public native static int[] getKnownContacts(String query);
-    public native static int   getBlockedCount();
-    public native static int[] getBlockedContacts();
+    public static int[] getKnownContacts(String query) {
+        long start = System.nanoTime();
+        int[] ret = MrMailboxGetKnownContacts(m_hMailbox, query);
+        s_jniGetKnownContacts.recordSince(start);
+        return ret;
+    }
+
+    public static int getBlockedCount() {
+        long start = System.nanoTime();
+        int ret = MrMailboxGetBlockedCount(m_hMailbox);
+        s_jniGetBlockedCount.recordSince(start);
+        return ret;
+    }
+
+    public static int[] getBlockedContacts() {
+        long start = System.nanoTime();
+        int[] ret = MrMailboxGetBlockedContacts(m_hMailbox);
+        s_jniGetBlockedContacts.recordSince(start);
+        return ret;
+    }
 
     public static MrContact getContact(int contact_id) {
-        return new MrContact(MrMailboxGetContact(m_hMailbox, contact_id));
+        long start = System.nanoTime();
+        MrContact ret = new MrContact(MrMailboxGetContact(m_hMailbox, contact_id));
+        s_jniGetContact.recordSince(start);
+        return ret;
     }
 
     public static int createContact(String name, String addr) {
-        return MrMailboxCreateContact(m_hMailbox, name, addr);
+        long start = System.nanoTime();
+        int ret = MrMailboxCreateContact(m_hMailbox, name, addr);
+        s_jniCreateContact.recordSince(start);
+        return ret;
     }
 
     public static int blockContact(int id, int block) {
-        return MrMailboxBlockContact(m_hMailbox, id, block);
+        long start = System.nanoTime();
+        int ret = MrMailboxBlockContact(m_hMailbox, id, block);
+        s_jniBlockContact.recordSince(start);
+        return ret;
     }
 
     public static int deleteContact(int id) {
-        return MrMailboxDeleteContact(m_hMailbox, id);
+        long start = System.nanoTime();
+        int ret = MrMailboxDeleteContact(m_hMailbox, id);
+        s_jniDeleteContact.recordSince(start);
+        return ret;
     }
 
     public static int addAddressBook(String adrbook) {
-        return MrMailboxAddAddressBook(m_hMailbox, adrbook);
+        long start = System.nanoTime();
+        int ret = MrMailboxAddAddressBook(m_hMailbox, adrbook);
+        s_jniAddAddressBook.recordSince(start);
+        return ret;
     }
 
     private native static long    MrMailboxGetContact        (long hMailbox, int id);// returns hContact which must be unref'd after usage
@@ -116,72 +259,216 @@ public class MrMailbox {
     private native static int     MrMailboxBlockContact      (long hMailbox, int id, int block);
     private native static int     MrMailboxDeleteContact     (long hMailbox, int id); // returns 0 if the contact could not be deleted (eg. it is in use, maybe by deaddrop)
     private native static int     MrMailboxAddAddressBook    (long hMailbox, String adrbook);
+    private native static int[]   MrMailboxGetKnownContacts  (long hMailbox, String query);
+    private native static int     MrMailboxGetBlockedCount   (long hMailbox);
+    private native static int[]   MrMailboxGetBlockedContacts(long hMailbox);
 
 
     // chats
     public static MrChatlist getChatlist(String query) {
-        return new MrChatlist(MrMailboxGetChatlist(m_hMailbox, query));
+        long start = System.nanoTime();
+        MrChatlist ret = new MrChatlist(MrMailboxGetChatlist(m_hMailbox, query));
+        s_jniGetChatlist.recordSince(start);
+        return ret;
     }
 
     public static MrChat getChat(int chat_id) {
-        return new MrChat(MrMailboxGetChat(m_hMailbox, chat_id));
+        long start = System.nanoTime();
+        MrChat ret = new MrChat(MrMailboxGetChat(m_hMailbox, chat_id));
+        s_jniGetChat.recordSince(start);
+        return ret;
     }
 
-    public native static int    markseenMsg        (int msg_id);
-    public native static int    markseenChat       (int chat_id);
+    public static int markseenMsg(int msg_id) {
+        long start = System.nanoTime();
+        int ret = MrMailboxMarkseenMsg(m_hMailbox, msg_id);
+        s_jniMarkseenMsg.recordSince(start);
+        return ret;
+    }
 
-    public static int getChatIdByContactId (int contact_id) {
-        return MrMailboxGetChatIdByContactId(m_hMailbox, contact_id);
+    public static int markseenChat(int chat_id) {
+        long start = System.nanoTime();
+        int ret = MrMailboxMarkseenChat(m_hMailbox, chat_id);
+        s_jniMarkseenChat.recordSince(start);
+        return ret;
+    }
+
+    public static int getChatIdByContactId(int contact_id) {
+        long start = System.nanoTime();
+        int ret = MrMailboxGetChatIdByContactId(m_hMailbox, contact_id);
+        s_jniGetChatIdByContactId.recordSince(start);
+        return ret;
     }
 
     public static int createChatByContactId(int contact_id) {
-        return MrMailboxCreateChatByContactId(m_hMailbox, contact_id);
+        long start = System.nanoTime();
+        int ret = MrMailboxCreateChatByContactId(m_hMailbox, contact_id);
+        s_jniCreateChatByContactId.recordSince(start);
+        return ret;
     }
 
-    public native static int createGroupChat       (String name);
-    public native static int isContactInChat       (int chat_id, int contact_id);
-    public native static int addContactToChat      (int chat_id, int contact_id);
-    public native static int removeContactFromChat (int chat_id, int contact_id);
-    public native static int setChatName           (int chat_id, String name);
+    public static int createGroupChat(String name) {
+        long start = System.nanoTime();
+        int ret = MrMailboxCreateGroupChat(m_hMailbox, name);
+        s_jniCreateGroupChat.recordSince(start);
+        return ret;
+    }
+
+    public static int isContactInChat(int chat_id, int contact_id) {
+        long start = System.nanoTime();
+        int ret = MrMailboxIsContactInChat(m_hMailbox, chat_id, contact_id);
+        s_jniIsContactInChat.recordSince(start);
+        return ret;
+    }
+
+    public static int addContactToChat(int chat_id, int contact_id) {
+        long start = System.nanoTime();
+        int ret = MrMailboxAddContactToChat(m_hMailbox, chat_id, contact_id);
+        s_jniAddContactToChat.recordSince(start);
+        return ret;
+    }
+
+    public static int removeContactFromChat(int chat_id, int contact_id) {
+        long start = System.nanoTime();
+        int ret = MrMailboxRemoveContactFromChat(m_hMailbox, chat_id, contact_id);
+        s_jniRemoveContactFromChat.recordSince(start);
+        return ret;
+    }
+
+    public static int setChatName(int chat_id, String name) {
+        long start = System.nanoTime();
+        int ret = MrMailboxSetChatName(m_hMailbox, chat_id, name);
+        s_jniSetChatName.recordSince(start);
+        return ret;
+    }
 
     public final static int MR_GCM_ADDDAYMARKER = 0x01;
-    public native static int[] getChatMsgs(int chat_id, int flags, int marker1before);
+    public static int[] getChatMsgs(int chat_id, int flags, int marker1before) {
+        long start = System.nanoTime();
+        int[] ret = MrMailboxGetChatMsgs(m_hMailbox, chat_id, flags, marker1before);
+        s_jniGetChatMsgs.recordSince(start);
+        return ret;
+    }
 
-    public native static int[] searchMsgs(int chat_id, String query);
+    public static int[] searchMsgs(int chat_id, String query) {
+        long start = System.nanoTime();
+        int[] ret = MrMailboxSearchMsgs(m_hMailbox, chat_id, query);
+        s_jniSearchMsgs.recordSince(start);
+        return ret;
+    }
 
-    public native static int[] getUnseenMsgs();
+    public static int[] getUnseenMsgs() {
+        long start = System.nanoTime();
+        int[] ret = MrMailboxGetUnseenMsgs(m_hMailbox);
+        s_jniGetUnseenMsgs.recordSince(start);
+        return ret;
+    }
 
     public static int[] getChatMedia(int chat_id, int msg_type, int or_msg_type) {
-        return MrMailboxGetChatMedia(m_hMailbox, chat_id, msg_type, or_msg_type);
+        long start = System.nanoTime();
+        int[] ret = MrMailboxGetChatMedia(m_hMailbox, chat_id, msg_type, or_msg_type);
+        s_jniGetChatMedia.recordSince(start);
+        return ret;
     }
 
-    public native static int[] getChatContacts(int chat_id);
-    public native static int deleteChat(int chat_id);
+    public static int[] getChatContacts(int chat_id) {
+        long start = System.nanoTime();
+        int[] ret = MrMailboxGetChatContacts(m_hMailbox, chat_id);
+        s_jniGetChatContacts.recordSince(start);
+        return ret;
+    }
+
+    public static int deleteChat(int chat_id) {
+        long start = System.nanoTime();
+        int ret = MrMailboxDeleteChat(m_hMailbox, chat_id);
+        s_jniDeleteChat.recordSince(start);
+        return ret;
+    }
 
     private native static long    MrMailboxGetChatlist       (long hMailbox, String query); // returns hChatlist which must be unref'd after usage
     private native static long    MrMailboxGetChat           (long hMailbox, int chat_id); // return hChat which must be unref'd after usage
     private native static int     MrMailboxGetChatIdByContactId (long hMailbox, int contact_id);
     private native static int     MrMailboxCreateChatByContactId(long hMailbox, int contact_id); // returns chat_id
     private native static int[]   MrMailboxGetChatMedia      (long hMailbox, int chat_id, int msg_type, int or_msg_type);
+    private native static int[]   MrMailboxGetChatMsgs       (long hMailbox, int chat_id, int flags, int marker1before);
+    private native static int[]   MrMailboxSearchMsgs        (long hMailbox, int chat_id, String query);
+    private native static int[]   MrMailboxGetUnseenMsgs     (long hMailbox);
+    private native static int     MrMailboxMarkseenChat      (long hMailbox, int chat_id);
+    private native static int     MrMailboxCreateGroupChat   (long hMailbox, String name);
+    private native static int     MrMailboxIsContactInChat   (long hMailbox, int chat_id, int contact_id);
+    private native static int     MrMailboxAddContactToChat  (long hMailbox, int chat_id, int contact_id);
+    private native static int     MrMailboxRemoveContactFromChat(long hMailbox, int chat_id, int contact_id);
+    private native static int     MrMailboxSetChatName       (long hMailbox, int chat_id, String name);
+    private native static int[]   MrMailboxGetChatContacts   (long hMailbox, int chat_id);
+    private native static int     MrMailboxDeleteChat        (long hMailbox, int chat_id);
 
 
     // msgs
     public static MrMsg getMsg(int msg_id) {
-        return new MrMsg(MrMailboxGetMsg(m_hMailbox, msg_id));
+        long start = System.nanoTime();
+        MrMsg ret = new MrMsg(MrMailboxGetMsg(m_hMailbox, msg_id));
+        s_jniGetMsg.recordSince(start);
+        return ret;
+    }
+
+    public static MrMsgBatch getMsgsBatch(int[] msg_ids) {
+        return getMsgsBatch(msg_ids, 0, msg_ids.length, false);
+    }
+
+    public static MrMsgBatch getMsgsBatch(int[] msg_ids, int offset, int cnt, boolean withSummaries) {
+        // load a page of messages with a single JNI call instead of one getMsg() plus one call per getter
+        offset = Math.max(0, Math.min(offset, msg_ids.length));
+        cnt = Math.max(0, Math.min(cnt, msg_ids.length - offset));
+        MrMsgBatch batch = new MrMsgBatch(offset, cnt, withSummaries);
+        if( cnt > 0 ) {
+            long start = System.nanoTime();
+            MrMailboxGetMsgsBatch(m_hMailbox, msg_ids, offset, cnt, batch.ids, batch.chatIds, batch.timestamps,
+                    batch.types, batch.states, batch.fromIds, batch.toIds, batch.bytes, batch.texts, batch.fwdNames,
+                    batch.summaryTitles, batch.summaryTitleMeanings, batch.summaryTexts);
+            s_jniGetMsgsBatch.recordSince(start);
+        }
+        return batch;
     }
 
     public static String getMsgInfo(int id) {
-        return MrMailboxGetMsgInfo(m_hMailbox, id);
+        long start = System.nanoTime();
+        String ret = MrMailboxGetMsgInfo(m_hMailbox, id);
+        s_jniGetMsgInfo.recordSince(start);
+        return ret;
     }
 
-    public native static void deleteMsgs(int msg_ids[]);
-    public native static void forwardMsgs(int msg_ids[], int chat_ids);
+    public static void deleteMsgs(int msg_ids[]) {
+        long start = System.nanoTime();
+        MrMailboxDeleteMsgs(m_hMailbox, msg_ids);
+        s_jniDeleteMsgs.recordSince(start);
+    }
+
+    public static void forwardMsgs(int msg_ids[], int chat_ids) {
+        long start = System.nanoTime();
+        MrMailboxForwardMsgs(m_hMailbox, msg_ids, chat_ids);
+        s_jniForwardMsgs.recordSince(start);
+    }
 
     private native static long    MrMailboxGetMsg            (long hMailbox, int id); // return hMsg which must be unref'd after usage
     private native static String  MrMailboxGetMsgInfo        (long hMailbox, int id);
+    private native static int     MrMailboxMarkseenMsg       (long hMailbox, int id);
+    private native static void    MrMailboxDeleteMsgs        (long hMailbox, int msg_ids[]);
+    private native static void    MrMailboxForwardMsgs       (long hMailbox, int msg_ids[], int chat_id);
+    private native static void    MrMailboxGetMsgsBatch      (long hMailbox, int[] msg_ids, int offset, int cnt, int[] ret_ids, int[] ret_chat_ids, long[] ret_timestamps,
+                                                              int[] ret_types, int[] ret_states, int[] ret_from_ids, int[] ret_to_ids, int[] ret_bytes,
+                                                              String[] ret_texts, String[] ret_fwd_names,
+                                                              String[] ret_summary_titles, int[] ret_summary_title_meanings, String[] ret_summary_texts); // the summary arrays may be null
 
     // static
-    public native static String   MrGetVersionStr            ();
+    public static String MrGetVersionStr() {
+        long start = System.nanoTime();
+        String ret = MrMailboxGetVersionStr();
+        s_jniGetVersionStr.recordSince(start);
+        return ret;
+    }
+
+    private native static String  MrMailboxGetVersionStr     ();
+    // the tools below do not call into the backend
     public native static String   CPtr2String                (long hString); // get strings eg. from data1 from the callback
     public native static long     String2CPtr                (String str);
 
@@ -215,52 +502,12 @@ public class MrMailbox {
 
             case MR_EVENT_MSGS_CHANGED:
             case MR_EVENT_INCOMING_MSG:
-                AndroidUtilities.runOnUIThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        reloadMainChatlist();
-                        NotificationCenter.getInstance().postNotificationName(NotificationCenter.dialogsNeedReload, event, (int)data1, (int)data2);
-                        if( event == MR_EVENT_INCOMING_MSG ) {
-                            NotificationsController.getInstance().processNewMessages((int)data1, (int)data2);
-                        }
-                    }
-                });
-                return 0;
-
             case MR_EVENT_MSG_DELIVERED:
             case MR_EVENT_MSG_READ:
-                AndroidUtilities.runOnUIThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        reloadMainChatlist();
-                        NotificationCenter.getInstance().postNotificationName(NotificationCenter.messagesSentOrRead, event, (int)data1, (int)data2);
-                        NotificationCenter.getInstance().postNotificationName(NotificationCenter.dialogsNeedReload);
-                    }
-                });
-                return 0;
-
             case MR_EVENT_CONTACTS_CHANGED:
-                AndroidUtilities.runOnUIThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        reloadMainChatlist();
-                        NotificationCenter.getInstance().postNotificationName(NotificationCenter.contactsDidLoaded);
-                        NotificationCenter.getInstance().postNotificationName(NotificationCenter.blockedUsersDidLoaded);
-                        NotificationCenter.getInstance().postNotificationName(NotificationCenter.dialogsNeedReload);
-                    }
-                });
-                return 0;
-
             case MR_EVENT_CHAT_MODIFIED:
-                AndroidUtilities.runOnUIThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        reloadMainChatlist();
-                        NotificationCenter.getInstance().postNotificationName(NotificationCenter.updateInterfaces,
-                                MessagesController.UPDATE_MASK_NAME|MessagesController.UPDATE_MASK_CHAT_NAME|
-                                MessagesController.UPDATE_MASK_CHAT_MEMBERS|MessagesController.UPDATE_MASK_AVATAR);
-                    }
-                });
+                // during a sync, these events may come in by hundreds; they're merged and delivered once per frame
+                MrEventCoalescer.add(event, (int)data1, (int)data2);
                 return 0;
 
             case MR_EVENT_REPORT:
@@ -311,11 +558,87 @@ public class MrMailbox {
     /* additional functions that are not 1:1 available in the backend
      **********************************************************************************************/
 
-    public static MrChatlist     m_currChatlist = new MrChatlist(0);
+    public static MrChatlistSnapshot m_currChatlist = MrChatlistSnapshot.EMPTY; // only accessed from the UI thread
     public native static int     getCurrentTime             ();
+
+    private static final DispatchQueue  s_chatlistQueue = new DispatchQueue("chatlistQueue");
+    private static final AtomicBoolean  s_chatlistReloadPending = new AtomicBoolean(false);
+    private static MrChatlistSnapshot   s_chatlistWorkerSnapshot = MrChatlistSnapshot.EMPTY; // only accessed from s_chatlistQueue
+
+    public interface ChatlistPreprocessor {
+        void prepare(MrChatlistSnapshot snapshot); // called from the chatlist queue before the UI gets the snapshot
+    }
+    private static volatile ChatlistPreprocessor s_chatlistPreprocessor;
+
+    public static void setChatlistPreprocessor(ChatlistPreprocessor preprocessor)
+    {
+        // the UI may prepare the rows of a new snapshot in the background, eg. build the layouts
+        s_chatlistPreprocessor = preprocessor;
+    }
+
     public static void reloadMainChatlist()
     {
-        m_currChatlist = getChatlist(null);
+        // the snapshot is built and compared on a background queue; several calls before the queue
+        // gets active result in a single reload. When done, mainChatlistChanged is posted with the old
+        // snapshot, the new snapshot and the diff between them.
+        if( !s_chatlistReloadPending.compareAndSet(false, true) ) {
+            return;
+        }
+        s_chatlistQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                ApplicationLoader.awaitMailboxOpened(); // until then, the chatlist of the last run is shown
+                s_chatlistReloadPending.set(false);
+                final MrChatlistSnapshot newSnapshot, oldSnapshot = s_chatlistWorkerSnapshot;
+                final MrChatlistSnapshot.Diff diff;
+                try {
+                    MrChatlist chatlist = getChatlist(null);
+                    newSnapshot = MrChatlistSnapshot.create(chatlist);
+                    chatlist.close();
+                    MrSearchIndex.getInstance().updateChats(newSnapshot);
+                    diff = MrChatlistSnapshot.calcDiff(oldSnapshot, newSnapshot);
+                } catch (Exception e) {
+                    FileLog.e("messenger", e);
+                    return;
+                }
+                s_chatlistWorkerSnapshot = newSnapshot;
+                if (!diff.isEmpty()) {
+                    newSnapshot.saveFirstScreen(getFirstScreenFile());
+                }
+                ChatlistPreprocessor preprocessor = s_chatlistPreprocessor;
+                if (preprocessor != null) {
+                    try {
+                        preprocessor.prepare(newSnapshot);
+                    } catch (Exception e) {
+                        FileLog.e("messenger", e);
+                    }
+                }
+                AndroidUtilities.runOnUIThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        m_currChatlist = newSnapshot;
+                        NotificationCenter.getInstance().postNotificationName(NotificationCenter.mainChatlistChanged, oldSnapshot, newSnapshot, diff);
+                    }
+                });
+            }
+        });
+    }
+
+    public static File getFirstScreenFile() {
+        return new File(ApplicationLoader.getFilesDirFixed(), "chatlist.cache");
+    }
+
+    public static void initMainChatlist(final MrChatlistSnapshot cached)
+    {
+        // show the chatlist saved on the last run until the first real snapshot is ready;
+        // must be called from the UI thread before the first reloadMainChatlist()
+        m_currChatlist = cached;
+        s_chatlistQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                s_chatlistWorkerSnapshot = cached;
+            }
+        });
     }
 
     public final static int MEDIA_PHOTOVIDEO = 0;
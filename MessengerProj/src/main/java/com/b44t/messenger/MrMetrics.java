@@ -0,0 +1,234 @@
+/*******************************************************************************
+ *
+ *                          Messenger Android Frontend
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    MrMetrics.java
+ * Purpose: Counters and latency histograms of the Java side, shown together
+ *          with the statistics of the caches and queues in the about dialog
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class MrMetrics {
+
+    public static class Counter {
+        private final String     m_name;
+        private final AtomicLong m_value = new AtomicLong();
+
+        private Counter(String name) {
+            m_name = name;
+        }
+
+        public void add(long delta) {
+            m_value.addAndGet(delta);
+        }
+
+        public long get() {
+            return m_value.get();
+        }
+    }
+
+    /* latencies in fixed buckets; the upper bounds are in microseconds, the last bucket takes the rest */
+    public static class Histogram {
+        private final static long[] BOUNDS_US = { 100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000 };
+
+        private final String m_name;
+        private final long[] m_buckets = new long[BOUNDS_US.length + 1]; // all guarded by this
+        private long         m_count;
+        private long         m_totalNs;
+        private long         m_maxNs;
+
+        private Histogram(String name) {
+            m_name = name;
+        }
+
+        /* record the time since startNs, taken from System.nanoTime() */
+        public void recordSince(long startNs) {
+            record(System.nanoTime() - startNs);
+        }
+
+        public synchronized void record(long ns) {
+            long us = ns / 1000;
+            int bucket = 0;
+            while (bucket < BOUNDS_US.length && us > BOUNDS_US[bucket]) {
+                bucket++;
+            }
+            m_buckets[bucket]++;
+            m_count++;
+            m_totalNs += ns;
+            m_maxNs = Math.max(m_maxNs, ns);
+        }
+
+        /* the upper bound of the bucket holding the given share of the calls, 0.5 for the median */
+        private long percentileUs(double share) {
+            long wanted = (long) Math.ceil(m_count * share), seen = 0;
+            for (int i = 0; i < BOUNDS_US.length; i++) {
+                seen += m_buckets[i];
+                if (seen >= wanted) {
+                    return BOUNDS_US[i];
+                }
+            }
+            return m_maxNs / 1000;
+        }
+
+        private synchronized void appendTo(StringBuilder ret) {
+            ret.append(m_name).append(": ").append(m_count).append("x");
+            if (m_count > 0) {
+                ret.append(", avg ").append(m_totalNs / m_count / 1000)
+                   .append(" µs, p50 <").append(percentileUs(0.5))
+                   .append(" µs, p95 <").append(percentileUs(0.95))
+                   .append(" µs, max ").append(m_maxNs / 1000).append(" µs");
+            }
+        }
+    }
+
+    /* counts the frames dropped while a view is shown, from the time between two frames; as the
+    callback for every frame keeps the display clock running, this is done in debug builds only */
+    public static class FrameMonitor {
+        private final static long FRAME_NS = 16666667L;
+
+        private final Counter m_frames;
+        private final Counter m_dropped;
+        private Object        m_callback; // a Choreographer.FrameCallback, not referenced by type to allow API 14
+        private long          m_lastFrameNs;
+        private boolean       m_running;
+        private boolean       m_posted;
+
+        private FrameMonitor(String name) {
+            m_frames = counter(name + " frames");
+            m_dropped = counter(name + " frames dropped");
+        }
+
+        /* call from the UI thread, eg. in onResume() */
+        public void start() {
+            if (m_running || !BuildVars.DEBUG_VERSION || Build.VERSION.SDK_INT < 16) {
+                return;
+            }
+            m_running = true;
+            m_lastFrameNs = 0;
+            if (!m_posted) { // a callback of a previous start() may still be pending
+                m_posted = true;
+                postFrameCallback();
+            }
+        }
+
+        /* call from the UI thread, eg. in onPause() */
+        public void stop() {
+            m_running = false;
+        }
+
+        @TargetApi(16)
+        private void postFrameCallback() {
+            if (m_callback == null) {
+                m_callback = new Choreographer.FrameCallback() {
+                    @Override
+                    public void doFrame(long frameTimeNanos) {
+                        if (!m_running) {
+                            m_posted = false;
+                            return;
+                        }
+                        // gaps of a second and more are not counted, the activity was probably paused
+                        if (m_lastFrameNs != 0) {
+                            long frames = (frameTimeNanos - m_lastFrameNs + FRAME_NS / 2) / FRAME_NS;
+                            if (frames > 1 && frames < 60) {
+                                m_dropped.add(frames - 1);
+                            }
+                        }
+                        m_frames.add(1);
+                        m_lastFrameNs = frameTimeNanos;
+                        Choreographer.getInstance().postFrameCallback(this);
+                    }
+                };
+            }
+            Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) m_callback);
+        }
+    }
+
+    private final static ArrayList<Counter>   s_counters = new ArrayList<>();   // guarded by s_counters
+    private final static ArrayList<Histogram> s_histograms = new ArrayList<>(); // guarded by s_counters
+
+    /* returns the counter of the given name, created on first use */
+    public static Counter counter(String name) {
+        synchronized (s_counters) {
+            for (Counter counter : s_counters) {
+                if (counter.m_name.equals(name)) {
+                    return counter;
+                }
+            }
+            Counter counter = new Counter(name);
+            s_counters.add(counter);
+            return counter;
+        }
+    }
+
+    public static Histogram histogram(String name) {
+        Histogram histogram = new Histogram(name);
+        synchronized (s_counters) {
+            s_histograms.add(histogram);
+        }
+        return histogram;
+    }
+
+    /* the monitors of the same name share their counters */
+    public static FrameMonitor frameMonitor(String name) {
+        return new FrameMonitor(name);
+    }
+
+    public static String getInfo() {
+        StringBuilder ret = new StringBuilder("Metrics:");
+        synchronized (s_counters) {
+            for (Counter counter : s_counters) {
+                ret.append("\n").append(counter.m_name).append(": ").append(counter.get());
+            }
+            for (Histogram histogram : s_histograms) {
+                ret.append("\n");
+                histogram.appendTo(ret);
+            }
+        }
+        return ret.toString();
+    }
+
+    /* all statistics of the Java side and the backend, as shown in the about dialog */
+    public static String getDashboard() {
+        return MrMailbox.getInfo()
+            + "\n\n" + getInfo()
+            + "\n\n" + MrReclaimer.getInfo()
+            + "\n\n" + MrEventCoalescer.getInfo()
+            + "\n\n" + MrSearchIndex.getInstance().getInfo()
+            + "\n\n" + WaveformStore.getInstance().getInfo()
+            + "\n\n" + DispatchQueue.getAllInfo()
+            + "\n\n" + ContactsController.getAvatarCacheInfo()
+            + "\n\n" + ImageLoader.getInstance().getDecodeInfo();
+    }
+
+    /* write the dashboard to the log file, for debugging on devices in the field */
+    public static void exportToLog() {
+        FileLog.d("messenger", "-----metrics-----\n" + getDashboard() + "\n-----end metrics-----");
+    }
+}
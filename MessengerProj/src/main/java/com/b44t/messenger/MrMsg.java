@@ -29,7 +29,9 @@ package com.b44t.messenger;
 
 import android.util.Log;
 
-public class MrMsg {
+import java.io.Closeable;
+
+public class MrMsg implements Closeable {
 
     private static final String TAG = "MrMsg";
 
@@ -52,14 +54,17 @@ public class MrMsg {
 
     public final static int      MR_MSG_ID_MARKER1    = 1;
     public final static int      MR_MSG_ID_DAYMARKER  = 9;
+    public final static int      MR_MSG_ID_LAST_SPECIAL = 9;
 
     public MrMsg(long hMsg) {
         m_hMsg = hMsg;
+        m_ref = new MrReclaimer.Ref(this, MrReclaimer.TYPE_MSG, hMsg);
     }
 
-    @Override protected void finalize() throws Throwable {
-        super.finalize();
-        MrMsgUnref(m_hMsg);
+    @Override public void close() {
+        // release the C-handle now instead of waiting for the garbage collector
+        m_hMsg = 0;
+        m_ref.release();
     }
 
     public int getId() {
@@ -105,7 +110,8 @@ public class MrMsg {
     public native String getFilename();
 
     private long                  m_hMsg; // must not be renamed as referenced by JNI under the name "m_hMsg"
-    private native static void    MrMsgUnref                 (long hMsg);
+    private final MrReclaimer.Ref m_ref;
+    native static void            MrMsgUnref                 (long hMsg);
     private native static int     MrMsgGetId                 (long hMsg);
     private native static String  MrMsgGetText               (long hMsg);
     private native static long    MrMsgGetTimestamp          (long hMsg);
@@ -123,31 +129,8 @@ public class MrMsg {
 
     public TLRPC.Message get_TLRPC_Message()
     {
-        TLRPC.Message ret = new TLRPC.TL_message(); // the class derived from TLRPC.Message defines the basic type:
-        //  TLRPC.TL_messageService is used to display messages as "You joined the group"
-        //  TLRPC.TL_message is a normal message (also photos?)
-
-        int state = getState();
         int type  = getType();
-        switch( state ) {
-            case MR_OUT_DELIVERED: ret.send_state = MessageObject.MESSAGE_SEND_STATE_SENT; break;
-            case MR_OUT_ERROR:     ret.send_state = MessageObject.MESSAGE_SEND_STATE_SEND_ERROR; break;
-            case MR_OUT_PENDING:   ret.send_state = MessageObject.MESSAGE_SEND_STATE_SENDING; break;
-            case MR_OUT_READ:      ret.send_state = MessageObject.MESSAGE_SEND_STATE_SENT; break;
-        }
-
-        ret.id            = getId();
-        ret.from_id       = getFromId();
-        ret.to_id         = new TLRPC.TL_peerUser();
-        ret.to_id.user_id = getToId();
-        ret.date          = (int)getTimestamp();
-        ret.dialog_id     = getChatId();
-        ret.unread        = state!=MR_OUT_READ; // the state of outgoing messages
-        ret.media_unread  = ret.unread;
-        ret.flags         = 0; // posible flags: MESSAGE_FLAG_HAS_FROM_ID, however, this seems to be read only
-        ret.post          = false; // ? true=avatar wird in gruppen nicht angezeigt, wird aber in isFromUser() auch überprüft...
-        ret.out           = ret.from_id==MrContact.MR_CONTACT_ID_SELF; // true=outgoing message, read eg. in MessageObject.isOutOwner()
-        ret.created_by_mr = true;
+        TLRPC.Message ret = create_TLRPC_Message(getId(), getFromId(), getToId(), getTimestamp(), getChatId(), getState());
 
         if( type == MR_MSG_TEXT ) {
             ret.message       = getText();
@@ -229,14 +212,46 @@ public class MrMsg {
         }
 
         if( !getParam('a', "").equals("") ) {
-            ret.flags |= TLRPC.MESSAGE_FLAG_FWD;
-            ret.fwd_from = new TLRPC.TL_messageFwdHeader();
-            ret.fwd_from.m_name  = getParam('A', "");
-            if( ret.fwd_from.m_name.isEmpty() ) {
-                ret.fwd_from.m_name = getParam('a', "");
-            }
+            String fwdName = getParam('A', "");
+            set_TLRPC_Forwarded(ret, fwdName.isEmpty()? getParam('a', "") : fwdName);
         }
 
         return ret;
     }
+
+    /* the fields of a TLRPC.Message common to all types; also used to build text messages from a MrMsgBatch */
+    static TLRPC.Message create_TLRPC_Message(int id, int fromId, int toId, long timestamp, int chatId, int state)
+    {
+        TLRPC.Message ret = new TLRPC.TL_message(); // the class derived from TLRPC.Message defines the basic type:
+        //  TLRPC.TL_messageService is used to display messages as "You joined the group"
+        //  TLRPC.TL_message is a normal message (also photos?)
+
+        switch( state ) {
+            case MR_OUT_DELIVERED: ret.send_state = MessageObject.MESSAGE_SEND_STATE_SENT; break;
+            case MR_OUT_ERROR:     ret.send_state = MessageObject.MESSAGE_SEND_STATE_SEND_ERROR; break;
+            case MR_OUT_PENDING:   ret.send_state = MessageObject.MESSAGE_SEND_STATE_SENDING; break;
+            case MR_OUT_READ:      ret.send_state = MessageObject.MESSAGE_SEND_STATE_SENT; break;
+        }
+
+        ret.id            = id;
+        ret.from_id       = fromId;
+        ret.to_id         = new TLRPC.TL_peerUser();
+        ret.to_id.user_id = toId;
+        ret.date          = (int)timestamp;
+        ret.dialog_id     = chatId;
+        ret.unread        = state!=MR_OUT_READ; // the state of outgoing messages
+        ret.media_unread  = ret.unread;
+        ret.flags         = 0; // posible flags: MESSAGE_FLAG_HAS_FROM_ID, however, this seems to be read only
+        ret.post          = false; // ? true=avatar wird in gruppen nicht angezeigt, wird aber in isFromUser() auch überprüft...
+        ret.out           = ret.from_id==MrContact.MR_CONTACT_ID_SELF; // true=outgoing message, read eg. in MessageObject.isOutOwner()
+        ret.created_by_mr = true;
+        return ret;
+    }
+
+    static void set_TLRPC_Forwarded(TLRPC.Message ret, String fwdName)
+    {
+        ret.flags |= TLRPC.MESSAGE_FLAG_FWD;
+        ret.fwd_from = new TLRPC.TL_messageFwdHeader();
+        ret.fwd_from.m_name = fwdName;
+    }
 };
@@ -0,0 +1,105 @@
+/*******************************************************************************
+ *
+ *                          Messenger Android Frontend
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    MrMsgBatch.java
+ * Purpose: Column-oriented values of several mrmsg_t, loaded with a single
+ *          JNI call by MrMailbox.getMsgsBatch()
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger;
+
+
+public class MrMsgBatch {
+
+    public final int      offset; // index of the first message in the array given to getMsgsBatch()
+    public final int      cnt;
+
+    public final int[]    ids;    // 0 for messages that cannot be loaded
+    public final int[]    chatIds;
+    public final long[]   timestamps;
+    public final int[]    types;
+    public final int[]    states;
+    public final int[]    fromIds;
+    public final int[]    toIds;
+    public final int[]    bytes;
+    public final String[] texts;
+    public final String[] fwdNames; // empty for messages that are not forwarded
+
+    // the summaries as returned by MrMsg.getSummary(); null if not requested
+    public final String[] summaryTitles;
+    public final int[]    summaryTitleMeanings;
+    public final String[] summaryTexts;
+
+    MrMsgBatch(int offset, int cnt, boolean withSummaries) {
+        this.offset     = offset;
+        this.cnt        = cnt;
+        this.ids        = new int[cnt];
+        this.chatIds    = new int[cnt];
+        this.timestamps = new long[cnt];
+        this.types      = new int[cnt];
+        this.states     = new int[cnt];
+        this.fromIds    = new int[cnt];
+        this.toIds      = new int[cnt];
+        this.bytes      = new int[cnt];
+        this.texts      = new String[cnt];
+        this.fwdNames   = new String[cnt];
+        this.summaryTitles        = withSummaries ? new String[cnt] : null;
+        this.summaryTitleMeanings = withSummaries ? new int[cnt] : null;
+        this.summaryTexts         = withSummaries ? new String[cnt] : null;
+    }
+
+    public boolean contains(int index) {
+        return index >= offset && index < offset + cnt;
+    }
+
+    public int getId(int index) {
+        return ids[index - offset];
+    }
+
+    public int getChatId(int index) {
+        return chatIds[index - offset];
+    }
+
+    public int getState(int index) {
+        return states[index - offset];
+    }
+
+    public long getTimestamp(int index) {
+        return timestamps[index - offset];
+    }
+
+    /* the message as MrMsg.get_TLRPC_Message() returns it; only text messages can be built from
+    the columns, null is returned for other types that need the message handle for their parameters */
+    public TLRPC.Message get_TLRPC_Message(int index) {
+        int i = index - offset;
+        if (ids[i] == 0 || types[i] != MrMsg.MR_MSG_TEXT) {
+            return null;
+        }
+        TLRPC.Message ret = MrMsg.create_TLRPC_Message(ids[i], fromIds[i], toIds[i], timestamps[i], chatIds[i], states[i]);
+        ret.message = texts[i];
+        if (!fwdNames[i].isEmpty()) {
+            MrMsg.set_TLRPC_Forwarded(ret, fwdNames[i]);
+        }
+        return ret;
+    }
+}
@@ -27,8 +27,9 @@
 
 package com.b44t.messenger;
 
+import java.io.Closeable;
 
-public class MrPoortext {
+public class MrPoortext implements Closeable {
 
     public final static int      MR_TITLE_NORMAL            = 0;
     public final static int      MR_TITLE_DRAFT             = 1;
@@ -37,11 +38,13 @@ public class MrPoortext {
 
     public MrPoortext(long hPoortext) {
         m_hPoortext = hPoortext;
+        m_ref = new MrReclaimer.Ref(this, MrReclaimer.TYPE_POORTEXT, hPoortext);
     }
 
-    @Override protected void finalize() throws Throwable {
-        super.finalize();
-        MrPoortextUnref(m_hPoortext);
+    @Override public void close() {
+        // release the C-handle now instead of waiting for the garbage collector
+        m_hPoortext = 0;
+        m_ref.release();
     }
 
     public String getTitle() {
@@ -65,7 +68,8 @@ public class MrPoortext {
     }
 
     private long                  m_hPoortext;
-    private native static void    MrPoortextUnref            (long hPoortext);
+    private final MrReclaimer.Ref m_ref;
+    native static void            MrPoortextUnref            (long hPoortext);
     private native static String  MrPoortextGetTitle         (long hPoortext);
     private native static int     MrPoortextGetTitleMeaning  (long hPoortext);
     private native static String  MrPoortextGetText          (long hPoortext);
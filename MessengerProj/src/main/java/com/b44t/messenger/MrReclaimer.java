@@ -0,0 +1,156 @@
+/*******************************************************************************
+ *
+ *                          Messenger Android Frontend
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    MrReclaimer.java
+ * Purpose: Track the C-handles owned by the Mr* wrappers; handles are
+ *          released by close() or, as a safety net, after the wrapper was
+ *          garbage collected
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/* Each wrapper has one owner: the code that got it from MrMailbox, MrChatlist etc. closes it
+and does not pass it to other threads; values needed elsewhere are copied out before, as
+MrChatlistSnapshot does. So the getters use the handle without a lock. */
+public class MrReclaimer {
+
+    public final static int TYPE_MSG       = 0;
+    public final static int TYPE_CHAT      = 1;
+    public final static int TYPE_CONTACT   = 2;
+    public final static int TYPE_CHATLIST  = 3;
+    public final static int TYPE_POORTEXT  = 4;
+    public final static int TYPE_CNT       = 5;
+
+    private final static String[] TYPE_NAMES = {"MrMsg", "MrChat", "MrContact", "MrChatlist", "MrPoortext"};
+
+    private final static AtomicIntegerArray s_live      = new AtomicIntegerArray(TYPE_CNT);
+    private final static AtomicIntegerArray s_closed    = new AtomicIntegerArray(TYPE_CNT);
+    private final static AtomicIntegerArray s_reclaimed = new AtomicIntegerArray(TYPE_CNT);
+
+    private final static ReferenceQueue<Object> s_queue = new ReferenceQueue<>();
+    private static Ref s_head = null; // list of registered references, they must stay reachable until the handle is released
+
+    public static final class Ref extends PhantomReference<Object> {
+
+        private final int m_type;
+        private long      m_handle;
+        private Ref       m_prev, m_next;
+
+        Ref(Object owner, int type, long handle) {
+            super(owner, s_queue);
+            m_type   = type;
+            m_handle = handle;
+            if (handle != 0) {
+                s_live.incrementAndGet(type);
+                synchronized (MrReclaimer.class) {
+                    m_next = s_head;
+                    if (s_head != null) {
+                        s_head.m_prev = this;
+                    }
+                    s_head = this;
+                }
+            }
+        }
+
+        public void release() {
+            if (release(false)) {
+                s_closed.incrementAndGet(m_type);
+            }
+        }
+
+        private boolean release(boolean byGc) {
+            long handle;
+            synchronized (MrReclaimer.class) {
+                handle = m_handle;
+                if (handle == 0) {
+                    return false; // never set or already released
+                }
+                m_handle = 0;
+                if (m_prev != null) {
+                    m_prev.m_next = m_next;
+                } else {
+                    s_head = m_next;
+                }
+                if (m_next != null) {
+                    m_next.m_prev = m_prev;
+                }
+                m_prev = m_next = null;
+            }
+            clear();
+
+            switch (m_type) {
+                case TYPE_MSG:      MrMsg.MrMsgUnref(handle);               break;
+                case TYPE_CHAT:     MrChat.MrChatUnref(handle);             break;
+                case TYPE_CONTACT:  MrContact.MrContactUnref(handle);       break;
+                case TYPE_CHATLIST: MrChatlist.MrChatlistUnref(handle);     break;
+                case TYPE_POORTEXT: MrPoortext.MrPoortextUnref(handle);     break;
+            }
+            s_live.decrementAndGet(m_type);
+            if (byGc) {
+                s_reclaimed.incrementAndGet(m_type);
+            }
+            return true;
+        }
+    }
+
+    static {
+        Thread thread = new Thread("MrReclaimer") {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Ref ref = (Ref) s_queue.remove();
+                        ref.release(true);
+                    } catch (InterruptedException e) {
+                        // keep on running, there is nobody else to release the handles
+                    } catch (Exception e) {
+                        FileLog.e("messenger", e);
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    public static int getLiveCount(int type) {
+        return s_live.get(type);
+    }
+
+    public static String getInfo() {
+        // handles reclaimed by the GC were not closed explicitly and may point to missing close() calls
+        StringBuilder ret = new StringBuilder("Native handles (live/closed/reclaimed by GC):");
+        for (int type = 0; type < TYPE_CNT; type++) {
+            ret.append("\n").append(TYPE_NAMES[type]).append(": ")
+                    .append(s_live.get(type)).append("/")
+                    .append(s_closed.get(type)).append("/")
+                    .append(s_reclaimed.get(type));
+        }
+        return ret.toString();
+    }
+}
@@ -0,0 +1,692 @@
+/*******************************************************************************
+ *
+ *                          Messenger Android Frontend
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    MrSearchIndex.java
+ * Purpose: In-memory trigram index over the contacts, the chat names and the
+ *          recent messages of each chat, to answer as-you-type searches without
+ *          going to the database; kept up to date from the backend events and
+ *          saved to disk
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger;
+
+import android.util.SparseArray;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+
+public class MrSearchIndex {
+
+    private static volatile MrSearchIndex Instance = null;
+
+    public static MrSearchIndex getInstance() {
+        MrSearchIndex localInstance = Instance;
+        if (localInstance == null) {
+            synchronized (MrSearchIndex.class) {
+                localInstance = Instance;
+                if (localInstance == null) {
+                    Instance = localInstance = new MrSearchIndex();
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    public final static int MSGS_PER_CHAT = 50;
+
+    private final static int KIND_CONTACT = 1;
+    private final static int KIND_CHAT    = 2;
+    private final static int KIND_MSG     = 3;
+
+    private final static int MAX_TEXT_LENGTH = 1000;  // longer texts are found by the database search only
+    private final static int FILE_VERSION    = 1;
+    private final static int SAVE_DELAY_MS   = 10000;
+
+    /* a searchable text; the text of a document is never changed, a new text needs a new document */
+    private static class Doc {
+        final int    kind;
+        final int    id;      // contact, chat or message id
+        final int    chatId;  // for messages
+        final String text;    // lower case
+        long         rank;    // position in the contact list or chatlist, timestamp of messages
+        MrChatlistSnapshot.Item item; // for chats
+        int          slot;
+        boolean      removed;
+
+        Doc(int kind, int id, int chatId, long rank, String text, MrChatlistSnapshot.Item item) {
+            this.kind   = kind;
+            this.id     = id;
+            this.chatId = chatId;
+            this.rank   = rank;
+            this.text   = text;
+            this.item   = item;
+        }
+    }
+
+    private static class Postings {
+        int[] slots = new int[4];
+        int   cnt;
+
+        void add(int slot) {
+            if (cnt == slots.length) {
+                int[] newSlots = new int[slots.length*2];
+                System.arraycopy(slots, 0, newSlots, 0, cnt);
+                slots = newSlots;
+            }
+            slots[cnt++] = slot;
+        }
+    }
+
+    // all guarded by this; removed documents stay in m_docs and the postings until the next rebuild
+    private final ArrayList<Doc>              m_docs = new ArrayList<>();
+    private final HashMap<Long, Doc>          m_byKey = new HashMap<>();
+    private final HashMap<Long, Postings>     m_postings = new HashMap<>();
+    private final SparseArray<ArrayList<Doc>> m_chatMsgs = new SparseArray<>(); // the chats with indexed messages, oldest first
+    private int     m_removedCnt;
+    private boolean m_contactsValid;
+    private boolean m_chatsValid;
+    private boolean m_loaded;
+
+    private long m_queries;
+    private long m_fallbacks;
+
+    private final DispatchQueue m_queue = new DispatchQueue("searchIndexQueue");
+
+    private MrSearchIndex() {
+    }
+
+    /* load the index saved on the last run; call once the mailbox is opened */
+    public void init() {
+        m_queue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                ApplicationLoader.awaitMailboxOpened();
+                load();
+                reloadContacts();
+            }
+        }, 0, DispatchQueue.PRIORITY_LOW);
+    }
+
+
+    /* queries, may be called from any thread; they return null if the index is not ready and the
+    database must be asked
+    **********************************************************************************************/
+
+    /* contact ids with the query in the name or the address, in the order of getKnownContacts() */
+    public int[] searchContacts(String query) {
+        ArrayList<Doc> found = find(KIND_CONTACT, query, false);
+        if (found == null) {
+            return null;
+        }
+        int[] ret = new int[found.size()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = found.get(i).id;
+        }
+        return ret;
+    }
+
+    /* the chats with the query in the name, in the order of the chatlist */
+    public MrChatlistSnapshot.Item[] searchChats(String query) {
+        ArrayList<Doc> found = find(KIND_CHAT, query, false);
+        if (found == null) {
+            return null;
+        }
+        MrChatlistSnapshot.Item[] ret = new MrChatlistSnapshot.Item[found.size()];
+        synchronized (this) {
+            for (int i = 0; i < ret.length; i++) {
+                ret[i] = found.get(i).item;
+            }
+        }
+        return ret;
+    }
+
+    /* ids of the recent text messages containing the query, newest first; older messages are
+    found by MrMailbox.searchMsgs() only */
+    public int[] searchRecentMsgs(String query) {
+        ArrayList<Doc> found = find(KIND_MSG, query, true);
+        if (found == null) {
+            return null;
+        }
+        int[] ret = new int[found.size()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = found.get(i).id;
+        }
+        return ret;
+    }
+
+    public synchronized String getInfo() {
+        int contacts = 0, chats = 0, msgs = 0;
+        for (Doc doc : m_byKey.values()) {
+            switch (doc.kind) {
+                case KIND_CONTACT: contacts++; break;
+                case KIND_CHAT:    chats++;    break;
+                case KIND_MSG:     msgs++;     break;
+            }
+        }
+        return "Search index: " + contacts + " contacts, " + chats + " chats, " + msgs + " messages, " + m_postings.size() + " trigrams"
+            + "\nSearch index queries: " + m_queries + ", " + m_fallbacks + " answered by the database";
+    }
+
+    /* the documents found, sorted by their rank */
+    private synchronized ArrayList<Doc> find(int kind, String query, boolean descending) {
+        boolean ready = kind == KIND_CONTACT ? m_contactsValid : (kind == KIND_CHAT ? m_chatsValid : m_loaded);
+        if (!ready || query == null) {
+            m_fallbacks++;
+            return null;
+        }
+        m_queries++;
+        query = normalize(query);
+        ArrayList<Doc> ret = new ArrayList<>();
+
+        if (query.length() < 3) {
+            // too short for a trigram; the documents of one kind are few enough to be checked one by one
+            for (Doc doc : m_byKey.values()) {
+                if (doc.kind == kind && doc.text.contains(query)) {
+                    ret.add(doc);
+                }
+            }
+            sortByRank(ret, descending);
+            return ret;
+        }
+
+        // the documents holding the rarest trigram of the query are candidates, they're checked
+        // against the whole query
+        Postings rarest = null;
+        for (int i = 0; i + 3 <= query.length(); i++) {
+            Postings postings = m_postings.get(trigram(query, i));
+            if (postings == null) {
+                return ret;
+            }
+            if (rarest == null || postings.cnt < rarest.cnt) {
+                rarest = postings;
+            }
+        }
+        for (int i = 0; i < rarest.cnt; i++) {
+            Doc doc = m_docs.get(rarest.slots[i]);
+            if (!doc.removed && doc.kind == kind && doc.text.contains(query)) {
+                ret.add(doc);
+            }
+        }
+        sortByRank(ret, descending);
+        return ret;
+    }
+
+
+    /* updates, called by the chatlist queue and MrEventCoalescer
+    **********************************************************************************************/
+
+    /* take over the chats of a new chatlist snapshot; called on the chatlist queue */
+    public void updateChats(MrChatlistSnapshot snapshot) {
+        final ArrayList<Integer> unindexed = new ArrayList<>();
+        synchronized (this) {
+            HashSet<Integer> chatIds = new HashSet<>();
+            for (int i = 0; i < snapshot.getCnt(); i++) {
+                MrChatlistSnapshot.Item item = snapshot.getItem(i);
+                chatIds.add(item.chatId);
+                String name = normalize(item.name);
+                Doc old = m_byKey.get(key(KIND_CHAT, item.chatId));
+                if (old != null && old.text.equals(name)) {
+                    old.rank = i;
+                    old.item = item;
+                } else {
+                    add(new Doc(KIND_CHAT, item.chatId, item.chatId, i, name, item));
+                }
+                if (m_loaded && m_chatMsgs.get(item.chatId) == null) {
+                    m_chatMsgs.put(item.chatId, new ArrayList<Doc>()); // messages coming in meanwhile are added
+                    unindexed.add(item.chatId);
+                }
+            }
+
+            ArrayList<Doc> gone = new ArrayList<>();
+            for (Doc doc : m_byKey.values()) {
+                if (doc.kind == KIND_CHAT && !chatIds.contains(doc.id)) {
+                    gone.add(doc);
+                }
+            }
+            for (Doc doc : gone) {
+                remove(doc);
+                removeChatMsgs(doc.id);
+            }
+            m_chatsValid = true;
+        }
+
+        if (!unindexed.isEmpty()) {
+            m_queue.postRunnable(new Runnable() {
+                @Override
+                public void run() {
+                    for (int chatId : unindexed) {
+                        indexChatMsgs(chatId);
+                    }
+                    scheduleSave();
+                }
+            }, 0, DispatchQueue.PRIORITY_LOW);
+        }
+    }
+
+    /* the messages given or, if msgIds is empty, all messages of the chat (of all chats for
+    chat id 0) may have changed; called from the UI thread */
+    public void onMsgsChanged(final int chatId, final int[] msgIds) {
+        if (msgIds.length == 0 && chatId == 0) {
+            // eg. after messages were deleted; check the indexed messages, not too often
+            m_queue.postRunnable(new Runnable() {
+                @Override
+                public void run() {
+                    verifyMsgs();
+                    scheduleSave();
+                }
+            }, 1000, DispatchQueue.PRIORITY_LOW, "verify");
+            return;
+        }
+        m_queue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                if (msgIds.length == 0) {
+                    indexChatMsgs(chatId);
+                } else {
+                    indexMsgs(msgIds);
+                }
+                scheduleSave();
+            }
+        }, 0, DispatchQueue.PRIORITY_LOW);
+    }
+
+    /* called from the UI thread before contactsDidLoaded is posted; until the contacts are
+    reloaded, the database answers the searches */
+    public void onContactsChanged() {
+        synchronized (this) {
+            m_contactsValid = false;
+        }
+        m_queue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                reloadContacts();
+            }
+        }, 0, DispatchQueue.PRIORITY_LOW, "contacts");
+    }
+
+    private void reloadContacts() {
+        int[] contactIds = MrMailbox.getKnownContacts(null);
+        ArrayList<Doc> docs = new ArrayList<>(contactIds.length);
+        for (int i = 0; i < contactIds.length; i++) {
+            MrContact contact = MrMailbox.getContact(contactIds[i]);
+            docs.add(new Doc(KIND_CONTACT, contactIds[i], 0, i, normalize(contact.getName() + "\n" + contact.getAddr()), null));
+            contact.close();
+        }
+
+        synchronized (this) {
+            ArrayList<Doc> old = new ArrayList<>();
+            for (Doc doc : m_byKey.values()) {
+                if (doc.kind == KIND_CONTACT) {
+                    old.add(doc);
+                }
+            }
+            for (Doc doc : old) {
+                remove(doc);
+            }
+            for (Doc doc : docs) {
+                add(doc);
+            }
+            m_contactsValid = true;
+        }
+    }
+
+    /* replace the indexed messages of a chat by its newest ones */
+    private void indexChatMsgs(int chatId) {
+        int[] all = MrMailbox.getChatMsgs(chatId, 0, 0);
+        int cnt = Math.min(all.length, MSGS_PER_CHAT);
+        int[] msgIds = new int[cnt];
+        System.arraycopy(all, all.length - cnt, msgIds, 0, cnt);
+        MrMsgBatch batch = MrMailbox.getMsgsBatch(msgIds);
+
+        synchronized (this) {
+            removeChatMsgs(chatId);
+            m_chatMsgs.put(chatId, new ArrayList<Doc>());
+            for (int i = 0; i < batch.cnt; i++) {
+                addMsg(batch, i);
+            }
+        }
+    }
+
+    private void indexMsgs(int[] msgIds) {
+        MrMsgBatch batch = MrMailbox.getMsgsBatch(msgIds);
+        synchronized (this) {
+            for (int i = 0; i < batch.cnt; i++) {
+                Doc old = m_byKey.get(key(KIND_MSG, msgIds[i]));
+                if (old != null) {
+                    removeMsg(old);
+                }
+                if (batch.ids[i] != 0) {
+                    addMsg(batch, i);
+                }
+            }
+        }
+    }
+
+    /* remove the indexed messages that are deleted or moved to another chat */
+    private void verifyMsgs() {
+        int[] msgIds;
+        synchronized (this) {
+            if (!m_loaded) {
+                return;
+            }
+            ArrayList<Integer> ids = new ArrayList<>();
+            for (Doc doc : m_byKey.values()) {
+                if (doc.kind == KIND_MSG) {
+                    ids.add(doc.id);
+                }
+            }
+            msgIds = new int[ids.size()];
+            for (int i = 0; i < msgIds.length; i++) {
+                msgIds[i] = ids.get(i);
+            }
+        }
+
+        MrMsgBatch batch = MrMailbox.getMsgsBatch(msgIds);
+        synchronized (this) {
+            for (int i = 0; i < batch.cnt; i++) {
+                Doc doc = m_byKey.get(key(KIND_MSG, msgIds[i]));
+                if (doc != null && (batch.ids[i] == 0 || batch.chatIds[i] != doc.chatId)) {
+                    removeMsg(doc);
+                }
+            }
+        }
+    }
+
+    /* called with the index locked; messages of chats not indexed yet are skipped, they're indexed
+    as a whole later */
+    private void addMsg(MrMsgBatch batch, int i) {
+        ArrayList<Doc> chatMsgs = m_chatMsgs.get(batch.chatIds[i]);
+        String text = batch.texts[i];
+        if (chatMsgs == null || batch.types[i] != MrMsg.MR_MSG_TEXT || text.isEmpty()) {
+            return;
+        }
+        Doc doc = new Doc(KIND_MSG, batch.ids[i], batch.chatIds[i], batch.timestamps[i], normalize(text), null);
+        int pos = chatMsgs.size();
+        while (pos > 0 && chatMsgs.get(pos-1).rank > doc.rank) {
+            pos--;
+        }
+        if (pos == 0 && chatMsgs.size() >= MSGS_PER_CHAT) {
+            return; // older than all messages kept
+        }
+        chatMsgs.add(pos, doc);
+        add(doc);
+        if (chatMsgs.size() > MSGS_PER_CHAT) {
+            remove(chatMsgs.remove(0));
+        }
+    }
+
+    private void removeMsg(Doc doc) {
+        ArrayList<Doc> chatMsgs = m_chatMsgs.get(doc.chatId);
+        if (chatMsgs != null) {
+            chatMsgs.remove(doc);
+        }
+        remove(doc);
+    }
+
+    private void removeChatMsgs(int chatId) {
+        ArrayList<Doc> chatMsgs = m_chatMsgs.get(chatId);
+        if (chatMsgs != null) {
+            for (Doc doc : chatMsgs) {
+                remove(doc);
+            }
+            m_chatMsgs.remove(chatId);
+        }
+    }
+
+    private void add(Doc doc) {
+        Doc old = m_byKey.put(key(doc.kind, doc.id), doc);
+        if (old != null) {
+            markRemoved(old);
+        }
+        doc.slot = m_docs.size();
+        m_docs.add(doc);
+        addPostings(doc);
+    }
+
+    private void remove(Doc doc) {
+        if (m_byKey.get(key(doc.kind, doc.id)) == doc) {
+            m_byKey.remove(key(doc.kind, doc.id));
+        }
+        markRemoved(doc);
+    }
+
+    private void markRemoved(Doc doc) {
+        if (doc.removed) {
+            return;
+        }
+        doc.removed = true;
+        m_removedCnt++;
+        if (m_removedCnt > 1024 && m_removedCnt > m_docs.size() / 2) {
+            rebuild();
+        }
+    }
+
+    /* drop the removed documents from the postings */
+    private void rebuild() {
+        ArrayList<Doc> docs = new ArrayList<>(m_docs.size() - m_removedCnt);
+        for (Doc doc : m_docs) {
+            if (!doc.removed) {
+                docs.add(doc);
+            }
+        }
+        m_docs.clear();
+        m_postings.clear();
+        m_removedCnt = 0;
+        for (Doc doc : docs) {
+            doc.slot = m_docs.size();
+            m_docs.add(doc);
+            addPostings(doc);
+        }
+    }
+
+    private void addPostings(Doc doc) {
+        HashSet<Long> seen = new HashSet<>();
+        String text = doc.text;
+        for (int i = 0; i + 3 <= text.length(); i++) {
+            Long trigram = trigram(text, i);
+            if (seen.add(trigram)) {
+                Postings postings = m_postings.get(trigram);
+                if (postings == null) {
+                    postings = new Postings();
+                    m_postings.put(trigram, postings);
+                }
+                postings.add(doc.slot);
+            }
+        }
+    }
+
+
+    /* the contacts and messages are saved, the chats come with the first chatlist snapshot
+    **********************************************************************************************/
+
+    private final Runnable m_saveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            save();
+        }
+    };
+
+    private void scheduleSave() {
+        m_queue.postRunnable(m_saveRunnable, SAVE_DELAY_MS, DispatchQueue.PRIORITY_LOW, "save");
+    }
+
+    private static File getFile() {
+        return new File(ApplicationLoader.getFilesDirFixed(), "search.index");
+    }
+
+    private void save() {
+        ArrayList<Doc> msgs = new ArrayList<>();
+        int[] chatIds;
+        synchronized (this) {
+            if (!m_loaded) {
+                return;
+            }
+            chatIds = new int[m_chatMsgs.size()];
+            for (int i = 0; i < chatIds.length; i++) {
+                chatIds[i] = m_chatMsgs.keyAt(i);
+                msgs.addAll(m_chatMsgs.valueAt(i));
+            }
+        }
+
+        DataOutputStream out = null;
+        try {
+            File file = getFile();
+            File tempFile = new File(file.getAbsolutePath() + ".tmp");
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(FILE_VERSION);
+            out.writeUTF(MrMailbox.getConfig("addr", ""));
+            out.writeInt(chatIds.length);
+            for (int chatId : chatIds) {
+                out.writeInt(chatId);
+            }
+            out.writeInt(msgs.size());
+            for (Doc doc : msgs) {
+                out.writeInt(doc.id);
+                out.writeInt(doc.chatId);
+                out.writeLong(doc.rank);
+                out.writeUTF(doc.text);
+            }
+            out.close();
+            out = null;
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+            }
+        } catch (Exception e) {
+            FileLog.e("messenger", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (Exception e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /* an index of another account or version is dropped, the messages are then indexed chat by
+    chat with the next snapshot */
+    private void load() {
+        ArrayList<Doc> msgs = new ArrayList<>();
+        ArrayList<Integer> chatIds = new ArrayList<>();
+        File file = getFile();
+        if (file.exists()) {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                if (in.readInt() == FILE_VERSION && in.readUTF().equals(MrMailbox.getConfig("addr", ""))) {
+                    int chatCnt = in.readInt();
+                    for (int i = 0; i < chatCnt; i++) {
+                        chatIds.add(in.readInt());
+                    }
+                    int msgCnt = in.readInt();
+                    for (int i = 0; i < msgCnt; i++) {
+                        int id = in.readInt(), chatId = in.readInt();
+                        long timestamp = in.readLong();
+                        msgs.add(new Doc(KIND_MSG, id, chatId, timestamp, in.readUTF(), null));
+                    }
+                }
+            } catch (Exception e) {
+                FileLog.e("messenger", e);
+                msgs.clear();
+                chatIds.clear();
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (Exception e) {
+                        // ignore
+                    }
+                }
+            }
+        }
+
+        final ArrayList<Integer> unindexed = new ArrayList<>();
+        synchronized (this) {
+            for (int chatId : chatIds) {
+                m_chatMsgs.put(chatId, new ArrayList<Doc>());
+            }
+            for (Doc doc : msgs) {
+                ArrayList<Doc> chatMsgs = m_chatMsgs.get(doc.chatId);
+                if (chatMsgs != null) {
+                    chatMsgs.add(doc); // saved oldest first
+                    add(doc);
+                }
+            }
+            // the chats of snapshots taken before are indexed now
+            for (Doc doc : m_byKey.values()) {
+                if (doc.kind == KIND_CHAT && m_chatMsgs.get(doc.id) == null) {
+                    unindexed.add(doc.id);
+                }
+            }
+            m_loaded = true;
+        }
+
+        for (int chatId : unindexed) {
+            indexChatMsgs(chatId);
+        }
+        if (!unindexed.isEmpty()) {
+            scheduleSave();
+        }
+    }
+
+
+    /* tools
+    **********************************************************************************************/
+
+    private static String normalize(String text) {
+        if (text.length() > MAX_TEXT_LENGTH) {
+            text = text.substring(0, MAX_TEXT_LENGTH);
+        }
+        return text.toLowerCase(Locale.getDefault());
+    }
+
+    private static Long trigram(String text, int i) {
+        return ((long) text.charAt(i) << 32) | ((long) text.charAt(i+1) << 16) | text.charAt(i+2);
+    }
+
+    private static Long key(int kind, int id) {
+        return ((long) kind << 32) | (id & 0xFFFFFFFFL);
+    }
+
+    private static void sortByRank(ArrayList<Doc> docs, final boolean descending) {
+        Collections.sort(docs, new Comparator<Doc>() {
+            @Override
+            public int compare(Doc lhs, Doc rhs) {
+                int ret = lhs.rank == rhs.rank ? 0 : (lhs.rank < rhs.rank ? -1 : 1);
+                return descending ? -ret : ret;
+            }
+        });
+    }
+}
@@ -35,6 +35,7 @@ public class NotificationCenter {
     public static final int didReceivedNewMessages = totalEvents++;
     public static final int updateInterfaces = totalEvents++;
     public static final int dialogsNeedReload = totalEvents++;
+    public static final int mainChatlistChanged = totalEvents++;
     public static final int closeChats = totalEvents++;
     public static final int messagesDeleted = totalEvents++;
     public static final int messagesSentOrRead = totalEvents++;
@@ -76,7 +77,7 @@ public class NotificationCenter {
     public static final int FileDidLoaded = totalEvents++;
     public static final int FileDidFailedLoad = totalEvents++;
     public static final int FilePreparingStarted = totalEvents++;
-    public static final int FileNewChunkAvailable = totalEvents++;
+    public static final int FileNewChunkAvailable = totalEvents++; // MessageObject, path, size when done or 0, bytes final so far
     public static final int FilePreparingFailed = totalEvents++;
 
     public static final int audioProgressDidChanged = totalEvents++;
@@ -51,6 +51,7 @@ import com.b44t.ui.LaunchActivity;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 
 public class NotificationsController {
@@ -408,6 +409,7 @@ public class NotificationsController {
                         return;
                     }
                     TLRPC.Message tmsg = mrMsg.get_TLRPC_Message();
+                    mrMsg.close();
                     MessageObject msgDrawObj = new MessageObject(tmsg, true);
 
                     delayedPushMessages.add(msgDrawObj);
@@ -500,19 +502,28 @@ public class NotificationsController {
             return;
         }
 
-        // get all unread messages as a hash
-        int unseenArr[] = MrMailbox.getUnseenMsgs();
-        int unseenCnt = unseenArr.length;
-        HashMap<Integer, Boolean> unseenHash = new HashMap<>();
-        for( int i = 0; i < unseenCnt; i++ ) {
-            unseenHash.put(unseenArr[i], true);
+        // load the shown messages with a single call; as for getUnseenMsgs(), a message is unseen if it
+        // is still unread and in a normal chat, messages moved to the deaddrop or to another chat are removed
+        int pushCnt = pushMessages.size();
+        int pushIds[] = new int[pushCnt];
+        for( int i = 0; i < pushCnt; i++ ) {
+            pushIds[i] = pushMessages.get(i).messageOwner.id;
+        }
+        MrMsgBatch pushBatch = MrMailbox.getMsgsBatch(pushIds);
+        HashSet<Integer> unseenIds = new HashSet<>(pushCnt);
+        for( int i = 0; i < pushCnt; i++ ) {
+            if( pushBatch.ids[i]!=0 && pushBatch.states[i]==MrMsg.MR_IN_UNREAD
+             && pushBatch.chatIds[i]>MrChat.MR_CHAT_ID_LAST_SPECIAL
+             && pushBatch.chatIds[i]==pushMessages.get(i).messageOwner.dialog_id ) {
+                unseenIds.add(pushIds[i]);
+            }
         }
 
         // go through all objects and check if they're still unread
         boolean sthRemoved = false;
         for( int i = 0; i < pushMessages.size() /*do no cache, size may shrink in loop*/; i++ ) {
             MessageObject messageObject = pushMessages.get(i);
-            if( unseenHash.get(messageObject.messageOwner.id)==null ) {
+            if( !unseenIds.contains(messageObject.messageOwner.id) ) {
                 // this message is no longer unseen
                 int dialog_id = (int)messageObject.messageOwner.dialog_id;
                 pushMessagesDict.remove((long)messageObject.messageOwner.id);
@@ -1512,6 +1523,7 @@ public class NotificationsController {
     public static void updateServerNotificationsSettings(long dialog_id) {
         // the following command is needed to reflect the changes in the GUI
         NotificationCenter.getInstance().postNotificationName(NotificationCenter.notificationsSettingsUpdated);
+        MrMailbox.reloadMainChatlist(); // the muted state is part of the chatlist snapshot
 
         /*
         if ((int) dialog_id == 0) {
@@ -33,7 +33,7 @@ public class NotificationsService extends Service {
     @Override
     public void onCreate() {
         FileLog.e("messenger", "service started");
-        ApplicationLoader.postInitApplication();
+        ApplicationLoader.postInitApplicationAsync(); // the service is started with the app, it must not block the first frame
     }
 
     @Override
@@ -46,6 +46,8 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
 
     private static volatile SendMessagesHelper Instance = null;
 
+    private HashMap<String, ArrayList<Runnable>> videosWaitingForConversion = new HashMap<>(); // converted file -> sends the messages; UI thread only
+
     public static SendMessagesHelper getInstance() {
         SendMessagesHelper localInstance = Instance;
         if (localInstance == null) {
@@ -197,6 +199,16 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
             }
             */
         } else if (id == NotificationCenter.FileNewChunkAvailable) {
+            String finalPath = (String) args[1];
+            long finalSize = (Long) args[2];
+            if (finalSize != 0) {
+                ArrayList<Runnable> sendRunnables = videosWaitingForConversion.remove(finalPath);
+                if (sendRunnables != null) {
+                    for (int a = 0; a < sendRunnables.size(); a++) {
+                        sendRunnables.get(a).run();
+                    }
+                }
+            }
             //MessageObject messageObject = (MessageObject) args[0];
             //String finalPath = (String) args[1];
             //long finalSize = (Long) args[2];
@@ -227,7 +239,10 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
             //}
         } else if (id == NotificationCenter.FilePreparingFailed) {
             MessageObject messageObject = (MessageObject) args[0];
-            //String finalPath = (String) args[1];
+            String finalPath = (String) args[1];
+            if (videosWaitingForConversion.remove(finalPath) != null) {
+                FileLog.e("messenger", "cannot convert video " + messageObject.videoEditedInfo.originalPath);
+            }
             stopVideoService(messageObject.messageOwner.attachPath);
             /*
             ArrayList<DelayedMessage> arr = delayedMessages.get(finalPath);
@@ -411,9 +426,44 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
     }
 
     public void sendMessageDocument(TLRPC.TL_document document, VideoEditedInfo videoEditedInfo, String path, long peer, MessageObject reply_to_msg, HashMap<String, String> params) {
+        if (videoEditedInfo != null && path != null && MessageObject.isVideoDocument(document)) {
+            convertAndSendVideo(document, videoEditedInfo, path, peer, params);
+            return;
+        }
         sendMessage__(null, null, videoEditedInfo, document, peer, path, params);
     }
 
+    private void convertAndSendVideo(final TLRPC.TL_document document, final VideoEditedInfo videoEditedInfo, final String path, final long peer, final HashMap<String, String> params) {
+        // an edited video is converted to the given path first, the backend gets the message when
+        // the file is complete. The path depends on the source and the edit parameters only, so a
+        // conversion killed with the app continues from its checkpoint when the video is sent again.
+        ArrayList<Runnable> sendRunnables = videosWaitingForConversion.get(path);
+        boolean converting = sendRunnables != null;
+        if (!converting) {
+            sendRunnables = new ArrayList<>();
+            videosWaitingForConversion.put(path, sendRunnables);
+        }
+        sendRunnables.add(new Runnable() {
+            @Override
+            public void run() {
+                document.size = (int) new File(path).length();
+                sendMessage__(null, null, videoEditedInfo, document, peer, path, params);
+            }
+        });
+        if (converting) {
+            return; // the same video is sent to several chats, it is converted once
+        }
+
+        TLRPC.Message convertMsg = new TLRPC.TL_message();
+        convertMsg.message = videoEditedInfo.getString();
+        convertMsg.media = new TLRPC.TL_messageMediaDocument();
+        convertMsg.media.document = document;
+        convertMsg.attachPath = path;
+        MessageObject convertObj = new MessageObject(convertMsg, false);
+        convertObj.videoEditedInfo = videoEditedInfo;
+        MediaController.getInstance().scheduleVideoConvert(convertObj);
+    }
+
     public void sendMessageText(String message, long peer, HashMap<String, String> params) {
         sendMessage__(message, null, null, null, peer, null, params);
     }
@@ -1416,10 +1466,8 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
                                 attributeVideo.h = height;
                             }
                             document.size = (int) estimatedSize;
-                            String fileName = Integer.MIN_VALUE + "_" + UserConfig.lastLocalId + ".mp4";
-                            UserConfig.lastLocalId--;
+                            String fileName = Utilities.MD5(originalPath + "_" + videoEditedInfo.getString()) + ".mp4"; // the same for the same edit, see convertAndSendVideo()
                             File cacheFile = new File(FileLoader.getInstance().getDirectory(FileLoader.MEDIA_DIR_CACHE), fileName);
-                            UserConfig.saveConfig(false);
                             path = cacheFile.getAbsolutePath();
                         } else {
                             if (temp.exists()) {
@@ -0,0 +1,333 @@
+/*******************************************************************************
+ *
+ *                          Messenger Android Frontend
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    TextLayoutEngine.java
+ * Purpose: Split message texts into TextLayoutBlocks in a single pass,
+ *          synchronously or on a small pool of worker queues, and cache the
+ *          results by text, width and font size
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger;
+
+import android.graphics.Paint;
+import android.text.Layout;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.text.TextUtils;
+
+import com.b44t.ui.ActionBar.Theme;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class TextLayoutEngine {
+
+    public final static int LINES_PER_BLOCK = 10;
+
+    private final static int MAX_CACHED = 100;
+    private final static int WORKER_CNT = 2;
+
+    public static class Result {
+        public final ArrayList<MessageObject.TextLayoutBlock> blocks = new ArrayList<>();
+        public int textWidth;
+        public int textHeight;
+        public int lastLineWidth;
+    }
+
+    public interface Callback {
+        void onTextLayoutReady(Result result); // called on the UI thread
+    }
+
+    private static class Key {
+        final String text;
+        final int    maxWidth;
+        final int    fontSize;
+        final int    hash;
+
+        Key(CharSequence text, int maxWidth, int fontSize) {
+            this.text     = text.toString();
+            this.maxWidth = maxWidth;
+            this.fontSize = fontSize;
+            this.hash     = (this.text.hashCode()*31 + maxWidth)*31 + fontSize;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return hash == k.hash && maxWidth == k.maxWidth && fontSize == k.fontSize && text.equals(k.text);
+        }
+    }
+
+    private final static LinkedHashMap<Key, Result> s_cache = new LinkedHashMap<Key, Result>(MAX_CACHED, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Result> eldest) {
+            return size() > MAX_CACHED;
+        }
+    };
+    private final static HashMap<Key, ArrayList<Callback>> s_pending = new HashMap<>(); // guarded by s_cache
+    private final static DispatchQueue[] s_workers = new DispatchQueue[WORKER_CNT];
+    private static int s_nextWorker;
+
+    public static Result getCached(CharSequence text, int maxWidth, int fontSize) {
+        synchronized (s_cache) {
+            return s_cache.get(new Key(text, maxWidth, fontSize));
+        }
+    }
+
+    /* lay out synchronously, may be called from any thread */
+    public static Result layout(CharSequence text, int maxWidth, int fontSize) {
+        Key key = new Key(text, maxWidth, fontSize);
+        synchronized (s_cache) {
+            Result result = s_cache.get(key);
+            if (result != null) {
+                return result;
+            }
+        }
+        Result result = buildLayout(text, maxWidth, fontSize);
+        synchronized (s_cache) {
+            s_cache.put(key, result);
+        }
+        return result;
+    }
+
+    /* lay out on a worker queue; requests for the same key are merged */
+    public static void layoutAsync(final CharSequence text, final int maxWidth, final int fontSize, Callback callback) {
+        final Key key = new Key(text, maxWidth, fontSize);
+        DispatchQueue worker = null;
+        Result cached;
+        synchronized (s_cache) {
+            cached = s_cache.get(key);
+            if (cached == null) {
+                ArrayList<Callback> callbacks = s_pending.get(key);
+                if (callbacks != null) {
+                    callbacks.add(callback);
+                    return;
+                }
+                callbacks = new ArrayList<>();
+                callbacks.add(callback);
+                s_pending.put(key, callbacks);
+
+                int index = s_nextWorker++ % WORKER_CNT;
+                if (s_workers[index] == null) {
+                    s_workers[index] = new DispatchQueue("textLayoutQueue" + index);
+                }
+                worker = s_workers[index];
+            }
+        }
+        if (cached != null) {
+            // outside of the lock, the callback may lay out other texts
+            callback.onTextLayoutReady(cached);
+            return;
+        }
+
+        worker.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                Result result;
+                try {
+                    result = buildLayout(text, maxWidth, fontSize);
+                } catch (Exception e) {
+                    FileLog.e("messenger", e);
+                    result = new Result();
+                }
+                final Result finalResult = result;
+                final ArrayList<Callback> callbacks;
+                synchronized (s_cache) {
+                    s_cache.put(key, finalResult);
+                    callbacks = s_pending.remove(key);
+                }
+                AndroidUtilities.runOnUIThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (Callback callback : callbacks) {
+                            callback.onTextLayoutReady(finalResult);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /* rough height of the text, used as a placeholder until the layout is ready */
+    public static int estimateHeight(CharSequence text, int maxWidth, int fontSize) {
+        TextPaint paint = createPaint(fontSize);
+        Paint.FontMetricsInt fm = paint.getFontMetricsInt();
+        int lineHeight = fm.descent - fm.ascent;
+        float charWidth = Math.max(1, paint.measureText("n"));
+        int charsPerLine = Math.max(1, (int) (maxWidth / charWidth));
+
+        int lines = 0, start = 0, len = text.length();
+        while (start <= len) {
+            int end = TextUtils.indexOf(text, '\n', start);
+            if (end < 0) {
+                end = len;
+            }
+            lines += Math.max(1, (end - start + charsPerLine - 1) / charsPerLine);
+            start = end + 1;
+        }
+        return lines * lineHeight;
+    }
+
+    private static TextPaint createPaint(int fontSize) {
+        // each layout gets its own paint, the layouts are built on several threads
+        TextPaint paint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+        paint.setColor(Theme.MSG_TEXT_COLOR);
+        paint.linkColor = Theme.MSG_LINK_TEXT_COLOR;
+        paint.setTextSize(AndroidUtilities.dp(fontSize));
+        return paint;
+    }
+
+    /* split the text at line feeds into blocks of about LINES_PER_BLOCK lines and lay out each
+    block once; line breaks never cross a line feed, so this results in the same lines as a
+    layout of the whole text. The lines of a paragraph are estimated from its measured width;
+    a paragraph longer than a block becomes a block of its own. */
+    private static Result buildLayout(CharSequence text, int maxWidth, int fontSize) {
+        Result result = new Result();
+        TextPaint paint = createPaint(fontSize);
+        int len = text.length();
+
+        int start = 0;
+        float yOffset = 0;
+        while (start < len) {
+            // add paragraphs while their estimated lines fit into the block, at least one
+            int end = start, estimatedLines = 0;
+            while (end < len) {
+                int nl = TextUtils.indexOf(text, '\n', end);
+                int paragraphEnd = nl < 0 ? len : nl + 1;
+                int paragraphLines = Math.max(1, (int) Math.ceil(paint.measureText(text, end, paragraphEnd) / Math.max(1, maxWidth)));
+                if (end > start && estimatedLines + paragraphLines > LINES_PER_BLOCK) {
+                    break;
+                }
+                estimatedLines += paragraphLines;
+                end = paragraphEnd;
+            }
+
+            StaticLayout layout;
+            try {
+                layout = new StaticLayout(text.subSequence(start, end), paint, maxWidth, Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, false);
+            } catch (Exception e) {
+                FileLog.e("messenger", e);
+                start = end;
+                continue;
+            }
+
+            // a block ending with a line feed has an empty last line that belongs to the next block
+            int linesCount = layout.getLineCount();
+            if (end < len && linesCount > 1) {
+                linesCount--;
+            }
+
+            MessageObject.TextLayoutBlock block = new MessageObject.TextLayoutBlock();
+            block.textLayout = layout;
+            block.charactersOffset = start;
+            block.textYOffset = yOffset;
+            block.height = layout.getLineTop(linesCount);
+            measureBlock(result, block, linesCount, maxWidth, end == len);
+            result.blocks.add(block);
+
+            yOffset += block.height;
+            start = end;
+        }
+
+        result.textHeight = (int) Math.ceil(yOffset);
+        return result;
+    }
+
+    private static void measureBlock(Result result, MessageObject.TextLayoutBlock block, int linesCount, int maxWidth, boolean isLastBlock) {
+        Layout layout = block.textLayout;
+
+        float lastLeft = block.textXOffset = 0;
+        float lastLine = 0;
+        try {
+            lastLeft = block.textXOffset = layout.getLineLeft(linesCount - 1);
+            lastLine = layout.getLineWidth(linesCount - 1);
+        } catch (Exception e) {
+            FileLog.e("messenger", e);
+        }
+
+        int linesMaxWidth = (int) Math.ceil(lastLine);
+        int lastLineWidthWithLeft;
+        boolean hasNonRTL = false;
+
+        if (isLastBlock) {
+            result.lastLineWidth = linesMaxWidth;
+        }
+
+        lastLineWidthWithLeft = (int) Math.ceil(lastLine + lastLeft);
+        if (lastLeft == 0) {
+            hasNonRTL = true;
+        }
+
+        if (linesCount > 1) {
+            float textRealMaxWidth = 0, textRealMaxWidthWithLeft = 0, lineWidth, lineLeft;
+            for (int n = 0; n < linesCount; n++) {
+                try {
+                    lineWidth = layout.getLineWidth(n);
+                    lineLeft = layout.getLineLeft(n);
+                } catch (Exception e) {
+                    FileLog.e("messenger", e);
+                    lineWidth = 0;
+                    lineLeft = 0;
+                }
+
+                if (lineWidth > maxWidth + 100) {
+                    lineWidth = maxWidth;
+                }
+
+                block.textXOffset = Math.min(block.textXOffset, lineLeft);
+
+                if (lineLeft == 0) {
+                    hasNonRTL = true;
+                }
+                textRealMaxWidth = Math.max(textRealMaxWidth, lineWidth);
+                textRealMaxWidthWithLeft = Math.max(textRealMaxWidthWithLeft, lineWidth + lineLeft);
+                linesMaxWidth = Math.max(linesMaxWidth, (int) Math.ceil(lineWidth));
+            }
+            if (hasNonRTL) {
+                textRealMaxWidth = textRealMaxWidthWithLeft;
+                if (isLastBlock) {
+                    result.lastLineWidth = lastLineWidthWithLeft;
+                }
+            } else if (isLastBlock) {
+                result.lastLineWidth = linesMaxWidth;
+            }
+            result.textWidth = Math.max(result.textWidth, (int) Math.ceil(textRealMaxWidth));
+        } else {
+            result.textWidth = Math.max(result.textWidth, Math.min(maxWidth, linesMaxWidth));
+        }
+
+        if (hasNonRTL) {
+            block.textXOffset = 0;
+        }
+    }
+}
@@ -0,0 +1,321 @@
+/*******************************************************************************
+ *
+ *                          Messenger Android Frontend
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    ThumbDiskCache.java
+ * Purpose: Downscaled thumbnails of gallery images, videos and large message
+ *          images, kept on disk across restarts in an append-only data file
+ *          with a memory-mapped hash index
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+public class ThumbDiskCache {
+
+    private static volatile ThumbDiskCache Instance = null;
+
+    public static ThumbDiskCache getInstance() {
+        ThumbDiskCache localInstance = Instance;
+        if (localInstance == null) {
+            synchronized (ThumbDiskCache.class) {
+                localInstance = Instance;
+                if (localInstance == null) {
+                    Instance = localInstance = new ThumbDiskCache();
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    private final static int  INDEX_MAGIC     = 0x54484d42; // "THMB"
+    private final static int  INDEX_VERSION   = 1;
+    private final static int  HEADER_SIZE     = 32;   // magic, version, entry count, 4 bytes unused, data end, live bytes
+    private final static int  SLOT_SIZE       = 32;   // key hash (0=empty), offset, length, last access in minutes, 8 bytes unused
+    private final static int  SLOT_CNT        = 4096; // must be a power of two
+    private final static int  MAX_ENTRIES     = SLOT_CNT * 3 / 4;
+    private final static long MAX_DATA_BYTES  = 24 * 1024 * 1024;
+    private final static int  MAX_THUMB_BYTES = 256 * 1024;
+
+    private static class Slot {
+        int  index;
+        long hash;
+        long offset;
+        int  length;
+        int  lastAccess;
+    }
+
+    private File             m_dataFile;
+    private RandomAccessFile m_data;
+    private RandomAccessFile m_indexRaf;
+    private MappedByteBuffer m_index; // null if the cache cannot be used
+
+    private int  m_entryCount;
+    private long m_dataEnd;
+    private long m_liveBytes;
+
+    private long m_hits;
+    private long m_misses;
+    private long m_puts;
+    private long m_compactions;
+
+    private ThumbDiskCache() {
+        try {
+            File dir = new File(ApplicationLoader.applicationContext.getCacheDir(), "thumbs");
+            if (!dir.exists()) {
+                dir.mkdirs();
+            }
+            m_dataFile = new File(dir, "thumbs.data");
+            m_data = new RandomAccessFile(m_dataFile, "rw");
+            m_indexRaf = new RandomAccessFile(new File(dir, "thumbs.idx"), "rw");
+            m_index = m_indexRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + SLOT_CNT * SLOT_SIZE);
+
+            m_entryCount = m_index.getInt(8);
+            m_dataEnd = m_index.getLong(16);
+            m_liveBytes = m_index.getLong(24);
+            if (m_index.getInt(0) != INDEX_MAGIC || m_index.getInt(4) != INDEX_VERSION
+             || m_dataEnd > m_data.length() || m_entryCount < 0 || m_entryCount > MAX_ENTRIES) {
+                reset(); // new, other version or data lost: start over
+            }
+        } catch (Exception e) {
+            FileLog.e("messenger", e);
+            m_index = null;
+        }
+    }
+
+    /* the key identifies the source, its size and the filter applied, eg. the MediaStore id
+    or the path, length and modification time of a file, followed by the filter */
+    public synchronized Bitmap get(String key, BitmapFactory.Options opts) {
+        if (m_index == null) {
+            return null;
+        }
+        try {
+            Slot slot = findSlot(hashKey(key));
+            if (slot.hash == 0 || slot.offset + slot.length > m_dataEnd) {
+                m_misses++;
+                return null;
+            }
+
+            byte[] data = new byte[slot.length];
+            m_data.seek(slot.offset);
+            m_data.readFully(data);
+            m_index.putInt(slotPos(slot.index) + 20, currentMinute());
+
+            Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+            if (bitmap != null) {
+                m_hits++;
+            } else {
+                m_misses++;
+            }
+            return bitmap;
+        } catch (Exception e) {
+            FileLog.e("messenger", e);
+            return null;
+        }
+    }
+
+    public void put(String key, Bitmap bitmap) {
+        if (m_index == null || bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+
+        // compress outside the lock, this is the expensive part
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        if (!bitmap.compress(bitmap.hasAlpha() ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG, 85, stream)) {
+            return;
+        }
+        byte[] data = stream.toByteArray();
+        if (data.length == 0 || data.length > MAX_THUMB_BYTES) {
+            return;
+        }
+
+        synchronized (this) {
+            try {
+                if (m_entryCount >= MAX_ENTRIES || m_dataEnd + data.length > MAX_DATA_BYTES) {
+                    compact();
+                }
+
+                long hash = hashKey(key);
+                Slot slot = findSlot(hash);
+                if (slot.hash != 0) {
+                    m_liveBytes -= slot.length; // the old data stays in the file until the next compaction
+                } else {
+                    m_entryCount++;
+                }
+
+                m_data.seek(m_dataEnd);
+                m_data.write(data);
+                writeSlot(slot.index, hash, m_dataEnd, data.length, currentMinute());
+                m_dataEnd += data.length;
+                m_liveBytes += data.length;
+                writeHeader();
+                m_puts++;
+            } catch (Exception e) {
+                FileLog.e("messenger", e);
+            }
+        }
+    }
+
+    public synchronized String getInfo() {
+        long requests = m_hits + m_misses;
+        return "Thumbnail disk cache: " + m_entryCount + " thumbnails, " + (m_liveBytes/1024) + "/" + (m_dataEnd/1024) + " KB used"
+            + "\nThumbnail disk cache hits: " + (requests > 0 ? m_hits*100/requests : 0) + "% of " + requests + ", " + m_puts + " added, " + m_compactions + " compactions";
+    }
+
+    /* copy the most recently used thumbnails to a new data file, leaving space for new ones,
+    and rebuild the index; this also drops the data of replaced thumbnails */
+    private void compact() throws Exception {
+        ArrayList<Slot> slots = new ArrayList<>(m_entryCount);
+        for (int i = 0; i < SLOT_CNT; i++) {
+            Slot slot = readSlot(i);
+            if (slot.hash != 0 && slot.offset + slot.length <= m_dataEnd) {
+                slots.add(slot);
+            }
+        }
+        Collections.sort(slots, new Comparator<Slot>() {
+            @Override
+            public int compare(Slot lhs, Slot rhs) {
+                return lhs.lastAccess == rhs.lastAccess ? 0 : (lhs.lastAccess > rhs.lastAccess ? -1 : 1);
+            }
+        });
+
+        File tempFile = new File(m_dataFile.getPath() + ".tmp");
+        RandomAccessFile temp = new RandomAccessFile(tempFile, "rw");
+        temp.setLength(0);
+        ArrayList<Slot> kept = new ArrayList<>();
+        long newEnd = 0;
+        byte[] buffer = new byte[MAX_THUMB_BYTES];
+        for (Slot slot : slots) {
+            if (kept.size() >= MAX_ENTRIES / 2 || newEnd + slot.length > MAX_DATA_BYTES / 2) {
+                break;
+            }
+            m_data.seek(slot.offset);
+            m_data.readFully(buffer, 0, slot.length);
+            temp.write(buffer, 0, slot.length);
+            slot.offset = newEnd;
+            newEnd += slot.length;
+            kept.add(slot);
+        }
+        temp.close();
+
+        m_data.close();
+        if (!tempFile.renameTo(m_dataFile)) {
+            tempFile.delete();
+            m_data = new RandomAccessFile(m_dataFile, "rw");
+            reset();
+            return;
+        }
+        m_data = new RandomAccessFile(m_dataFile, "rw");
+
+        for (int i = 0; i < SLOT_CNT; i++) {
+            m_index.putLong(slotPos(i), 0);
+        }
+        for (Slot slot : kept) {
+            Slot newSlot = findSlot(slot.hash);
+            writeSlot(newSlot.index, slot.hash, slot.offset, slot.length, slot.lastAccess);
+        }
+        m_entryCount = kept.size();
+        m_dataEnd = m_liveBytes = newEnd;
+        writeHeader();
+        m_compactions++;
+    }
+
+    private void reset() throws Exception {
+        m_data.setLength(0);
+        for (int i = 0; i < SLOT_CNT; i++) {
+            m_index.putLong(slotPos(i), 0);
+        }
+        m_entryCount = 0;
+        m_dataEnd = 0;
+        m_liveBytes = 0;
+        m_index.putInt(0, INDEX_MAGIC);
+        m_index.putInt(4, INDEX_VERSION);
+        writeHeader();
+    }
+
+    private void writeHeader() {
+        m_index.putInt(8, m_entryCount);
+        m_index.putLong(16, m_dataEnd);
+        m_index.putLong(24, m_liveBytes);
+    }
+
+    /* returns the slot holding the hash or the empty slot to use for it (linear probing; the
+    index is never more than 3/4 full) */
+    private Slot findSlot(long hash) {
+        int index = (int) (hash ^ (hash >>> 32)) & (SLOT_CNT - 1);
+        while (true) {
+            Slot slot = readSlot(index);
+            if (slot.hash == 0 || slot.hash == hash) {
+                return slot;
+            }
+            index = (index + 1) & (SLOT_CNT - 1);
+        }
+    }
+
+    private Slot readSlot(int index) {
+        int pos = slotPos(index);
+        Slot slot = new Slot();
+        slot.index = index;
+        slot.hash = m_index.getLong(pos);
+        slot.offset = m_index.getLong(pos + 8);
+        slot.length = m_index.getInt(pos + 16);
+        slot.lastAccess = m_index.getInt(pos + 20);
+        return slot;
+    }
+
+    private void writeSlot(int index, long hash, long offset, int length, int lastAccess) {
+        int pos = slotPos(index);
+        m_index.putLong(pos + 8, offset);
+        m_index.putInt(pos + 16, length);
+        m_index.putInt(pos + 20, lastAccess);
+        m_index.putLong(pos, hash); // written last, a slot is used only when complete
+    }
+
+    private static int slotPos(int index) {
+        return HEADER_SIZE + index * SLOT_SIZE;
+    }
+
+    private static int currentMinute() {
+        return (int) (System.currentTimeMillis() / 60000);
+    }
+
+    /* 64-bit FNV-1a; collisions are unlikely enough for a cache */
+    private static long hashKey(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash != 0 ? hash : 1;
+    }
+}
@@ -30,12 +30,13 @@ import android.os.IBinder;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.NotificationManagerCompat;
 
+import java.util.HashMap;
+
 public class VideoEncodingService extends Service implements NotificationCenter.NotificationCenterDelegate {
 
     private Context mContext = ApplicationLoader.applicationContext;
     private NotificationCompat.Builder builder = null;
-    private String path = null;
-    private int currentProgress = 0;
+    private HashMap<String, Integer> paths = new HashMap<>(); // path -> progress of the videos converted in parallel
 
     public VideoEncodingService() {
         super();
@@ -58,27 +59,51 @@ public class VideoEncodingService extends Service implements NotificationCenter.
     public void didReceivedNotification(int id, Object... args) {
         if (id == NotificationCenter.FileUploadProgressChanged) {
             String fileName = (String)args[0];
-            if (path != null && path.equals(fileName)) {
+            if (fileName != null && paths.containsKey(fileName)) {
                 Float progress = (Float) args[1];
-                Boolean enc = (Boolean) args[2];
-                currentProgress = (int)(progress * 100);
-                builder.setProgress(100, currentProgress, currentProgress == 0);
-                NotificationManagerCompat.from(mContext).notify(4, builder.build());
+                paths.put(fileName, (int)(progress * 100));
+                updateNotification();
             }
         } else if (id == NotificationCenter.stopEncodingService) {
             String filepath = (String)args[0];
-            if (filepath == null || filepath.equals(path)) {
-                stopSelf();
+            if (filepath == null) {
+                paths.clear();
+            } else {
+                paths.remove(filepath);
             }
+            if (paths.isEmpty()) {
+                stopSelf(); // the last of the parallel conversions is done
+            } else {
+                updateNotification();
+            }
+        }
+    }
+
+    private void updateNotification() {
+        int currentProgress = 0;
+        for (Integer progress : paths.values()) {
+            currentProgress += progress;
         }
+        currentProgress /= Math.max(1, paths.size());
+        builder.setProgress(100, currentProgress, currentProgress == 0);
+        NotificationManagerCompat.from(mContext).notify(4, builder.build());
     }
 
     public int onStartCommand(Intent intent, int flags, int startId) {
-        path = intent.getStringExtra("path");
+        String path = intent != null ? intent.getStringExtra("path") : null;
         if (path == null) {
-            stopSelf();
+            if (paths.isEmpty()) {
+                stopSelf();
+            }
             return Service.START_NOT_STICKY;
         }
+        if (!MediaController.getInstance().isConvertingVideo(path)) {
+            if (paths.isEmpty()) {
+                stopSelf(); // the conversion is already done, the intent arrived after stopEncodingService
+            }
+            return Service.START_NOT_STICKY;
+        }
+        paths.put(path, 0);
         FileLog.e("messenger", "start video service");
         if (builder == null) {
             builder = new NotificationCompat.Builder(mContext);
@@ -88,10 +113,8 @@ public class VideoEncodingService extends Service implements NotificationCenter.
             builder.setTicker(mContext.getString(R.string.SendingVideo));
             builder.setContentText(mContext.getString(R.string.SendingVideo));
         }
-        currentProgress = 0;
-        builder.setProgress(100, currentProgress, currentProgress == 0);
         startForeground(4, builder.build());
-        NotificationManagerCompat.from(mContext).notify(4, builder.build());
+        updateNotification();
         return Service.START_NOT_STICKY;
     }
 }
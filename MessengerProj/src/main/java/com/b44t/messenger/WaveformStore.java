@@ -0,0 +1,303 @@
+/*******************************************************************************
+ *
+ *                          Messenger Android Frontend
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    WaveformStore.java
+ * Purpose: Waveforms of voice messages, 5-bit packed as in the TLRPC format,
+ *          computed once and kept on disk across restarts
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+public class WaveformStore {
+
+    private static volatile WaveformStore Instance = null;
+
+    public static WaveformStore getInstance() {
+        WaveformStore localInstance = Instance;
+        if (localInstance == null) {
+            synchronized (WaveformStore.class) {
+                localInstance = Instance;
+                if (localInstance == null) {
+                    Instance = localInstance = new WaveformStore();
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    public interface WaveformStoreDelegate {
+        void didLoadWaveform(byte[] waveform); // called on the UI thread, waveform is null on errors
+    }
+
+    private final static int FILE_MAGIC   = 0x57415645; // "WAVE"
+    private final static int FILE_VERSION = 1;
+    private final static int MAX_WAVEFORM_BYTES = 1024;
+
+    private static class Entry {
+        final long   size;
+        final long   mtime;
+        final byte[] waveform;
+
+        Entry(long size, long mtime, byte[] waveform) {
+            this.size     = size;
+            this.mtime    = mtime;
+            this.waveform = waveform;
+        }
+    }
+
+    // the native decoder is CPU-bound and each file is read as a whole; two at a time are enough
+    // to not wait for a long message while keeping the other cores free
+    private final ImageDecodeScheduler m_scheduler = new ImageDecodeScheduler("waveform", 2);
+
+    private final Object  m_loadSync = new Object();
+    private boolean       m_loadDone;    // guarded by m_loadSync
+
+    private final HashMap<String, Entry> m_entries = new HashMap<>(); // blob path -> waveform, all guarded by this
+    private int     m_fileRecords; // records in the file, including outdated ones
+    private long    m_computed;
+    private long    m_hits;
+
+    private WaveformStore() {
+        // the whole store is read at once, it is a few bytes per voice message
+        m_scheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                ensureLoaded();
+            }
+        }, ImageDecodeScheduler.PRIORITY_VISIBLE_THUMB);
+    }
+
+    /* the waveform of the file if it is known, without any disk access; returns null if the
+    store is not loaded yet or the waveform must be computed by request() */
+    public synchronized byte[] get(String path, long size) {
+        Entry entry = m_entries.get(path);
+        if (entry != null && entry.size == size) {
+            m_hits++;
+            return entry.waveform;
+        }
+        return null;
+    }
+
+    /* get the waveform from the store or compute it on a worker; call from the UI thread */
+    public void request(final String path, final WaveformStoreDelegate delegate) {
+        m_scheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                final byte[] waveform = getOrCompute(path);
+                AndroidUtilities.runOnUIThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        delegate.didLoadWaveform(waveform);
+                    }
+                });
+            }
+        }, ImageDecodeScheduler.PRIORITY_VISIBLE);
+    }
+
+    public synchronized String getInfo() {
+        return "Waveform store: " + m_entries.size() + " waveforms, " + m_hits + " hits, " + m_computed + " computed"
+            + "\n" + m_scheduler.getInfo();
+    }
+
+    private byte[] getOrCompute(String path) {
+        ensureLoaded();
+        File file = new File(path);
+        long size = file.length(), mtime = file.lastModified();
+        synchronized (this) {
+            Entry entry = m_entries.get(path);
+            if (entry != null && entry.size == size && entry.mtime == mtime) {
+                m_hits++;
+                return entry.waveform;
+            }
+        }
+
+        byte[] waveform = MediaController.getInstance().getWaveform(path);
+        if (waveform == null || waveform.length == 0 || waveform.length > MAX_WAVEFORM_BYTES) {
+            return waveform;
+        }
+        synchronized (this) {
+            m_entries.put(path, new Entry(size, mtime, waveform));
+            m_computed++;
+            append(path, size, mtime, waveform);
+        }
+        return waveform;
+    }
+
+    private static File getFile() {
+        return new File(ApplicationLoader.getFilesDirFixed(), "waveforms.dat");
+    }
+
+    /* called with the store locked */
+    private void append(String path, long size, long mtime, byte[] waveform) {
+        DataOutputStream out = null;
+        try {
+            File file = getFile();
+            boolean isNew = !file.exists() || file.length() == 0;
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            if (isNew) {
+                out.writeInt(FILE_MAGIC);
+                out.writeInt(FILE_VERSION);
+                m_fileRecords = 0;
+            }
+            writeRecord(out, path, size, mtime, waveform);
+            m_fileRecords++;
+        } catch (Exception e) {
+            FileLog.e("messenger", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (Exception e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, String path, long size, long mtime, byte[] waveform) throws Exception {
+        out.writeUTF(path);
+        out.writeLong(size);
+        out.writeLong(mtime);
+        out.writeShort(waveform.length);
+        out.write(waveform);
+    }
+
+    /* read the store; the waveforms of files deleted or changed meanwhile are dropped, and the
+    file is rewritten if they are more than the valid ones. The store is not locked while reading,
+    nothing is appended before the reading is done. */
+    private void ensureLoaded() {
+        synchronized (m_loadSync) {
+            if (m_loadDone) {
+                return;
+            }
+            m_loadDone = true;
+
+            HashMap<String, Entry> entries = new HashMap<>();
+            int records = 0;
+            boolean broken = false;
+            File file = getFile();
+            if (file.exists()) {
+                DataInputStream in = null;
+                try {
+                    in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                    if (in.readInt() == FILE_MAGIC && in.readInt() == FILE_VERSION) {
+                        while (true) {
+                            String path;
+                            try {
+                                path = in.readUTF();
+                            } catch (EOFException e) {
+                                break;
+                            }
+                            long size = in.readLong(), mtime = in.readLong();
+                            byte[] waveform = new byte[in.readUnsignedShort()];
+                            in.readFully(waveform);
+                            entries.put(path, new Entry(size, mtime, waveform)); // later records replace earlier ones
+                            records++;
+                        }
+                    } else {
+                        records = Integer.MAX_VALUE; // unknown format, rewrite
+                    }
+                } catch (Exception e) {
+                    FileLog.e("messenger", e); // a record cut off by a crash, the records before are used
+                    broken = true;
+                } finally {
+                    if (in != null) {
+                        try {
+                            in.close();
+                        } catch (Exception e) {
+                            // ignore
+                        }
+                    }
+                }
+            }
+
+            Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Entry> item = iterator.next();
+                File blob = new File(item.getKey());
+                if (blob.length() != item.getValue().size || blob.lastModified() != item.getValue().mtime) {
+                    iterator.remove();
+                }
+            }
+            // a broken record must be removed as the records appended later could not be read otherwise
+            if (broken || records > entries.size() * 2) {
+                if (rewrite(entries)) {
+                    records = entries.size();
+                } else if (broken) {
+                    file.delete();
+                    entries.clear();
+                    records = 0;
+                }
+            }
+
+            synchronized (this) {
+                m_entries.putAll(entries);
+                m_fileRecords = records;
+            }
+        }
+    }
+
+    private static boolean rewrite(HashMap<String, Entry> entries) {
+        DataOutputStream out = null;
+        try {
+            File file = getFile();
+            File tempFile = new File(file.getAbsolutePath() + ".tmp");
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            for (Map.Entry<String, Entry> item : entries.entrySet()) {
+                Entry entry = item.getValue();
+                writeRecord(out, item.getKey(), entry.size, entry.mtime, entry.waveform);
+            }
+            out.close();
+            out = null;
+            if (tempFile.renameTo(file)) {
+                return true;
+            }
+            tempFile.delete();
+        } catch (Exception e) {
+            FileLog.e("messenger", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (Exception e) {
+                    // ignore
+                }
+            }
+        }
+        return false;
+    }
+}
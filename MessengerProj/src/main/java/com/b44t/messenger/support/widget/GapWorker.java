@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.b44t.messenger.support.widget;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prefetches the items that are about to scroll into view.
+ * <p>
+ * After a scroll, the worker is posted to the UI thread; it runs after the traversal of the
+ * current frame and uses the time left until the next frame to create and bind the next items
+ * in scroll direction. The items are put into the view cache of the {@link RecyclerView.Recycler}
+ * so that the next layout only has to attach them.
+ * <p>
+ * The number of items to prefetch is set per adapter by
+ * {@link RecyclerView.Adapter#setPrefetchDistance(int)}.
+ */
+final class GapWorker implements Runnable {
+
+    private static final long DEFAULT_FRAME_INTERVAL_NS = TimeUnit.SECONDS.toNanos(1) / 60;
+
+    private final RecyclerView mRecyclerView;
+    private long mFrameIntervalNs = DEFAULT_FRAME_INTERVAL_NS;
+    private boolean mPosted;
+    private int mDx;
+    private int mDy;
+    private int[] mPositions = new int[4];
+
+    GapWorker(RecyclerView recyclerView) {
+        mRecyclerView = recyclerView;
+    }
+
+    /**
+     * @param refreshRate Refresh rate of the display the RecyclerView is shown on, in frames per
+     *                    second; unusable values are ignored.
+     */
+    void setRefreshRate(float refreshRate) {
+        mFrameIntervalNs = refreshRate >= 30 ? (long) (TimeUnit.SECONDS.toNanos(1) / refreshRate)
+                : DEFAULT_FRAME_INTERVAL_NS;
+    }
+
+    /**
+     * Called after the RecyclerView was scrolled by the given deltas.
+     */
+    void postFromScroll(int dx, int dy) {
+        mDx = dx;
+        mDy = dy;
+        if (!mPosted) {
+            mPosted = true;
+            mRecyclerView.post(this);
+        }
+    }
+
+    void cancel() {
+        if (mPosted) {
+            mPosted = false;
+            mRecyclerView.removeCallbacks(this);
+        }
+    }
+
+    @Override
+    public void run() {
+        mPosted = false;
+        final RecyclerView.Adapter adapter = mRecyclerView.getAdapter();
+        final RecyclerView.LayoutManager layout = mRecyclerView.getLayoutManager();
+        if (adapter == null || layout == null || !mRecyclerView.canPrefetch()) {
+            return;
+        }
+        final int distance = adapter.getPrefetchDistance();
+        if (distance <= 0) {
+            return;
+        }
+
+        if (mPositions.length < distance) {
+            mPositions = new int[distance];
+        }
+        final int count = layout.collectPrefetchPositions(mDx, mDy, distance,
+                mRecyclerView.mState, mPositions);
+        if (count <= 0) {
+            return;
+        }
+
+        // getDrawingTime() is the start of the frame just drawn, the next frame is due one
+        // interval later
+        final long deadlineNs = TimeUnit.MILLISECONDS.toNanos(mRecyclerView.getDrawingTime())
+                + mFrameIntervalNs;
+        mRecyclerView.prefetchPositions(mPositions, count, distance, deadlineNs);
+    }
+}
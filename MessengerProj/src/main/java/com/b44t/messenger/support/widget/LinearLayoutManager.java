@@ -1503,6 +1503,30 @@ public class LinearLayoutManager extends RecyclerView.LayoutManager implements
 
     }
 
+    @Override
+    int collectPrefetchPositions(int dx, int dy, int distance, RecyclerView.State state,
+            int[] outPositions) {
+        final int delta = (mOrientation == HORIZONTAL) ? dx : dy;
+        if (getChildCount() == 0 || delta == 0) {
+            return 0;
+        }
+        final boolean towardsEnd = delta > 0;
+        final View child = towardsEnd ? getChildClosestToEnd() : getChildClosestToStart();
+        final int itemDirection = (towardsEnd == mShouldReverseLayout)
+                ? LayoutState.ITEM_DIRECTION_HEAD : LayoutState.ITEM_DIRECTION_TAIL;
+        final int itemCount = state.getItemCount();
+        int position = getPosition(child);
+        int count = 0;
+        while (count < distance) {
+            position += itemDirection;
+            if (position < 0 || position >= itemCount) {
+                break;
+            }
+            outPositions[count++] = position;
+        }
+        return count;
+    }
+
     /**
      * Convenience method to find the child closes to start. Caller should check it has enough
      * children.
@@ -61,6 +61,7 @@ import android.view.View;
 import android.view.ViewConfiguration;
 import android.view.ViewGroup;
 import android.view.ViewParent;
+import android.view.WindowManager;
 import android.view.accessibility.AccessibilityEvent;
 import android.view.accessibility.AccessibilityManager;
 import android.view.animation.Interpolator;
@@ -250,6 +251,8 @@ public class RecyclerView extends ViewGroup implements ScrollingView, NestedScro
 
     final Recycler mRecycler = new Recycler();
 
+    final GapWorker mGapWorker = new GapWorker(this);
+
     private SavedState mPendingSavedState;
 
     /**
@@ -2128,6 +2131,16 @@ public class RecyclerView extends ViewGroup implements ScrollingView, NestedScro
             mLayout.dispatchAttachedToWindow(this);
         }
         mPostedAnimatorRunner = false;
+
+        // the prefetcher needs the frame interval to know the time left in a frame
+        if (!isInEditMode()) {
+            try {
+                WindowManager wm = (WindowManager) getContext().getSystemService(Context.WINDOW_SERVICE);
+                mGapWorker.setRefreshRate(wm.getDefaultDisplay().getRefreshRate());
+            } catch (Exception e) {
+                FileLog.e("messenger", e);
+            }
+        }
     }
 
     @Override
@@ -2144,6 +2157,7 @@ public class RecyclerView extends ViewGroup implements ScrollingView, NestedScro
             mLayout.dispatchDetachedFromWindow(this, mRecycler);
         }
         removeCallbacks(mItemAnimatorRunner);
+        mGapWorker.cancel();
         mViewInfoStore.onDetach();
     }
 
@@ -2718,6 +2732,36 @@ public class RecyclerView extends ViewGroup implements ScrollingView, NestedScro
         }
     }
 
+    /**
+     * @return true if items can be prefetched, that is, the last layout is up to date and no
+     * adapter changes are pending
+     */
+    boolean canPrefetch() {
+        return mIsAttached && mFirstLayoutComplete && mAdapter != null && mLayout != null
+                && !mLayoutFrozen && !mDataSetHasChangedAfterLayout
+                && !mAdapterHelper.hasPendingUpdates() && !isLayoutRequested();
+    }
+
+    /**
+     * Create and bind the items at the given positions until the deadline is reached; the items
+     * are put into the view cache of the Recycler.
+     */
+    void prefetchPositions(int[] positions, int count, int distance, long deadlineNs) {
+        eatRequestLayout();
+        onEnterLayoutOrScroll();
+        try {
+            mRecycler.setPrefetchCacheExtra(distance);
+            for (int i = 0; i < count; i++) {
+                if (!mRecycler.prefetchPositionForDeadline(positions[i], deadlineNs)) {
+                    break;
+                }
+            }
+        } finally {
+            onExitLayoutOrScroll();
+            resumeRequestLayout(false);
+        }
+    }
+
     private void onEnterLayoutOrScroll() {
         mLayoutOrScrollCounter ++;
     }
@@ -3953,6 +3997,10 @@ public class RecyclerView extends ViewGroup implements ScrollingView, NestedScro
         // Pass the real deltas to onScrolled, the RecyclerView-specific method.
         onScrolled(hresult, vresult);
 
+        if (hresult != 0 || vresult != 0) {
+            mGapWorker.postFromScroll(hresult, vresult);
+        }
+
         // Invoke listeners last. Subclassed view methods always handle the event first.
         // All internal state is consistent by the time listeners are invoked.
         if (mScrollListener != null) {
@@ -4461,6 +4509,13 @@ public class RecyclerView extends ViewGroup implements ScrollingView, NestedScro
 
         private static final int DEFAULT_CACHE_SIZE = 2;
 
+        // prefetched items are kept in addition to mViewCacheMax, so that they do not push out
+        // each other or the items just scrolled out
+        private int mPrefetchCacheExtra;
+
+        // running averages of the time needed to create and to bind a view holder, per view type
+        private final SparseArray<long[]> mAvgTimesNs = new SparseArray<>();
+
         /**
          * Clear scrap views out of this recycler. Detached views contained within a
          * recycled view pool will remain.
@@ -4713,7 +4768,9 @@ public class RecyclerView extends ViewGroup implements ScrollingView, NestedScro
                     }
                 }
                 if (holder == null) {
+                    final long startNs = System.nanoTime();
                     holder = mAdapter.createViewHolder(RecyclerView.this, type);
+                    recordTime(type, 0, System.nanoTime() - startNs);
                     if (DEBUG) {
                         Log.d(TAG, "getViewForPosition created new ViewHolder");
                     }
@@ -4747,7 +4804,9 @@ public class RecyclerView extends ViewGroup implements ScrollingView, NestedScro
                 }
                 final int offsetPosition = mAdapterHelper.findPositionOffset(position);
                 holder.mOwnerRecyclerView = RecyclerView.this;
+                final long startNs = System.nanoTime();
                 mAdapter.bindViewHolder(holder, offsetPosition);
+                recordTime(holder.getItemViewType(), 1, System.nanoTime() - startNs);
                 attachAccessibilityDelegate(holder.itemView);
                 bound = true;
                 if (mState.isPreLayout()) {
@@ -4771,6 +4830,49 @@ public class RecyclerView extends ViewGroup implements ScrollingView, NestedScro
             return holder.itemView;
         }
 
+        private void recordTime(int viewType, int index, long timeNs) {
+            long[] times = mAvgTimesNs.get(viewType);
+            if (times == null) {
+                times = new long[2];
+                mAvgTimesNs.put(viewType, times);
+            }
+            times[index] = times[index] == 0 ? timeNs : (times[index] / 4 * 3 + timeNs / 4);
+        }
+
+        void setPrefetchCacheExtra(int extra) {
+            mPrefetchCacheExtra = extra;
+        }
+
+        /**
+         * Create and bind the item at the given position and put it into the view cache, if it is
+         * not yet attached or cached.
+         *
+         * @return false if the deadline would be missed, the caller should stop prefetching then
+         */
+        boolean prefetchPositionForDeadline(int position, long deadlineNs) {
+            if (position < 0 || position >= mState.getItemCount()
+                    || findViewHolderForPosition(position, false) != null) {
+                return true;
+            }
+            final int cachedCount = mCachedViews.size();
+            for (int i = 0; i < cachedCount; i++) {
+                final ViewHolder holder = mCachedViews.get(i);
+                if (holder.getLayoutPosition() == position && !holder.isInvalid()) {
+                    return true;
+                }
+            }
+
+            final int type = mAdapter.getItemViewType(position);
+            final long[] times = mAvgTimesNs.get(type);
+            final long expectedNs = times == null ? 0 : times[0] + times[1];
+            if (System.nanoTime() + expectedNs > deadlineNs) {
+                return false;
+            }
+
+            recycleView(getViewForPosition(position));
+            return true;
+        }
+
         private void attachAccessibilityDelegate(View itemView) {
             if (isAccessibilityEnabled()) {
                 if (ViewCompat.getImportantForAccessibility(itemView) ==
@@ -4915,11 +5017,12 @@ public class RecyclerView extends ViewGroup implements ScrollingView, NestedScro
                 if (!holder.hasAnyOfTheFlags(ViewHolder.FLAG_INVALID | ViewHolder.FLAG_REMOVED
                         | ViewHolder.FLAG_UPDATE)) {
                     // Retire oldest cached view
+                    final int cacheMax = mViewCacheMax + mPrefetchCacheExtra;
                     final int cachedViewSize = mCachedViews.size();
-                    if (cachedViewSize == mViewCacheMax && cachedViewSize > 0) {
+                    if (cachedViewSize >= cacheMax && cachedViewSize > 0) {
                         recycleCachedViewAt(0);
                     }
-                    if (cachedViewSize < mViewCacheMax) {
+                    if (mCachedViews.size() < cacheMax) {
                         mCachedViews.add(holder);
                         cached = true;
                     }
@@ -5401,6 +5504,21 @@ public class RecyclerView extends ViewGroup implements ScrollingView, NestedScro
     public static abstract class Adapter<VH extends ViewHolder> {
         private final AdapterDataObservable mObservable = new AdapterDataObservable();
         private boolean mHasStableIds = false;
+        private int mPrefetchDistance = 0;
+
+        /**
+         * Set the number of items that are created and bound in advance in scroll direction,
+         * using the time left in a frame. 0 disables prefetching, which is the default.
+         *
+         * @param distance Number of items to prefetch
+         */
+        public void setPrefetchDistance(int distance) {
+            mPrefetchDistance = Math.max(0, distance);
+        }
+
+        public int getPrefetchDistance() {
+            return mPrefetchDistance;
+        }
 
         /**
          * Called when RecyclerView needs a new {@link ViewHolder} of the given type to represent
@@ -6350,6 +6468,22 @@ public class RecyclerView extends ViewGroup implements ScrollingView, NestedScro
         public void onAttachedToWindow(RecyclerView view) {
         }
 
+        /**
+         * Collect the adapter positions of the items that will become visible next when
+         * scrolling on by the given deltas; used by the {@link GapWorker} to prefetch them.
+         *
+         * @param dx Last horizontal scroll delta
+         * @param dy Last vertical scroll delta
+         * @param distance Maximum number of positions to collect
+         * @param state Current state of the RecyclerView
+         * @param outPositions Array to write the positions to, nearest first
+         * @return The number of positions written to outPositions
+         */
+        int collectPrefetchPositions(int dx, int dy, int distance, State state,
+                int[] outPositions) {
+            return 0;
+        }
+
         /**
          * @deprecated
          * override {@link #onDetachedFromWindow(RecyclerView, Recycler)}
@@ -0,0 +1,237 @@
+/*******************************************************************************
+ *
+ *                          Messenger Android Frontend
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    ConvertCheckpoint.java
+ * Purpose: The state of a video conversion at a GOP boundary, saved next to the
+ *          output file so that a killed conversion continues from there
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger.video;
+
+import android.annotation.TargetApi;
+import android.media.MediaFormat;
+
+import com.b44t.messenger.FileLog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+@TargetApi(16)
+public class ConvertCheckpoint {
+
+    private final static int FILE_MAGIC   = 0x56434B50; // "VCKP"
+    private final static int FILE_VERSION = 1;
+
+    public final String key;     // source file and edit parameters; a checkpoint of other ones is not used
+    public int     attempts;     // conversions started, including the killed ones
+    public long    fileOffset;   // the output file is final up to here; 0 = start over
+    public boolean videoDone;    // the video track is complete, only the audio track is missing
+    public long    resumeTimeUs; // the first source frame not in the output file
+    public long    videoTimeUs = -1; // the first video frame written, the audio track starts there
+
+    private String mime;          // format of the video track, set before the track is added
+    private int    width;
+    private int    height;
+    private byte[] csd0;
+    private byte[] csd1;
+    private byte[] trackState;   // sample table of the video track, null if there is no track yet
+
+    public ConvertCheckpoint(String key) {
+        this.key = key;
+    }
+
+    public static File getFile(File outputFile) {
+        return new File(outputFile.getAbsolutePath() + ".ckpt");
+    }
+
+    /* returns the checkpoint saved for the output file, null if there is none for the given key */
+    public static ConvertCheckpoint load(File outputFile, String key) {
+        File file = getFile(outputFile);
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION || !in.readUTF().equals(key)) {
+                return null;
+            }
+            ConvertCheckpoint ret = new ConvertCheckpoint(key);
+            ret.attempts     = in.readInt();
+            ret.fileOffset   = in.readLong();
+            ret.videoDone    = in.readBoolean();
+            ret.resumeTimeUs = in.readLong();
+            ret.videoTimeUs  = in.readLong();
+            if (in.readBoolean()) {
+                ret.mime   = in.readUTF();
+                ret.width  = in.readInt();
+                ret.height = in.readInt();
+                ret.csd0   = readBytes(in);
+                ret.csd1   = readBytes(in);
+                ret.trackState = readBytes(in);
+            }
+            if (ret.trackState == null || outputFile.length() < ret.fileOffset) {
+                ret.fileOffset = 0; // nothing converted yet or the output file was deleted meanwhile
+            }
+            if (ret.fileOffset == 0) {
+                ret.videoDone = false;
+                ret.videoTimeUs = -1;
+                ret.trackState = null;
+            }
+            return ret;
+        } catch (Exception e) {
+            FileLog.e("messenger", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (Exception e) {
+                    // ignore
+                }
+            }
+        }
+        return null;
+    }
+
+    /* save the checkpoint; the state of the video track is taken from the given track, if any.
+    The file is replaced by a rename, so a kill while saving keeps the previous checkpoint. */
+    public void save(File outputFile, Track track) {
+        DataOutputStream out = null;
+        try {
+            if (track != null) {
+                ByteArrayOutputStream state = new ByteArrayOutputStream();
+                DataOutputStream stateOut = new DataOutputStream(state);
+                track.writeState(stateOut);
+                stateOut.flush();
+                trackState = state.toByteArray();
+            }
+
+            File file = getFile(outputFile);
+            File tempFile = new File(file.getAbsolutePath() + ".tmp");
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeUTF(key);
+            out.writeInt(attempts);
+            out.writeLong(fileOffset);
+            out.writeBoolean(videoDone);
+            out.writeLong(resumeTimeUs);
+            out.writeLong(videoTimeUs);
+            out.writeBoolean(mime != null && trackState != null);
+            if (mime != null && trackState != null) {
+                out.writeUTF(mime);
+                out.writeInt(width);
+                out.writeInt(height);
+                writeBytes(out, csd0);
+                writeBytes(out, csd1);
+                writeBytes(out, trackState);
+            }
+            out.close();
+            out = null;
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+            }
+        } catch (Exception e) {
+            FileLog.e("messenger", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (Exception e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    public static void delete(File outputFile) {
+        getFile(outputFile).delete();
+    }
+
+    /* remember the format of the video track; call before the format is given to addTrack()
+    as the track reads the codec specific data from the buffers */
+    public void setVideoFormat(MediaFormat format) {
+        mime   = format.getString(MediaFormat.KEY_MIME);
+        width  = format.getInteger(MediaFormat.KEY_WIDTH);
+        height = format.getInteger(MediaFormat.KEY_HEIGHT);
+        csd0   = getBytes(format, "csd-0");
+        csd1   = getBytes(format, "csd-1");
+    }
+
+    /* true if the codec specific data of the format are the ones saved; frames of an encoder with
+    other parameter sets cannot be appended to the video track of the checkpoint */
+    public boolean matchesVideoFormat(MediaFormat format) {
+        return Arrays.equals(csd0, getBytes(format, "csd-0")) && Arrays.equals(csd1, getBytes(format, "csd-1"));
+    }
+
+    /* add the video track as it was at the checkpoint to the movie; returns the index of the track */
+    public int restoreVideoTrack(Mp4Movie movie) throws Exception {
+        MediaFormat format = MediaFormat.createVideoFormat(mime, width, height);
+        if (csd0 != null && csd1 != null) {
+            format.setByteBuffer("csd-0", ByteBuffer.wrap(csd0));
+            format.setByteBuffer("csd-1", ByteBuffer.wrap(csd1));
+        }
+        int index = movie.addTrack(format, false);
+        movie.getTracks().get(index).readState(new DataInputStream(new ByteArrayInputStream(trackState)));
+        return index;
+    }
+
+    private static byte[] getBytes(MediaFormat format, String name) {
+        ByteBuffer buffer = format.containsKey(name) ? format.getByteBuffer(name) : null;
+        if (buffer == null) {
+            return null;
+        }
+        buffer = buffer.duplicate();
+        buffer.position(0);
+        byte[] bytes = new byte[buffer.limit()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes != null ? bytes.length : -1);
+        if (bytes != null) {
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
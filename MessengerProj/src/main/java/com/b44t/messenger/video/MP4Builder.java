@@ -53,14 +53,13 @@ import com.coremedia.iso.boxes.TrackHeaderBox;
 import com.googlecode.mp4parser.DataSource;
 import com.googlecode.mp4parser.util.Matrix;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -69,19 +68,19 @@ public class MP4Builder {
 
     private InterleaveChunkMdat mdat = null;
     private Mp4Movie currentMp4Movie = null;
-    private FileOutputStream fos = null;
+    private RandomAccessFile file = null;
     private FileChannel fc = null;
     private long dataOffset = 0;
     private long writedSinceLastMdat = 0;
     private boolean writeNewMdat = true;
-    private HashMap<Track, long[]> track2SampleSizes = new HashMap<>();
     private ByteBuffer sizeBuffer = null;
 
     public MP4Builder createMovie(Mp4Movie mp4Movie) throws Exception {
         currentMp4Movie = mp4Movie;
 
-        fos = new FileOutputStream(mp4Movie.getCacheFile());
-        fc = fos.getChannel();
+        file = new RandomAccessFile(mp4Movie.getCacheFile(), "rw");
+        file.setLength(0);
+        fc = file.getChannel();
 
         FileTypeBox fileTypeBox = createFileTypeBox();
         fileTypeBox.getBox(fc);
@@ -95,6 +94,41 @@ public class MP4Builder {
         return this;
     }
 
+    /* continue a movie from a checkpoint() of a previous run; the tracks must be restored to the
+    state they had at the checkpoint before */
+    public MP4Builder resumeMovie(Mp4Movie mp4Movie, long offset) throws Exception {
+        currentMp4Movie = mp4Movie;
+
+        file = new RandomAccessFile(mp4Movie.getCacheFile(), "rw");
+        file.setLength(offset);
+        fc = file.getChannel();
+        fc.position(offset);
+        dataOffset = offset;
+
+        mdat = new InterleaveChunkMdat();
+
+        sizeBuffer = ByteBuffer.allocateDirect(4);
+
+        return this;
+    }
+
+    /* close the current chunk; the file is final up to the returned offset and the movie can be
+    continued from there by resumeMovie() */
+    public long checkpoint() throws Exception {
+        if (!writeNewMdat) {
+            flushCurrentMdat();
+            writeNewMdat = true;
+            writedSinceLastMdat = 0;
+        }
+        return dataOffset;
+    }
+
+    /* the number of bytes at the beginning of the file that are not changed any longer, they can
+    be read while the movie is written */
+    public long getFinalSize() {
+        return writeNewMdat ? dataOffset : mdat.getOffset();
+    }
+
     private void flushCurrentMdat() throws Exception {
         long oldPosition = fc.position();
         fc.position(mdat.getOffset());
@@ -102,7 +136,6 @@ public class MP4Builder {
         fc.position(oldPosition);
         mdat.setDataOffset(0);
         mdat.setContentSize(0);
-        fos.flush();
     }
 
     public boolean writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo, boolean isAudio) throws Exception {
@@ -140,9 +173,6 @@ public class MP4Builder {
         fc.write(byteBuf);
         dataOffset += bufferInfo.size;
 
-        if (flush) {
-            fos.flush();
-        }
         return flush;
     }
 
@@ -155,21 +185,11 @@ public class MP4Builder {
             flushCurrentMdat();
         }
 
-        for (Track track : currentMp4Movie.getTracks()) {
-            List<Sample> samples = track.getSamples();
-            long[] sizes = new long[samples.size()];
-            for (int i = 0; i < sizes.length; i++) {
-                sizes[i] = samples.get(i).getSize();
-            }
-            track2SampleSizes.put(track, sizes);
-        }
-
         Box moov = createMovieBox(currentMp4Movie);
         moov.getBox(fc);
-        fos.flush();
 
         fc.close();
-        fos.close();
+        file.close();
     }
 
     protected FileTypeBox createFileTypeBox() {
@@ -367,7 +387,9 @@ public class MP4Builder {
         TimeToSampleBox.Entry lastEntry = null;
         List<TimeToSampleBox.Entry> entries = new ArrayList<>();
 
-        for (long delta : track.getSampleDurations()) {
+        int durationCount = track.getSampleDurationCount();
+        for (int a = 0; a < durationCount; a++) {
+            long delta = track.getSampleDuration(a);
             if (lastEntry != null && lastEntry.getDelta() == delta) {
                 lastEntry.setCount(lastEntry.getCount() + 1);
             } else {
@@ -399,19 +421,14 @@ public class MP4Builder {
 
         int previousWritedChunkCount = -1;
 
-        int samplesCount = track.getSamples().size();
+        int samplesCount = track.getSampleCount();
         for (int a = 0; a < samplesCount; a++) {
-            Sample sample = track.getSamples().get(a);
-            long offset = sample.getOffset();
-            long size = sample.getSize();
-
-            lastOffset = offset + size;
+            lastOffset = track.getSampleOffset(a) + track.getSampleSize(a);
             lastSampleCount++;
 
             boolean write = false;
             if (a != samplesCount - 1) {
-                Sample nextSample = track.getSamples().get(a + 1);
-                if (lastOffset != nextSample.getOffset()) {
+                if (lastOffset != track.getSampleOffset(a + 1)) {
                     write = true;
                 }
             } else {
@@ -431,26 +448,30 @@ public class MP4Builder {
 
     protected void createStsz(Track track, SampleTableBox stbl) {
         SampleSizeBox stsz = new SampleSizeBox();
-        stsz.setSampleSizes(track2SampleSizes.get(track));
+        stsz.setSampleSizes(track.getSampleSizes());
         stbl.addBox(stsz);
     }
 
     protected void createStco(Track track, SampleTableBox stbl) {
-        ArrayList<Long> chunksOffsets = new ArrayList<>();
+        // a chunk starts where a sample does not follow the previous one directly
+        int samplesCount = track.getSampleCount();
+        int chunkCount = 0;
         long lastOffset = -1;
-        for (Sample sample : track.getSamples()) {
-            long offset = sample.getOffset();
-            if (lastOffset != -1 && lastOffset != offset) {
-                lastOffset = -1;
-            }
-            if (lastOffset == -1) {
-                chunksOffsets.add(offset);
+        for (int a = 0; a < samplesCount; a++) {
+            if (track.getSampleOffset(a) != lastOffset) {
+                chunkCount++;
             }
-            lastOffset = offset + sample.getSize();
+            lastOffset = track.getSampleOffset(a) + track.getSampleSize(a);
         }
-        long[] chunkOffsetsLong = new long[chunksOffsets.size()];
-        for (int a = 0; a < chunksOffsets.size(); a++) {
-            chunkOffsetsLong[a] = chunksOffsets.get(a);
+        long[] chunkOffsetsLong = new long[chunkCount];
+        chunkCount = 0;
+        lastOffset = -1;
+        for (int a = 0; a < samplesCount; a++) {
+            long offset = track.getSampleOffset(a);
+            if (offset != lastOffset) {
+                chunkOffsetsLong[chunkCount++] = offset;
+            }
+            lastOffset = offset + track.getSampleSize(a);
         }
 
         StaticChunkOffsetBox stco = new StaticChunkOffsetBox();
@@ -40,28 +40,40 @@ import com.googlecode.mp4parser.boxes.mp4.objectdescriptors.DecoderConfigDescrip
 import com.googlecode.mp4parser.boxes.mp4.objectdescriptors.ESDescriptor;
 import com.googlecode.mp4parser.boxes.mp4.objectdescriptors.SLConfigDescriptor;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.Map;
 
 @TargetApi(16)
 public class Track {
     private long trackId = 0;
-    private ArrayList<Sample> samples = new ArrayList<>();
+
+    // the sample table in columns, a long video has some 100000 samples; sampleDurations holds the
+    // time to the next sample, the last entry is a default for the last sample and is replaced when
+    // the next one is added; syncSamples holds 1-based sample numbers and is null for audio
+    private int sampleCount = 0;
+    private long[] sampleOffsets = new long[256];
+    private long[] sampleSizes = new long[256];
+    private int durationCount = 0;
+    private long[] sampleDurations = new long[256];
+    private int syncSampleCount = 0;
+    private int[] syncSamples = null;
+
     private long duration = 0;
     private String handler;
     private AbstractMediaHeaderBox headerBox = null;
     private SampleDescriptionBox sampleDescriptionBox = null;
-    private LinkedList<Integer> syncSamples = null;
     private int timeScale;
     private Date creationTime = new Date();
     private int height;
     private int width;
     private float volume = 0;
-    private ArrayList<Long> sampleDurations = new ArrayList<>();
     private boolean isAudio = false;
     private static Map<Integer, Integer> samplingFrequencyIndexMap = new HashMap<>();
     private long lastPresentationTimeUs = 0;
@@ -86,12 +98,12 @@ public class Track {
         trackId = id;
         isAudio = audio;
         if (!isAudio) {
-            sampleDurations.add((long) 3015);
+            addDuration(3015);
             duration = 3015;
             width = format.getInteger(MediaFormat.KEY_WIDTH);
             height = format.getInteger(MediaFormat.KEY_HEIGHT);
             timeScale = 90000;
-            syncSamples = new LinkedList<>();
+            syncSamples = new int[64];
             handler = "vide";
             headerBox = new VideoMediaHeaderBox();
             sampleDescriptionBox = new SampleDescriptionBox();
@@ -150,7 +162,7 @@ public class Track {
                 sampleDescriptionBox.addBox(visualSampleEntry);
             }
         } else {
-            sampleDurations.add((long) 1024);
+            addDuration(1024);
             duration = 1024;
             volume = 1;
             timeScale = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
@@ -204,22 +216,104 @@ public class Track {
             return;
         }
         boolean isSyncFrame = !isAudio && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
-        samples.add(new Sample(offset, bufferInfo.size));
+        if (sampleCount == sampleOffsets.length) {
+            sampleOffsets = Arrays.copyOf(sampleOffsets, sampleCount * 2);
+            sampleSizes = Arrays.copyOf(sampleSizes, sampleCount * 2);
+        }
+        sampleOffsets[sampleCount] = offset;
+        sampleSizes[sampleCount] = bufferInfo.size;
+        sampleCount++;
         if (syncSamples != null && isSyncFrame) {
-            syncSamples.add(samples.size());
+            addSyncSample(sampleCount);
         }
 
         delta = (delta * timeScale + 500000L) / 1000000L;
         lastPresentationTimeUs = bufferInfo.presentationTimeUs;
         if (!first) {
-            sampleDurations.add(sampleDurations.size() - 1, delta);
+            long lastDuration = sampleDurations[durationCount - 1];
+            sampleDurations[durationCount - 1] = delta;
+            addDuration(lastDuration);
             duration += delta;
         }
         first = false;
     }
 
-    public ArrayList<Sample> getSamples() {
-        return samples;
+    private void addDuration(long delta) {
+        if (durationCount == sampleDurations.length) {
+            sampleDurations = Arrays.copyOf(sampleDurations, durationCount * 2);
+        }
+        sampleDurations[durationCount++] = delta;
+    }
+
+    private void addSyncSample(int sampleNumber) {
+        if (syncSampleCount == syncSamples.length) {
+            syncSamples = Arrays.copyOf(syncSamples, syncSampleCount * 2);
+        }
+        syncSamples[syncSampleCount++] = sampleNumber;
+    }
+
+    /* the sample table, for a ConvertCheckpoint */
+    public void writeState(DataOutputStream out) throws IOException {
+        out.writeInt(sampleCount);
+        for (int i = 0; i < sampleCount; i++) {
+            out.writeLong(sampleOffsets[i]);
+            out.writeLong(sampleSizes[i]);
+        }
+        out.writeInt(durationCount);
+        for (int i = 0; i < durationCount; i++) {
+            out.writeLong(sampleDurations[i]);
+        }
+        out.writeInt(syncSampleCount);
+        for (int i = 0; i < syncSampleCount; i++) {
+            out.writeInt(syncSamples[i]);
+        }
+        out.writeLong(duration);
+        out.writeLong(lastPresentationTimeUs);
+        out.writeBoolean(first);
+    }
+
+    /* replace the sample table by one written by writeState() */
+    public void readState(DataInputStream in) throws IOException {
+        sampleCount = in.readInt();
+        sampleOffsets = new long[Math.max(256, sampleCount)];
+        sampleSizes = new long[sampleOffsets.length];
+        for (int i = 0; i < sampleCount; i++) {
+            sampleOffsets[i] = in.readLong();
+            sampleSizes[i] = in.readLong();
+        }
+        durationCount = in.readInt();
+        sampleDurations = new long[Math.max(256, durationCount)];
+        for (int i = 0; i < durationCount; i++) {
+            sampleDurations[i] = in.readLong();
+        }
+        int syncCount = in.readInt();
+        syncSampleCount = 0;
+        for (int i = 0; i < syncCount; i++) {
+            int sampleNumber = in.readInt();
+            if (syncSamples != null) {
+                addSyncSample(sampleNumber);
+            }
+        }
+        duration = in.readLong();
+        lastPresentationTimeUs = in.readLong();
+        first = in.readBoolean();
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    public long getSampleOffset(int index) {
+        return sampleOffsets[index];
+    }
+
+    public long getSampleSize(int index) {
+        return sampleSizes[index];
+    }
+
+    /* a copy of the sizes of all samples, as needed by the stsz box */
+    public long[] getSampleSizes() {
+        return Arrays.copyOf(sampleSizes, sampleCount);
     }
 
     public long getDuration() {
@@ -239,12 +333,12 @@ public class Track {
     }
 
     public long[] getSyncSamples() {
-        if (syncSamples == null || syncSamples.isEmpty()) {
+        if (syncSampleCount == 0) {
             return null;
         }
-        long[] returns = new long[syncSamples.size()];
-        for (int i = 0; i < syncSamples.size(); i++) {
-            returns[i] = syncSamples.get(i);
+        long[] returns = new long[syncSampleCount];
+        for (int i = 0; i < syncSampleCount; i++) {
+            returns[i] = syncSamples[i];
         }
         return returns;
     }
@@ -269,8 +363,12 @@ public class Track {
         return volume;
     }
 
-    public ArrayList<Long> getSampleDurations() {
-        return sampleDurations;
+    public int getSampleDurationCount() {
+        return durationCount;
+    }
+
+    public long getSampleDuration(int index) {
+        return sampleDurations[index];
     }
 
     public boolean isAudio() {
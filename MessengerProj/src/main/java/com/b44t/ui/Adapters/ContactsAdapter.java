@@ -29,6 +29,7 @@ import android.view.ViewGroup;
 
 import com.b44t.messenger.MrContact;
 import com.b44t.messenger.MrMailbox;
+import com.b44t.messenger.MrSearchIndex;
 import com.b44t.messenger.TLRPC;
 import com.b44t.ui.Cells.UserCell;
 
@@ -57,12 +58,18 @@ public class ContactsAdapter extends BaseFragmentAdapter {
     }
 
     public void search(String query) {
-        contactIds = MrMailbox.getKnownContacts(query);
+        contactIds = getKnownContacts(query);
         lastQuery = query;
     }
 
     public void searchAgain() {
-        contactIds = MrMailbox.getKnownContacts(lastQuery);
+        contactIds = getKnownContacts(lastQuery);
+    }
+
+    private static int[] getKnownContacts(String query) {
+        // as-you-type searches are answered by the search index if it is ready
+        int[] ret = (query != null && !query.isEmpty()) ? MrSearchIndex.getInstance().searchContacts(query) : null;
+        return ret != null ? ret : MrMailbox.getKnownContacts(query);
     }
 
     @Override
@@ -28,8 +28,7 @@ import android.view.View;
 import android.view.ViewGroup;
 
 import com.b44t.messenger.AndroidUtilities;
-import com.b44t.messenger.MrChat;
-import com.b44t.messenger.MrPoortext;
+import com.b44t.messenger.MrChatlistSnapshot;
 import com.b44t.messenger.support.widget.RecyclerView;
 import com.b44t.messenger.MrMailbox;
 import com.b44t.ui.Cells.DialogCell;
@@ -39,6 +38,7 @@ public class DialogsAdapter extends RecyclerView.Adapter {
 
     private Context mContext;
     private long openedDialogId;
+    private MrChatlistSnapshot m_snapshot; // the adapter keeps its own snapshot so that the positions match the notifications sent
 
     private class Holder extends RecyclerView.ViewHolder {
         public Holder(View itemView) {
@@ -48,28 +48,34 @@ public class DialogsAdapter extends RecyclerView.Adapter {
 
     public DialogsAdapter(Context context) {
         mContext = context;
+        m_snapshot = MrMailbox.m_currChatlist;
 
         MrMailbox.reloadMainChatlist();
     }
 
+    /* called on mainChatlistChanged; if the adapter shows the snapshot the diff is based on,
+    only the changed rows are notified, otherwise everything is rebound */
+    public void setSnapshot(MrChatlistSnapshot oldSnapshot, MrChatlistSnapshot newSnapshot, MrChatlistSnapshot.Diff diff) {
+        boolean diffApplies = (oldSnapshot == m_snapshot);
+        m_snapshot = newSnapshot;
+        if (diffApplies) {
+            diff.dispatchTo(this);
+        } else {
+            notifyDataSetChanged();
+        }
+    }
+
     public void setOpenedDialogId(long id) {
         openedDialogId = id;
     }
 
     @Override
     public int getItemCount() {
-        return MrMailbox.m_currChatlist.getCnt();
+        return m_snapshot.getCnt();
     }
 
-    public MrChat getItem(int i) {
-        return MrMailbox.m_currChatlist.getChatByIndex(i);
-    }
-
-    @Override
-    public void onViewAttachedToWindow(RecyclerView.ViewHolder holder) {
-        if (holder.itemView instanceof DialogCell) {
-            ((DialogCell) holder.itemView).checkCurrentDialogIndex();
-        }
+    public int getChatId(int i) {
+        return m_snapshot.getChatIdByIndex(i);
     }
 
     @Override
@@ -89,13 +95,12 @@ public class DialogsAdapter extends RecyclerView.Adapter {
         if (viewHolder.getItemViewType() == 0) {
             DialogCell cell = (DialogCell) viewHolder.itemView;
             cell.useSeparator = (i != getItemCount() - 1);
-            MrChat mrChat = getItem(i);
+            MrChatlistSnapshot.Item item = m_snapshot.getItem(i);
             if (AndroidUtilities.isTablet()) {
-                cell.setDialogSelected(mrChat.getId() == openedDialogId);
+                cell.setDialogSelected(item.chatId == openedDialogId);
             }
 
-            MrPoortext mrSummary = MrMailbox.m_currChatlist.getSummaryByIndex(i, mrChat);
-            cell.setDialog(mrChat, mrSummary, i, true);
+            cell.setDialog(item, i, true);
         }
     }
 
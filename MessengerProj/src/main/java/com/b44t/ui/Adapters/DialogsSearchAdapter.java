@@ -27,10 +27,14 @@ import android.content.Context;
 import android.view.View;
 import android.view.ViewGroup;
 
+import com.b44t.messenger.AndroidUtilities;
+import com.b44t.messenger.DispatchQueue;
 import com.b44t.messenger.MrChat;
 import com.b44t.messenger.MrChatlist;
+import com.b44t.messenger.MrChatlistSnapshot;
 import com.b44t.messenger.MrMsg;
-import com.b44t.messenger.MrPoortext;
+import com.b44t.messenger.MrMsgBatch;
+import com.b44t.messenger.MrSearchIndex;
 import com.b44t.messenger.R;
 import com.b44t.messenger.support.widget.RecyclerView;
 import com.b44t.messenger.MrMailbox;
@@ -52,9 +56,25 @@ public class DialogsSearchAdapter extends RecyclerView.Adapter {
     int rowFirstMsg = -1, rowLastMsg = -1;
     int rowCount = 0;
 
-    MrChatlist m_chatlist = new MrChatlist(0);
-    int        m_chatlistCnt = 0;
+    MrChatlistSnapshot.Item[] m_chats = new MrChatlistSnapshot.Item[0];
     int[]      m_msgIds = {};
+    MrMsgBatch m_msgPage = null; // chat ids, states and summaries of the message rows around the bound one
+    private static final int MSG_PAGE_SIZE = 32;
+
+    // searches run on a worker; a search typed over while still queued is replaced, the results
+    // of a search already running are dropped when it finishes. The chats and recent messages
+    // come from the search index at once, the database is searched for older messages after a
+    // pause in typing.
+    private static final DispatchQueue s_searchQueue = new DispatchQueue("dialogsSearchQueue");
+    private static final String SEARCH_KEY = "search";
+    private static final int SEARCH_DELAY_MS = 150;
+    private volatile int m_searchId = 0;
+    private boolean m_searching = false;
+    private DialogsSearchAdapterDelegate m_delegate;
+
+    public interface DialogsSearchAdapterDelegate {
+        void searchStateChanged(boolean searching);
+    }
 
     private class Holder extends RecyclerView.ViewHolder {
         public Holder(View itemView) {
@@ -66,16 +86,113 @@ public class DialogsSearchAdapter extends RecyclerView.Adapter {
         mContext = context;
     }
 
-    public void searchDialogs(String query) {
+    public void setDelegate(DialogsSearchAdapterDelegate delegate) {
+        m_delegate = delegate;
+    }
+
+    public boolean isSearching() {
+        return m_searching;
+    }
+
+    /* the chats and recent messages are shown as soon as they are found, all messages follow
+    when the user stopped typing for a moment. Call from the UI thread. */
+    public void searchDialogsAsync(final String query) {
+        final int searchId = ++m_searchId;
+        setSearching(true);
+        s_searchQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                if (searchId != m_searchId) {
+                    return;
+                }
+                MrSearchIndex index = MrSearchIndex.getInstance();
+                MrChatlistSnapshot.Item[] chats = index.searchChats(query);
+                if (chats == null) {
+                    MrChatlist chatlist = MrMailbox.getChatlist(query);
+                    MrChatlistSnapshot snapshot = MrChatlistSnapshot.create(chatlist);
+                    chatlist.close();
+                    chats = new MrChatlistSnapshot.Item[snapshot.getCnt()];
+                    for (int i = 0; i < chats.length; i++) {
+                        chats[i] = snapshot.getItem(i);
+                    }
+                }
+                int[] recentMsgIds = index.searchRecentMsgs(query);
+                final MrChatlistSnapshot.Item[] finalChats = chats;
+                final int[] finalMsgIds = recentMsgIds != null ? recentMsgIds : new int[0];
+                AndroidUtilities.runOnUIThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (searchId != m_searchId) {
+                            return;
+                        }
+                        m_chats = finalChats;
+                        setMsgIds(finalMsgIds);
+                        updateRows();
+                        notifyDataSetChanged();
+                    }
+                });
+
+                if (searchId == m_searchId) {
+                    searchAllMsgs(query, searchId);
+                }
+            }
+        }, 0, DispatchQueue.PRIORITY_NORMAL, SEARCH_KEY);
+    }
+
+    /* the full-text search of the database; replaced by the next search typed before it starts */
+    private void searchAllMsgs(final String query, final int searchId) {
+        s_searchQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                if (searchId != m_searchId) {
+                    return;
+                }
+                final int[] msgIds = MrMailbox.searchMsgs(0, query);
+                AndroidUtilities.runOnUIThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (searchId != m_searchId) {
+                            return;
+                        }
+                        setMsgIds(msgIds);
+                        updateRows();
+                        notifyDataSetChanged();
+                        setSearching(false);
+                    }
+                });
+            }
+        }, SEARCH_DELAY_MS, DispatchQueue.PRIORITY_NORMAL, SEARCH_KEY);
+    }
+
+    /* drop the search queued or running, eg. when the search field is cleared; call from the UI thread */
+    public void cancelSearch() {
+        m_searchId++;
+        s_searchQueue.cancelKey(SEARCH_KEY);
+        setSearching(false);
+    }
+
+    private void setSearching(boolean searching) {
+        if (m_searching != searching) {
+            m_searching = searching;
+            if (m_delegate != null) {
+                m_delegate.searchStateChanged(searching);
+            }
+        }
+    }
+
+    private void setMsgIds(int[] msgIds) {
+        m_msgIds = msgIds;
+        m_msgPage = null;
+    }
+
+    private void updateRows() {
         rowCount = 0;
 
-        m_chatlist = MrMailbox.getChatlist(query);
-        m_chatlistCnt = m_chatlist.getCnt();
-        if( m_chatlistCnt>0 ) {
+        if( m_chats.length>0 ) {
             rowChatsHeadline = rowCount++;
 
             rowFirstChat = rowCount;
-                rowCount += m_chatlistCnt;
+                rowCount += m_chats.length;
             rowLastChat = rowCount-1;
         }
         else {
@@ -84,7 +201,6 @@ public class DialogsSearchAdapter extends RecyclerView.Adapter {
             rowLastChat = -1;
         }
 
-        m_msgIds = MrMailbox.searchMsgs(0, query);
         if( m_msgIds.length>0 ) {
             rowMsgsHeadline = rowCount++;
 
@@ -107,7 +223,7 @@ public class DialogsSearchAdapter extends RecyclerView.Adapter {
 
     public Object getItem(int i) {
         if( i>=rowFirstChat && i<=rowLastChat ) {
-            return m_chatlist.getChatByIndex(i-rowFirstChat);
+            return MrMailbox.getChat(m_chats[i-rowFirstChat].chatId);
         }
         else if( i>=rowFirstMsg && i<=rowLastMsg ) {
             return MrMailbox.getMsg(m_msgIds[i-rowFirstMsg]);
@@ -145,14 +261,11 @@ public class DialogsSearchAdapter extends RecyclerView.Adapter {
         {
             case ROWTYPE_CHAT: {
                     int j = i - rowFirstChat;
-                    if( j >= 0 && j < m_chatlistCnt ) {
+                    if( j >= 0 && j < m_chats.length ) {
                         DialogCell cell = (DialogCell) viewHolder.itemView;
-                        cell.useSeparator = (j != m_chatlistCnt - 1);
-
-                        MrChat mrChat = m_chatlist.getChatByIndex(j);
-                        MrPoortext mrSummary = m_chatlist.getSummaryByIndex(j, mrChat);
+                        cell.useSeparator = (j != m_chats.length - 1);
 
-                        cell.setDialog(mrChat, mrSummary, -1,
+                        cell.setDialog(m_chats[j], -1,
                                 true /*always show unread count*/);
                     }
                 }
@@ -164,12 +277,13 @@ public class DialogsSearchAdapter extends RecyclerView.Adapter {
                         DialogCell cell = (DialogCell) viewHolder.itemView;
                         cell.useSeparator = (j != m_msgIds.length - 1);
 
-                        MrMsg mrMsg = MrMailbox.getMsg(m_msgIds[j]);
-                        MrChat mrChat = MrMailbox.getChat(mrMsg.getChatId());
-                        MrPoortext mrSummary = mrMsg.getSummary(mrChat);
+                        if( m_msgPage == null || !m_msgPage.contains(j) ) {
+                            m_msgPage = MrMailbox.getMsgsBatch(m_msgIds, j - j%MSG_PAGE_SIZE, MSG_PAGE_SIZE, true);
+                        }
 
-                        cell.setDialog(mrChat, mrSummary, -1,
-                                mrMsg.getState()==MrMsg.MR_IN_UNREAD /*show unread count only if the message itself is unread*/ );
+                        MrChat mrChat = MrMailbox.getChat(m_msgPage.getChatId(j));
+                        cell.setDialog(mrChat, m_msgPage, j, -1,
+                                m_msgPage.getState(j)==MrMsg.MR_IN_UNREAD /*show unread count only if the message itself is unread*/ );
                     }
                 }
                 break;
@@ -177,7 +291,7 @@ public class DialogsSearchAdapter extends RecyclerView.Adapter {
             case ROWTYPE_HEADLINE: {
                     GreySectionCell headlineCell = (GreySectionCell) viewHolder.itemView;
                     if (i == rowChatsHeadline) {
-                        headlineCell.setText(mContext.getResources().getQuantityString(R.plurals.Chats, m_chatlistCnt, m_chatlistCnt));
+                        headlineCell.setText(mContext.getResources().getQuantityString(R.plurals.Chats, m_chats.length, m_chats.length));
                     } else if (i == rowMsgsHeadline) {
                         headlineCell.setText(mContext.getResources().getQuantityString(R.plurals.messages, m_msgIds.length, m_msgIds.length));
                     }
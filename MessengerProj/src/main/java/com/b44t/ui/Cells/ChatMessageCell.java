@@ -60,6 +60,7 @@ import com.b44t.messenger.MrContact;
 import com.b44t.messenger.MrMailbox;
 import com.b44t.messenger.R;
 import com.b44t.messenger.UserObject;
+import com.b44t.messenger.WaveformStore;
 import com.b44t.messenger.browser.Browser;
 import com.b44t.messenger.TLRPC;
 import com.b44t.ui.Components.AvatarDrawable;
@@ -1189,7 +1190,14 @@ public class ChatMessageCell extends BaseCell implements SeekBar.SeekBarDelegate
             TLRPC.DocumentAttribute attribute = documentAttach.attributes.get(a);
             if (attribute instanceof TLRPC.TL_documentAttributeAudio) {
                 if (attribute.waveform == null || attribute.waveform.length == 0) {
-                    MediaController.getInstance().generateWaveform(currentMessageObject);
+                    String path = FileLoader.getPathToMessage(currentMessageObject.messageOwner).getAbsolutePath();
+                    byte[] waveform = WaveformStore.getInstance().get(path, documentAttach.size);
+                    if (waveform != null) {
+                        attribute.waveform = waveform;
+                        attribute.flags |= 4;
+                    } else {
+                        MediaController.getInstance().generateWaveform(currentMessageObject);
+                    }
                 }
                 useSeekBarWaweform = attribute.waveform != null;
                 seekBarWaveform.setWaveform(attribute.waveform);
@@ -1350,7 +1358,7 @@ public class ChatMessageCell extends BaseCell implements SeekBar.SeekBarDelegate
     }
 
     public void setHighlightedText(String text) {
-        if (currentMessageObject.messageOwner.message == null || currentMessageObject == null || currentMessageObject.type != MessageObject.MO_TYPE0_TEXT || TextUtils.isEmpty(currentMessageObject.messageText) || text == null) {
+        if (currentMessageObject.messageOwner.message == null || currentMessageObject == null || currentMessageObject.type != MessageObject.MO_TYPE0_TEXT || TextUtils.isEmpty(currentMessageObject.messageText) || currentMessageObject.textLayoutBlocks == null || text == null) {
             if (!urlPathSelection.isEmpty()) {
                 linkSelectionBlockNum = -1;
                 resetUrlPaths(true);
@@ -1404,6 +1412,19 @@ public class ChatMessageCell extends BaseCell implements SeekBar.SeekBarDelegate
         boolean dataChanged = currentMessageObject == messageObject && (isUserDataChanged() || photoNotSet);
         if (messageChanged || dataChanged || isPhotoDataChanged(messageObject)) {
             currentMessageObject = messageObject;
+            if (messageObject.isTextLayoutPending()) {
+                // the text is laid out in the background, the height is an estimation until then
+                final MessageObject pendingObject = messageObject;
+                messageObject.setOnTextLayoutReady(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (currentMessageObject == pendingObject) {
+                            setMessageObject(pendingObject);
+                            requestLayout();
+                        }
+                    }
+                });
+            }
             lastSendState = messageObject.messageOwner.send_state;
             lastViewsCount = messageObject.messageOwner.views;
             isPressed = false;
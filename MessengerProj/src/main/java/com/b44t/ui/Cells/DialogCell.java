@@ -24,6 +24,7 @@
 package com.b44t.ui.Cells;
 
 import android.content.Context;
+import android.content.res.Resources;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Typeface;
@@ -36,16 +37,20 @@ import android.text.StaticLayout;
 import android.text.TextPaint;
 import android.text.TextUtils;
 import android.text.style.ForegroundColorSpan;
+import android.util.SparseArray;
 import android.view.MotionEvent;
 
 import com.b44t.messenger.AndroidUtilities;
+import com.b44t.messenger.ApplicationLoader;
 import com.b44t.messenger.ContactsController;
 import com.b44t.messenger.LocaleController;
 import com.b44t.messenger.MessageObject;
 import com.b44t.messenger.MrChat;
+import com.b44t.messenger.MrChatlistSnapshot;
 import com.b44t.messenger.MrMailbox;
 import com.b44t.messenger.FileLog;
 import com.b44t.messenger.MrMsg;
+import com.b44t.messenger.MrMsgBatch;
 import com.b44t.messenger.MrPoortext;
 import com.b44t.messenger.TLRPC;
 import com.b44t.messenger.Emoji;
@@ -82,7 +87,6 @@ public class DialogCell extends BaseCell {
     private int unreadCount;
     private boolean lastUnreadState;
     private int lastSendState;
-    private boolean dialogMuted;
     private MessageObject message;
     private int index;
 
@@ -95,90 +99,196 @@ public class DialogCell extends BaseCell {
 
     public boolean useSeparator = false;
 
-    private int nameLeft;
-    private StaticLayout nameLayout;
-    private boolean drawNameGroup;
-    private int nameMuteLeft;
-    private int nameLockLeft;
-    private int nameLockTop;
-
-    private int timeLeft;
     private int timeTop = AndroidUtilities.dp(17);
-    private StaticLayout timeLayout;
-
-    private boolean drawCheck1;
-    private boolean drawCheck2;
-    private boolean drawClock;
-    private int checkDrawLeft;
     private int checkDrawTop = AndroidUtilities.dp(18);
-    private int halfCheckDrawLeft;
-
     private int messageTop = AndroidUtilities.dp(40);
-    private int messageLeft;
-    private StaticLayout messageLayout;
-
-    private boolean drawError;
     private int errorTop = AndroidUtilities.dp(39);
-    private int errorLeft;
-
-    private boolean drawCount;
     private int countTop = AndroidUtilities.dp(39);
-    private int countLeft;
-    private int countWidth;
-    private StaticLayout countLayout;
-
-    private boolean drawVerified;
-
     private int avatarTop = AndroidUtilities.dp(10);
 
+    private Layouts m_layouts;
+
     private boolean isSelected;
 
-    private MrChat m_mrChat = new MrChat(0);
-    private MrPoortext m_summary = new MrPoortext(0);
+    private MrChatlistSnapshot.Item m_item;
     private boolean m_showUnreadCount;
+    private boolean m_useLayoutCache; // false for messages found by a search, their layouts are not the ones of the chatlist
+
+
+    /* the positions and text layouts of a row; they only depend on the item, the unread count and
+    the width and are shared between the cells through s_layoutCache, so binding a row that is in
+    the cache allocates nothing */
+    private static class Layouts {
+        MrChatlistSnapshot.Item item;
+        int     unreadCount;
+        int     width;
+        boolean isRTL;
+        long    created;
+
+        int          nameLeft;
+        StaticLayout nameLayout;
+        boolean      drawNameGroup;
+        int          nameMuteLeft;
+        int          nameLockLeft;
+        int          nameLockTop;
+
+        int          timeLeft;
+        StaticLayout timeLayout;
+
+        boolean      drawCheck1;
+        boolean      drawCheck2;
+        boolean      drawClock;
+        int          checkDrawLeft;
+        int          halfCheckDrawLeft;
+
+        int          messageLeft;
+        StaticLayout messageLayout;
+
+        boolean      drawError;
+        int          errorLeft;
+
+        boolean      drawCount;
+        int          countLeft;
+        int          countWidth;
+        StaticLayout countLayout;
+
+        boolean      drawVerified;
+        int          avatarLeft;
+
+        boolean matches(MrChatlistSnapshot.Item item, int unreadCount, int width, long now) {
+            return this.item.chatId == item.chatId && this.item.summaryTimestamp == item.summaryTimestamp
+                && this.unreadCount == unreadCount && this.width == width && isRTL == LocaleController.isRTL
+                && now - created < MAX_LAYOUT_AGE_MS // the date shown depends on the current day
+                && (this.item == item || this.item.sameContent(item));
+        }
+    }
 
-    public DialogCell(Context context) {
-        super(context);
+    private static class Paints {
+        TextPaint name;
+        TextPaint message;
+        TextPaint time;
+        TextPaint count;
+
+        Paints(TextPaint name, TextPaint message, TextPaint time, TextPaint count) {
+            this.name    = name;
+            this.message = message;
+            this.time    = time;
+            this.count   = count;
+        }
+    }
+
+    private final static int  MAX_CACHED_LAYOUTS = 200;
+    private final static long MAX_LAYOUT_AGE_MS  = 10*60*1000;
+
+    private static Paints s_uiPaints;
+    private static Paints s_templatePaints; // never drawn with, copied by prepareLayouts()
+
+    private final static Object   s_layoutCacheSync = new Object();
+    private static SparseArray<Layouts> s_layoutCache = new SparseArray<>(); // chat id -> layouts; guarded by s_layoutCacheSync
+    private static volatile int s_layoutWidth; // width of the last cell laid out, used by prepareLayouts()
+
+    private static synchronized void initResources(Resources res) {
+        if (namePaint != null) {
+            return;
+        }
+
+        namePaint = new TextPaint(TextPaint.ANTI_ALIAS_FLAG);
+        namePaint.setTextSize(AndroidUtilities.dp(17));
+        namePaint.setColor(Theme.DIALOGS_TITLE_TEXT_COLOR);
+
+        messagePaint = new TextPaint(TextPaint.ANTI_ALIAS_FLAG);
+        messagePaint.setTextSize(AndroidUtilities.dp(16));
+        messagePaint.setColor(Theme.DIALOGS_MESSAGE_TEXT_COLOR);
+        messagePaint.linkColor = Theme.DIALOGS_MESSAGE_TEXT_COLOR;
+
+        linePaint = new Paint();
+        linePaint.setColor(0xffdcdcdc);
 
-        if (namePaint == null) {
-            namePaint = new TextPaint(TextPaint.ANTI_ALIAS_FLAG);
-            namePaint.setTextSize(AndroidUtilities.dp(17));
-            namePaint.setColor(Theme.DIALOGS_TITLE_TEXT_COLOR);
+        backPaint = new Paint();
+        backPaint.setColor(0x0f000000);
 
-            messagePaint = new TextPaint(TextPaint.ANTI_ALIAS_FLAG);
-            messagePaint.setTextSize(AndroidUtilities.dp(16));
-            messagePaint.setColor(Theme.DIALOGS_MESSAGE_TEXT_COLOR);
-            messagePaint.linkColor = Theme.DIALOGS_MESSAGE_TEXT_COLOR;
+        messagePrintingPaint = new TextPaint(TextPaint.ANTI_ALIAS_FLAG);
+        messagePrintingPaint.setTextSize(AndroidUtilities.dp(16));
+        messagePrintingPaint.setColor(Theme.DIALOGS_PRINTING_TEXT_COLOR);
 
-            linePaint = new Paint();
-            linePaint.setColor(0xffdcdcdc);
+        timePaint = new TextPaint(TextPaint.ANTI_ALIAS_FLAG);
+        timePaint.setTextSize(AndroidUtilities.dp(13));
+        timePaint.setColor(0xff999999);
 
-            backPaint = new Paint();
-            backPaint.setColor(0x0f000000);
+        countPaint = new TextPaint(TextPaint.ANTI_ALIAS_FLAG);
+        countPaint.setTextSize(AndroidUtilities.dp(13));
+        countPaint.setColor(0xffffffff);
+        countPaint.setTypeface(Typeface.DEFAULT_BOLD);
 
-            messagePrintingPaint = new TextPaint(TextPaint.ANTI_ALIAS_FLAG);
-            messagePrintingPaint.setTextSize(AndroidUtilities.dp(16));
-            messagePrintingPaint.setColor(Theme.DIALOGS_PRINTING_TEXT_COLOR);
+        checkDrawable = res.getDrawable(R.drawable.dialogs_check);
+        halfCheckDrawable = res.getDrawable(R.drawable.dialogs_halfcheck);
+        clockDrawable = res.getDrawable(R.drawable.msg_clock);
+        errorDrawable = res.getDrawable(R.drawable.dialogs_warning);
+        countDrawable = res.getDrawable(R.drawable.dialogs_badge);
+        countDrawableGrey = res.getDrawable(R.drawable.dialogs_badge2);
+        groupDrawable = res.getDrawable(R.drawable.list_group);
+        muteDrawable = res.getDrawable(R.drawable.mute_grey);
+        verifiedDrawable = res.getDrawable(R.drawable.check_list);
 
-            timePaint = new TextPaint(TextPaint.ANTI_ALIAS_FLAG);
-            timePaint.setTextSize(AndroidUtilities.dp(13));
-            timePaint.setColor(0xff999999);
+        s_uiPaints = new Paints(namePaint, messagePaint, timePaint, countPaint);
+        s_templatePaints = copyPaints(s_uiPaints);
+    }
+
+    private static Paints copyPaints(Paints src) {
+        return new Paints(new TextPaint(src.name), new TextPaint(src.message), new TextPaint(src.time), new TextPaint(src.count));
+    }
 
-            countPaint = new TextPaint(TextPaint.ANTI_ALIAS_FLAG);
-            countPaint.setTextSize(AndroidUtilities.dp(13));
-            countPaint.setColor(0xffffffff);
-            countPaint.setTypeface(Typeface.DEFAULT_BOLD);
+    public static final MrMailbox.ChatlistPreprocessor s_chatlistPreprocessor = new MrMailbox.ChatlistPreprocessor() {
+        @Override
+        public void prepare(MrChatlistSnapshot snapshot) {
+            prepareLayouts(snapshot);
+        }
+    };
+
+    /* build the layouts for the rows of a new chatlist snapshot; called from the chatlist queue,
+    see MrMailbox.setChatlistPreprocessor(). Layouts still matching are taken over, the layouts of
+    chats no longer in the snapshot are dropped. The paints are copied per call as the layouts
+    of the previous call may still be drawn with their paints on the UI thread. */
+    public static void prepareLayouts(MrChatlistSnapshot snapshot) {
+        int width = s_layoutWidth;
+        if (width == 0 && !AndroidUtilities.isTablet()) {
+            width = AndroidUtilities.displaySize.x; // no cell laid out yet, on phones the chatlist uses the full width
+        }
+        if (width <= 0) {
+            return;
+        }
+        initResources(ApplicationLoader.applicationContext.getResources());
+
+        Paints paints = copyPaints(s_templatePaints);
+        long now = System.currentTimeMillis();
+        int cnt = Math.min(snapshot.getCnt(), MAX_CACHED_LAYOUTS);
+        SparseArray<Layouts> newCache = new SparseArray<>(cnt);
+        for (int i = 0; i < cnt; i++) {
+            MrChatlistSnapshot.Item item = snapshot.getItem(i);
+            Layouts layouts;
+            synchronized (s_layoutCacheSync) {
+                layouts = s_layoutCache.get(item.chatId);
+            }
+            if (layouts == null || !layouts.matches(item, item.unreadCount, width, now)) {
+                try {
+                    layouts = createLayouts(item, item.unreadCount, width, paints);
+                } catch (Exception e) {
+                    FileLog.e("messenger", e);
+                    continue;
+                }
+            }
+            newCache.put(item.chatId, layouts);
+        }
 
-            checkDrawable = getResources().getDrawable(R.drawable.dialogs_check);
-            halfCheckDrawable = getResources().getDrawable(R.drawable.dialogs_halfcheck);
-            clockDrawable = getResources().getDrawable(R.drawable.msg_clock);
-            errorDrawable = getResources().getDrawable(R.drawable.dialogs_warning);
-            countDrawable = getResources().getDrawable(R.drawable.dialogs_badge);
-            countDrawableGrey = getResources().getDrawable(R.drawable.dialogs_badge2);
-            groupDrawable = getResources().getDrawable(R.drawable.list_group);
-            muteDrawable = getResources().getDrawable(R.drawable.mute_grey);
-            verifiedDrawable = getResources().getDrawable(R.drawable.check_list);
+        synchronized (s_layoutCacheSync) {
+            s_layoutCache = newCache;
         }
+    }
+
+    public DialogCell(Context context) {
+        super(context);
+
+        initResources(getResources());
 
         setBackgroundResource(R.drawable.list_selector);
 
@@ -187,18 +297,28 @@ public class DialogCell extends BaseCell {
         avatarDrawable = new AvatarDrawable();
     }
 
-    public void setDialog(MrChat mrChat, MrPoortext mrSummary, int i, boolean showUnreadCount) { // called for the chats overview
+    public void setDialog(MrChatlistSnapshot.Item item, int i, boolean showUnreadCount) { // called for the chats overview
+        setDialog(item, i, showUnreadCount, true);
+    }
 
-        m_mrChat  = mrChat;
-        m_summary = mrSummary;
+    private void setDialog(MrChatlistSnapshot.Item item, int i, boolean showUnreadCount, boolean useLayoutCache) {
+        m_item = item;
         m_showUnreadCount = showUnreadCount;
+        m_useLayoutCache = useLayoutCache;
 
-        currentDialogId = mrChat.getId();
+        currentDialogId = item.chatId;
         index = i;
 
         update(0);
     }
 
+    public void setDialog(MrChat mrChat, MrMsgBatch batch, int index, int i, boolean showUnreadCount) { // called for the search results
+        // the cell owns the chat given here; it is copied to an item and released at once
+        MrChatlistSnapshot.Item item = MrChatlistSnapshot.Item.create(mrChat, batch, index);
+        mrChat.close();
+        setDialog(item, i, showUnreadCount, false);
+    }
+
     public long getDialogId() {
         return currentDialogId;
     }
@@ -242,286 +362,267 @@ public class DialogCell extends BaseCell {
     }
 
     public void buildLayout() {
-        String nameString = "";
-        String timeString = "";
-        String countString = null;
-        CharSequence messageString = "";
-        //CharSequence printingString = null;
-        /* EDIT BY MR -- we currently do not support stuff as "ist just typing", "uploads an images" etc.
-        if (isDialogCell) {
-            printingString = MessagesController.getInstance().printingStrings.get(currentDialogId);
-        }
-        */
-        TextPaint currentNamePaint = namePaint;
-        TextPaint currentMessagePaint = messagePaint;
-        boolean checkMessage = true;
-
-        drawNameGroup = false;
-        //drawNameBroadcast = false;
-        //drawNameLock = false;
-        //drawNameBot = false;
-        drawVerified = false;
-
-        {
-            if (m_mrChat.getType()==MrChat.MR_CHAT_GROUP) { // EDIT BY MR
-                //if (chat.id < 0 || ChatObject.isChannel(chat) && !chat.megagroup) {
-                //    drawNameBroadcast = true;
-                //    nameLockTop = AndroidUtilities.dp(16.5f);
-                //} else {
-                    drawNameGroup = true;
-                    nameLockTop = AndroidUtilities.dp(17.5f);
-                //}
-                //drawVerified = chat.verified; -- /EDIT BY MR
-
-                if (!LocaleController.isRTL) {
-                    nameLockLeft = AndroidUtilities.dp(AndroidUtilities.leftBaseline);
-                    nameLeft = AndroidUtilities.dp(AndroidUtilities.leftBaseline + 4) + (groupDrawable.getIntrinsicWidth());
-                } else {
-                    nameLockLeft = getMeasuredWidth() - AndroidUtilities.dp(AndroidUtilities.leftBaseline) - (groupDrawable.getIntrinsicWidth());
-                    nameLeft = AndroidUtilities.dp(14);
+        int width = getMeasuredWidth();
+        s_layoutWidth = width;
+
+        // the cache is keyed by the chat id, so search results keep their layouts in the cell only
+        Layouts layouts = m_layouts;
+        if (m_useLayoutCache) {
+            synchronized (s_layoutCacheSync) {
+                layouts = s_layoutCache.get(m_item.chatId);
+            }
+        }
+        if (layouts == null || !layouts.matches(m_item, unreadCount, width, System.currentTimeMillis())) {
+            layouts = createLayouts(m_item, unreadCount, width, s_uiPaints);
+            if (m_useLayoutCache) {
+                synchronized (s_layoutCacheSync) {
+                    if (s_layoutCache.size() < MAX_CACHED_LAYOUTS || s_layoutCache.get(m_item.chatId) != null) {
+                        s_layoutCache.put(m_item.chatId, layouts);
+                    }
                 }
+            }
+        }
+
+        m_layouts = layouts;
+        avatarImage.setImageCoords(layouts.avatarLeft, avatarTop, AndroidUtilities.dp(52), AndroidUtilities.dp(52));
+    }
+
+    /* may be called from any thread, the paints must not be used by another thread at the same time */
+    private static Layouts createLayouts(MrChatlistSnapshot.Item item, int unreadCount, int width, Paints p) {
+        Layouts l = new Layouts();
+        l.item = item;
+        l.unreadCount = unreadCount;
+        l.width = width;
+        l.isRTL = LocaleController.isRTL;
+        l.created = System.currentTimeMillis();
+
+        String nameString;
+        String timeString;
+        String countString = null;
+        CharSequence messageString;
+
+        if (item.chatType==MrChat.MR_CHAT_GROUP) {
+            l.drawNameGroup = true;
+            l.nameLockTop = AndroidUtilities.dp(17.5f);
+            if (!l.isRTL) {
+                l.nameLockLeft = AndroidUtilities.dp(AndroidUtilities.leftBaseline);
+                l.nameLeft = AndroidUtilities.dp(AndroidUtilities.leftBaseline + 4) + (groupDrawable.getIntrinsicWidth());
             } else {
-                if (!LocaleController.isRTL) {
-                    nameLeft = AndroidUtilities.dp(AndroidUtilities.leftBaseline);
-                } else {
-                    nameLeft = AndroidUtilities.dp(14);
-                }
+                l.nameLockLeft = width - AndroidUtilities.dp(AndroidUtilities.leftBaseline) - (groupDrawable.getIntrinsicWidth());
+                l.nameLeft = AndroidUtilities.dp(14);
+            }
+        } else {
+            if (!l.isRTL) {
+                l.nameLeft = AndroidUtilities.dp(AndroidUtilities.leftBaseline);
+            } else {
+                l.nameLeft = AndroidUtilities.dp(14);
             }
         }
 
+        String mess = item.summaryText; // already truncated to 150 characters
+        String title = item.summaryTitle;
+        if( !title.isEmpty() )
         {
-                checkMessage = false;
-                String mess = m_summary.getText();
-                if (mess.length() > 150) {
-                    mess = mess.substring(0, 150);
-                }
-                String title = m_summary.getTitle();
-                if( !title.isEmpty() )
-                {
-                    int title_meaning = m_summary.getTitleMeaning();
-                    int title_color = Theme.DIALOGS_NAME_TEXT_COLOR;
-                    switch( title_meaning ) {
-                        case MrPoortext.MR_TITLE_SELF:  title_color = Theme.DIALOGS_SELF_TEXT_COLOR; break;
-                        case MrPoortext.MR_TITLE_DRAFT: title_color = Theme.DIALOGS_DRAFT_TEXT_COLOR; break;
-                    }
-                    SpannableStringBuilder stringBuilder = SpannableStringBuilder.valueOf(String.format("%s: %s", title, mess));
-                    stringBuilder.setSpan(new ForegroundColorSpan(title_color), 0, title.length() + 1, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-                    messageString = Emoji.replaceEmoji(stringBuilder, messagePaint.getFontMetricsInt(), AndroidUtilities.dp(20), false);
-                }
-                else
-                {
-                    messageString = mess;
-                }
+            int title_color = Theme.DIALOGS_NAME_TEXT_COLOR;
+            switch( item.summaryTitleMeaning ) {
+                case MrPoortext.MR_TITLE_SELF:  title_color = Theme.DIALOGS_SELF_TEXT_COLOR; break;
+                case MrPoortext.MR_TITLE_DRAFT: title_color = Theme.DIALOGS_DRAFT_TEXT_COLOR; break;
+            }
+            SpannableStringBuilder stringBuilder = SpannableStringBuilder.valueOf(String.format("%s: %s", title, mess));
+            stringBuilder.setSpan(new ForegroundColorSpan(title_color), 0, title.length() + 1, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            messageString = Emoji.replaceEmoji(stringBuilder, p.message.getFontMetricsInt(), AndroidUtilities.dp(20), false);
+        }
+        else
+        {
+            messageString = mess;
+        }
 
-                long timestmp =m_summary.getTimestamp();
-                if( timestmp!=0 ) {
-                    timeString = LocaleController.stringForMessageListDate(timestmp);
-                }
-                else {
-                    timeString = "";
-                }
+        if( item.summaryTimestamp!=0 ) {
+            timeString = LocaleController.stringForMessageListDate(item.summaryTimestamp);
+        }
+        else {
+            timeString = "";
+        }
 
-                drawCheck1 = false;
-                drawCheck2 = false;
-                drawClock = false;
-                drawCount = false;
-                drawError = false;
-                switch( m_summary.getState() ) {
-                    case MrMsg.MR_OUT_ERROR: drawError = true; break;
-                    case MrMsg.MR_OUT_PENDING: drawClock = true; break;
-                    case MrMsg.MR_OUT_DELIVERED: drawCheck2 = true; break;
-                    case MrMsg.MR_OUT_READ: drawCheck1 = true; drawCheck2 = true; break;
-                }
-                drawVerified = m_mrChat.isEncrypted()!=0; // we use the "verified" check as an icon for "encryted" and "verified"
+        switch( item.summaryState ) {
+            case MrMsg.MR_OUT_ERROR: l.drawError = true; break;
+            case MrMsg.MR_OUT_PENDING: l.drawClock = true; break;
+            case MrMsg.MR_OUT_DELIVERED: l.drawCheck2 = true; break;
+            case MrMsg.MR_OUT_READ: l.drawCheck1 = true; l.drawCheck2 = true; break;
         }
+        l.drawVerified = item.encrypted; // we use the "verified" check as an icon for "encryted" and "verified"
 
         if (unreadCount != 0) {
-            drawCount = true;
             countString = String.format("%d", unreadCount);
-        } else {
-            drawCount = false;
         }
 
-        int timeWidth = (int) Math.ceil(timePaint.measureText(timeString));
-        timeLayout = new StaticLayout(timeString, timePaint, timeWidth, Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, false);
-        if (!LocaleController.isRTL) {
-            timeLeft = getMeasuredWidth() - AndroidUtilities.dp(15) - timeWidth;
+        int timeWidth = (int) Math.ceil(p.time.measureText(timeString));
+        l.timeLayout = new StaticLayout(timeString, p.time, timeWidth, Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, false);
+        if (!l.isRTL) {
+            l.timeLeft = width - AndroidUtilities.dp(15) - timeWidth;
         } else {
-            timeLeft = AndroidUtilities.dp(15);
+            l.timeLeft = AndroidUtilities.dp(15);
         }
 
-        nameString = m_mrChat.getName();
+        nameString = item.name;
 
         int nameWidth;
 
-        if (!LocaleController.isRTL) {
-            nameWidth = getMeasuredWidth() - nameLeft - AndroidUtilities.dp(14) - timeWidth;
+        if (!l.isRTL) {
+            nameWidth = width - l.nameLeft - AndroidUtilities.dp(14) - timeWidth;
         } else {
-            nameWidth = getMeasuredWidth() - nameLeft - AndroidUtilities.dp(AndroidUtilities.leftBaseline) - timeWidth;
-            nameLeft += timeWidth;
+            nameWidth = width - l.nameLeft - AndroidUtilities.dp(AndroidUtilities.leftBaseline) - timeWidth;
+            l.nameLeft += timeWidth;
         }
 
-        if (drawNameGroup) {
+        if (l.drawNameGroup) {
             nameWidth -= AndroidUtilities.dp(4) + groupDrawable.getIntrinsicWidth();
         }
 
-        if (drawClock) {
+        if (l.drawClock) {
             int w = clockDrawable.getIntrinsicWidth() + AndroidUtilities.dp(5);
             nameWidth -= w;
-            if (!LocaleController.isRTL) {
-                checkDrawLeft = timeLeft - w;
+            if (!l.isRTL) {
+                l.checkDrawLeft = l.timeLeft - w;
             } else {
-                checkDrawLeft = timeLeft + timeWidth + AndroidUtilities.dp(5);
-                nameLeft += w;
+                l.checkDrawLeft = l.timeLeft + timeWidth + AndroidUtilities.dp(5);
+                l.nameLeft += w;
             }
-        } else if (drawCheck2) {
+        } else if (l.drawCheck2) {
             int w = checkDrawable.getIntrinsicWidth() + AndroidUtilities.dp(5);
             nameWidth -= w;
-            if (drawCheck1) {
+            if (l.drawCheck1) {
                 nameWidth -= halfCheckDrawable.getIntrinsicWidth() - AndroidUtilities.dp(8);
-                if (!LocaleController.isRTL) {
-                    halfCheckDrawLeft = timeLeft - w;
-                    checkDrawLeft = halfCheckDrawLeft - AndroidUtilities.dp(5.5f);
+                if (!l.isRTL) {
+                    l.halfCheckDrawLeft = l.timeLeft - w;
+                    l.checkDrawLeft = l.halfCheckDrawLeft - AndroidUtilities.dp(5.5f);
                 } else {
-                    checkDrawLeft = timeLeft + timeWidth + AndroidUtilities.dp(5);
-                    halfCheckDrawLeft = checkDrawLeft + AndroidUtilities.dp(5.5f);
-                    nameLeft += w + halfCheckDrawable.getIntrinsicWidth() - AndroidUtilities.dp(8);
+                    l.checkDrawLeft = l.timeLeft + timeWidth + AndroidUtilities.dp(5);
+                    l.halfCheckDrawLeft = l.checkDrawLeft + AndroidUtilities.dp(5.5f);
+                    l.nameLeft += w + halfCheckDrawable.getIntrinsicWidth() - AndroidUtilities.dp(8);
                 }
             } else {
-                if (!LocaleController.isRTL) {
-                    checkDrawLeft = timeLeft - w;
+                if (!l.isRTL) {
+                    l.checkDrawLeft = l.timeLeft - w;
                 } else {
-                    checkDrawLeft = timeLeft + timeWidth + AndroidUtilities.dp(5);
-                    nameLeft += w;
+                    l.checkDrawLeft = l.timeLeft + timeWidth + AndroidUtilities.dp(5);
+                    l.nameLeft += w;
                 }
             }
         }
 
-        if (dialogMuted && !drawVerified) {
+        if (item.muted && !l.drawVerified) {
             int w = AndroidUtilities.dp(6) + muteDrawable.getIntrinsicWidth();
             nameWidth -= w;
-            if (LocaleController.isRTL) {
-                nameLeft += w;
+            if (l.isRTL) {
+                l.nameLeft += w;
             }
-        } else if (drawVerified) {
+        } else if (l.drawVerified) {
             int w = AndroidUtilities.dp(6) + verifiedDrawable.getIntrinsicWidth();
             nameWidth -= w;
-            if (LocaleController.isRTL) {
-                nameLeft += w;
+            if (l.isRTL) {
+                l.nameLeft += w;
             }
         }
 
         nameWidth = Math.max(AndroidUtilities.dp(12), nameWidth);
-        CharSequence nameStringFinal = TextUtils.ellipsize(nameString.replace('\n', ' '), currentNamePaint, nameWidth - AndroidUtilities.dp(12), TextUtils.TruncateAt.END);
+        CharSequence nameStringFinal = TextUtils.ellipsize(nameString.replace('\n', ' '), p.name, nameWidth - AndroidUtilities.dp(12), TextUtils.TruncateAt.END);
         try {
-            nameLayout = new StaticLayout(nameStringFinal, currentNamePaint, nameWidth, Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, false);
+            l.nameLayout = new StaticLayout(nameStringFinal, p.name, nameWidth, Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, false);
         } catch (Exception e) {
             FileLog.e("messenger", e);
         }
 
-        int messageWidth = getMeasuredWidth() - AndroidUtilities.dp(AndroidUtilities.leftBaseline + 16);
-        int avatarLeft;
-        if (!LocaleController.isRTL) {
-            messageLeft = AndroidUtilities.dp(AndroidUtilities.leftBaseline);
-            avatarLeft = AndroidUtilities.dp(AndroidUtilities.isTablet() ? 13 : 9);
+        int messageWidth = width - AndroidUtilities.dp(AndroidUtilities.leftBaseline + 16);
+        if (!l.isRTL) {
+            l.messageLeft = AndroidUtilities.dp(AndroidUtilities.leftBaseline);
+            l.avatarLeft = AndroidUtilities.dp(AndroidUtilities.isTablet() ? 13 : 9);
         } else {
-            messageLeft = AndroidUtilities.dp(16);
-            avatarLeft = getMeasuredWidth() - AndroidUtilities.dp(AndroidUtilities.isTablet() ? 65 : 61);
+            l.messageLeft = AndroidUtilities.dp(16);
+            l.avatarLeft = width - AndroidUtilities.dp(AndroidUtilities.isTablet() ? 65 : 61);
         }
-        avatarImage.setImageCoords(avatarLeft, avatarTop, AndroidUtilities.dp(52), AndroidUtilities.dp(52));
-        if (drawError) {
+        if (l.drawError) {
             int w = errorDrawable.getIntrinsicWidth() + AndroidUtilities.dp(8);
             messageWidth -= w;
-            if (!LocaleController.isRTL) {
-                errorLeft = getMeasuredWidth() - errorDrawable.getIntrinsicWidth() - AndroidUtilities.dp(11);
+            if (!l.isRTL) {
+                l.errorLeft = width - errorDrawable.getIntrinsicWidth() - AndroidUtilities.dp(11);
             } else {
-                errorLeft = AndroidUtilities.dp(11);
-                messageLeft += w;
+                l.errorLeft = AndroidUtilities.dp(11);
+                l.messageLeft += w;
             }
         } else if (countString != null) {
-            countWidth = Math.max(AndroidUtilities.dp(12), (int)Math.ceil(countPaint.measureText(countString)));
-            countLayout = new StaticLayout(countString, countPaint, countWidth, Layout.Alignment.ALIGN_CENTER, 1.0f, 0.0f, false);
-            int w = countWidth + AndroidUtilities.dp(18);
+            l.countWidth = Math.max(AndroidUtilities.dp(12), (int)Math.ceil(p.count.measureText(countString)));
+            l.countLayout = new StaticLayout(countString, p.count, l.countWidth, Layout.Alignment.ALIGN_CENTER, 1.0f, 0.0f, false);
+            int w = l.countWidth + AndroidUtilities.dp(18);
             messageWidth -= w;
-            if (!LocaleController.isRTL) {
-                countLeft = getMeasuredWidth() - countWidth - AndroidUtilities.dp(19);
+            if (!l.isRTL) {
+                l.countLeft = width - l.countWidth - AndroidUtilities.dp(19);
             } else {
-                countLeft = AndroidUtilities.dp(19);
-                messageLeft += w;
+                l.countLeft = AndroidUtilities.dp(19);
+                l.messageLeft += w;
             }
-            drawCount = true;
-        } else {
-            drawCount = false;
+            l.drawCount = true;
         }
 
-        if (checkMessage) {
-            if (messageString == null) {
-                messageString = "";
-            }
-            String mess = messageString.toString();
-            if (mess.length() > 150) {
-                mess = mess.substring(0, 150);
-            }
-            mess = mess.replace('\n', ' ');
-            messageString = Emoji.replaceEmoji(mess, messagePaint.getFontMetricsInt(), AndroidUtilities.dp(17), false);
-        }
         messageWidth = Math.max(AndroidUtilities.dp(12), messageWidth);
-        CharSequence messageStringFinal = TextUtils.ellipsize(messageString, currentMessagePaint, messageWidth - AndroidUtilities.dp(12), TextUtils.TruncateAt.END);
+        CharSequence messageStringFinal = TextUtils.ellipsize(messageString, p.message, messageWidth - AndroidUtilities.dp(12), TextUtils.TruncateAt.END);
         try {
-            messageLayout = new StaticLayout(messageStringFinal, currentMessagePaint, messageWidth, Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, false);
+            l.messageLayout = new StaticLayout(messageStringFinal, p.message, messageWidth, Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, false);
         } catch (Exception e) {
             FileLog.e("messenger", e);
         }
 
         double widthpx;
         float left;
-        if (LocaleController.isRTL) {
-            if (nameLayout != null && nameLayout.getLineCount() > 0) {
-                left = nameLayout.getLineLeft(0);
-                widthpx = Math.ceil(nameLayout.getLineWidth(0));
-                if (dialogMuted && !drawVerified) {
-                    nameMuteLeft = (int) (nameLeft + (nameWidth - widthpx) - AndroidUtilities.dp(6) - muteDrawable.getIntrinsicWidth());
-                } else if (drawVerified) {
-                    nameMuteLeft = (int) (nameLeft + (nameWidth - widthpx) - AndroidUtilities.dp(6) - verifiedDrawable.getIntrinsicWidth());
+        if (l.isRTL) {
+            if (l.nameLayout != null && l.nameLayout.getLineCount() > 0) {
+                left = l.nameLayout.getLineLeft(0);
+                widthpx = Math.ceil(l.nameLayout.getLineWidth(0));
+                if (item.muted && !l.drawVerified) {
+                    l.nameMuteLeft = (int) (l.nameLeft + (nameWidth - widthpx) - AndroidUtilities.dp(6) - muteDrawable.getIntrinsicWidth());
+                } else if (l.drawVerified) {
+                    l.nameMuteLeft = (int) (l.nameLeft + (nameWidth - widthpx) - AndroidUtilities.dp(6) - verifiedDrawable.getIntrinsicWidth());
                 }
                 if (left == 0) {
                     if (widthpx < nameWidth) {
-                        nameLeft += (nameWidth - widthpx);
+                        l.nameLeft += (nameWidth - widthpx);
                     }
                 }
             }
-            if (messageLayout != null && messageLayout.getLineCount() > 0) {
-                left = messageLayout.getLineLeft(0);
+            if (l.messageLayout != null && l.messageLayout.getLineCount() > 0) {
+                left = l.messageLayout.getLineLeft(0);
                 if (left == 0) {
-                    widthpx = Math.ceil(messageLayout.getLineWidth(0));
+                    widthpx = Math.ceil(l.messageLayout.getLineWidth(0));
                     if (widthpx < messageWidth) {
-                        messageLeft += (messageWidth - widthpx);
+                        l.messageLeft += (messageWidth - widthpx);
                     }
                 }
             }
         } else {
-            if (nameLayout != null && nameLayout.getLineCount() > 0) {
-                left = nameLayout.getLineRight(0);
+            if (l.nameLayout != null && l.nameLayout.getLineCount() > 0) {
+                left = l.nameLayout.getLineRight(0);
                 if (left == nameWidth) {
-                    widthpx = Math.ceil(nameLayout.getLineWidth(0));
+                    widthpx = Math.ceil(l.nameLayout.getLineWidth(0));
                     if (widthpx < nameWidth) {
-                        nameLeft -= (nameWidth - widthpx);
+                        l.nameLeft -= (nameWidth - widthpx);
                     }
                 }
-                if (dialogMuted || drawVerified) {
-                    nameMuteLeft = (int) (nameLeft + left + AndroidUtilities.dp(6));
+                if (item.muted || l.drawVerified) {
+                    l.nameMuteLeft = (int) (l.nameLeft + left + AndroidUtilities.dp(6));
                 }
             }
-            if (messageLayout != null && messageLayout.getLineCount() > 0) {
-                left = messageLayout.getLineRight(0);
+            if (l.messageLayout != null && l.messageLayout.getLineCount() > 0) {
+                left = l.messageLayout.getLineRight(0);
                 if (left == messageWidth) {
-                    widthpx = Math.ceil(messageLayout.getLineWidth(0));
+                    widthpx = Math.ceil(l.messageLayout.getLineWidth(0));
                     if (widthpx < messageWidth) {
-                        messageLeft -= (messageWidth - widthpx);
+                        l.messageLeft -= (messageWidth - widthpx);
                     }
                 }
             }
         }
+
+        return l;
     }
 
     public void setDialogSelected(boolean value) {
@@ -531,25 +632,11 @@ public class DialogCell extends BaseCell {
         isSelected = value;
     }
 
-    public void checkCurrentDialogIndex() {
-        if (index < MrMailbox.m_currChatlist.getCnt()) { // EDIT BY MR - was: index < getDialogsArray().size()
-            TLRPC.TL_dialog dialog = MrMailbox.m_currChatlist.get_TLRPC_TL_dialog(index); // EDIT BY MR - was: getDialogsArray().get(index);
-            MessageObject newMessageObject = MessagesController.getInstance().dialogMessage.get(dialog.id);
-            if (currentDialogId != dialog.id ||
-                    message != null && message.getId() != dialog.top_message ||
-                    unreadCount != dialog.unread_count ||
-                    message != newMessageObject ||
-                    message == null && newMessageObject != null ) {
-                currentDialogId = dialog.id;
-                update(0);
-            }
-        }
-    }
-
     public void update(int mask) {
-        if( m_showUnreadCount ) {
-            unreadCount = m_mrChat.getUnseenCount();
+        if (m_item == null) {
+            return;
         }
+        unreadCount = m_showUnreadCount ? m_item.unreadCount : 0;
 
         if (mask != 0) {
             boolean continueUpdate = false;
@@ -605,25 +692,9 @@ public class DialogCell extends BaseCell {
             }
         }
 
-        dialogMuted = isDialogCell && MessagesController.getInstance().isDialogMuted(currentDialogId);
-        user = null;
-        chat = null;
-
-        int lower_id = (int)currentDialogId;
-        int high_id = (int)(currentDialogId >> 32);
-        if (lower_id != 0) {
-            if (high_id == 1) {
-                chat = MessagesController.getInstance().getChat(lower_id);
-            } else {
-                if (lower_id < 0) {
-                    chat = MessagesController.getInstance().getChat(-lower_id);
-                } else {
-                    user = MessagesController.getInstance().getUser(lower_id);
-                }
-            }
-        }
-
-        ContactsController.setupAvatar(this, avatarImage, avatarDrawable, null, m_mrChat);
+        // the muted state is part of the item, isDialogMuted() reads the preferences and is too
+        // expensive for each bind; user and chat are not used by the chatlist and stay null
+        ContactsController.setupAvatarByStrings(this, avatarImage, avatarDrawable, m_item.avatarEmail, m_item.avatarName, m_item.avatarKey);
 
         if (getMeasuredWidth() != 0 || getMeasuredHeight() != 0) {
             buildLayout();
@@ -636,7 +707,8 @@ public class DialogCell extends BaseCell {
 
     @Override
     protected void onDraw(Canvas canvas) {
-        if (currentDialogId == 0) {
+        final Layouts l = m_layouts;
+        if (currentDialogId == 0 || l == null) {
             return;
         }
 
@@ -644,77 +716,71 @@ public class DialogCell extends BaseCell {
             canvas.drawRect(0, 0, getMeasuredWidth(), getMeasuredHeight(), backPaint);
         }
 
-        /*
-        if (drawNameLock) {
-            setDrawableBounds(lockDrawable, nameLockLeft, nameLockTop);
-            lockDrawable.draw(canvas);
-        } else
-        */
-        if (drawNameGroup) {
-            setDrawableBounds(groupDrawable, nameLockLeft, nameLockTop);
+        if (l.drawNameGroup) {
+            setDrawableBounds(groupDrawable, l.nameLockLeft, l.nameLockTop);
             groupDrawable.draw(canvas);
         }
 
-        if (nameLayout != null) {
+        if (l.nameLayout != null) {
             canvas.save();
-            canvas.translate(nameLeft, AndroidUtilities.dp(13));
-            nameLayout.draw(canvas);
+            canvas.translate(l.nameLeft, AndroidUtilities.dp(13));
+            l.nameLayout.draw(canvas);
             canvas.restore();
         }
 
         canvas.save();
-        canvas.translate(timeLeft, timeTop);
-        timeLayout.draw(canvas);
+        canvas.translate(l.timeLeft, timeTop);
+        l.timeLayout.draw(canvas);
         canvas.restore();
 
-        if (messageLayout != null) {
+        if (l.messageLayout != null) {
             canvas.save();
-            canvas.translate(messageLeft, messageTop);
+            canvas.translate(l.messageLeft, messageTop);
             try {
-                messageLayout.draw(canvas);
+                l.messageLayout.draw(canvas);
             } catch (Exception e) {
                 FileLog.e("messenger", e);
             }
             canvas.restore();
         }
 
-        if (drawClock) {
-            setDrawableBounds(clockDrawable, checkDrawLeft, checkDrawTop);
+        if (l.drawClock) {
+            setDrawableBounds(clockDrawable, l.checkDrawLeft, checkDrawTop);
             clockDrawable.draw(canvas);
-        } else if (drawCheck2) {
-            if (drawCheck1) {
-                setDrawableBounds(halfCheckDrawable, halfCheckDrawLeft, checkDrawTop);
+        } else if (l.drawCheck2) {
+            if (l.drawCheck1) {
+                setDrawableBounds(halfCheckDrawable, l.halfCheckDrawLeft, checkDrawTop);
                 halfCheckDrawable.draw(canvas);
-                setDrawableBounds(checkDrawable, checkDrawLeft, checkDrawTop);
+                setDrawableBounds(checkDrawable, l.checkDrawLeft, checkDrawTop);
                 checkDrawable.draw(canvas);
             } else {
-                setDrawableBounds(checkDrawable, checkDrawLeft, checkDrawTop);
+                setDrawableBounds(checkDrawable, l.checkDrawLeft, checkDrawTop);
                 checkDrawable.draw(canvas);
             }
         }
 
-        if (dialogMuted && !drawVerified) { // TODO: if we enable encrypted chats and show the verified logo, we may show both, muted and verivied
-            setDrawableBounds(muteDrawable, nameMuteLeft, AndroidUtilities.dp(16.5f));
+        if (l.item.muted && !l.drawVerified) { // TODO: if we enable encrypted chats and show the verified logo, we may show both, muted and verivied
+            setDrawableBounds(muteDrawable, l.nameMuteLeft, AndroidUtilities.dp(16.5f));
             muteDrawable.draw(canvas);
-        } else if (drawVerified) {
-            setDrawableBounds(verifiedDrawable, nameMuteLeft, AndroidUtilities.dp(16.5f));
+        } else if (l.drawVerified) {
+            setDrawableBounds(verifiedDrawable, l.nameMuteLeft, AndroidUtilities.dp(16.5f));
             verifiedDrawable.draw(canvas);
         }
 
-        if (drawError) {
-            setDrawableBounds(errorDrawable, errorLeft, errorTop);
+        if (l.drawError) {
+            setDrawableBounds(errorDrawable, l.errorLeft, errorTop);
             errorDrawable.draw(canvas);
-        } else if (drawCount) {
-            if (dialogMuted) {
-                setDrawableBounds(countDrawableGrey, countLeft - AndroidUtilities.dp(5.5f), countTop, countWidth + AndroidUtilities.dp(11), countDrawable.getIntrinsicHeight());
+        } else if (l.drawCount) {
+            if (l.item.muted) {
+                setDrawableBounds(countDrawableGrey, l.countLeft - AndroidUtilities.dp(5.5f), countTop, l.countWidth + AndroidUtilities.dp(11), countDrawable.getIntrinsicHeight());
                 countDrawableGrey.draw(canvas);
             } else {
-                setDrawableBounds(countDrawable, countLeft - AndroidUtilities.dp(5.5f), countTop, countWidth + AndroidUtilities.dp(11), countDrawable.getIntrinsicHeight());
+                setDrawableBounds(countDrawable, l.countLeft - AndroidUtilities.dp(5.5f), countTop, l.countWidth + AndroidUtilities.dp(11), countDrawable.getIntrinsicHeight());
                 countDrawable.draw(canvas);
             }
             canvas.save();
-            canvas.translate(countLeft, countTop + AndroidUtilities.dp(4));
-            countLayout.draw(canvas);
+            canvas.translate(l.countLeft, countTop + AndroidUtilities.dp(4));
+            l.countLayout.draw(canvas);
             canvas.restore();
         }
 
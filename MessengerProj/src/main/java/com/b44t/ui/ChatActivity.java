@@ -63,7 +63,9 @@ import com.b44t.messenger.MediaController;
 import com.b44t.messenger.MrChat;
 import com.b44t.messenger.MrContact;
 import com.b44t.messenger.MrMailbox;
+import com.b44t.messenger.MrMetrics;
 import com.b44t.messenger.MrMsg;
+import com.b44t.messenger.MrMsgBatch;
 import com.b44t.messenger.NotificationsController;
 import com.b44t.messenger.SendMessagesHelper;
 import com.b44t.messenger.Utilities;
@@ -76,6 +78,7 @@ import com.b44t.messenger.ConnectionsManager;
 import com.b44t.messenger.TLRPC;
 import com.b44t.messenger.FileLog;
 import com.b44t.messenger.MessageObject;
+import com.b44t.messenger.MessageObjectCache;
 import com.b44t.messenger.MessagesController;
 import com.b44t.messenger.NotificationCenter;
 import com.b44t.messenger.R;
@@ -116,6 +119,11 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
     public MrChat m_mrChat = new MrChat(0);
     private int[] m_msglist = {};
 
+    private final MrMetrics.FrameMonitor frameMonitor = MrMetrics.frameMonitor("ChatActivity");
+    private MessageObjectCache m_msgObjCache = new MessageObjectCache();
+    private MrMsgBatch m_msgPage = null; // the messages around the visible rows, used for the date headlines and to build text messages
+    private static final int MSG_PAGE_SIZE = 48;
+
     // the list view
     private RecyclerListView                chatListView;
     private static final int                ROWTYPE_MESSAGE_CELL    = 0;
@@ -202,6 +210,7 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
     public boolean onFragmentCreate() {
         super.onFragmentCreate();
 
+        ApplicationLoader.awaitMailboxOpened(); // the chat may be opened from the chatlist of the last run, shown before the database is opened
         dialog_id = arguments.getInt("chat_id", 0);
         m_mrChat = MrMailbox.getChat((int)dialog_id);
 
@@ -247,6 +256,15 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
     {
         m_msglist = MrMailbox.getChatMsgs((int)dialog_id, MrMailbox.MR_GCM_ADDDAYMARKER,
                 markerUnreadMessageId /*add a marker before this ID*/);
+        m_msgPage = null;
+    }
+
+    private MrMsgBatch getMsgPage(int index)
+    {
+        if( m_msgPage == null || !m_msgPage.contains(index) ) {
+            m_msgPage = MrMailbox.getMsgsBatch(m_msglist, Math.max(0, index-MSG_PAGE_SIZE/2), MSG_PAGE_SIZE, false);
+        }
+        return m_msgPage;
     }
 
     private void messagesDidLoaded()
@@ -339,6 +357,7 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
         if (chatActivityEnterView != null) {
             chatActivityEnterView.onDestroy();
         }
+        m_msgObjCache.invalidateAll();
 
         NotificationCenter.getInstance().removeObserver(this, NotificationCenter.emojiDidLoaded);
         NotificationCenter.getInstance().removeObserver(this, NotificationCenter.dialogsNeedReload);
@@ -858,6 +877,7 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
         chatListView.setTag(1);
         chatListView.setVerticalScrollBarEnabled(true);
         chatListView.setAdapter(chatAdapter = new ChatActivityAdapter(context));
+        chatAdapter.setPrefetchDistance(2); // message rows are large, two rows are typically more than the time left in a frame
         chatListView.setClipToPadding(false);
         chatListView.setPadding(0, AndroidUtilities.dp(4), 0, AndroidUtilities.dp(3));
         chatListView.setItemAnimator(null);
@@ -935,6 +955,9 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
                         }
                     }
                 }
+                if (visibleItemCount > 0) {
+                    m_msgObjCache.prefetch(m_msglist, firstVisibleItem, firstVisibleItem + visibleItemCount - 1);
+                }
                 updateMessagesVisisblePart();
             }
         });
@@ -1831,21 +1854,36 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
     {
         if( id == NotificationCenter.dialogsNeedReload )
         {
-            if( args.length >= 3 ) {
-                // add incoming messages
+            if( args.length >= 4 ) {
+                // add incoming messages; the events are merged per chat, args[3] holds all message ids of the batch
                 int evt_chat_id = (int) args[1];
                 int evt_msg_id = (int) args[2];
-                if (evt_chat_id == dialog_id && evt_msg_id > 0)
+                int[] evt_msg_ids = (int[]) args[3];
+                if (evt_chat_id == dialog_id) {
+                    if (evt_msg_id > 0) {
+                        m_msgObjCache.invalidateMsg(evt_msg_id);
+                    } else {
+                        m_msgObjCache.invalidateAll();
+                    }
+                    m_msgPage = null;
+                }
+
+                if (evt_chat_id == dialog_id && evt_msg_ids.length > 0)
                 {
-                    boolean markAsRead = false;
-                    MrMsg mrMsg = MrMailbox.getMsg(evt_msg_id);
-                    if ( mrMsg.getFromId()!=MrContact.MR_CONTACT_ID_SELF ) {
+                    int markAsReadCnt = 0;
+                    int[] markAsReadIds = new int[evt_msg_ids.length];
+                    MrMsgBatch batch = MrMailbox.getMsgsBatch(evt_msg_ids);
+                    for (int j = 0; j < batch.cnt; j++) {
+                        if (batch.ids[j] == 0 || batch.fromIds[j] == MrContact.MR_CONTACT_ID_SELF) {
+                            continue;
+                        }
+
                         if (paused) {
                             if( !scrollToTopUnReadOnResume && markerUnreadMessageId != 0 ) {
                                 markerUnreadMessageId = 0;
                             }
                             if( markerUnreadMessageId == 0 ) {
-                                markerUnreadMessageId = mrMsg.getId();
+                                markerUnreadMessageId = batch.ids[j];
                                 scrollToMessage = null;
                                 scrollToMessagePosition = -10000;
                                 markerUnreadCount = 0;
@@ -1857,18 +1895,20 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
                             markerUnreadCount++;
                         }
 
-                        markAsRead = true;
+                        markAsReadIds[markAsReadCnt++] = batch.ids[j];
                     }
 
                     updateMsglist();
                     chatAdapter.notifyDataSetChanged();
                     scrollToLastMessage(false);
 
-                    if (markAsRead) {
+                    if (markAsReadCnt > 0) {
                         if (paused) {
                             readWhenResume = true;
                         } else {
-                            MrMailbox.markseenMsg(evt_msg_id);
+                            for (int j = 0; j < markAsReadCnt; j++) {
+                                MrMailbox.markseenMsg(markAsReadIds[j]);
+                            }
                             NotificationsController.getInstance().removeSeenMessages();
                         }
                     }
@@ -1925,6 +1965,12 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
         }
         else if (id == NotificationCenter.messagesSentOrRead)
         {
+            if (args.length >= 3 && (int) args[2] > 0) {
+                m_msgObjCache.invalidateMsg((int) args[2]);
+            } else {
+                m_msgObjCache.invalidateAll();
+            }
+            m_msgPage = null;
             chatAdapter.notifyDataSetChanged();
         }
         else if (id == NotificationCenter.messagesDeleted)
@@ -1935,6 +1981,8 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
         }
         else if (id == NotificationCenter.messageSendError)
         {
+            m_msgObjCache.invalidateMsg((int) args[0]);
+            m_msgPage = null;
             chatAdapter.notifyDataSetChanged();
         }
         else if (id == NotificationCenter.contactsDidLoaded)
@@ -2170,6 +2218,7 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
     @Override
     public void onResume() {
         super.onResume();
+        frameMonitor.start();
 
         AndroidUtilities.requestAdjustResize(getParentActivity(), classGuid);
         MediaController.getInstance().startRaiseToEarSensors(this);
@@ -2234,6 +2283,7 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
     @Override
     public void onPause() {
         super.onPause();
+        frameMonitor.stop();
         MediaController.getInstance().stopRaiseToEarSensors(this);
         if (menuItem != null) {
             menuItem.closeSubMenu();
@@ -2408,6 +2458,9 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
             ret += msg.getSummarytext(1000);
         }
 
+        msg.close();
+        prev_msg.close();
+
         return ret;
     }
 
@@ -2857,9 +2910,7 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
                 if( view instanceof ChatMessageCell )
                 {
                     // show a normal message
-                    MrMsg mrMsg = MrMailbox.getMsg(msg_id);
-                    TLRPC.Message msg = mrMsg.get_TLRPC_Message();
-                    MessageObject msgDrawObj = new MessageObject(msg, true);
+                    MessageObject msgDrawObj = m_msgObjCache.getOrCreate(msg_id, getMsgPage(i), i);
 
                     ChatMessageCell messageCell = (ChatMessageCell) view;
                     messageCell.isChat = m_mrChat.getType()==MrChat.MR_CHAT_GROUP;
@@ -2881,11 +2932,9 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
                 {
                     // show a date headline (the date comes from the _next_ message)
                     if( msg_id == MrMsg.MR_MSG_ID_DAYMARKER && i+1 < m_msglist.length ) {
-                        MrMsg mrMsg = MrMailbox.getMsg(m_msglist[i+1]);
-
                         TLRPC.Message dateMsg = new TLRPC.Message();
                         dateMsg.id = 0;
-                        dateMsg.date = (int)mrMsg.getTimestamp();
+                        dateMsg.date = (int)getMsgPage(i+1).getTimestamp(i+1);
                         dateMsg.message = LocaleController.formatDateChat(dateMsg.date);
                         MessageObject msgDrawObj = new MessageObject(dateMsg, false);
                         msgDrawObj.type = MessageObject.MO_TYPE10_DATE_HEADLINE;
@@ -45,6 +45,7 @@ public class SeekBarWaveform {
     private int height;
     private SeekBar.SeekBarDelegate delegate;
     private byte[] waveformBytes;
+    private byte[] waveformSamples; // unpacked from waveformBytes, 0..31 each
     private MessageObject messageObject;
     private View parentView;
     private boolean selected;
@@ -71,7 +72,30 @@ public class SeekBarWaveform {
     }
 
     public void setWaveform(byte[] waveform) {
+        if (waveform == waveformBytes) {
+            return;
+        }
         waveformBytes = waveform;
+        waveformSamples = waveform != null ? unpackWaveform(waveform) : null;
+    }
+
+    /* the waveform is packed to 5 bits per sample; unpack it once instead of on every draw */
+    private static byte[] unpackWaveform(byte[] waveform) {
+        byte[] samples = new byte[waveform.length * 8 / 5];
+        for (int a = 0; a < samples.length; a++) {
+            int bitPointer = a * 5;
+            int byteNum = bitPointer / 8;
+            int byteBitOffset = bitPointer - byteNum * 8;
+            int currentByteCount = 8 - byteBitOffset;
+            int nextByteRest = 5 - currentByteCount;
+            byte value = (byte) ((waveform[byteNum] >> byteBitOffset) & ((2 << (Math.min(5, currentByteCount) - 1)) - 1));
+            if (nextByteRest > 0) {
+                value <<= nextByteRest;
+                value |= waveform[byteNum + 1] & ((2 << (nextByteRest - 1)) - 1);
+            }
+            samples[a] = value;
+        }
+        return samples;
     }
 
     public void setSelected(boolean value) {
@@ -149,15 +173,14 @@ public class SeekBarWaveform {
     }
 
     public void draw(Canvas canvas) {
-        if (waveformBytes == null || width == 0) {
+        if (waveformSamples == null || width == 0) {
             return;
         }
         float totalBarsCount = width / AndroidUtilities.dp(3);
         if (totalBarsCount <= 0.1f) {
             return;
         }
-        byte value;
-        int samplesCount = (waveformBytes.length * 8 / 5);
+        int samplesCount = waveformSamples.length;
         float samplesPerBar = samplesCount / totalBarsCount;
         float barCounter = 0;
         int nextBarNum = 0;
@@ -182,16 +205,7 @@ public class SeekBarWaveform {
                 drawBarCount++;
             }
 
-            int bitPointer = a * 5;
-            int byteNum = bitPointer / 8;
-            int byteBitOffset = bitPointer - byteNum * 8;
-            int currentByteCount = 8 - byteBitOffset;
-            int nextByteRest = 5 - currentByteCount;
-            value = (byte) ((waveformBytes[byteNum] >> byteBitOffset) & ((2 << (Math.min(5, currentByteCount) - 1)) - 1));
-            if (nextByteRest > 0) {
-                value <<= nextByteRest;
-                value |= waveformBytes[byteNum + 1] & ((2 << (nextByteRest - 1)) - 1);
-            }
+            byte value = waveformSamples[a];
 
             for (int b = 0; b < drawBarCount; b++) {
                 int x = barNum * AndroidUtilities.dp(3);
@@ -56,7 +56,9 @@ import com.b44t.messenger.AndroidUtilities;
 import com.b44t.messenger.ImageLoader;
 import com.b44t.messenger.LocaleController;
 import com.b44t.messenger.MrChat;
+import com.b44t.messenger.MrChatlistSnapshot;
 import com.b44t.messenger.MrMailbox;
+import com.b44t.messenger.MrMetrics;
 import com.b44t.messenger.MrMsg;
 import com.b44t.messenger.Utilities;
 import com.b44t.messenger.support.widget.LinearLayoutManager;
@@ -89,6 +91,7 @@ public class DialogsActivity extends BaseFragment implements NotificationCenter.
     private LinearLayoutManager layoutManager;
     private DialogsAdapter dialogsAdapter;
     private DialogsSearchAdapter dialogsSearchAdapter;
+    private final MrMetrics.FrameMonitor frameMonitor = MrMetrics.frameMonitor("DialogsActivity");
     private EmptyTextProgressView searchEmptyView;
     private LinearLayout emptyView;
     private ActionBarMenuItem passcodeItem;
@@ -144,6 +147,7 @@ public class DialogsActivity extends BaseFragment implements NotificationCenter.
         }
 
         NotificationCenter.getInstance().addObserver(this, NotificationCenter.dialogsNeedReload);
+        NotificationCenter.getInstance().addObserver(this, NotificationCenter.mainChatlistChanged);
         NotificationCenter.getInstance().addObserver(this, NotificationCenter.emojiDidLoaded);
         NotificationCenter.getInstance().addObserver(this, NotificationCenter.updateInterfaces);
         NotificationCenter.getInstance().addObserver(this, NotificationCenter.contactsDidLoaded);
@@ -153,6 +157,8 @@ public class DialogsActivity extends BaseFragment implements NotificationCenter.
         NotificationCenter.getInstance().addObserver(this, NotificationCenter.didSetPasscode);
         NotificationCenter.getInstance().addObserver(this, NotificationCenter.reloadHints);
 
+        MrMailbox.setChatlistPreprocessor(DialogCell.s_chatlistPreprocessor);
+
         if (!dialogsLoaded) {
             NotificationCenter.getInstance().postNotificationName(NotificationCenter.dialogsNeedReload); // this is the rest of the first call to the removed MessagesController.loadDialogs(); not sure, if this is really needed
             dialogsLoaded = true;
@@ -165,6 +171,7 @@ public class DialogsActivity extends BaseFragment implements NotificationCenter.
         super.onFragmentDestroy();
 
         NotificationCenter.getInstance().removeObserver(this, NotificationCenter.dialogsNeedReload);
+        NotificationCenter.getInstance().removeObserver(this, NotificationCenter.mainChatlistChanged);
         NotificationCenter.getInstance().removeObserver(this, NotificationCenter.emojiDidLoaded);
         NotificationCenter.getInstance().removeObserver(this, NotificationCenter.updateInterfaces);
         NotificationCenter.getInstance().removeObserver(this, NotificationCenter.contactsDidLoaded);
@@ -174,6 +181,10 @@ public class DialogsActivity extends BaseFragment implements NotificationCenter.
         NotificationCenter.getInstance().removeObserver(this, NotificationCenter.didSetPasscode);
         NotificationCenter.getInstance().removeObserver(this, NotificationCenter.reloadHints);
 
+        if (dialogsSearchAdapter != null) {
+            dialogsSearchAdapter.cancelSearch();
+        }
+
         delegate = null;
     }
 
@@ -215,6 +226,9 @@ public class DialogsActivity extends BaseFragment implements NotificationCenter.
             public void onSearchCollapse() {
                 searching = false;
                 searchWas = false;
+                if (dialogsSearchAdapter != null) {
+                    dialogsSearchAdapter.cancelSearch();
+                }
                 if (listView != null) {
                     searchEmptyView.setVisibility(View.GONE);
                     listView.setEmptyView(emptyView);
@@ -247,12 +261,12 @@ public class DialogsActivity extends BaseFragment implements NotificationCenter.
                         if( listView.getAdapter() != dialogsSearchAdapter ) {
                             listView.setAdapter(dialogsSearchAdapter);
                         }
-                        dialogsSearchAdapter.searchDialogs(text);
-                        dialogsSearchAdapter.notifyDataSetChanged();
+                        dialogsSearchAdapter.searchDialogsAsync(text);
                     }
                 }
                 else if( listView.getAdapter()==dialogsSearchAdapter ) {
                     // empty text
+                    dialogsSearchAdapter.cancelSearch();
                     listView.setAdapter(dialogsAdapter);
                     dialogsAdapter.notifyDataSetChanged();
                 }
@@ -339,11 +353,10 @@ public class DialogsActivity extends BaseFragment implements NotificationCenter.
                 int message_id = 0;
                 RecyclerView.Adapter adapter = listView.getAdapter();
                 if (adapter == dialogsAdapter) {
-                    MrChat mrChat = dialogsAdapter.getItem(position);
-                    if (mrChat == null) {
+                    dialog_id = dialogsAdapter.getChatId(position);
+                    if (dialog_id == 0) {
                         return;
                     }
-                    dialog_id = mrChat.getId();
                 } else if (adapter == dialogsSearchAdapter) {
                     Object obj  = dialogsSearchAdapter.getItem(position);
                     if( obj instanceof MrChat ) {
@@ -497,11 +510,22 @@ public class DialogsActivity extends BaseFragment implements NotificationCenter.
         });
 
         dialogsAdapter = new DialogsAdapter(context);
+        dialogsAdapter.setPrefetchDistance(3); // binding a chat row is cheap as the snapshot holds all data
         if (AndroidUtilities.isTablet() && openedDialogId != 0) {
             dialogsAdapter.setOpenedDialogId(openedDialogId);
         }
         listView.setAdapter(dialogsAdapter);
         dialogsSearchAdapter = new DialogsSearchAdapter(context);
+        dialogsSearchAdapter.setDelegate(new DialogsSearchAdapter.DialogsSearchAdapterDelegate() {
+            @Override
+            public void searchStateChanged(boolean searching) {
+                if (searching) {
+                    searchEmptyView.showProgress();
+                } else {
+                    searchEmptyView.showTextView();
+                }
+            }
+        });
 
         searchEmptyView.setVisibility(View.GONE);
         listView.setEmptyView(emptyView);
@@ -516,6 +540,7 @@ public class DialogsActivity extends BaseFragment implements NotificationCenter.
     @Override
     public void onResume() {
         super.onResume();
+        frameMonitor.start();
         if (dialogsAdapter != null) {
             dialogsAdapter.notifyDataSetChanged();
         }
@@ -533,6 +558,12 @@ public class DialogsActivity extends BaseFragment implements NotificationCenter.
         }
     }
 
+    @Override
+    public void onPause() {
+        super.onPause();
+        frameMonitor.stop();
+    }
+
     @TargetApi(Build.VERSION_CODES.M)
     private void askForPermissons() {
         Activity activity = getParentActivity();
@@ -596,9 +627,10 @@ public class DialogsActivity extends BaseFragment implements NotificationCenter.
     @Override
     @SuppressWarnings("unchecked")
     public void didReceivedNotification(int id, Object... args) {
-        if (id == NotificationCenter.dialogsNeedReload) {
-            if (dialogsAdapter != null) {
-                dialogsAdapter.notifyDataSetChanged();
+        if (id == NotificationCenter.dialogsNeedReload || id == NotificationCenter.mainChatlistChanged) {
+            if (dialogsAdapter != null && id == NotificationCenter.mainChatlistChanged) {
+                // dialogsNeedReload is followed by mainChatlistChanged as soon as the new chatlist snapshot is ready
+                dialogsAdapter.setSnapshot((MrChatlistSnapshot) args[0], (MrChatlistSnapshot) args[1], (MrChatlistSnapshot.Diff) args[2]);
                 /* EDIT BY MR
                 if (dialogsAdapter.isDataSetChanged()) {
                     dialogsAdapter.notifyDataSetChanged();
@@ -607,7 +639,7 @@ public class DialogsActivity extends BaseFragment implements NotificationCenter.
                 }
                 */
             }
-            if (dialogsSearchAdapter != null) {
+            if (dialogsSearchAdapter != null && id == NotificationCenter.dialogsNeedReload) {
                 dialogsSearchAdapter.notifyDataSetChanged();
             }
             if (listView != null) {
@@ -706,7 +738,6 @@ public class DialogsActivity extends BaseFragment implements NotificationCenter.
                 if (listView.getAdapter() != dialogsSearchAdapter) {
                     DialogCell cell = (DialogCell) child;
                     if ((mask & MessagesController.UPDATE_MASK_NEW_MESSAGE) != 0) {
-                        cell.checkCurrentDialogIndex();
                         if ( AndroidUtilities.isTablet()) {
                             cell.setDialogSelected(cell.getDialogId() == openedDialogId);
                         }
@@ -124,9 +124,9 @@ public class LaunchActivity extends Activity implements ActionBarLayout.ActionBa
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
-        ApplicationLoader.postInitApplication();
+        ApplicationLoader.postInitApplicationAsync(); // the database is opened in the background, the chatlist of the last run is shown until then
 
-        if( MrMailbox.isConfigured()==0 ) {
+        if( !ApplicationLoader.isMailboxConfigured() ) {
             Intent intent = getIntent();
             if (intent != null && !intent.getBooleanExtra("fromIntro", false)) {
                 Intent intent2 = new Intent(this, IntroActivity.class);
@@ -370,7 +370,7 @@ public class LaunchActivity extends Activity implements ActionBarLayout.ActionBa
         NotificationCenter.getInstance().addObserver(this, NotificationCenter.didUpdatedConnectionState);
 
         if (actionBarLayout.fragmentsStack.isEmpty()) {
-            if ( MrMailbox.isConfigured()==0 ) {
+            if ( !ApplicationLoader.isMailboxConfigured() ) {
                 Bundle args = new Bundle();
                 args.putBoolean("fromIntro", true);
                 actionBarLayout.addFragmentToStack(new AccountSettingsActivity(args));
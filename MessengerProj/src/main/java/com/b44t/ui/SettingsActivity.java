@@ -43,8 +43,10 @@ import android.widget.FrameLayout;
 import android.widget.ListView;
 
 import com.b44t.messenger.AndroidUtilities;
+import com.b44t.messenger.BuildVars;
 import com.b44t.messenger.MediaController;
 import com.b44t.messenger.MrMailbox;
+import com.b44t.messenger.MrMetrics;
 import com.b44t.messenger.ApplicationLoader;
 import com.b44t.messenger.LocaleController;
 import com.b44t.messenger.MessagesController;
@@ -254,7 +256,15 @@ public class SettingsActivity extends BaseFragment implements NotificationCenter
                 } else if (i == aboutRow) {
                     AlertDialog.Builder builder = new AlertDialog.Builder(getParentActivity());
                     builder.setTitle(LocaleController.getString("AppName", R.string.AppName) + " " + getVersion());
-                    builder.setMessage(MrMailbox.getInfo() + "\n\n" + getAndroidInfo());
+                    builder.setMessage(MrMetrics.getDashboard() + "\n\n" + getAndroidInfo());
+                    if (BuildVars.DEBUG_VERSION) {
+                        builder.setNeutralButton(LocaleController.getString("Save", R.string.Save), new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialogInterface, int i) {
+                                MrMetrics.exportToLog();
+                            }
+                        });
+                    }
                     builder.setPositiveButton(LocaleController.getString("OK", R.string.OK), new DialogInterface.OnClickListener() {
                         @Override
                         public void onClick(DialogInterface dialogInterface, int i) {